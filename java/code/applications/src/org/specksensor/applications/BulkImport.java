@@ -0,0 +1,296 @@
+package org.specksensor.applications;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.specksensor.ApiSupport;
+import org.specksensor.DataSampleImporter;
+import org.specksensor.InitializationException;
+import org.specksensor.RemoteStorageCredentialsImpl;
+import org.specksensor.SpeckConfig;
+import org.specksensor.SpeckConstants;
+
+/**
+ * <p>
+ * <code>BulkImport</code> imports CSV archives of a Speck's samples (e.g. <code>data_samples.csv</code> files and their
+ * rolled-over or gzipped siblings) with a {@link DataSampleImporter}, either into the Speck's local database, so that
+ * the gateway uploads them the next time it runs, or straight to the server.  The arguments are switches, and the CSV
+ * files (or directories of them) to import, which default to the Speck's data directory.  Switches:
+ * </p>
+ * <ul>
+ *    <li><code>--speck-id=ID</code> (required): the Speck whose samples are being imported.</li>
+ *    <li><code>--protocol-version=N</code>: the Speck's protocol version, which is otherwise detected from the header of
+ *    the first file.</li>
+ *    <li><code>--destination=store|upload</code> (default store): whether to import into the local database (which
+ *    can't be done while the gateway is running) or upload directly.</li>
+ *    <li><code>--upload-host=HOST</code>, <code>--upload-port=N</code> (default 80), <code>--upload-username=NAME</code>,
+ *    <code>--upload-password=PASSWORD</code>, <code>--upload-device-name=NAME</code>: where to upload to, all but the
+ *    port being required when uploading.</li>
+ *    <li><code>--logging-level=LEVEL</code> (default warn): the logging level.</li>
+ * </ul>
+ * <p>
+ * The importer's tunables (e.g. <code>-Dorg.specksensor.DataSampleImporter.parser-threads=4</code>) can be set as
+ * system properties.  The sample times of any samples which failed to import are listed at the end, so that the files
+ * covering them can be imported again (samples already imported are skipped as duplicates).
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class BulkImport
+   {
+   private static final Logger LOG = Logger.getLogger(BulkImport.class);
+
+   private static final String SWITCH_PREFIX = "--";
+   private static final String SPECK_ID_SWITCH = "--speck-id";
+   private static final String PROTOCOL_VERSION_SWITCH = "--protocol-version";
+   private static final String DESTINATION_SWITCH = "--destination";
+   private static final String UPLOAD_HOST_SWITCH = "--upload-host";
+   private static final String UPLOAD_PORT_SWITCH = "--upload-port";
+   private static final String UPLOAD_USERNAME_SWITCH = "--upload-username";
+   private static final String UPLOAD_PASSWORD_SWITCH = "--upload-password";
+   private static final String UPLOAD_DEVICE_NAME_SWITCH = "--upload-device-name";
+   private static final String LOGGING_LEVEL_SWITCH = "--logging-level";
+
+   private static final String DESTINATION_STORE = "store";
+   private static final String DESTINATION_UPLOAD = "upload";
+
+   private static final String DATA_FILE_NAME_PREFIX = "data_samples";
+   private static final String[] DATA_FILE_NAME_SUFFIXES = {".csv", ".csv.gz"};
+
+   public static void main(final String[] args)
+      {
+      final Map<String, String> arguments = JuploadStandInServer.parseArguments(args);
+
+      final Level level = Level.toLevel(arguments.get(LOGGING_LEVEL_SWITCH), Level.WARN);
+      LogManager.getRootLogger().setLevel(level);
+
+      final String speckId = arguments.get(SPECK_ID_SWITCH);
+      final String destination = arguments.containsKey(DESTINATION_SWITCH) ? arguments.get(DESTINATION_SWITCH) : DESTINATION_STORE;
+      if (speckId == null || speckId.length() == 0 || !(DESTINATION_STORE.equals(destination) || DESTINATION_UPLOAD.equals(destination)))
+         {
+         printUsageAndExit();
+         return;
+         }
+
+      // anything other than a switch is a file or directory to import
+      final List<File> files = new ArrayList<File>();
+      for (final String arg : args)
+         {
+         if (!arg.startsWith(SWITCH_PREFIX))
+            {
+            addFiles(files, new File(arg));
+            }
+         }
+      if (files.isEmpty())
+         {
+         final File dataDirectory = new File(SpeckConstants.FilePaths.getRootDataDirectory(), "Speck" + speckId);
+         addFiles(files, dataDirectory);
+         if (files.isEmpty())
+            {
+            println("No files to import were given, and there are none in " + dataDirectory);
+            System.exit(1);
+            }
+         }
+
+      final ApiSupport apiSupport = getApiSupport(arguments, files.get(0));
+      if (apiSupport == null)
+         {
+         println("The protocol version couldn't be detected from the header of " + files.get(0) + ", so it must be given with " + PROTOCOL_VERSION_SWITCH);
+         System.exit(1);
+         return;
+         }
+
+      final DataSampleImporter importer = new DataSampleImporter(createSpeckConfig(speckId, apiSupport));
+      final DataSampleImporter.ProgressListener progressListener =
+            new DataSampleImporter.ProgressListener()
+            {
+            @Override
+            public void handleProgress(@NotNull final DataSampleImporter.Progress progress)
+               {
+               println(progress.toString());
+               }
+            };
+
+      println("Importing " + files.size() + " file(s) for Speck " + speckId + " into the " + (DESTINATION_STORE.equals(destination) ? "local database" : "server") + "...");
+      final DataSampleImporter.Progress progress;
+      try
+         {
+         if (DESTINATION_STORE.equals(destination))
+            {
+            progress = importer.importIntoStore(files, progressListener);
+            }
+         else
+            {
+            final String host = arguments.get(UPLOAD_HOST_SWITCH);
+            final String username = arguments.get(UPLOAD_USERNAME_SWITCH);
+            final String password = arguments.get(UPLOAD_PASSWORD_SWITCH);
+            final String deviceName = arguments.get(UPLOAD_DEVICE_NAME_SWITCH);
+            if (host == null || username == null || password == null || deviceName == null)
+               {
+               printUsageAndExit();
+               return;
+               }
+            progress = importer.importAndUpload(files,
+                                                new RemoteStorageCredentialsImpl(host, JuploadStandInServer.getInt(arguments, UPLOAD_PORT_SWITCH, 80), username, password, deviceName),
+                                                progressListener);
+            }
+         }
+      catch (InitializationException e)
+         {
+         LOG.error("BulkImport.main(): InitializationException while opening the database", e);
+         println("The database couldn't be opened (is the gateway running?): " + e);
+         System.exit(1);
+         return;
+         }
+
+      println("");
+      println("Rows read:         " + progress.getNumRows());
+      println("Invalid rows:      " + progress.getNumInvalidRows());
+      println("Duplicates:        " + progress.getNumDuplicates());
+      println("Imported:          " + progress.getNumImported());
+      println("Rejected:          " + progress.getNumRejected());
+      println("Failed:            " + progress.getNumFailed());
+      for (final DataSampleImporter.TimeRange timeRange : progress.getFailedTimeRanges())
+         {
+         println("   sample times:   " + timeRange.getStartSampleTime() + " to " + timeRange.getEndSampleTime() + " (" + formatSampleTime(timeRange.getStartSampleTime()) + " to " + formatSampleTime(timeRange.getEndSampleTime()) + ")");
+         }
+      println("Files skipped:     " + progress.getNumSkippedFiles() + " of " + progress.getNumFiles());
+      println("Elapsed (ms):      " + progress.getElapsedMillis());
+      println("Rows per second:   " + progress.getRowsPerSecond());
+      System.exit((progress.getNumFailed() > 0 || progress.getNumSkippedFiles() > 0) ? 1 : 0);
+      }
+
+   /** Adds the given file or, if it's a directory, the CSV data files within it, in name order. */
+   private static void addFiles(@NotNull final List<File> files, @NotNull final File file)
+      {
+      if (file.isDirectory())
+         {
+         final File[] dataFiles = file.listFiles(
+               new FileFilter()
+               {
+               @Override
+               public boolean accept(final File pathname)
+                  {
+                  if (pathname.isFile() && pathname.getName().startsWith(DATA_FILE_NAME_PREFIX))
+                     {
+                     for (final String suffix : DATA_FILE_NAME_SUFFIXES)
+                        {
+                        if (pathname.getName().endsWith(suffix))
+                           {
+                           return true;
+                           }
+                        }
+                     }
+                  return false;
+                  }
+               });
+         if (dataFiles != null)
+            {
+            Arrays.sort(dataFiles);
+            files.addAll(Arrays.asList(dataFiles));
+            }
+         }
+      else if (file.isFile())
+         {
+         files.add(file);
+         }
+      else
+         {
+         println("Ignoring " + file + ", since it doesn't exist");
+         }
+      }
+
+   @Nullable
+   private static ApiSupport getApiSupport(@NotNull final Map<String, String> arguments, @NotNull final File firstFile)
+      {
+      final int protocolVersion = JuploadStandInServer.getInt(arguments, PROTOCOL_VERSION_SWITCH, 0);
+      if (ApiSupport.isVersionNumberValid(protocolVersion))
+         {
+         return ApiSupport.getInstance(protocolVersion);
+         }
+      return DataSampleImporter.detectApiSupport(firstFile);
+      }
+
+   @NotNull
+   private static SpeckConfig createSpeckConfig(@NotNull final String speckId, @NotNull final ApiSupport apiSupport)
+      {
+      // the importer only needs the id (for the database's location) and the API support (for the fields)
+      return new SpeckConfig()
+      {
+      @NotNull
+      @Override
+      public String getId()
+         {
+         return speckId;
+         }
+
+      @Override
+      public int getProtocolVersion()
+         {
+         return apiSupport.getProtocolVersion();
+         }
+
+      @Override
+      public int getHardwareVersion()
+         {
+         return 0;
+         }
+
+      @Override
+      public int getFirmwareVersion()
+         {
+         return 0;
+         }
+
+      @Override
+      public int getLoggingInterval()
+         {
+         return 0;
+         }
+
+      @NotNull
+      @Override
+      public ApiSupport getApiSupport()
+         {
+         return apiSupport;
+         }
+      };
+      }
+
+   @NotNull
+   private static String formatSampleTime(final int sampleTime)
+      {
+      final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss 'UTC'");
+      dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return dateFormat.format(new Date(sampleTime * 1000L));
+      }
+
+   private static void printUsageAndExit()
+      {
+      println("Usage: bulk-import " + SPECK_ID_SWITCH + "=ID [" + PROTOCOL_VERSION_SWITCH + "=N] [" + DESTINATION_SWITCH + "=" + DESTINATION_STORE + "|" + DESTINATION_UPLOAD + "]");
+      println("           [" + UPLOAD_HOST_SWITCH + "=HOST " + UPLOAD_PORT_SWITCH + "=N " + UPLOAD_USERNAME_SWITCH + "=NAME " + UPLOAD_PASSWORD_SWITCH + "=PASSWORD " + UPLOAD_DEVICE_NAME_SWITCH + "=NAME]");
+      println("           [" + LOGGING_LEVEL_SWITCH + "=LEVEL] [FILE_OR_DIRECTORY...]");
+      System.exit(1);
+      }
+
+   private static void println(@NotNull final String message)
+      {
+      System.out.println(message);
+      }
+
+   private BulkImport()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -1,6 +1,9 @@
 package org.specksensor.applications;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.HashSet;
@@ -11,6 +14,8 @@ import org.apache.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 import org.specksensor.ApiSupport;
 import org.specksensor.CommunicationException;
+import org.specksensor.DataSampleExporter;
+import org.specksensor.InitializationException;
 import org.specksensor.Speck;
 import org.specksensor.SpeckConfig;
 import org.specksensor.SpeckConstants;
@@ -696,6 +701,90 @@ public final class CommandLineSpeck extends BaseCommandLineApplication
             }
          };
 
+   private final Runnable exportDataSamplesAction =
+         new Runnable()
+         {
+         public void run()
+            {
+            if (isConnected())
+               {
+               final Integer fromUtcSecs = readInteger("Export samples from time (UTC seconds, inclusive): ");
+               if (fromUtcSecs == null)
+                  {
+                  println("Invalid time");
+                  return;
+                  }
+               final Integer toUtcSecs = readInteger("Export samples to time (UTC seconds, inclusive): ");
+               if (toUtcSecs == null)
+                  {
+                  println("Invalid time");
+                  return;
+                  }
+               final DataSampleExporter.Format format = DataSampleExporter.Format.findByName(readString("Format [csv|json]: "));
+               if (format == null)
+                  {
+                  println("Invalid format");
+                  return;
+                  }
+               final String filename = readString("Output file: ");
+               if (filename == null || filename.length() <= 0)
+                  {
+                  println("Invalid file");
+                  return;
+                  }
+
+               final File file = new File(filename);
+               DataSampleExporter exporter = null;
+               BufferedWriter writer = null;
+               boolean wasSuccessful = false;
+               try
+                  {
+                  exporter = new DataSampleExporter(device.getSpeckConfig());
+                  writer = new BufferedWriter(new FileWriter(file));
+                  final int numExported = exporter.export(fromUtcSecs, toUtcSecs, format, writer);
+                  println("Exported " + numExported + " samples to " + file.getAbsolutePath());
+                  wasSuccessful = true;
+                  }
+               catch (InitializationException e)
+                  {
+                  println("Failed to open the database (is the gateway running?): " + e);
+                  }
+               catch (IOException e)
+                  {
+                  println("Failed to export the samples: " + e);
+                  }
+               finally
+                  {
+                  if (writer != null)
+                     {
+                     try
+                        {
+                        writer.close();
+                        }
+                     catch (IOException e)
+                        {
+                        LOG.error("CommandLineSpeck.exportDataSamplesAction.run(): IOException while closing the export file", e);
+                        }
+                     }
+                  if (exporter != null)
+                     {
+                     exporter.shutdown();
+                     }
+
+                  // don't leave a partial export lying around, since it'd look like a complete one
+                  if (writer != null && !wasSuccessful && !file.delete())
+                     {
+                     println("Failed to delete the incomplete export file " + file.getAbsolutePath());
+                     }
+                  }
+               }
+            else
+               {
+               println("You must be connected to the Speck first.");
+               }
+            }
+         };
+
    private void printSample(@Nullable final Speck.DataSample dataSample)
       {
       if (dataSample == null || dataSample.isEmpty())
@@ -766,6 +855,7 @@ public final class CommandLineSpeck extends BaseCommandLineApplication
       registerAction("w", wipeStorageAction);
       registerAction("w2", wipeStorageAction2);
       registerAction("n", getNumberOfAvailableSamplesAction);
+      registerAction("e", exportDataSamplesAction);
       registerAction("i",
                      new GetStringAction("Speck ID")
                      {
@@ -855,6 +945,7 @@ public final class CommandLineSpeck extends BaseCommandLineApplication
       println("w         Wipe Speck's storage by getting and deleting all saved samples");
       println("w2        Wipe Speck's storage by getting (but not deleting) all saved samples");
       println("n         Gets the number of available samples");
+      println("e         Exports saved samples within a time range to a CSV or JSON file");
       println("");
       println("i         Gets the Speck's unique ID");
       println("p         Gets the Speck's protocol version");
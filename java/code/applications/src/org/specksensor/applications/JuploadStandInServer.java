@@ -0,0 +1,476 @@
+package org.specksensor.applications;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>JuploadStandInServer</code> stands in for the BodyTrack server's <code>/api/bodytrack/jupload</code> API, so
+ * that the upload path can be exercised (e.g. by the {@link UploadLoadTest}) without a live server.  It checks basic
+ * auth, counts the records in each upload, and answers with the same <code>OK</code>/<code>KO</code> JSON responses
+ * (including the <code>successful_records</code>, <code>failed_records</code>, and <code>failure</code> payload) that
+ * the real server sends.  Nothing is stored.
+ * </p>
+ * <p>
+ * Uploads can be made harder with a {@link #setLatency(int, int) latency}, a {@link #setErrorRate(double) rate of
+ * server errors}, and a {@link #setRejectionRate(double) rate of rejected samples}.  Whether a sample is rejected
+ * depends only on its device name and sample time, so the same samples are rejected every time they're uploaded, just
+ * as bad samples are by the real server.
+ * </p>
+ * <p>
+ * It can also be run on its own, to point a gateway at:
+ * </p>
+ * <pre>
+ *    java -cp speck-applications.jar org.specksensor.applications.JuploadStandInServer --port=8080 --username=u --password=p --latency-ms=100
+ * </pre>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class JuploadStandInServer
+   {
+   private static final Logger LOG = Logger.getLogger(JuploadStandInServer.class);
+   private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
+
+   public static final String UPLOAD_PATH = "/api/bodytrack/jupload";
+
+   private static final String PORT_SWITCH = "--port";
+   private static final String USERNAME_SWITCH = "--username";
+   private static final String PASSWORD_SWITCH = "--password";
+   private static final String LATENCY_MILLIS_SWITCH = "--latency-ms";
+   private static final String LATENCY_JITTER_MILLIS_SWITCH = "--latency-jitter-ms";
+   private static final String ERROR_RATE_SWITCH = "--error-rate";
+   private static final String REJECTION_RATE_SWITCH = "--rejection-rate";
+
+   private static final String DEVICE_NAME_QUERY_PARAMETER = "dev_nickname";
+   private static final String CHARSET = "UTF-8";
+
+   private static final int HTTP_OK = 200;
+   private static final int HTTP_BAD_REQUEST = 400;
+   private static final int HTTP_UNAUTHORIZED = 401;
+   private static final int HTTP_NOT_FOUND = 404;
+   private static final int HTTP_BAD_METHOD = 405;
+   private static final int HTTP_INTERNAL_ERROR = 500;
+
+   private static final int DEFAULT_NUM_THREADS = 32;
+   private static final int STATUS_INTERVAL_SECONDS = 60;
+
+   public static void main(final String[] args) throws IOException, InterruptedException
+      {
+      final Map<String, String> arguments = parseArguments(args);
+      final JuploadStandInServer server = new JuploadStandInServer(getInt(arguments, PORT_SWITCH, 8080),
+                                                                   arguments.get(USERNAME_SWITCH),
+                                                                   arguments.get(PASSWORD_SWITCH));
+      server.setLatency(getInt(arguments, LATENCY_MILLIS_SWITCH, 0), getInt(arguments, LATENCY_JITTER_MILLIS_SWITCH, 0));
+      server.setErrorRate(getDouble(arguments, ERROR_RATE_SWITCH, 0));
+      server.setRejectionRate(getDouble(arguments, REJECTION_RATE_SWITCH, 0));
+      server.start();
+
+      //noinspection InfiniteLoopStatement
+      while (true)
+         {
+         Thread.sleep(TimeUnit.SECONDS.toMillis(STATUS_INTERVAL_SECONDS));
+         CONSOLE_LOG.info(server.getStatusAsString());
+         }
+      }
+
+   /** Parses switches of the form <code>--name=value</code> (or just <code>--name</code>, which maps to an empty string). */
+   @NotNull
+   static Map<String, String> parseArguments(@NotNull final String[] args)
+      {
+      final Map<String, String> arguments = new HashMap<String, String>(args.length);
+      for (final String arg : args)
+         {
+         final int equalsPosition = arg.indexOf('=');
+         if (equalsPosition < 0)
+            {
+            arguments.put(arg, "");
+            }
+         else
+            {
+            arguments.put(arg.substring(0, equalsPosition), arg.substring(equalsPosition + 1));
+            }
+         }
+      return arguments;
+      }
+
+   static int getInt(@NotNull final Map<String, String> arguments, @NotNull final String name, final int defaultValue)
+      {
+      final String value = arguments.get(name);
+      if (value != null)
+         {
+         try
+            {
+            return Integer.parseInt(value.trim());
+            }
+         catch (NumberFormatException ignored)
+            {
+            LOG.error("JuploadStandInServer.getInt(): Ignoring invalid value [" + value + "] for " + name + ", using the default of [" + defaultValue + "] instead");
+            }
+         }
+      return defaultValue;
+      }
+
+   static double getDouble(@NotNull final Map<String, String> arguments, @NotNull final String name, final double defaultValue)
+      {
+      final String value = arguments.get(name);
+      if (value != null)
+         {
+         try
+            {
+            return Double.parseDouble(value.trim());
+            }
+         catch (NumberFormatException ignored)
+            {
+            LOG.error("JuploadStandInServer.getDouble(): Ignoring invalid value [" + value + "] for " + name + ", using the default of [" + defaultValue + "] instead");
+            }
+         }
+      return defaultValue;
+      }
+
+   @NotNull
+   private final HttpServer httpServer;
+
+   @NotNull
+   private final ExecutorService executor;
+
+   /** The expected value of the <code>Authorization</code> header, or <code>null</code> if any request is allowed. */
+   @Nullable
+   private final String expectedAuthorization;
+
+   @NotNull
+   private final ObjectMapper objectMapper = new ObjectMapper();
+
+   @NotNull
+   private final Random random = new Random();
+
+   private volatile int latencyMillis = 0;
+   private volatile int latencyJitterMillis = 0;
+   private volatile double errorRate = 0;
+   private volatile double rejectionRate = 0;
+
+   private final AtomicLong numRequests = new AtomicLong(0);
+   private final AtomicLong numUnauthorizedRequests = new AtomicLong(0);
+   private final AtomicLong numBadRequests = new AtomicLong(0);
+   private final AtomicLong numInjectedErrors = new AtomicLong(0);
+   private final AtomicLong numSamplesAccepted = new AtomicLong(0);
+   private final AtomicLong numSamplesRejected = new AtomicLong(0);
+
+   /**
+    * Creates a server listening on the given port (or on any free port, if 0).  Requests must carry basic auth
+    * credentials matching the given username and password, unless the username is <code>null</code>.  The server isn't
+    * started until {@link #start()} is called.
+    */
+   public JuploadStandInServer(final int port, @Nullable final String username, @Nullable final String password) throws IOException
+      {
+      httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+      executor = Executors.newFixedThreadPool(DEFAULT_NUM_THREADS, new DaemonThreadFactory(JuploadStandInServer.class.getSimpleName()));
+      httpServer.setExecutor(executor);
+      httpServer.createContext(UPLOAD_PATH,
+                               new HttpHandler()
+                               {
+                               @Override
+                               public void handle(final HttpExchange exchange) throws IOException
+                                  {
+                                  try
+                                     {
+                                     handleUpload(exchange);
+                                     }
+                                  catch (Exception e)
+                                     {
+                                     LOG.error("JuploadStandInServer.handle(): Exception while handling an upload", e);
+                                     respond(exchange, HTTP_INTERNAL_ERROR, "KO", "Internal error: " + e.getMessage(), null);
+                                     }
+                                  finally
+                                     {
+                                     exchange.close();
+                                     }
+                                  }
+                               });
+
+      if (username == null)
+         {
+         expectedAuthorization = null;
+         }
+      else
+         {
+         final String credentials = username + ":" + ((password == null) ? "" : password);
+         expectedAuthorization = "Basic " + Base64.encodeBase64String(credentials.getBytes(CHARSET)).trim();
+         }
+      }
+
+   public void start()
+      {
+      httpServer.start();
+      final String msg = "Stand-in upload server listening on port " + getPort() + " (latency = " + latencyMillis + "+" + latencyJitterMillis + " ms, error rate = " + errorRate + ", rejection rate = " + rejectionRate + ")";
+      LOG.info("JuploadStandInServer.start(): " + msg);
+      CONSOLE_LOG.info(msg);
+      }
+
+   public void stop()
+      {
+      httpServer.stop(0);
+      executor.shutdownNow();
+      }
+
+   public int getPort()
+      {
+      return httpServer.getAddress().getPort();
+      }
+
+   /** Sets how long to wait before answering each upload: the given latency, plus a random amount up to the given jitter. */
+   public void setLatency(final int latencyMillis, final int latencyJitterMillis)
+      {
+      this.latencyMillis = Math.max(0, latencyMillis);
+      this.latencyJitterMillis = Math.max(0, latencyJitterMillis);
+      }
+
+   /** Sets the fraction (from 0 to 1) of uploads which fail with an HTTP 500 and a <code>KO</code> response. */
+   public void setErrorRate(final double errorRate)
+      {
+      this.errorRate = Math.min(1, Math.max(0, errorRate));
+      }
+
+   /** Sets the fraction (from 0 to 1) of samples which are always rejected. */
+   public void setRejectionRate(final double rejectionRate)
+      {
+      this.rejectionRate = Math.min(1, Math.max(0, rejectionRate));
+      }
+
+   /** Returns whether the server always rejects the sample taken at the given time by the given device. */
+   public boolean isRejected(@NotNull final String deviceName, final int sampleTime)
+      {
+      if (rejectionRate <= 0)
+         {
+         return false;
+         }
+
+      // mix the device name and sample time into a well-distributed, but repeatable, number from 0 to 1
+      long hash = deviceName.hashCode() * 0x9E3779B97F4A7C15L + sampleTime;
+      hash ^= hash >>> 33;
+      hash *= 0xFF51AFD7ED558CCDL;
+      hash ^= hash >>> 33;
+      return (hash >>> 11) / (double)(1L << 53) < rejectionRate;
+      }
+
+   public long getNumRequests()
+      {
+      return numRequests.get();
+      }
+
+   public long getNumInjectedErrors()
+      {
+      return numInjectedErrors.get();
+      }
+
+   public long getNumSamplesAccepted()
+      {
+      return numSamplesAccepted.get();
+      }
+
+   public long getNumSamplesRejected()
+      {
+      return numSamplesRejected.get();
+      }
+
+   /** Renders the server's counters in an ASCII table. */
+   @NotNull
+   public String getStatusAsString()
+      {
+      final StringWriter stringWriter = new StringWriter();
+      final PrintWriter printWriter = new PrintWriter(stringWriter);
+
+      printWriter.printf(" __________________________________________________________________ \n");
+      printWriter.printf("|                                                                  |\n");
+      printWriter.printf("| Stand-in Server                                                  |\n");
+      printWriter.printf("| ---------------                                                  |\n");
+      printWriter.printf("| %-38s %25d |\n", "Upload Requests", numRequests.get());
+      printWriter.printf("| %-38s %25d |\n", "Unauthorized Requests", numUnauthorizedRequests.get());
+      printWriter.printf("| %-38s %25d |\n", "Bad Requests", numBadRequests.get());
+      printWriter.printf("| %-38s %25d |\n", "Injected Server Errors", numInjectedErrors.get());
+      printWriter.printf("| %-38s %25d |\n", "Samples Accepted", numSamplesAccepted.get());
+      printWriter.printf("| %-38s %25d |\n", "Samples Rejected", numSamplesRejected.get());
+      printWriter.printf("|__________________________________________________________________|\n");
+
+      return stringWriter.toString();
+      }
+
+   private void handleUpload(@NotNull final HttpExchange exchange) throws IOException, InterruptedException
+      {
+      numRequests.incrementAndGet();
+
+      if (!UPLOAD_PATH.equals(exchange.getRequestURI().getPath()))
+         {
+         respond(exchange, HTTP_NOT_FOUND, "KO", "Not found", null);
+         return;
+         }
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod()))
+         {
+         respond(exchange, HTTP_BAD_METHOD, "KO", "Uploads must be POSTed", null);
+         return;
+         }
+      if (expectedAuthorization != null && !expectedAuthorization.equals(exchange.getRequestHeaders().getFirst("Authorization")))
+         {
+         numUnauthorizedRequests.incrementAndGet();
+         exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"BodyTrack\"");
+         respond(exchange, HTTP_UNAUTHORIZED, "KO", "Authentication required", null);
+         return;
+         }
+
+      final String deviceName = getQueryParameter(exchange.getRequestURI().getRawQuery(), DEVICE_NAME_QUERY_PARAMETER);
+      final JsonNode data = readData(exchange.getRequestBody(), "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")));
+      if (deviceName == null || deviceName.length() == 0 || data == null)
+         {
+         numBadRequests.incrementAndGet();
+         respond(exchange, HTTP_BAD_REQUEST, "KO", "Missing " + ((data == null) ? "data" : DEVICE_NAME_QUERY_PARAMETER), null);
+         return;
+         }
+
+      final int delayMillis = latencyMillis + ((latencyJitterMillis > 0) ? nextInt(latencyJitterMillis + 1) : 0);
+      if (delayMillis > 0)
+         {
+         Thread.sleep(delayMillis);
+         }
+
+      if (errorRate > 0 && nextDouble() < errorRate)
+         {
+         numInjectedErrors.incrementAndGet();
+         respond(exchange, HTTP_INTERNAL_ERROR, "KO", "Simulated server error", null);
+         return;
+         }
+
+      int numRejected = 0;
+      for (final JsonNode record : data)
+         {
+         if (isRejected(deviceName, record.path(0).asInt()))
+            {
+            numRejected++;
+            }
+         }
+      final int numAccepted = data.size() - numRejected;
+      numSamplesAccepted.addAndGet(numAccepted);
+      numSamplesRejected.addAndGet(numRejected);
+
+      final ObjectNode payload = objectMapper.createObjectNode();
+      payload.put("successful_records", numAccepted);
+      payload.put("failed_records", numRejected);
+      if (numRejected > 0)
+         {
+         payload.put("failure", "Simulated rejection of " + numRejected + " sample(s)");
+         }
+
+      if (numRejected > 0)
+         {
+         respond(exchange, HTTP_OK, "KO", "Upload failed for some records", payload);
+         }
+      else
+         {
+         respond(exchange, HTTP_OK, "OK", "Upload successful!", payload);
+         }
+      }
+
+   /**
+    * Returns the upload's <code>data</code> array, or <code>null</code> if the body isn't a valid upload.  An empty
+    * JSON object (which is how gateways validate their credentials) has no data, so an empty array is returned for it.
+    * Gzipped bodies (such as those forwarded by an {@link org.specksensor.UploadRelay} with compression enabled) are
+    * decompressed.
+    */
+   @Nullable
+   private JsonNode readData(@NotNull final InputStream body, final boolean isGzipped)
+      {
+      try
+         {
+         final JsonNode root = objectMapper.readTree(isGzipped ? new GZIPInputStream(body) : body);
+         if (root != null && root.isObject() && root.size() == 0)
+            {
+            return objectMapper.createArrayNode();
+            }
+         final JsonNode data = (root == null) ? null : root.get("data");
+         return (data != null && data.isArray()) ? data : null;
+         }
+      catch (Exception e)
+         {
+         LOG.debug("JuploadStandInServer.readData(): Failed to parse upload body", e);
+         return null;
+         }
+      }
+
+   private void respond(@NotNull final HttpExchange exchange,
+                        final int statusCode,
+                        @NotNull final String result,
+                        @NotNull final String message,
+                        @Nullable final ObjectNode payload) throws IOException
+      {
+      final ObjectNode response = objectMapper.createObjectNode();
+      response.put("result", result);
+      response.put("message", message);
+      if (payload != null)
+         {
+         response.put("payload", payload);
+         }
+
+      final byte[] bytes = objectMapper.writeValueAsBytes(response);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(statusCode, bytes.length);
+      final OutputStream responseBody = exchange.getResponseBody();
+      responseBody.write(bytes);
+      responseBody.flush();
+      }
+
+   @Nullable
+   private static String getQueryParameter(@Nullable final String rawQuery, @NotNull final String name) throws UnsupportedEncodingException
+      {
+      if (rawQuery != null)
+         {
+         for (final String parameter : rawQuery.split("&"))
+            {
+            final int equalsPosition = parameter.indexOf('=');
+            if (equalsPosition > 0 && name.equals(URLDecoder.decode(parameter.substring(0, equalsPosition), CHARSET)))
+               {
+               return URLDecoder.decode(parameter.substring(equalsPosition + 1), CHARSET);
+               }
+            }
+         }
+      return null;
+      }
+
+   private int nextInt(final int n)
+      {
+      synchronized (random)
+         {
+         return random.nextInt(n);
+         }
+      }
+
+   private double nextDouble()
+      {
+      synchronized (random)
+         {
+         return random.nextDouble();
+         }
+      }
+   }
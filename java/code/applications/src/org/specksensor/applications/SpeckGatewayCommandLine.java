@@ -2,6 +2,7 @@ package org.specksensor.applications;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.List;
 import edu.cmu.ri.createlab.util.commandline.BaseCommandLineApplication;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
@@ -10,6 +11,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.specksensor.RemoteStorageCredentials;
 import org.specksensor.RemoteStorageCredentialsImpl;
+import org.specksensor.Speck;
 import org.specksensor.SpeckConfig;
 
 /**
@@ -51,7 +53,7 @@ final class SpeckGatewayCommandLine extends BaseCommandLineApplication
          {
          public void run()
             {
-            helper.scanAndConnect();
+            helper.scanAndConnectAll();
             }
          };
 
@@ -131,9 +133,11 @@ final class SpeckGatewayCommandLine extends BaseCommandLineApplication
          {
          public void run()
             {
-            if (helper.isConnected())
+            final Speck speck = chooseSpeck();
+            if (speck != null)
                {
-               if (helper.areDataStorageCredentialsSet())
+               final String speckId = speck.getSpeckConfig().getId();
+               if (helper.areDataStorageCredentialsSet(speckId))
                   {
                   println("The host and login credentials can only be defined once per Speck connection.");
                   }
@@ -188,7 +192,7 @@ final class SpeckGatewayCommandLine extends BaseCommandLineApplication
                                  {
                                  final String deviceName = deviceNameStr.trim();
                                  final RemoteStorageCredentials remoteStorageCredentials = new RemoteStorageCredentialsImpl(hostName, hostPort, username, password, deviceName);
-                                 if (helper.validateAndSetDataStorageCredentials(remoteStorageCredentials))
+                                 if (helper.validateAndSetDataStorageCredentials(speckId, remoteStorageCredentials))
                                     {
                                     println("Login credentials set successfully.");
                                     }
@@ -219,13 +223,41 @@ final class SpeckGatewayCommandLine extends BaseCommandLineApplication
                      }
                   }
                }
-            else
-               {
-               logInfo("You must be connected to a Speck before setting the data storage login credentials.");
-               }
             }
          };
 
+   /**
+    * Returns the connected Speck, asking the user to choose one if more than one is connected.  Returns
+    * <code>null</code> if not connected or if the user's choice is invalid.
+    */
+   @Nullable
+   private Speck chooseSpeck()
+      {
+      final List<Speck> specks = helper.getSpecks();
+      if (specks.isEmpty())
+         {
+         logInfo("You must be connected to a Speck before setting the data storage login credentials.");
+         return null;
+         }
+      if (specks.size() == 1)
+         {
+         return specks.get(0);
+         }
+
+      println("Choose the Speck:");
+      for (int i = 0; i < specks.size(); i++)
+         {
+         println("   " + (i + 1) + ": " + specks.get(i).getSpeckConfig().getId());
+         }
+      final Integer choice = readInteger("Speck (1-" + specks.size() + "): ");
+      if (choice == null || choice < 1 || choice > specks.size())
+         {
+         println("Invalid choice.");
+         return null;
+         }
+      return specks.get(choice - 1);
+      }
+
    private boolean isNotNullAndNotEmpty(@Nullable final String str)
       {
       if (str != null)
@@ -284,11 +316,11 @@ final class SpeckGatewayCommandLine extends BaseCommandLineApplication
       {
       println("COMMANDS -----------------------------------");
       println("");
-      println("c         Connect to the Speck");
+      println("c         Connect to all attached Specks");
       println("u         Specify host and login credentials for uploads");
       println("s         Print statistics for samples downloaded, uploaded, and deleted");
       println("l         Set the logging level for the log file (has no effect on console logging)");
-      println("d         Disconnect from the device");
+      println("d         Disconnect from all devices");
       println("");
       println("q         Quit");
       println("");
@@ -0,0 +1,649 @@
+package org.specksensor.applications;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.specksensor.ExecutionRuntime;
+import org.specksensor.RemoteStorageCredentials;
+import org.specksensor.RemoteStorageCredentialsImpl;
+import org.specksensor.Speck;
+import org.specksensor.SpeckConfig;
+import org.specksensor.UploadRelay;
+
+/**
+ * <p>
+ * <code>SpeckGatewayDaemon</code> runs the gateway unattended, e.g. as a service on a headless server.  It connects to
+ * every attached Speck, rescans (backing off exponentially until the Specks it lost are found again) after a connection
+ * failure, and periodically rescans for newly-attached Specks.  It never reads from the console and never touches AWT or Swing, so
+ * it can run with a small heap and no display.
+ * </p>
+ * <p>
+ * Upload credentials and tunables are read from a properties file given by the <code>--daemon-config</code> switch:
+ * </p>
+ * <ul>
+ *    <li><code>upload.host</code>, <code>upload.port</code> (default 80), <code>upload.username</code>,
+ *    <code>upload.password</code>: the upload credentials.  Uploads are disabled if the host is undefined.</li>
+ *    <li><code>upload.device-name</code>: the device name used for every Speck, unless overridden for a particular Speck
+ *    by <code>upload.device-name.&lt;speck id&gt;</code>.</li>
+ *    <li><code>mirrors</code>: a comma-separated list of names of upload mirrors, to which every Speck's samples are
+ *    also uploaded, each at its own pace.  Each mirror's credentials are given by <code>mirror.&lt;name&gt;.host</code>,
+ *    <code>mirror.&lt;name&gt;.port</code> (default 80), <code>mirror.&lt;name&gt;.username</code>,
+ *    <code>mirror.&lt;name&gt;.password</code>, and optionally <code>mirror.&lt;name&gt;.device-name</code> (which
+ *    defaults to the Speck's <code>upload.device-name</code>).</li>
+ *    <li><code>relay.port</code>: if defined, this gateway also acts as an {@link UploadRelay upload relay} for the
+ *    other gateways on its LAN, which upload to it by setting their <code>upload.host</code> and <code>upload.port</code>
+ *    to this gateway's address and relay port.  Uploads received are forwarded to <code>relay.upstream-host</code> and
+ *    <code>relay.upstream-port</code>, which default to <code>upload.host</code> and <code>upload.port</code>.</li>
+ *    <li><code>reconnect.initial-delay-seconds</code> (default 5) and <code>reconnect.max-delay-seconds</code> (default
+ *    300): the backoff between scans while no Specks are connected, or while credentials can't be validated.</li>
+ *    <li><code>rescan-interval-seconds</code> (default 300): how often to scan for newly-attached Specks.</li>
+ *    <li><code>statistics-interval-minutes</code> (default 60): how often statistics and resource usage are logged.</li>
+ *    <li>Any property whose name starts with <code>org.specksensor.</code> is set as a system property, so all of the
+ *    gateway's tunables can be set here too.</li>
+ * </ul>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class SpeckGatewayDaemon
+   {
+   private static final Logger LOG = Logger.getLogger(SpeckGatewayDaemon.class);
+   private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
+
+   private static final String LOGGING_LEVEL_SWITCH = "--logging-level";
+   private static final String DAEMON_CONFIG_SWITCH = "--daemon-config";
+
+   private static final String UPLOAD_HOST_PROPERTY = "upload.host";
+   private static final String UPLOAD_PORT_PROPERTY = "upload.port";
+   private static final String UPLOAD_USERNAME_PROPERTY = "upload.username";
+   private static final String UPLOAD_PASSWORD_PROPERTY = "upload.password";
+   private static final String UPLOAD_DEVICE_NAME_PROPERTY = "upload.device-name";
+   private static final String MIRRORS_PROPERTY = "mirrors";
+   private static final String MIRROR_PROPERTY_PREFIX = "mirror.";
+   private static final String RELAY_PORT_PROPERTY = "relay.port";
+   private static final String RELAY_UPSTREAM_HOST_PROPERTY = "relay.upstream-host";
+   private static final String RELAY_UPSTREAM_PORT_PROPERTY = "relay.upstream-port";
+   private static final String RECONNECT_INITIAL_DELAY_SECONDS_PROPERTY = "reconnect.initial-delay-seconds";
+   private static final String RECONNECT_MAX_DELAY_SECONDS_PROPERTY = "reconnect.max-delay-seconds";
+   private static final String RESCAN_INTERVAL_SECONDS_PROPERTY = "rescan-interval-seconds";
+   private static final String STATISTICS_INTERVAL_MINUTES_PROPERTY = "statistics-interval-minutes";
+   private static final String SYSTEM_PROPERTY_PREFIX = "org.specksensor.";
+
+   private static final String PROC_SELF_STATUS_PATH = "/proc/self/status";
+   private static final String RSS_FIELD_NAME = "VmRSS:";
+
+   public static void main(final String[] args)
+      {
+      final Map<String, String> arguments = new HashMap<String, String>(args.length);
+      for (final String arg : args)
+         {
+         final int equalsPosition = arg.indexOf('=');
+         if (equalsPosition < 0)
+            {
+            arguments.put(arg, "");
+            }
+         else
+            {
+            arguments.put(arg.substring(0, equalsPosition), arg.substring(equalsPosition + 1));
+            }
+         }
+
+      final String desiredLoggingLevel = arguments.get(LOGGING_LEVEL_SWITCH);
+      if (desiredLoggingLevel != null)
+         {
+         final Level loggingLevel = Level.toLevel(desiredLoggingLevel, LogManager.getRootLogger().getLevel());
+         LogManager.getRootLogger().setLevel(loggingLevel);
+         }
+      logInfo("Log file logging level is '" + LogManager.getRootLogger().getLevel() + "'");
+
+      final String pathToConfigFile = arguments.get(DAEMON_CONFIG_SWITCH);
+      if (pathToConfigFile == null || pathToConfigFile.length() < 1)
+         {
+         logError("The " + DAEMON_CONFIG_SWITCH + "=<path> switch is required.");
+         System.exit(1);
+         }
+
+      final Properties config = loadConfig(pathToConfigFile);
+      if (config == null)
+         {
+         System.exit(1);
+         }
+
+      // the gateway's tunables are read when its classes are loaded, so they must be set before anything else happens
+      for (final String key : config.stringPropertyNames())
+         {
+         if (key.startsWith(SYSTEM_PROPERTY_PREFIX))
+            {
+            System.setProperty(key, config.getProperty(key).trim());
+            }
+         }
+
+      final SpeckGatewayDaemon daemon = new SpeckGatewayDaemon(config);
+      Runtime.getRuntime().addShutdownHook(
+            new Thread(SpeckGatewayDaemon.class.getSimpleName() + ".shutdownHook")
+            {
+            @Override
+            public void run()
+               {
+               daemon.shutdown();
+               }
+            });
+      daemon.run();
+      }
+
+   @Nullable
+   private static Properties loadConfig(@NotNull final String pathToConfigFile)
+      {
+      final File configFile = new File(pathToConfigFile);
+      if (!configFile.isFile())
+         {
+         logError("The specified config file path '" + pathToConfigFile + "' does not denote a valid config file.");
+         return null;
+         }
+
+      final Properties properties = new Properties();
+      FileReader reader = null;
+      try
+         {
+         reader = new FileReader(configFile);
+         properties.load(reader);
+         return properties;
+         }
+      catch (IOException e)
+         {
+         LOG.error("SpeckGatewayDaemon.loadConfig(): IOException while trying to read the config file [" + pathToConfigFile + "]", e);
+         logError("Failed to read the config file '" + pathToConfigFile + "'");
+         }
+      finally
+         {
+         IOUtils.closeQuietly(reader);
+         }
+      return null;
+      }
+
+   private static int getInt(@NotNull final Properties config, @NotNull final String key, final int defaultValue)
+      {
+      final String valueStr = config.getProperty(key);
+      if (valueStr != null)
+         {
+         try
+            {
+            return Integer.parseInt(valueStr.trim());
+            }
+         catch (NumberFormatException e)
+            {
+            LOG.error("SpeckGatewayDaemon.getInt(): NumberFormatException while trying to parse [" + valueStr + "] as an int for config property [" + key + "].  Defaulting to " + defaultValue, e);
+            }
+         }
+      return defaultValue;
+      }
+
+   @Nullable
+   private static String getTrimmedProperty(@NotNull final Properties config, @NotNull final String key)
+      {
+      final String value = config.getProperty(key);
+      if (value != null)
+         {
+         final String trimmedValue = value.trim();
+         return (trimmedValue.length() > 0) ? trimmedValue : null;
+         }
+      return null;
+      }
+
+   private static void logInfo(@NotNull final String message)
+      {
+      LOG.info(message);
+      CONSOLE_LOG.info(message);
+      }
+
+   private static void logError(@NotNull final String message)
+      {
+      LOG.error(message);
+      CONSOLE_LOG.error(message);
+      }
+
+   @NotNull
+   private final Properties config;
+
+   @NotNull
+   private final SpeckGatewayHelper helper;
+
+   private final int reconnectInitialDelaySeconds;
+   private final int reconnectMaxDelaySeconds;
+   private final int rescanIntervalSeconds;
+   private final int statisticsIntervalMinutes;
+
+   @NotNull
+   private final Lock lock = new ReentrantLock();
+
+   /** Signalled when a connection fails, or when shutting down. */
+   @NotNull
+   private final Condition wakeUpCondition = lock.newCondition();
+
+   /** Guarded by {@link #lock}. */
+   private boolean wasWokenUp = false;
+
+   /**
+    * Held while scanning and connecting, and by shutdown while disconnecting, so that a scan which is underway when
+    * shutdown begins can't connect a Speck after shutdown has disconnected them all.
+    */
+   @NotNull
+   private final Lock connectionLock = new ReentrantLock();
+
+   private volatile boolean isRunning = true;
+
+   @Nullable
+   private volatile UploadRelay relay = null;
+
+   private SpeckGatewayDaemon(@NotNull final Properties config)
+      {
+      this.config = config;
+      reconnectInitialDelaySeconds = Math.max(1, getInt(config, RECONNECT_INITIAL_DELAY_SECONDS_PROPERTY, 5));
+      reconnectMaxDelaySeconds = Math.max(reconnectInitialDelaySeconds, getInt(config, RECONNECT_MAX_DELAY_SECONDS_PROPERTY, 300));
+      rescanIntervalSeconds = Math.max(1, getInt(config, RESCAN_INTERVAL_SECONDS_PROPERTY, 300));
+      statisticsIntervalMinutes = Math.max(1, getInt(config, STATISTICS_INTERVAL_MINUTES_PROPERTY, 60));
+
+      helper = new SpeckGatewayHelper(
+            new SpeckGatewayHelper.EventListener()
+            {
+            @Override
+            public void handleConnectionEvent(@NotNull final SpeckConfig speckConfig, @NotNull final String portName)
+               {
+               // nothing to do
+               }
+
+            @Override
+            public void handlePingFailureEvent()
+               {
+               // the helper has already cleaned up the failed connection, so just get the main loop to rescan
+               wakeUp();
+               }
+            });
+      }
+
+   /** Connects and reconnects to Specks until shut down. */
+   private void run()
+      {
+      logInfo(SpeckGatewayHelper.APPLICATION_NAME_AND_VERSION_NUMBER + " running as a daemon");
+      startRelayIfConfigured();
+
+      ExecutionRuntime.getInstance().getComponent("SpeckGatewayDaemon", 1).scheduleWithFixedDelay(
+            new Runnable()
+            {
+            @Override
+            public void run()
+               {
+               logStatisticsAndResourceUsage();
+               }
+            },
+            statisticsIntervalMinutes,
+            statisticsIntervalMinutes,
+            TimeUnit.MINUTES);
+
+      int backoffDelaySeconds = reconnectInitialDelaySeconds;
+
+      // the number of Specks which were connected when a connection last failed, so that we keep backing off until
+      // they've all been reconnected, even if other Specks are still connected
+      int numSpecksExpected = 0;
+      while (isRunning)
+         {
+         boolean areAllCredentialsSet = false;
+         connectionLock.lock();  // block until condition holds
+         try
+            {
+            if (!isRunning)
+               {
+               break;
+               }
+            helper.scanAndConnectAll();
+            areAllCredentialsSet = setCredentialsWhereNeeded();
+            addUploadMirrorsWhereNeeded();
+            }
+         catch (Exception e)
+            {
+            LOG.error("SpeckGatewayDaemon.run(): Exception while connecting to Specks", e);
+            }
+         finally
+            {
+            connectionLock.unlock();
+            }
+
+         final int numSpecksConnected = helper.getSpecks().size();
+         final int delaySeconds;
+         if (numSpecksConnected > 0 && numSpecksConnected >= numSpecksExpected && areAllCredentialsSet)
+            {
+            backoffDelaySeconds = reconnectInitialDelaySeconds;
+            numSpecksExpected = 0;
+            delaySeconds = rescanIntervalSeconds;
+            }
+         else
+            {
+            delaySeconds = backoffDelaySeconds;
+            backoffDelaySeconds = Math.min(backoffDelaySeconds * 2, reconnectMaxDelaySeconds);
+            final String reason;
+            if (numSpecksConnected <= 0)
+               {
+               reason = "No Specks connected";
+               }
+            else if (numSpecksConnected < numSpecksExpected)
+               {
+               reason = "Only " + numSpecksConnected + " of " + numSpecksExpected + " Specks reconnected";
+               }
+            else
+               {
+               reason = "Upload credentials could not be validated";
+               }
+            logInfo(reason + ", will try again in " + delaySeconds + " second(s).");
+            }
+
+         // we're only woken up early by a connection failure (or by shutdown)
+         if (waitUntilWokenUp(delaySeconds))
+            {
+            numSpecksExpected = Math.max(numSpecksExpected, numSpecksConnected);
+            }
+         }
+      }
+
+   /** Starts the upload relay, if a relay port is configured. */
+   private void startRelayIfConfigured()
+      {
+      final int relayPort = getInt(config, RELAY_PORT_PROPERTY, -1);
+      if (relayPort < 0)
+         {
+         return;
+         }
+
+      String upstreamHostName = getTrimmedProperty(config, RELAY_UPSTREAM_HOST_PROPERTY);
+      if (upstreamHostName == null)
+         {
+         upstreamHostName = getTrimmedProperty(config, UPLOAD_HOST_PROPERTY);
+         }
+      final int upstreamPort = getInt(config, RELAY_UPSTREAM_PORT_PROPERTY, getInt(config, UPLOAD_PORT_PROPERTY, 80));
+      if (upstreamHostName == null || upstreamPort <= 0)
+         {
+         logError("The upload relay is disabled, since neither " + RELAY_UPSTREAM_HOST_PROPERTY + " nor " + UPLOAD_HOST_PROPERTY + " is defined.");
+         return;
+         }
+
+      try
+         {
+         final UploadRelay uploadRelay = new UploadRelay(relayPort, upstreamHostName, upstreamPort);
+         uploadRelay.start();
+         relay = uploadRelay;
+         }
+      catch (IOException e)
+         {
+         LOG.error("SpeckGatewayDaemon.startRelayIfConfigured(): IOException while trying to start the upload relay on port [" + relayPort + "]", e);
+         logError("Failed to start the upload relay on port " + relayPort + ": " + e.getMessage());
+         }
+      }
+
+   /**
+    * Sets the upload credentials for every connected Speck which doesn't have them yet.  Returns <code>false</code> if
+    * any Speck's credentials couldn't be validated (e.g. because the server is unreachable), so that they should be
+    * tried again later.
+    */
+   private boolean setCredentialsWhereNeeded()
+      {
+      final String hostName = getTrimmedProperty(config, UPLOAD_HOST_PROPERTY);
+      if (hostName == null)
+         {
+         return true;
+         }
+
+      boolean areAllCredentialsSet = true;
+      for (final Speck speck : helper.getSpecks())
+         {
+         final String speckId = speck.getSpeckConfig().getId();
+         if (!helper.areDataStorageCredentialsSet(speckId))
+            {
+            final RemoteStorageCredentials credentials = createCredentials(hostName, speckId);
+            if (credentials != null && !helper.validateAndSetDataStorageCredentials(speckId, credentials))
+               {
+               areAllCredentialsSet = false;
+               }
+            }
+         }
+      return areAllCredentialsSet;
+      }
+
+   /** Adds the configured upload mirrors to every connected Speck which doesn't have them yet. */
+   private void addUploadMirrorsWhereNeeded()
+      {
+      final String mirrorNames = getTrimmedProperty(config, MIRRORS_PROPERTY);
+      if (mirrorNames == null)
+         {
+         return;
+         }
+
+      for (final Speck speck : helper.getSpecks())
+         {
+         final String speckId = speck.getSpeckConfig().getId();
+         for (final String mirrorName : mirrorNames.split(","))
+            {
+            final String trimmedMirrorName = mirrorName.trim();
+            if (trimmedMirrorName.length() > 0 && !helper.hasUploadMirror(speckId, trimmedMirrorName))
+               {
+               final String prefix = MIRROR_PROPERTY_PREFIX + trimmedMirrorName + ".";
+               final String hostName = getTrimmedProperty(config, prefix + "host");
+               final RemoteStorageCredentials credentials = (hostName == null) ? null : createMirrorCredentials(prefix, hostName, speckId);
+               if (credentials == null)
+                  {
+                  LOG.error("SpeckGatewayDaemon.addUploadMirrorsWhereNeeded(): Incomplete credentials for mirror [" + trimmedMirrorName + "], so samples won't be uploaded to it");
+                  }
+               else
+                  {
+                  helper.addUploadMirror(speckId, trimmedMirrorName, credentials);
+                  }
+               }
+            }
+         }
+      }
+
+   /** Returns the upload credentials for the Speck having the given ID, or <code>null</code> if they're incomplete. */
+   @Nullable
+   private RemoteStorageCredentials createCredentials(@NotNull final String hostName, @NotNull final String speckId)
+      {
+      final int hostPort = getInt(config, UPLOAD_PORT_PROPERTY, 80);
+      final String username = getTrimmedProperty(config, UPLOAD_USERNAME_PROPERTY);
+      final String password = getTrimmedProperty(config, UPLOAD_PASSWORD_PROPERTY);
+      final String deviceName = getDeviceName(speckId);
+      if (hostPort <= 0 || username == null || password == null || deviceName == null)
+         {
+         LOG.error("SpeckGatewayDaemon.createCredentials(): Incomplete upload credentials for Speck [" + speckId + "], so its samples won't be uploaded");
+         return null;
+         }
+      return new RemoteStorageCredentialsImpl(hostName, hostPort, username, password, deviceName);
+      }
+
+   /** Returns the primary upload's device name for the Speck having the given ID, or <code>null</code> if undefined. */
+   @Nullable
+   private String getDeviceName(@NotNull final String speckId)
+      {
+      final String deviceName = getTrimmedProperty(config, UPLOAD_DEVICE_NAME_PROPERTY + "." + speckId);
+      return (deviceName == null) ? getTrimmedProperty(config, UPLOAD_DEVICE_NAME_PROPERTY) : deviceName;
+      }
+
+   /**
+    * Returns the credentials for the upload mirror whose properties have the given prefix, for the Speck having the
+    * given ID, or <code>null</code> if they're incomplete.
+    */
+   @Nullable
+   private RemoteStorageCredentials createMirrorCredentials(@NotNull final String prefix, @NotNull final String hostName, @NotNull final String speckId)
+      {
+      final int hostPort = getInt(config, prefix + "port", 80);
+      final String username = getTrimmedProperty(config, prefix + "username");
+      final String password = getTrimmedProperty(config, prefix + "password");
+      String deviceName = getTrimmedProperty(config, prefix + "device-name");
+      if (deviceName == null)
+         {
+         deviceName = getDeviceName(speckId);
+         }
+
+      if (hostPort <= 0 || username == null || password == null || deviceName == null)
+         {
+         return null;
+         }
+      return new RemoteStorageCredentialsImpl(hostName, hostPort, username, password, deviceName);
+      }
+
+   private void wakeUp()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         wasWokenUp = true;
+         wakeUpCondition.signalAll();
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /** Waits for the given number of seconds, or until woken up.  Returns <code>true</code> if woken up. */
+   private boolean waitUntilWokenUp(final int timeoutSeconds)
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         long remainingNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+         while (!wasWokenUp && remainingNanos > 0)
+            {
+            remainingNanos = wakeUpCondition.awaitNanos(remainingNanos);
+            }
+         final boolean result = wasWokenUp;
+         wasWokenUp = false;
+         return result;
+         }
+      catch (InterruptedException e)
+         {
+         LOG.error("SpeckGatewayDaemon.waitUntilWokenUp(): InterruptedException while waiting", e);
+         isRunning = false;
+         return false;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   private void shutdown()
+      {
+      logInfo("Shutting down...");
+      isRunning = false;
+      wakeUp();
+
+      // wait for any scan which is underway to finish, so that it can't connect a Speck after we've disconnected
+      connectionLock.lock();  // block until condition holds
+      try
+         {
+         helper.disconnect();
+         }
+      finally
+         {
+         connectionLock.unlock();
+         }
+      final UploadRelay uploadRelay = relay;
+      if (uploadRelay != null)
+         {
+         uploadRelay.stop();
+         }
+      logInfo("Bye!");
+      }
+
+   /**
+    * Logs the statistics, along with the JVM's memory, thread, and CPU usage (and, on Linux, the resident set size),
+    * so that resource usage can be tracked over a long-running deployment.
+    */
+   private void logStatisticsAndResourceUsage()
+      {
+      final String statistics = helper.getStatistics();
+      if (statistics != null)
+         {
+         LOG.info("SpeckGatewayDaemon.logStatisticsAndResourceUsage(): Statistics:\n" + statistics);
+         }
+      final UploadRelay uploadRelay = relay;
+      if (uploadRelay != null)
+         {
+         LOG.info("SpeckGatewayDaemon.logStatisticsAndResourceUsage(): Upload relay statistics:\n" + uploadRelay.getStatisticsAsString());
+         }
+
+      final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+      final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+      final StringBuilder s = new StringBuilder("Resource usage: ");
+      s.append("heap used/committed = ").append(toMegabytes(memoryMXBean.getHeapMemoryUsage().getUsed()));
+      s.append("/").append(toMegabytes(memoryMXBean.getHeapMemoryUsage().getCommitted())).append(" MB");
+      s.append(", non-heap used = ").append(toMegabytes(memoryMXBean.getNonHeapMemoryUsage().getUsed())).append(" MB");
+      s.append(", threads = ").append(threadMXBean.getThreadCount());
+      if (threadMXBean.isThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled())
+         {
+         long totalCpuNanos = 0;
+         for (final long threadId : threadMXBean.getAllThreadIds())
+            {
+            totalCpuNanos += Math.max(0, threadMXBean.getThreadCpuTime(threadId));
+            }
+         s.append(", CPU time of live threads = ").append(TimeUnit.NANOSECONDS.toSeconds(totalCpuNanos)).append(" s");
+         }
+      final String residentSetSize = readResidentSetSize();
+      if (residentSetSize != null)
+         {
+         s.append(", RSS = ").append(residentSetSize);
+         }
+      LOG.info("SpeckGatewayDaemon.logStatisticsAndResourceUsage(): " + s);
+      }
+
+   private static long toMegabytes(final long bytes)
+      {
+      return bytes / (1024 * 1024);
+      }
+
+   /** Returns the process's resident set size as reported by the OS (e.g. "51234 kB"), or <code>null</code> if unavailable. */
+   @Nullable
+   private static String readResidentSetSize()
+      {
+      final File procSelfStatus = new File(PROC_SELF_STATUS_PATH);
+      if (procSelfStatus.canRead())
+         {
+         BufferedReader reader = null;
+         try
+            {
+            reader = new BufferedReader(new FileReader(procSelfStatus));
+            String line;
+            while ((line = reader.readLine()) != null)
+               {
+               if (line.startsWith(RSS_FIELD_NAME))
+                  {
+                  return line.substring(RSS_FIELD_NAME.length()).trim();
+                  }
+               }
+            }
+         catch (IOException e)
+            {
+            LOG.debug("SpeckGatewayDaemon.readResidentSetSize(): IOException while reading [" + PROC_SELF_STATUS_PATH + "]", e);
+            }
+         finally
+            {
+            IOUtils.closeQuietly(reader);
+            }
+         }
+      return null;
+      }
+   }
@@ -2,9 +2,13 @@ package org.specksensor.applications;
 
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.PropertyResourceBundle;
 import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 import edu.cmu.ri.createlab.device.CreateLabDevicePingFailureEventListener;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -14,6 +18,7 @@ import org.specksensor.CommunicationException;
 import org.specksensor.DataSampleDownloader;
 import org.specksensor.DataSampleManager;
 import org.specksensor.DataSampleUploader;
+import org.specksensor.ExecutionRuntime;
 import org.specksensor.InitializationException;
 import org.specksensor.RemoteStorageCredentials;
 import org.specksensor.RemoteStorageCredentialsValidator;
@@ -21,6 +26,7 @@ import org.specksensor.Speck;
 import org.specksensor.SpeckConfig;
 import org.specksensor.SpeckConstants;
 import org.specksensor.SpeckFactory;
+import org.specksensor.UploadRateLimiter;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
@@ -55,14 +61,11 @@ final class SpeckGatewayHelper
    public static final String VERSION_NUMBER = RESOURCES.getString("version.number");
    public static final String APPLICATION_NAME_AND_VERSION_NUMBER = APPLICATION_NAME + " v" + VERSION_NUMBER;
 
-   @Nullable
-   private Speck device;
-
-   @Nullable
-   private DataSampleManager dataSampleManager;
+   private static final String LINE_SEPARATOR = System.getProperty("line.separator", "\n");
 
-   @Nullable
-   private RemoteStorageCredentials remoteStorageCredentials;
+   /** One per connected Speck, in the order they were connected. */
+   @NotNull
+   private final List<DeviceSession> deviceSessions = new CopyOnWriteArrayList<DeviceSession>();
 
    @NotNull
    private final EventListener eventListener;
@@ -70,24 +73,6 @@ final class SpeckGatewayHelper
    @Nullable
    private final String pathToConfigFile;
 
-   @NotNull
-   private final CreateLabDevicePingFailureEventListener pingFailureEventListener =
-         new CreateLabDevicePingFailureEventListener()
-         {
-         public void handlePingFailureEvent()
-            {
-            LOG.debug("SpeckGatewayHelper.handlePingFailureEvent(): ping failure detected, cleaning up...");
-
-            logError("Connection failure detected.  Cleaning up...");
-            disconnect(false);
-
-            LOG.debug("SpeckGatewayHelper.handlePingFailureEvent(): ping failure detected, attempting reconnect...");
-
-            // notify listener of the ping failure
-            eventListener.handlePingFailureEvent();
-            }
-         };
-
    SpeckGatewayHelper(@NotNull final EventListener eventListener)
       {
       this(eventListener, null);
@@ -99,75 +84,134 @@ final class SpeckGatewayHelper
       this.pathToConfigFile = pathToConfigFile;
       }
 
+   /** Returns <code>true</code> if connected to at least one Speck. */
    public boolean isConnected()
       {
-      return device != null;
+      return !deviceSessions.isEmpty();
       }
 
+   /**
+    * Connects to a single Speck, unless already connected to one, and returns it.  Returns <code>null</code> if the
+    * connection failed.
+    */
    public Speck scanAndConnect()
       {
-      if (isConnected())
+      final DeviceSession firstDeviceSession = getFirstDeviceSession();
+      if (firstDeviceSession != null)
          {
          logInfo("You are already connected to a Speck.");
+         return firstDeviceSession.device;
+         }
+
+      // get the database going while we scan for the Speck or read the config file
+      DataSampleManager.prepareDataStoreInBackground();
+
+      final Speck device;
+      if (isDownloadDisabled())
+         {
+         logInfo("Loading config file...");
+         device = createPropertyFileSpeck();
          }
       else
          {
-         if (isDownloadDisabled())
+         logInfo("Scanning for a Speck...");
+         device = SpeckFactory.create();
+         }
+
+      if (device == null)
+         {
+         logError("Connection failed.");
+         }
+      else
+         {
+         startDeviceSession(device);
+         }
+
+      return device;
+      }
+
+   /**
+    * Connects to every attached Speck which isn't already connected, and returns the newly-connected ones.  All the
+    * Specks share a single database engine, scheduler, and pool of upload threads, but each has its own data directory
+    * and statistics.  If downloads are disabled, this behaves the same as {@link #scanAndConnect()}.
+    */
+   @NotNull
+   public List<Speck> scanAndConnectAll()
+      {
+      final List<Speck> newDevices = new ArrayList<Speck>();
+      if (isDownloadDisabled())
+         {
+         if (!isConnected())
             {
-            logInfo("Loading config file...");
-            device = createPropertyFileSpeck();
+            final Speck device = scanAndConnect();
+            if (device != null)
+               {
+               newDevices.add(device);
+               }
             }
          else
             {
-            logInfo("Scanning for a Speck...");
-            device = SpeckFactory.create();
+            logInfo("You are already connected to a Speck.");
             }
+         }
+      else
+         {
+         // get the database going while we scan for the Specks
+         DataSampleManager.prepareDataStoreInBackground();
 
-         if (device == null)
+         logInfo("Scanning for Specks...");
+         newDevices.addAll(SpeckFactory.createAll());
+         if (newDevices.isEmpty())
             {
-            logError("Connection failed.");
+            logError(isConnected() ? "No more Specks found." : "Connection failed.");
             }
          else
             {
-            device.addCreateLabDevicePingFailureEventListener(pingFailureEventListener);
-            final SpeckConfig speckConfig = device.getSpeckConfig();
-
-            final DataSampleDownloader dataSampleDownloader;
-            if (isDownloadDisabled())
-               {
-               logInfo("Data files will not be downloaded from a Speck since you specified a config file for Speck [" + speckConfig.getId() + "]");
-               dataSampleDownloader = null;
-               }
-            else
+            logInfo("Found " + newDevices.size() + " Speck(s).");
+            for (final Speck device : newDevices)
                {
-               logInfo("Connection successful to Speck [" + speckConfig.getId() + "] on serial port [" + device.getPortName() + "].");
-               dataSampleDownloader = new DataSampleDownloader(device);
+               startDeviceSession(device);
                }
+            }
+         }
 
-            logInfo("Starting up the DataSampleManager...");
-            try
-               {
-               dataSampleManager = new DataSampleManager(speckConfig, dataSampleDownloader);
-               }
-            catch (InitializationException e)
-               {
-               LOG.error("SpeckGatewayHelper.scanAndConnect(): InitializationException while trying to create the DataSampleManager.  Aborting!", e);
-               System.exit(1);
-               }
+      return newDevices;
+      }
 
-            if (remoteStorageCredentials != null)
-               {
-               if (!dataSampleManager.setDataSampleUploader(new DataSampleUploader(speckConfig, remoteStorageCredentials)))
-                  {
-                  logError("Failed to set the DataSampleUploader");
-                  }
-               }
-            dataSampleManager.startup();
-            eventListener.handleConnectionEvent(speckConfig, device.getPortName());
-            }
+   private void startDeviceSession(@NotNull final Speck device)
+      {
+      final SpeckConfig speckConfig = device.getSpeckConfig();
+
+      final DataSampleDownloader dataSampleDownloader;
+      if (isDownloadDisabled())
+         {
+         logInfo("Data files will not be downloaded from a Speck since you specified a config file for Speck [" + speckConfig.getId() + "]");
+         dataSampleDownloader = null;
+         }
+      else
+         {
+         logInfo("Connection successful to Speck [" + speckConfig.getId() + "] on serial port [" + device.getPortName() + "].");
+         dataSampleDownloader = new DataSampleDownloader(device);
          }
 
-      return device;
+      logInfo("Starting up the DataSampleManager for Speck [" + speckConfig.getId() + "]...");
+      DataSampleManager dataSampleManager = null;
+      try
+         {
+         dataSampleManager = new DataSampleManager(speckConfig, dataSampleDownloader);
+         }
+      catch (InitializationException e)
+         {
+         LOG.error("SpeckGatewayHelper.startDeviceSession(): InitializationException while trying to create the DataSampleManager.  Aborting!", e);
+         System.exit(1);
+         }
+
+      final DeviceSession deviceSession = new DeviceSession(device, dataSampleManager);
+      device.addCreateLabDevicePingFailureEventListener(deviceSession.pingFailureEventListener);
+      deviceSessions.add(deviceSession);
+
+      dataSampleManager.startup();
+      eventListener.handleConnectionEvent(speckConfig, device.getPortName());
       }
 
    public boolean isDownloadDisabled()
@@ -175,95 +219,230 @@ final class SpeckGatewayHelper
       return pathToConfigFile != null;
       }
 
+   /** Returns whether the data storage credentials have been set for the first connected Speck. */
    public boolean areDataStorageCredentialsSet()
       {
-      return (dataSampleManager != null && dataSampleManager.isDataSampleUploaderDefined());
+      final DeviceSession deviceSession = getFirstDeviceSession();
+      return deviceSession != null && deviceSession.dataSampleManager.isDataSampleUploaderDefined();
+      }
+
+   /** Returns whether the data storage credentials have been set for the connected Speck having the given ID. */
+   public boolean areDataStorageCredentialsSet(@NotNull final String speckId)
+      {
+      final DeviceSession deviceSession = getDeviceSession(speckId);
+      return deviceSession != null && deviceSession.dataSampleManager.isDataSampleUploaderDefined();
       }
 
+   /** Validates the given credentials and, if valid, uses them for uploading the first connected Speck's samples. */
    public boolean validateAndSetDataStorageCredentials(@NotNull final RemoteStorageCredentials remoteStorageCredentials)
       {
-      if (device != null)
+      final DeviceSession deviceSession = getFirstDeviceSession();
+      if (deviceSession == null)
+         {
+         logInfo("You must be connected to a Speck before setting the data storage login credentials.");
+         return false;
+         }
+      return validateAndSetDataStorageCredentials(deviceSession, remoteStorageCredentials);
+      }
+
+   /** Validates the given credentials and, if valid, uses them for uploading the samples of the Speck having the given ID. */
+   public boolean validateAndSetDataStorageCredentials(@NotNull final String speckId, @NotNull final RemoteStorageCredentials remoteStorageCredentials)
+      {
+      final DeviceSession deviceSession = getDeviceSession(speckId);
+      if (deviceSession == null)
+         {
+         logInfo("You must be connected to Speck [" + speckId + "] before setting its data storage login credentials.");
+         return false;
+         }
+      return validateAndSetDataStorageCredentials(deviceSession, remoteStorageCredentials);
+      }
+
+   private boolean validateAndSetDataStorageCredentials(@NotNull final DeviceSession deviceSession, @NotNull final RemoteStorageCredentials remoteStorageCredentials)
+      {
+      if (!deviceSession.dataSampleManager.isDataSampleUploaderDefined())
          {
-         if (!areDataStorageCredentialsSet())
+         // now test the credentials
+         logInfo("Validating host and login credentials...");
+         if (RemoteStorageCredentialsValidator.isValid(remoteStorageCredentials))
             {
-            // now test the credentials
-            logInfo("Validating host and login credentials...");
-            if (RemoteStorageCredentialsValidator.isValid(remoteStorageCredentials))
-               {
-               logInfo("Host and login credentials validated successfully!!");
+            logInfo("Host and login credentials validated successfully!!");
 
-               this.remoteStorageCredentials = remoteStorageCredentials;
-               if (dataSampleManager != null && !dataSampleManager.setDataSampleUploader(new DataSampleUploader(device.getSpeckConfig(), remoteStorageCredentials)))
-                  {
-                  logError("Failed to set the DataSampleUploader");
-                  return false;
-                  }
-               return true;
-               }
-            else
+            if (!deviceSession.dataSampleManager.setDataSampleUploader(new DataSampleUploader(deviceSession.device.getSpeckConfig(), remoteStorageCredentials)))
                {
-               logInfo("Invalid host and/or login credentials.");
+               logError("Failed to set the DataSampleUploader");
+               return false;
                }
+            return true;
+            }
+         else
+            {
+            logInfo("Invalid host and/or login credentials.");
             }
          }
-      else
+
+      return false;
+      }
+
+   /**
+    * Adds an upload mirror for the connected Speck having the given ID, so that its samples are also uploaded to the
+    * server given by the credentials.  The credentials aren't validated, since a mirror which is unreachable merely
+    * backs off, without holding up anything else.  Returns <code>true</code> if the mirror was added.
+    */
+   public boolean addUploadMirror(@NotNull final String speckId, @NotNull final String mirrorName, @NotNull final RemoteStorageCredentials remoteStorageCredentials)
+      {
+      final DeviceSession deviceSession = getDeviceSession(speckId);
+      if (deviceSession == null)
          {
-         logInfo("You must be connected to a Speck before setting the data storage login credentials.");
+         logInfo("You must be connected to Speck [" + speckId + "] before adding an upload mirror for it.");
+         return false;
          }
+      return deviceSession.dataSampleManager.addUploadMirror(mirrorName, remoteStorageCredentials);
+      }
 
-      return false;
+   /** Returns whether the connected Speck having the given ID has an upload mirror with the given name. */
+   public boolean hasUploadMirror(@NotNull final String speckId, @NotNull final String mirrorName)
+      {
+      final DeviceSession deviceSession = getDeviceSession(speckId);
+      return deviceSession != null && deviceSession.dataSampleManager.hasUploadMirror(mirrorName);
       }
 
+   /** Returns the first connected Speck, or <code>null</code> if not connected. */
    @Nullable
    public Speck getSpeck()
       {
-      return device;
+      final DeviceSession deviceSession = getFirstDeviceSession();
+      return (deviceSession == null) ? null : deviceSession.device;
       }
 
+   /** Returns all the connected Specks, in the order they were connected. */
+   @NotNull
+   public List<Speck> getSpecks()
+      {
+      final List<Speck> specks = new ArrayList<Speck>();
+      for (final DeviceSession deviceSession : deviceSessions)
+         {
+         specks.add(deviceSession.device);
+         }
+      return specks;
+      }
+
+   /**
+    * Returns the statistics for the connected Speck(s), or <code>null</code> if not connected.  When more than one
+    * Speck is connected, each Speck's statistics are headed by its ID.  The statuses of the shared execution runtime
+    * and (if any limits are configured) upload limiter are appended once, at the end.
+    */
    @Nullable
    public String getStatistics()
       {
-      if (isConnected() && dataSampleManager != null)
+      if (isConnected())
          {
-         return dataSampleManager.getStatisticsAsString();
+         final StringBuilder s = new StringBuilder();
+         if (deviceSessions.size() == 1)
+            {
+            s.append(deviceSessions.get(0).dataSampleManager.getStatisticsAsString()).append(LINE_SEPARATOR);
+            }
+         else
+            {
+            for (final DeviceSession deviceSession : deviceSessions)
+               {
+               s.append("Speck [").append(deviceSession.device.getSpeckConfig().getId()).append("]:").append(LINE_SEPARATOR);
+               s.append(deviceSession.dataSampleManager.getStatisticsAsString()).append(LINE_SEPARATOR);
+               }
+            }
+
+         // the execution runtime and upload limiter are shared by all Specks, so they're only reported once
+         s.append(ExecutionRuntime.getInstance().getComponentStatusesAsString());
+         s.append(UploadRateLimiter.getInstance().getStatusAsString());
+         return s.toString();
          }
       return null;
       }
 
+   /** Adds the given listener to the statistics of every connected Speck. */
    public void addStatisticsListener(@Nullable final DataSampleManager.Statistics.Listener listener)
       {
-      if (dataSampleManager != null)
+      for (final DeviceSession deviceSession : deviceSessions)
          {
-         dataSampleManager.addStatisticsListener(listener);
+         deviceSession.dataSampleManager.addStatisticsListener(listener);
          }
       }
 
+   /** Disconnects from all connected Specks. */
    public void disconnect()
       {
-      if (isConnected())
+      for (final DeviceSession deviceSession : deviceSessions)
          {
-         disconnect(true);
+         disconnect(deviceSession, true);
          }
       }
 
-   private void disconnect(final boolean willTryToDisconnectFromDevice)
+   private void disconnect(@NotNull final DeviceSession deviceSession, final boolean willTryToDisconnectFromDevice)
       {
-      // shutdown the data file manager
-      if (dataSampleManager != null)
+      // only the first caller gets to clean up
+      if (deviceSessions.remove(deviceSession))
          {
-         dataSampleManager.shutdown();
+         // shutdown the data file manager
+         deviceSession.dataSampleManager.shutdown();
+
+         // disconnect from the device
+         if (willTryToDisconnectFromDevice)
+            {
+            deviceSession.device.disconnect();
+            }
          }
+      }
 
-      // disconnect from the device
-      if (willTryToDisconnectFromDevice && device != null)
+   @Nullable
+   private DeviceSession getFirstDeviceSession()
+      {
+      final Iterator<DeviceSession> iterator = deviceSessions.iterator();
+      return iterator.hasNext() ? iterator.next() : null;
+      }
+
+   @Nullable
+   private DeviceSession getDeviceSession(@NotNull final String speckId)
+      {
+      for (final DeviceSession deviceSession : deviceSessions)
          {
-         device.disconnect();
+         if (speckId.equals(deviceSession.device.getSpeckConfig().getId()))
+            {
+            return deviceSession;
+            }
          }
+      return null;
+      }
+
+   private final class DeviceSession
+      {
+      @NotNull
+      private final Speck device;
+
+      @NotNull
+      private final DataSampleManager dataSampleManager;
+
+      @NotNull
+      private final CreateLabDevicePingFailureEventListener pingFailureEventListener =
+            new CreateLabDevicePingFailureEventListener()
+            {
+            public void handlePingFailureEvent()
+               {
+               LOG.debug("SpeckGatewayHelper.handlePingFailureEvent(): ping failure detected for Speck [" + device.getSpeckConfig().getId() + "], cleaning up...");
+
+               logError("Connection failure detected for Speck [" + device.getSpeckConfig().getId() + "].  Cleaning up...");
+               disconnect(DeviceSession.this, false);
+
+               LOG.debug("SpeckGatewayHelper.handlePingFailureEvent(): ping failure detected, attempting reconnect...");
 
-      // set to null
-      device = null;
-      dataSampleManager = null;
-      remoteStorageCredentials = null;
+               // notify listener of the ping failure
+               eventListener.handlePingFailureEvent();
+               }
+            };
+
+      private DeviceSession(@NotNull final Speck device, @NotNull final DataSampleManager dataSampleManager)
+         {
+         this.device = device;
+         this.dataSampleManager = dataSampleManager;
+         }
       }
 
    @Nullable
@@ -6,10 +6,8 @@ import java.io.StringWriter;
 import java.util.HashSet;
 import java.util.PropertyResourceBundle;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import edu.cmu.ri.createlab.util.StandardVersionNumber;
-import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -21,6 +19,7 @@ import org.apache.http.client.fluent.Request;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.specksensor.ExecutionRuntime;
 
 /**
  * <p>
@@ -49,7 +48,7 @@ public final class UpdateChecker
 
    @NotNull
    private final StandardVersionNumber currentVersionNumber;
-   private final ExecutorService executorService = Executors.newCachedThreadPool(new DaemonThreadFactory(this.getClass().getSimpleName()));
+   private final Executor executorService = ExecutionRuntime.getInstance().getComponent("UpdateChecker", 1);
    private final Set<UpdateCheckResultListener> updateCheckResultListeners = new HashSet<UpdateCheckResultListener>();
 
    public UpdateChecker(@NotNull final StandardVersionNumber currentVersionNumber)
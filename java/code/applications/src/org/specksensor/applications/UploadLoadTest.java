@@ -0,0 +1,569 @@
+package org.specksensor.applications;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import edu.cmu.ri.createlab.device.CreateLabDevicePingFailureEventListener;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.specksensor.ApiSupport;
+import org.specksensor.DataSampleDownloader;
+import org.specksensor.DataSampleManager;
+import org.specksensor.DataSampleSet;
+import org.specksensor.DataSampleSetUploadResponse;
+import org.specksensor.DataSampleUploader;
+import org.specksensor.InitializationException;
+import org.specksensor.RemoteStorageCredentialsImpl;
+import org.specksensor.Speck;
+import org.specksensor.SpeckConfig;
+import org.specksensor.SpeckConstants;
+
+/**
+ * <p>
+ * <code>UploadLoadTest</code> load tests the upload path end to end, without any hardware or a live server.  It starts
+ * a {@link JuploadStandInServer}, and a number of simulated Specks, each with its own {@link DataSampleManager} (and so
+ * its own store, downloader, and uploader), exactly as the gateway runs them.  Each simulated Speck starts with a
+ * backlog of samples and then records a sample every second.  Once the test has run for the requested duration, the
+ * Specks stop recording, and the test waits for the remaining samples to be uploaded.
+ * </p>
+ * <p>
+ * It then reports the throughput (samples acknowledged by the server per second) and the percentiles of the latency
+ * from each sample's download from the Speck to its acknowledgement by the server.  Samples the server is set up to
+ * reject are left out of both.  Switches (all optional):
+ * </p>
+ * <ul>
+ *    <li><code>--devices=N</code> (default 10): the number of simulated Specks.</li>
+ *    <li><code>--backlog=N</code> (default 1000): the number of samples each Speck starts with.</li>
+ *    <li><code>--duration-seconds=N</code> (default 60): how long the Specks keep recording.</li>
+ *    <li><code>--drain-seconds=N</code> (default 120): how long to wait for the remaining uploads afterwards.</li>
+ *    <li><code>--latency-ms=N</code>, <code>--latency-jitter-ms=N</code>, <code>--error-rate=F</code>,
+ *    <code>--rejection-rate=F</code>: how the {@link JuploadStandInServer stand-in server} behaves.</li>
+ *    <li><code>--logging-level=LEVEL</code> (default warn): the logging level, which is kept low by default so that
+ *    logging doesn't skew the results.</li>
+ *    <li><code>--keep-data</code>: keep the simulated Specks' data directories, which are otherwise deleted.</li>
+ * </ul>
+ * <p>
+ * The gateway's tunables (e.g. <code>-Dorg.specksensor.DataSampleUploader.backend=non-blocking</code>) can be set as
+ * system properties, to compare their effect on the results.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class UploadLoadTest
+   {
+   private static final Logger LOG = Logger.getLogger(UploadLoadTest.class);
+
+   private static final String DEVICES_SWITCH = "--devices";
+   private static final String BACKLOG_SWITCH = "--backlog";
+   private static final String DURATION_SECONDS_SWITCH = "--duration-seconds";
+   private static final String DRAIN_SECONDS_SWITCH = "--drain-seconds";
+   private static final String LATENCY_MILLIS_SWITCH = "--latency-ms";
+   private static final String LATENCY_JITTER_MILLIS_SWITCH = "--latency-jitter-ms";
+   private static final String ERROR_RATE_SWITCH = "--error-rate";
+   private static final String REJECTION_RATE_SWITCH = "--rejection-rate";
+   private static final String LOGGING_LEVEL_SWITCH = "--logging-level";
+   private static final String KEEP_DATA_SWITCH = "--keep-data";
+
+   private static final String USERNAME = "load-test";
+   private static final String PASSWORD = "load-test";
+   private static final String DEVICE_NAME_PREFIX = "LoadTest_";
+
+   private static final int PROGRESS_INTERVAL_SECONDS = 10;
+
+   public static void main(final String[] args)
+      {
+      final Map<String, String> arguments = JuploadStandInServer.parseArguments(args);
+
+      // the gateway logs every sample it handles, which would swamp both the console and the results
+      final String loggingLevel = arguments.get(LOGGING_LEVEL_SWITCH);
+      final Level level = Level.toLevel(loggingLevel, Level.WARN);
+      LogManager.getRootLogger().setLevel(level);
+      Logger.getLogger("ConsoleLog").setLevel(level);
+
+      final UploadLoadTest loadTest = new UploadLoadTest(Math.max(1, JuploadStandInServer.getInt(arguments, DEVICES_SWITCH, 10)),
+                                                         Math.max(0, JuploadStandInServer.getInt(arguments, BACKLOG_SWITCH, 1000)),
+                                                         Math.max(1, JuploadStandInServer.getInt(arguments, DURATION_SECONDS_SWITCH, 60)),
+                                                         Math.max(0, JuploadStandInServer.getInt(arguments, DRAIN_SECONDS_SWITCH, 120)),
+                                                         arguments.containsKey(KEEP_DATA_SWITCH));
+      try
+         {
+         final JuploadStandInServer server = new JuploadStandInServer(0, USERNAME, PASSWORD);
+         server.setLatency(JuploadStandInServer.getInt(arguments, LATENCY_MILLIS_SWITCH, 50), JuploadStandInServer.getInt(arguments, LATENCY_JITTER_MILLIS_SWITCH, 50));
+         server.setErrorRate(JuploadStandInServer.getDouble(arguments, ERROR_RATE_SWITCH, 0));
+         server.setRejectionRate(JuploadStandInServer.getDouble(arguments, REJECTION_RATE_SWITCH, 0));
+         loadTest.run(server);
+         }
+      catch (Exception e)
+         {
+         LOG.error("UploadLoadTest.main(): Exception while running the load test", e);
+         println("The load test failed: " + e);
+         System.exit(1);
+         }
+      System.exit(0);
+      }
+
+   private static void println(@NotNull final String message)
+      {
+      System.out.println(message);
+      }
+
+   private final int numDevices;
+   private final int backlogSize;
+   private final int durationSeconds;
+   private final int drainSeconds;
+   private final boolean willKeepData;
+
+   private final List<SimulatedSpeck> specks = new ArrayList<SimulatedSpeck>();
+   private final List<DataSampleManager> dataSampleManagers = new ArrayList<DataSampleManager>();
+
+   /** Latencies, in milliseconds, of the samples acknowledged so far.  Guarded by itself. */
+   private final List<Long> latencies = new ArrayList<Long>();
+
+   private final AtomicLong numSamplesAcknowledged = new AtomicLong(0);
+   private final AtomicLong timeOfLastAcknowledgementMillis = new AtomicLong(0);
+
+   private UploadLoadTest(final int numDevices, final int backlogSize, final int durationSeconds, final int drainSeconds, final boolean willKeepData)
+      {
+      this.numDevices = numDevices;
+      this.backlogSize = backlogSize;
+      this.durationSeconds = durationSeconds;
+      this.drainSeconds = drainSeconds;
+      this.willKeepData = willKeepData;
+      }
+
+   private void run(@NotNull final JuploadStandInServer server) throws InitializationException, InterruptedException
+      {
+      server.start();
+      println("Starting " + numDevices + " simulated Speck(s), each with a backlog of " + backlogSize + " samples, for " + durationSeconds + " seconds...");
+
+      final long runId = System.currentTimeMillis();
+      final long startTimeMillis = System.currentTimeMillis();
+      for (int i = 0; i < numDevices; i++)
+         {
+         final SimulatedSpeck speck = new SimulatedSpeck("LoadTest" + runId + "_" + i, DEVICE_NAME_PREFIX + i, backlogSize, server);
+         final DataSampleManager dataSampleManager = new DataSampleManager(speck.getSpeckConfig(), new DataSampleDownloader(speck));
+         final DataSampleUploader dataSampleUploader = new DataSampleUploader(speck.getSpeckConfig(),
+                                                                              new RemoteStorageCredentialsImpl("localhost", server.getPort(), USERNAME, PASSWORD, speck.getDeviceName()));
+         dataSampleUploader.addEventListener(
+               new DataSampleUploader.EventListener()
+               {
+               @Override
+               public void handleDataSamplesUploadStartingAfterDelayEvent(@NotNull final DataSampleSet dataSampleSet)
+                  {
+                  // the load test only counts responses
+                  }
+
+               @Override
+               public void handleDataSamplesUploadedEvent(@NotNull final DataSampleSet dataSampleSet, @Nullable final DataSampleSetUploadResponse uploadResponse)
+                  {
+                  handleUploadResponse(speck, dataSampleSet, uploadResponse);
+                  }
+               });
+         dataSampleManager.setDataSampleUploader(dataSampleUploader);
+         specks.add(speck);
+         dataSampleManagers.add(dataSampleManager);
+         }
+      for (final DataSampleManager dataSampleManager : dataSampleManagers)
+         {
+         dataSampleManager.startup();
+         }
+
+      // record for the requested duration, then let the uploads catch up
+      long lastProgressMillis = startTimeMillis;
+      long lastProgressNumAcknowledged = 0;
+      final long endOfRecordingMillis = startTimeMillis + TimeUnit.SECONDS.toMillis(durationSeconds);
+      final long endOfDrainMillis = endOfRecordingMillis + TimeUnit.SECONDS.toMillis(drainSeconds);
+      boolean isRecording = true;
+      while (true)
+         {
+         Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+         final long now = System.currentTimeMillis();
+         if (isRecording && now >= endOfRecordingMillis)
+            {
+            isRecording = false;
+            for (final SimulatedSpeck speck : specks)
+               {
+               speck.stopRecording();
+               }
+            println("Recording stopped, waiting up to " + drainSeconds + " seconds for the remaining uploads...");
+            }
+         if ((!isRecording && getNumSamplesAwaitingAcknowledgement() == 0) || now >= endOfDrainMillis)
+            {
+            break;
+            }
+         if (now - lastProgressMillis >= TimeUnit.SECONDS.toMillis(PROGRESS_INTERVAL_SECONDS))
+            {
+            final long numAcknowledged = numSamplesAcknowledged.get();
+            println(String.format("%5d s: %9d downloaded, %9d acknowledged (%8.1f samples/s), %9d awaiting acknowledgement",
+                                  (now - startTimeMillis) / 1000,
+                                  getNumSamplesDownloaded(),
+                                  numAcknowledged,
+                                  (numAcknowledged - lastProgressNumAcknowledged) * 1000.0 / (now - lastProgressMillis),
+                                  getNumSamplesAwaitingAcknowledgement()));
+            lastProgressMillis = now;
+            lastProgressNumAcknowledged = numAcknowledged;
+            }
+         }
+
+      println("Shutting down...");
+      for (final DataSampleManager dataSampleManager : dataSampleManagers)
+         {
+         dataSampleManager.shutdown();
+         }
+      server.stop();
+
+      println(server.getStatusAsString());
+      println(getResultsAsString(startTimeMillis));
+
+      if (!willKeepData)
+         {
+         for (final SimulatedSpeck speck : specks)
+            {
+            FileUtils.deleteQuietly(SpeckConstants.FilePaths.getDeviceDataDirectory(speck.getSpeckConfig()));
+            }
+         }
+      }
+
+   private void handleUploadResponse(@NotNull final SimulatedSpeck speck,
+                                     @NotNull final DataSampleSet dataSampleSet,
+                                     @Nullable final DataSampleSetUploadResponse uploadResponse)
+      {
+      final DataSampleSetUploadResponse.Payload payload = (uploadResponse == null) ? null : uploadResponse.getPayload();
+      final boolean wereAnyAccepted = uploadResponse != null &&
+                                      (uploadResponse.wasSuccessful() || (payload != null && payload.getNumSuccessfulRecords() != null && payload.getNumSuccessfulRecords() > 0));
+      if (wereAnyAccepted)
+         {
+         // samples the server rejects were never awaiting acknowledgement, and a sample acknowledged more than once
+         // (e.g. as part of both a partially rejected set and one of its halves) only counts the first time
+         final long now = System.currentTimeMillis();
+         final List<Long> newLatencies = new ArrayList<Long>(dataSampleSet.size());
+         for (final Speck.DataSample dataSample : dataSampleSet.getDataSamples())
+            {
+            final Long downloadTimeMillis = speck.acknowledge(dataSample.getSampleTime());
+            if (downloadTimeMillis != null)
+               {
+               newLatencies.add(now - downloadTimeMillis);
+               }
+            }
+         if (!newLatencies.isEmpty())
+            {
+            synchronized (latencies)
+               {
+               latencies.addAll(newLatencies);
+               }
+            numSamplesAcknowledged.addAndGet(newLatencies.size());
+            timeOfLastAcknowledgementMillis.set(now);
+            }
+         }
+      }
+
+   private long getNumSamplesDownloaded()
+      {
+      long total = 0;
+      for (final SimulatedSpeck speck : specks)
+         {
+         total += speck.getNumSamplesDownloaded();
+         }
+      return total;
+      }
+
+   private long getNumSamplesAwaitingAcknowledgement()
+      {
+      long total = 0;
+      for (final SimulatedSpeck speck : specks)
+         {
+         total += speck.getNumSamplesAwaitingAcknowledgement();
+         }
+      return total;
+      }
+
+   private long getNumSamplesExpectedToBeRejected()
+      {
+      long total = 0;
+      for (final SimulatedSpeck speck : specks)
+         {
+         total += speck.getNumSamplesExpectedToBeRejected();
+         }
+      return total;
+      }
+
+   @NotNull
+   private String getResultsAsString(final long startTimeMillis)
+      {
+      final long[] sortedLatencies;
+      synchronized (latencies)
+         {
+         sortedLatencies = new long[latencies.size()];
+         for (int i = 0; i < sortedLatencies.length; i++)
+            {
+            sortedLatencies[i] = latencies.get(i);
+            }
+         }
+      Arrays.sort(sortedLatencies);
+
+      final long numAcknowledged = numSamplesAcknowledged.get();
+      final long elapsedMillis = Math.max(1, timeOfLastAcknowledgementMillis.get() - startTimeMillis);
+
+      final StringWriter stringWriter = new StringWriter();
+      final PrintWriter printWriter = new PrintWriter(stringWriter);
+
+      printWriter.printf(" __________________________________________________________________ \n");
+      printWriter.printf("|                                                                  |\n");
+      printWriter.printf("| Upload Load Test                                                 |\n");
+      printWriter.printf("| ----------------                                                 |\n");
+      printWriter.printf("| %-38s %25d |\n", "Simulated Specks", numDevices);
+      printWriter.printf("| %-38s %25d |\n", "Backlog per Speck (samples)", backlogSize);
+      printWriter.printf("| %-38s %25d |\n", "Recording Duration (secs)", durationSeconds);
+      printWriter.printf("| %-38s %25d |\n", "Samples Downloaded", getNumSamplesDownloaded());
+      printWriter.printf("| %-38s %25d |\n", "Samples Acknowledged", numAcknowledged);
+      printWriter.printf("| %-38s %25d |\n", "Samples Rejected (by design)", getNumSamplesExpectedToBeRejected());
+      printWriter.printf("| %-38s %25d |\n", "Samples Never Acknowledged", getNumSamplesAwaitingAcknowledgement());
+      printWriter.printf("|                                                                  |\n");
+      printWriter.printf("| %-38s %25.1f |\n", "Throughput (samples/sec)", numAcknowledged * 1000.0 / elapsedMillis);
+      printWriter.printf("| %-38s %25s |\n", "Latency p50 (ms)", getPercentile(sortedLatencies, 0.50));
+      printWriter.printf("| %-38s %25s |\n", "Latency p90 (ms)", getPercentile(sortedLatencies, 0.90));
+      printWriter.printf("| %-38s %25s |\n", "Latency p99 (ms)", getPercentile(sortedLatencies, 0.99));
+      printWriter.printf("| %-38s %25s |\n", "Latency p99.9 (ms)", getPercentile(sortedLatencies, 0.999));
+      printWriter.printf("| %-38s %25s |\n", "Latency max (ms)", getPercentile(sortedLatencies, 1.0));
+      printWriter.printf("|__________________________________________________________________|\n");
+
+      return stringWriter.toString();
+      }
+
+   /** Returns the given percentile (nearest rank) of the sorted values, or "-" if there are none. */
+   @NotNull
+   private static String getPercentile(@NotNull final long[] sortedValues, final double percentile)
+      {
+      if (sortedValues.length == 0)
+         {
+         return "-";
+         }
+      final int rank = (int)Math.ceil(percentile * sortedValues.length);
+      return String.valueOf(sortedValues[Math.min(sortedValues.length, Math.max(1, rank)) - 1]);
+      }
+
+   /**
+    * A Speck which starts with a backlog of samples, one per second up to the time it was created, and then records
+    * one sample per second until told to stop.  It remembers when each sample was downloaded, until the sample is
+    * acknowledged by the server.
+    */
+   private static final class SimulatedSpeck implements Speck
+      {
+      @NotNull
+      private final SpeckConfig speckConfig;
+
+      @NotNull
+      private final String deviceName;
+
+      @NotNull
+      private final JuploadStandInServer server;
+
+      @NotNull
+      private final Random random = new Random();
+
+      /** Download times of the samples awaiting acknowledgement, keyed by sample time. */
+      private final ConcurrentMap<Integer, Long> downloadTimesAwaitingAcknowledgement = new ConcurrentHashMap<Integer, Long>();
+
+      private final AtomicInteger numSamplesDownloaded = new AtomicInteger(0);
+      private final AtomicInteger numSamplesExpectedToBeRejected = new AtomicInteger(0);
+
+      /** Time of the oldest sample still on the device.  Guarded by <code>this</code>. */
+      private int nextSampleTime;
+
+      /** Time of the last sample the device will record, or 0 while it's still recording.  Guarded by <code>this</code>. */
+      private int lastSampleTime = 0;
+
+      private SimulatedSpeck(@NotNull final String id, @NotNull final String deviceName, final int backlogSize, @NotNull final JuploadStandInServer server)
+         {
+         this.deviceName = deviceName;
+         this.server = server;
+         this.nextSampleTime = (int)(System.currentTimeMillis() / 1000) - backlogSize;
+         this.speckConfig = new SpeckConfig()
+         {
+         @NotNull
+         @Override
+         public String getId()
+            {
+            return id;
+            }
+
+         @Override
+         public int getProtocolVersion()
+            {
+            return 3;
+            }
+
+         @Override
+         public int getHardwareVersion()
+            {
+            return 1;
+            }
+
+         @Override
+         public int getFirmwareVersion()
+            {
+            return 1;
+            }
+
+         @Override
+         public int getLoggingInterval()
+            {
+            return 1;
+            }
+
+         @NotNull
+         @Override
+         public ApiSupport getApiSupport()
+            {
+            return ApiSupport.getInstance(getProtocolVersion());
+            }
+         };
+         }
+
+      @NotNull
+      private String getDeviceName()
+         {
+         return deviceName;
+         }
+
+      private synchronized void stopRecording()
+         {
+         lastSampleTime = (int)(System.currentTimeMillis() / 1000);
+         }
+
+      @Nullable
+      @Override
+      public synchronized DataSample getSample()
+         {
+         final int newestSampleTime = (lastSampleTime == 0) ? (int)(System.currentTimeMillis() / 1000) : lastSampleTime;
+         if (nextSampleTime > newestSampleTime)
+            {
+            return null;
+            }
+
+         final org.specksensor.DataSample dataSample = new org.specksensor.DataSample(null, nextSampleTime, random.nextInt(1000), random.nextInt(1000), 600 + random.nextInt(300), 20 + random.nextInt(60));
+         if (server.isRejected(deviceName, nextSampleTime))
+            {
+            if (!downloadTimesAwaitingAcknowledgement.containsKey(nextSampleTime))
+               {
+               numSamplesExpectedToBeRejected.incrementAndGet();
+               }
+            }
+         else if (downloadTimesAwaitingAcknowledgement.putIfAbsent(nextSampleTime, dataSample.getDownloadTime()) == null)
+            {
+            numSamplesDownloaded.incrementAndGet();
+            }
+         return dataSample;
+         }
+
+      @Nullable
+      @Override
+      public synchronized DataSample getCurrentSample()
+         {
+         return new org.specksensor.DataSample(null, (int)(System.currentTimeMillis() / 1000), random.nextInt(1000), random.nextInt(1000), 600 + random.nextInt(300), 20 + random.nextInt(60));
+         }
+
+      @Override
+      public boolean deleteSample(@Nullable final Speck.DataSample dataSample)
+         {
+         return dataSample != null && deleteSample(dataSample.getSampleTime());
+         }
+
+      @Override
+      public synchronized boolean deleteSample(final int sampleTime)
+         {
+         if (sampleTime == nextSampleTime)
+            {
+            nextSampleTime++;
+            return true;
+            }
+         return false;
+         }
+
+      /** Returns the download time of the sample, if it was awaiting acknowledgement, or <code>null</code> otherwise. */
+      @Nullable
+      private Long acknowledge(final int sampleTime)
+         {
+         return downloadTimesAwaitingAcknowledgement.remove(sampleTime);
+         }
+
+      private int getNumSamplesDownloaded()
+         {
+         return numSamplesDownloaded.get() + numSamplesExpectedToBeRejected.get();
+         }
+
+      /** Returns the number of samples not yet acknowledged, including those still on the device. */
+      private synchronized int getNumSamplesAwaitingAcknowledgement()
+         {
+         final int newestSampleTime = (lastSampleTime == 0) ? (int)(System.currentTimeMillis() / 1000) : lastSampleTime;
+         return downloadTimesAwaitingAcknowledgement.size() + Math.max(0, newestSampleTime - nextSampleTime + 1);
+         }
+
+      private int getNumSamplesExpectedToBeRejected()
+         {
+         return numSamplesExpectedToBeRejected.get();
+         }
+
+      @Override
+      public int getNumberOfAvailableSamples()
+         {
+         return getNumSamplesAwaitingAcknowledgement();
+         }
+
+      @Override
+      public SpeckConfig setLoggingInterval(final int loggingIntervalInSeconds) throws UnsupportedOperationException
+         {
+         throw new UnsupportedOperationException("Simulated Specks always record every second");
+         }
+
+      @Override
+      public void enterBootloaderMode() throws UnsupportedOperationException
+         {
+         throw new UnsupportedOperationException("Simulated Specks don't have a bootloader");
+         }
+
+      @NotNull
+      @Override
+      public SpeckConfig getSpeckConfig()
+         {
+         return speckConfig;
+         }
+
+      @Override
+      public String getPortName()
+         {
+         return "simulated:" + deviceName;
+         }
+
+      @Override
+      public void disconnect()
+         {
+         // nothing to disconnect from
+         }
+
+      @Override
+      public void addCreateLabDevicePingFailureEventListener(final CreateLabDevicePingFailureEventListener listener)
+         {
+         // simulated Specks never fail a ping
+         }
+
+      @Override
+      public void removeCreateLabDevicePingFailureEventListener(final CreateLabDevicePingFailureEventListener listener)
+         {
+         // simulated Specks never fail a ping
+         }
+      }
+   }
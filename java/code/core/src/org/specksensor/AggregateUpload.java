@@ -0,0 +1,298 @@
+package org.specksensor;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>AggregateUpload</code> uploads a Speck's {@link DataSampleRollup rollups} (the min, max, and mean of each
+ * channel, and the number of samples, per bucket) instead of its samples, for sites where uploading every sample costs
+ * too much.  It tracks its progress with a {@link DataSampleStore#getAggregateCursor(DataSampleRollup.Resolution)
+ * cursor} (the start of the next bucket to upload), and never touches the samples' upload status, so the samples stay
+ * in the store, awaiting upload, until they're synced during the {@link RawSyncSchedule raw sync schedule}.
+ * </p>
+ * <p>
+ * A bucket is only uploaded once it's complete, i.e. once the Speck's samples have been downloaded past the end of
+ * the bucket, since a Speck hands over its samples in order.  Like an {@link UploadMirror}, it doesn't bisect
+ * partially rejected uploads, and it moves past a set which has been rejected outright several times in a row.
+ * </p>
+ * <p>
+ * The upload doesn't schedule anything itself.  Its {@link DataSampleManager} asks it for the
+ * {@link #uploadNext(int) next upload} and passes it the {@link #handleUploadResponse(DataSampleRollupSet,
+ * DataSampleSetUploadResponse) response}, each of which says how long to wait before the next upload.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class AggregateUpload
+   {
+   private static final Logger LOG = Logger.getLogger(AggregateUpload.class);
+   private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
+
+   /** Number of consecutive times the server may reject every rollup in a set before the set is skipped. */
+   private static final int SKIP_AFTER_REJECTIONS = 3;
+
+   /** Delay before looking for more complete buckets, once the upload has caught up. */
+   private static final long DELAY_WHEN_CAUGHT_UP_MILLIS = 15000;
+
+   private static final RetryPolicy RETRY_POLICY = new RetryPolicy(Integer.MAX_VALUE, 5000, 600000, 0.2);
+
+   public enum State
+      {
+         WAITING("waiting"),
+         UPLOADING("uploading"),
+         FAILING("failing");
+
+      private final String name;
+
+      private State(final String name)
+         {
+         this.name = name;
+         }
+
+      public String getName()
+         {
+         return name;
+         }
+      }
+
+   /**
+    * The local times of day during which samples are uploaded in aggregate mode, as a comma-separated list of windows
+    * of the form <code>HH:mm-HH:mm</code> (e.g. <code>01:00-05:00, 13:00-14:00</code>).  Windows may wrap around
+    * midnight, and a window which starts and ends at the same time (e.g. <code>00:00-00:00</code>) is always open.  An
+    * empty schedule is never open.
+    */
+   static final class RawSyncSchedule
+      {
+      private static final Pattern WINDOW_PATTERN = Pattern.compile("\\s*(\\d{1,2}):(\\d{2})\\s*-\\s*(\\d{1,2}):(\\d{2})\\s*");
+
+      /** Start and end (exclusive) minute of day of each window. */
+      @NotNull
+      private final List<int[]> windows = new ArrayList<int[]>();
+
+      RawSyncSchedule(@Nullable final String schedule)
+         {
+         if (schedule != null)
+            {
+            for (final String window : schedule.split(","))
+               {
+               final Matcher matcher = WINDOW_PATTERN.matcher(window);
+               if (matcher.matches())
+                  {
+                  windows.add(new int[]{Integer.parseInt(matcher.group(1)) * 60 + Integer.parseInt(matcher.group(2)),
+                                        Integer.parseInt(matcher.group(3)) * 60 + Integer.parseInt(matcher.group(4))});
+                  }
+               else if (window.trim().length() > 0)
+                  {
+                  LOG.error("AggregateUpload.RawSyncSchedule(): Ignoring invalid raw sync window [" + window + "].  Windows must be of the form HH:mm-HH:mm");
+                  }
+               }
+            }
+         }
+
+      boolean isEmpty()
+         {
+         return windows.isEmpty();
+         }
+
+      /** Returns <code>true</code> if the current local time is within one of the windows. */
+      boolean isOpen()
+         {
+         final Calendar calendar = Calendar.getInstance();
+         final int minuteOfDay = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+         for (final int[] window : windows)
+            {
+            final boolean isWithinWindow = (window[0] < window[1]) ?
+                                           (window[0] <= minuteOfDay && minuteOfDay < window[1]) :
+                                           (minuteOfDay >= window[0] || minuteOfDay < window[1]);
+            if (isWithinWindow)
+               {
+               return true;
+               }
+            }
+         return false;
+         }
+      }
+
+   @NotNull
+   private final DataSampleRollup.Resolution resolution;
+
+   @NotNull
+   private final DataSampleStore dataSampleStore;
+
+   @NotNull
+   private final DataSampleUploader dataSampleUploader;
+
+   // The fields below are only accessed by the upload task and by the handling of its upload's response, which never
+   // run at the same time, since there's only ever one aggregate upload in flight.  They're volatile so that the
+   // statistics see them.
+   private volatile boolean hasLoadedCursor = false;
+   private volatile int nextBucketStartUtcSecs = 0;
+   private volatile int numConsecutiveFailures = 0;
+   private volatile int numConsecutiveRejections = 0;
+   private volatile long numRollupsUploaded = 0;
+   private volatile long numRollupsSkipped = 0;
+   private volatile State state = State.WAITING;
+
+   AggregateUpload(@NotNull final DataSampleRollup.Resolution resolution,
+                   @NotNull final DataSampleStore dataSampleStore,
+                   @NotNull final DataSampleUploader dataSampleUploader)
+      {
+      this.resolution = resolution;
+      this.dataSampleStore = dataSampleStore;
+      this.dataSampleUploader = dataSampleUploader;
+      }
+
+   @NotNull
+   DataSampleRollup.Resolution getResolution()
+      {
+      return resolution;
+      }
+
+   /**
+    * Submits the next set of complete buckets for upload, returning -1 if a set was submitted (in which case the
+    * caller must wait for the response), or the number of milliseconds to wait before trying again if there was nothing
+    * to upload.  All the samples taken before the given time must already be in the store.
+    */
+   long uploadNext(final int downloadedThroughUtcSecs)
+      {
+      if (!hasLoadedCursor)
+         {
+         nextBucketStartUtcSecs = dataSampleStore.getAggregateCursor(resolution);
+         hasLoadedCursor = true;
+         LOG.info("AggregateUpload.uploadNext(): Resuming " + resolution + " aggregate upload at [" + nextBucketStartUtcSecs + "]");
+         }
+
+      if (nextBucketStartUtcSecs == 0)
+         {
+         // nothing has been uploaded yet, so start with the oldest sample in the store
+         final DataSampleCursor cursor = dataSampleStore.query(0, downloadedThroughUtcSecs);
+         try
+            {
+            if (cursor.hasNext())
+               {
+               nextBucketStartUtcSecs = resolution.getBucketStart(cursor.next().getSampleTime());
+               }
+            }
+         finally
+            {
+            cursor.close();
+            }
+         }
+
+      // only buckets which end before the newest downloaded sample are complete
+      final int completeBucketsEndUtcSecs = resolution.getBucketStart(downloadedThroughUtcSecs);
+      final int endUtcSecs = Math.min(completeBucketsEndUtcSecs, nextBucketStartUtcSecs + DataSampleSet.DEFAULT_SIZE * resolution.getSeconds());
+      if (nextBucketStartUtcSecs == 0 || endUtcSecs <= nextBucketStartUtcSecs)
+         {
+         state = State.WAITING;
+         return DELAY_WHEN_CAUGHT_UP_MILLIS;
+         }
+
+      final List<DataSampleRollup> rollups = dataSampleStore.getRollups(resolution, nextBucketStartUtcSecs, endUtcSecs - 1);
+      if (rollups.isEmpty())
+         {
+         // skip over the gap (e.g. while the Speck was unplugged), and keep going if there are more complete buckets
+         moveCursorTo(endUtcSecs);
+         state = State.WAITING;
+         return (endUtcSecs < completeBucketsEndUtcSecs) ? 0 : DELAY_WHEN_CAUGHT_UP_MILLIS;
+         }
+
+      state = State.UPLOADING;
+      dataSampleUploader.submitUploadDataSampleSetTask(new DataSampleRollupSet(rollups, endUtcSecs), UploadRateLimiter.Lane.REAL_TIME);
+      return -1;
+      }
+
+   /**
+    * Moves the cursor past the given set if it was accepted (or partially accepted, or rejected too many times), and
+    * returns the number of milliseconds to wait before the next upload.
+    */
+   long handleUploadResponse(@NotNull final DataSampleRollupSet dataSampleRollupSet, @Nullable final DataSampleSetUploadResponse uploadResponse)
+      {
+      final DataSampleSetUploadResponse.Payload payload = (uploadResponse == null) ? null : uploadResponse.getPayload();
+      final int numSuccessful = (payload == null || payload.getNumSuccessfulRecords() == null) ? 0 : payload.getNumSuccessfulRecords();
+      final int numFailures = (payload == null || payload.getNumFailedRecords() == null) ? 0 : payload.getNumFailedRecords();
+
+      final boolean wasAccepted = uploadResponse != null && (uploadResponse.wasSuccessful() || numSuccessful > 0);
+      final boolean wasRejected = !wasAccepted && payload != null && numFailures > 0;
+      if (wasRejected)
+         {
+         numConsecutiveRejections++;
+         }
+
+      if (wasAccepted || (wasRejected && numConsecutiveRejections >= SKIP_AFTER_REJECTIONS))
+         {
+         if (wasAccepted)
+            {
+            numRollupsUploaded += dataSampleRollupSet.size() - numFailures;
+            numRollupsSkipped += numFailures;
+            if (numFailures > 0)
+               {
+               LOG.warn("AggregateUpload.handleUploadResponse(): The server rejected [" + numFailures + "] of [" + dataSampleRollupSet.size() + "] rollups, which won't be uploaded again");
+               }
+            }
+         else
+            {
+            numRollupsSkipped += dataSampleRollupSet.size();
+            final String msg = "The server rejected a set of " + dataSampleRollupSet.size() + " rollups " + numConsecutiveRejections + " times in a row, so it's being skipped.";
+            LOG.error("AggregateUpload.handleUploadResponse(): " + msg);
+            CONSOLE_LOG.error(msg);
+            }
+
+         numConsecutiveFailures = 0;
+         numConsecutiveRejections = 0;
+         moveCursorTo(dataSampleRollupSet.getEndUtcSecs());
+
+         // keep going, in case there are more complete buckets waiting
+         state = State.WAITING;
+         return 0;
+         }
+
+      numConsecutiveFailures++;
+      state = State.FAILING;
+      final long delayMillis = RETRY_POLICY.getDelayMillis(numConsecutiveFailures);
+      LOG.error("AggregateUpload.handleUploadResponse(): Aggregate upload failed [" + uploadResponse + "], will retry in " + delayMillis + " ms (consecutive failures = " + numConsecutiveFailures + ")");
+      return delayMillis;
+      }
+
+   private void moveCursorTo(final int bucketStartUtcSecs)
+      {
+      nextBucketStartUtcSecs = Math.max(nextBucketStartUtcSecs, bucketStartUtcSecs);
+      if (!dataSampleStore.setAggregateCursor(resolution, nextBucketStartUtcSecs))
+         {
+         LOG.error("AggregateUpload.moveCursorTo(): Failed to save the " + resolution + " aggregate cursor, so some rollups may be uploaded again after a restart");
+         }
+      }
+
+   int getNextBucketStartUtcSecs()
+      {
+      return nextBucketStartUtcSecs;
+      }
+
+   long getNumRollupsUploaded()
+      {
+      return numRollupsUploaded;
+      }
+
+   long getNumRollupsSkipped()
+      {
+      return numRollupsSkipped;
+      }
+
+   int getNumConsecutiveFailures()
+      {
+      return numConsecutiveFailures;
+      }
+
+   @NotNull
+   State getState()
+      {
+      return state;
+      }
+   }
@@ -0,0 +1,200 @@
+package org.specksensor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>CircuitBreaker</code> stops requests to a target (e.g. an upload server) which keeps failing, so that a dead
+ * server isn't hammered.  After {@link #FAILURE_THRESHOLD_SYSTEM_PROPERTY a number of} consecutive failures, the
+ * breaker opens and refuses all requests for a while.  Once that time has passed, a single trial request is allowed
+ * through: if it succeeds, the breaker closes and requests flow normally again; if it fails, the breaker opens again
+ * for twice as long (up to a {@link #MAX_OPEN_SECONDS_SYSTEM_PROPERTY maximum}), so that the gateway recovers within a
+ * bounded time once the target returns.
+ * </p>
+ * <p>
+ * There is one breaker per target, shared by everything which talks to that target.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class CircuitBreaker
+   {
+   private static final Logger LOG = Logger.getLogger(CircuitBreaker.class);
+   private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
+
+   /** Number of consecutive failures which opens the breaker. */
+   public static final String FAILURE_THRESHOLD_SYSTEM_PROPERTY = "org.specksensor.CircuitBreaker.failure-threshold";
+
+   /** Number of seconds the breaker stays open the first time it opens. */
+   public static final String INITIAL_OPEN_SECONDS_SYSTEM_PROPERTY = "org.specksensor.CircuitBreaker.initial-open-seconds";
+
+   /** Maximum number of seconds the breaker stays open, no matter how many trial requests have failed. */
+   public static final String MAX_OPEN_SECONDS_SYSTEM_PROPERTY = "org.specksensor.CircuitBreaker.max-open-seconds";
+
+   private static final int FAILURE_THRESHOLD = Math.max(1, SystemPropertyUtils.getInt(FAILURE_THRESHOLD_SYSTEM_PROPERTY, 3));
+   private static final int INITIAL_OPEN_SECONDS = Math.max(1, SystemPropertyUtils.getInt(INITIAL_OPEN_SECONDS_SYSTEM_PROPERTY, 15));
+   private static final int MAX_OPEN_SECONDS = Math.max(INITIAL_OPEN_SECONDS, SystemPropertyUtils.getInt(MAX_OPEN_SECONDS_SYSTEM_PROPERTY, 120));
+
+   private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<String, CircuitBreaker>();
+
+   /** Returns the breaker for the given target, creating it if necessary. */
+   @NotNull
+   public static CircuitBreaker getInstance(@NotNull final String target)
+      {
+      final CircuitBreaker breaker = BREAKERS.get(target);
+      if (breaker != null)
+         {
+         return breaker;
+         }
+      final CircuitBreaker newBreaker = new CircuitBreaker(target);
+      final CircuitBreaker existingBreaker = BREAKERS.putIfAbsent(target, newBreaker);
+      return (existingBreaker == null) ? newBreaker : existingBreaker;
+      }
+
+   public enum State
+      {
+         CLOSED("closed"),
+         OPEN("open"),
+         HALF_OPEN("half-open");
+
+      private final String name;
+
+      private State(final String name)
+         {
+         this.name = name;
+         }
+
+      public String getName()
+         {
+         return name;
+         }
+      }
+
+   @NotNull
+   private final String target;
+
+   @NotNull
+   private final RetryPolicy openDurationPolicy = new RetryPolicy(1, INITIAL_OPEN_SECONDS * 1000L, MAX_OPEN_SECONDS * 1000L, 0.2);
+
+   /** Guarded by <code>this</code>. */
+   @NotNull
+   private State state = State.CLOSED;
+
+   /** Guarded by <code>this</code>. */
+   private int numConsecutiveFailures = 0;
+
+   /** Number of times the breaker has opened since it was last closed.  Guarded by <code>this</code>. */
+   private int numConsecutiveOpenings = 0;
+
+   /** Guarded by <code>this</code>. */
+   private long openUntilMillis = 0;
+
+   /** Whether the single trial request allowed while half-open is underway.  Guarded by <code>this</code>. */
+   private boolean isTrialRequestUnderway = false;
+
+   private CircuitBreaker(@NotNull final String target)
+      {
+      this.target = target;
+      }
+
+   @NotNull
+   public String getTarget()
+      {
+      return target;
+      }
+
+   @NotNull
+   public synchronized State getState()
+      {
+      return state;
+      }
+
+   /**
+    * Returns whether a request to the target may be made now.  If this returns <code>true</code>, the caller must
+    * report the outcome by calling either {@link #recordSuccess()} or {@link #recordFailure()}.
+    */
+   public synchronized boolean allowRequest()
+      {
+      switch (state)
+         {
+         case CLOSED:
+            return true;
+
+         case OPEN:
+            if (System.currentTimeMillis() < openUntilMillis)
+               {
+               return false;
+               }
+            state = State.HALF_OPEN;
+            isTrialRequestUnderway = true;
+            LOG.info("CircuitBreaker.allowRequest(): Trying [" + target + "] again");
+            return true;
+
+         case HALF_OPEN:
+            if (isTrialRequestUnderway)
+               {
+               return false;
+               }
+            isTrialRequestUnderway = true;
+            return true;
+
+         default:
+            LOG.error("CircuitBreaker.allowRequest(): Unexpected State: " + state);
+            return true;
+         }
+      }
+
+   /** Records that a request to the target succeeded, closing the breaker. */
+   public synchronized void recordSuccess()
+      {
+      if (state != State.CLOSED)
+         {
+         final String msg = "[" + target + "] is available again.";
+         LOG.info("CircuitBreaker.recordSuccess(): " + msg);
+         CONSOLE_LOG.info(msg);
+         }
+      state = State.CLOSED;
+      numConsecutiveFailures = 0;
+      numConsecutiveOpenings = 0;
+      isTrialRequestUnderway = false;
+      }
+
+   /** Records that a request to the target failed, opening the breaker if there have been too many failures. */
+   public synchronized void recordFailure()
+      {
+      numConsecutiveFailures++;
+      isTrialRequestUnderway = false;
+      if (state == State.HALF_OPEN || (state == State.CLOSED && numConsecutiveFailures >= FAILURE_THRESHOLD))
+         {
+         numConsecutiveOpenings++;
+         final long openDurationMillis = openDurationPolicy.getDelayMillis(numConsecutiveOpenings);
+         openUntilMillis = System.currentTimeMillis() + openDurationMillis;
+         state = State.OPEN;
+
+         final String msg = "[" + target + "] has failed " + numConsecutiveFailures + " time(s) in a row, so it won't be tried again for " + (openDurationMillis / 1000) + " second(s).";
+         LOG.info("CircuitBreaker.recordFailure(): " + msg);
+         CONSOLE_LOG.info(msg);
+         }
+      }
+
+   /** Returns whether the most recent request to the target failed. */
+   public synchronized boolean isFailing()
+      {
+      return numConsecutiveFailures > 0;
+      }
+
+   /** Returns the number of milliseconds until the breaker will allow a request, or 0 if it already does. */
+   public synchronized long getMillisUntilRetry()
+      {
+      return (state == State.OPEN) ? Math.max(0, openUntilMillis - System.currentTimeMillis()) : 0;
+      }
+
+   @Override
+   public synchronized String toString()
+      {
+      return "CircuitBreaker{target='" + target + "', state=" + state.getName() + ", numConsecutiveFailures=" + numConsecutiveFailures + "}";
+      }
+   }
@@ -1,13 +1,41 @@
 package org.specksensor;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPOutputStream;
+import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * <p>
@@ -15,6 +43,22 @@ import org.jetbrains.annotations.NotNull;
  * as records with comma-delimited values.
  * Does not support retrieval.
  * </p>
+ * <p>
+ * Saves are normally asynchronous: {@link #save(Speck.DataSample)} merely queues the record, and a background thread
+ * appends queued records to the file, flushing according to the flush policy (see {@link #FLUSH_POLICY_SYSTEM_PROPERTY}).
+ * A store which is created synchronous (e.g. one which is already fed by its own queue and worker thread) appends the
+ * record within {@link #save(Speck.DataSample)}, and reports whether it was written, and the background thread only
+ * handles timed flushes.
+ * The current file is always named <code>data_samples.csv</code>.  When it's rolled over (see
+ * {@link #ROLLOVER_POLICY_SYSTEM_PROPERTY}) it's renamed to include the date (and, for size-based rollover, the time)
+ * and a new file is started.  Rolled files can optionally be gzipped in the background.
+ * </p>
+ * <p>
+ * If the file can't be written (or reopened after a rollover), the writer counts the lost records (see
+ * {@link #getNumFailedWrites()}) and tries to reopen the file before the next record, and again whenever the queue is
+ * idle.  Until it succeeds, an asynchronous store's {@link #save(Speck.DataSample)} returns
+ * {@link SaveResult#FAILURE_ERROR} rather than queueing records which can't be written.
+ * </p>
  *
  * @author Chris Bartley (bartley@cmu.edu)
  */
@@ -22,25 +66,223 @@ final class CsvDataSampleStore implements DataSampleStore
    {
    private static final Logger LOG = Logger.getLogger(CsvDataSampleStore.class);
 
+   /**
+    * When to flush queued records to disk: <code>time</code> (the default) flushes once the oldest unflushed record is
+    * older than the flush interval, <code>lines</code> flushes every N records (or whenever the queue goes idle), and
+    * <code>fsync</code> behaves like <code>time</code>, but also forces the data to the storage device.
+    */
+   static final String FLUSH_POLICY_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.flush-policy";
+   static final String FLUSH_INTERVAL_MILLIS_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.flush-interval-millis";
+   static final String FLUSH_LINE_COUNT_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.flush-line-count";
+
+   /** When to roll over to a new file: <code>daily</code> (the default), <code>size</code>, or <code>none</code>. */
+   static final String ROLLOVER_POLICY_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.rollover-policy";
+   static final String ROLLOVER_SIZE_MB_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.rollover-size-mb";
+
+   /** Whether rolled files should be gzipped in the background.  Defaults to <code>false</code>. */
+   static final String GZIP_ROLLED_FILES_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.gzip-rolled-files";
+
+   private enum FlushPolicy
+      {
+         TIME("time"),
+         LINE_COUNT("lines"),
+         FSYNC("fsync");
+
+      @NotNull
+      private static FlushPolicy findByName(@Nullable final String name, @NotNull final FlushPolicy defaultPolicy)
+         {
+         for (final FlushPolicy policy : values())
+            {
+            if (policy.name.equalsIgnoreCase(StringUtils.trim(name)))
+               {
+               return policy;
+               }
+            }
+         return defaultPolicy;
+         }
+
+      private final String name;
+
+      private FlushPolicy(final String name)
+         {
+         this.name = name;
+         }
+      }
+
+   private enum RolloverPolicy
+      {
+         NONE("none"),
+         DAILY("daily"),
+         SIZE("size");
+
+      @NotNull
+      private static RolloverPolicy findByName(@Nullable final String name, @NotNull final RolloverPolicy defaultPolicy)
+         {
+         for (final RolloverPolicy policy : values())
+            {
+            if (policy.name.equalsIgnoreCase(StringUtils.trim(name)))
+               {
+               return policy;
+               }
+            }
+         return defaultPolicy;
+         }
+
+      private final String name;
+
+      private RolloverPolicy(final String name)
+         {
+         this.name = name;
+         }
+      }
+
+   private static final FlushPolicy FLUSH_POLICY = FlushPolicy.findByName(System.getProperty(FLUSH_POLICY_SYSTEM_PROPERTY), FlushPolicy.TIME);
+   private static final int FLUSH_INTERVAL_MILLIS = Math.max(1, SystemPropertyUtils.getInt(FLUSH_INTERVAL_MILLIS_SYSTEM_PROPERTY, 1000));
+   private static final int FLUSH_LINE_COUNT = Math.max(1, SystemPropertyUtils.getInt(FLUSH_LINE_COUNT_SYSTEM_PROPERTY, 100));
+   private static final RolloverPolicy ROLLOVER_POLICY = RolloverPolicy.findByName(System.getProperty(ROLLOVER_POLICY_SYSTEM_PROPERTY), RolloverPolicy.DAILY);
+   private static final long ROLLOVER_SIZE_BYTES = Math.max(1, SystemPropertyUtils.getInt(ROLLOVER_SIZE_MB_SYSTEM_PROPERTY, 10)) * 1024L * 1024L;
+   private static final boolean WILL_GZIP_ROLLED_FILES = SystemPropertyUtils.getBoolean(GZIP_ROLLED_FILES_SYSTEM_PROPERTY, false);
+
+   private static final String DATA_FILE_BASE_NAME = "data_samples";
+   private static final String DATA_FILE_EXTENSION = ".csv";
+   private static final String GZIP_FILE_EXTENSION = ".gz";
+   private static final int MAX_NUM_QUEUED_LINES = 10000;
+   private static final int QUEUE_TIMEOUT_IN_SECONDS = 5;
+   private static final long WRITER_SHUTDOWN_TIMEOUT_MILLIS = 30 * 1000L;
+   private static final long COMPRESSION_SHUTDOWN_TIMEOUT_MILLIS = 60 * 1000L;
+   private static final int LINE_SEPARATOR_LENGTH = System.getProperty("line.separator").length();
+
    @NotNull
    private final SpeckConfig speckConfig;
 
    @NotNull
+   private final File dataFile;
+
+   @NotNull
+   private final BlockingQueue<String> queuedLines = new LinkedBlockingQueue<String>(MAX_NUM_QUEUED_LINES);
+
+   @NotNull
+   private final ExecutorService writerExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory(this.getClass() + ".writerExecutor"));
+
+   /** Compression is shared by the stores of all connected Specks, one file at a time so as not to hog the disk. */
+   private static final ExecutionRuntime.Component COMPRESSION_TASKS = ExecutionRuntime.getInstance().getComponent("CsvDataSampleStore", 1);
+
+   /** The most recently submitted compression task.  Tasks run in order, so when it's done, they all are. */
+   @Nullable
+   private volatile Future<?> lastCompressionTask = null;
+
+   private volatile boolean isRunning = true;
+
+   /**
+    * Saves hold the read lock while checking {@link #isRunning} and queueing, and shutdown takes the write lock to clear
+    * it, so that once the flag is cleared, nothing more can be queued, and the writer can't exit while a record which has
+    * been reported as saved is still on its way into the queue.
+    */
+   private final ReadWriteLock queueLock = new ReentrantReadWriteLock();
+
+   /** Whether the most recent attempt to write (or open) the file failed. */
+   private volatile boolean isWriterFailing = false;
+
+   private final AtomicInteger numFailedWrites = new AtomicInteger(0);
+
+   private final boolean isAsynchronous;
+
+   /**
+    * Guards everything below, which is touched by the writer thread, and also by saves if the store is synchronous (or by
+    * the constructor, before the writer thread starts).
+    */
+   private final Lock writerLock = new ReentrantLock();
+   private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyyMMdd");
+   private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
+   private FileOutputStream outputStream;
+
+   /** The writer for the current file, or <code>null</code> if the file couldn't be (re)opened. */
+   @Nullable
    private BufferedWriter writer;
+   private String dayOfCurrentFile;
+   private long sizeOfCurrentFileInBytes;
+   private int numUnflushedLines = 0;
+   private long timeOfOldestUnflushedLineMillis = 0;
+
+   @NotNull
+   private final Runnable writerRunnable =
+         new Runnable()
+         {
+         @Override
+         public void run()
+            {
+            // keep going until we've been shut down AND have written everything that was queued before the shutdown
+            while (isRunning || !queuedLines.isEmpty())
+               {
+               try
+                  {
+                  final String line = queuedLines.poll(getMillisUntilTimedFlush(), TimeUnit.MILLISECONDS);
+                  writerLock.lock();
+                  try
+                     {
+                     if (line != null)
+                        {
+                        writeLine(line);
+                        }
+                     else if (writer == null)
+                        {
+                        reopenWriter();
+                        }
+                     flushIfNecessary(line == null);
+                     }
+                  finally
+                     {
+                     writerLock.unlock();
+                     }
+                  }
+               catch (InterruptedException e)
+                  {
+                  LOG.error("CsvDataSampleStore.writerRunnable.run(): InterruptedException while waiting for lines to write", e);
+                  break;
+                  }
+               }
 
+            writerLock.lock();
+            try
+               {
+               if (writer != null)
+                  {
+                  flush();
+                  writer.close();
+                  writer = null;
+                  LOG.debug("CsvDataSampleStore.writerRunnable.run(): Successfully closed the writer");
+                  }
+               }
+            catch (IOException e)
+               {
+               LOG.error("CsvDataSampleStore.writerRunnable.run(): IOException while trying to close the writer", e);
+               }
+            finally
+               {
+               writerLock.unlock();
+               }
+            }
+         };
+
+   /** Creates an asynchronous store. */
    CsvDataSampleStore(@NotNull final SpeckConfig speckConfig)
+      {
+      this(speckConfig, true);
+      }
+
+   /**
+    * Creates a store which is either asynchronous, or which writes each record within {@link #save(Speck.DataSample)} so
+    * that the caller learns whether it was written.
+    */
+   CsvDataSampleStore(@NotNull final SpeckConfig speckConfig, final boolean isAsynchronous)
       {
       this.speckConfig = speckConfig;
+      this.isAsynchronous = isAsynchronous;
       final File dataFileDirectory = SpeckConstants.FilePaths.getDeviceDataDirectory(speckConfig);
-      final File dataFile = new File(dataFileDirectory, "data_samples.csv");
-      final boolean doesFileAlreadyExist = dataFile.exists();
+      dataFile = new File(dataFileDirectory, DATA_FILE_BASE_NAME + DATA_FILE_EXTENSION);
       try
          {
-         writer = new BufferedWriter(new FileWriter(dataFile, true));
-         if (!doesFileAlreadyExist)
-            {
-            write(StringUtils.join(speckConfig.getApiSupport().getDataSampleFieldNames(), ','));
-            }
+         openWriter();
          }
       catch (FileNotFoundException e)
          {
@@ -52,31 +294,349 @@ final class CsvDataSampleStore implements DataSampleStore
          LOG.error("CsvDataSampleStore.CsvDataSampleStore(): IOException while trying to create the BufferedWriter", e);
          System.exit(1);
          }
+
+      if (LOG.isInfoEnabled())
+         {
+         LOG.info("CsvDataSampleStore.CsvDataSampleStore(): asynchronous [" + isAsynchronous + "], flush policy [" + FLUSH_POLICY.name + "], rollover policy [" + ROLLOVER_POLICY.name + "], gzip rolled files [" + WILL_GZIP_ROLLED_FILES + "]");
+         }
+
+      writerExecutor.execute(writerRunnable);
       }
 
+   /**
+    * If the store is asynchronous, queues the given sample for writing.  Returns {@link SaveResult#SUCCESS} once the
+    * sample is queued, so an error which occurs while writing this particular record is counted (see
+    * {@link #getNumFailedWrites()}) rather than reported here.  Returns {@link SaveResult#FAILURE_ERROR} if the store has
+    * been shut down, or the file currently can't be written.  If the store is synchronous, writes the sample, and
+    * returns {@link SaveResult#SUCCESS} only if it was written.
+    */
    @Override
    @NotNull
    public SaveResult save(@NotNull final Speck.DataSample dataSample)
       {
       LOG.debug("CsvDataSampleStore.save(): saving sample " + dataSample.getSampleTime());
+      queueLock.readLock().lock();
       try
          {
-         write(dataSample.toCsv(speckConfig.getApiSupport()));
+         if (!isRunning)
+            {
+            LOG.error("CsvDataSampleStore.save(): Cannot save sample " + dataSample.getSampleTime() + " because the store has been shut down.");
+            }
+         else if (!isAsynchronous)
+            {
+            return writeSynchronously(dataSample);
+            }
+         else if (isWriterFailing)
+            {
+            LOG.error("CsvDataSampleStore.save(): Cannot save sample " + dataSample.getSampleTime() + " because the file can't currently be written.");
+            }
+         else if (queuedLines.offer(dataSample.toCsv(speckConfig.getApiSupport()), QUEUE_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS))
+            {
+            return SaveResult.SUCCESS;
+            }
+         else
+            {
+            LOG.error("CsvDataSampleStore.save(): Timed out waiting for room in the queue.  Failed to save sample " + dataSample.getSampleTime());
+            }
          }
-      catch (IOException e)
+      catch (InterruptedException e)
+         {
+         LOG.error("CsvDataSampleStore.save(): InterruptedException while trying to queue sample " + dataSample.getSampleTime(), e);
+         }
+      finally
+         {
+         queueLock.readLock().unlock();
+         }
+
+      return SaveResult.FAILURE_ERROR;
+      }
+
+   @NotNull
+   private SaveResult writeSynchronously(@NotNull final Speck.DataSample dataSample)
+      {
+      writerLock.lock();
+      try
          {
-         LOG.error("CsvDataSampleStore.save(): IOException while trying to write to the file", e);
+         if (writeLine(dataSample.toCsv(speckConfig.getApiSupport())))
+            {
+            flushIfNecessary(false);
+            return SaveResult.SUCCESS;
+            }
+         LOG.error("CsvDataSampleStore.writeSynchronously(): Failed to write sample " + dataSample.getSampleTime());
          return SaveResult.FAILURE_ERROR;
          }
+      finally
+         {
+         writerLock.unlock();
+         }
+      }
+
+   /**
+    * Returns the number of records which were queued (or, for a synchronous store, saved) but couldn't be written to the file (including any which were
+    * written but lost because the file couldn't be flushed).
+    */
+   int getNumFailedWrites()
+      {
+      return numFailedWrites.get();
+      }
 
-      return SaveResult.SUCCESS;
+   /** Returns <code>true</code> if the most recent attempt to write to (or open) the file failed. */
+   boolean isFailing()
+      {
+      return isWriterFailing;
+      }
+
+   /**
+    * Writes the given line, rolling over first if necessary, and reopening the file first if it couldn't be opened
+    * before.  If the line can't be written, it's counted as a failed write, and the file is closed so that it'll be
+    * reopened before the next line.  Returns <code>true</code> if the line was written.  Must be called while holding
+    * the writer lock.
+    */
+   private boolean writeLine(@NotNull final String line)
+      {
+      try
+         {
+         if (writer == null)
+            {
+            openWriter();
+            }
+         rollOverIfNecessary();
+         write(line);
+         isWriterFailing = false;
+         return true;
+         }
+      catch (IOException e)
+         {
+         numFailedWrites.incrementAndGet();
+         handleWriterFailure("IOException while trying to write to the file", e);
+         return false;
+         }
+      }
+
+   /** Tries to reopen the file after a failure, so that saves are accepted again once the problem has cleared. */
+   private void reopenWriter()
+      {
+      try
+         {
+         openWriter();
+         isWriterFailing = false;
+         LOG.info("CsvDataSampleStore.reopenWriter(): Reopened the data file after an earlier failure");
+         }
+      catch (IOException e)
+         {
+         LOG.debug("CsvDataSampleStore.reopenWriter(): Still unable to open the data file: " + e);
+         }
+      }
+
+   /**
+    * Marks the writer as failing and closes it (losing whatever hadn't been flushed, which is counted as failed writes),
+    * so that the file will be reopened before the next line is written.
+    */
+   private void handleWriterFailure(@NotNull final String message, @NotNull final IOException e)
+      {
+      if (!isWriterFailing)
+         {
+         LOG.error("CsvDataSampleStore.handleWriterFailure(): " + message + ", will try to reopen the file", e);
+         }
+      isWriterFailing = true;
+      numFailedWrites.addAndGet(numUnflushedLines);
+      numUnflushedLines = 0;
+      IOUtils.closeQuietly(writer);
+      writer = null;
+      }
+
+   /**
+    * Opens the writer for the current data file, creating the file (and writing the header) if necessary.  If the header
+    * can't be written, the writer is closed again, so that the file is reopened (and the header written) next time.
+    */
+   private void openWriter() throws IOException
+      {
+      final boolean doesFileAlreadyExist = dataFile.exists() && dataFile.length() > 0;
+      outputStream = new FileOutputStream(dataFile, true);
+      writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+      numUnflushedLines = 0;
+      if (doesFileAlreadyExist)
+         {
+         dayOfCurrentFile = dayFormat.format(new Date(dataFile.lastModified()));
+         sizeOfCurrentFileInBytes = dataFile.length();
+         }
+      else
+         {
+         dayOfCurrentFile = dayFormat.format(new Date());
+         sizeOfCurrentFileInBytes = 0;
+         try
+            {
+            write(StringUtils.join(speckConfig.getApiSupport().getDataSampleFieldNames(), ','));
+            flush();
+            }
+         catch (IOException e)
+            {
+            IOUtils.closeQuietly(writer);
+            writer = null;
+            numUnflushedLines = 0;
+            throw e;
+            }
+         }
       }
 
    private void write(final String str) throws IOException
       {
       writer.write(str);
       writer.newLine();
+      sizeOfCurrentFileInBytes += str.length() + LINE_SEPARATOR_LENGTH;
+      if (numUnflushedLines == 0)
+         {
+         timeOfOldestUnflushedLineMillis = System.currentTimeMillis();
+         }
+      numUnflushedLines++;
+      }
+
+   private long getMillisUntilTimedFlush()
+      {
+      writerLock.lock();
+      try
+         {
+         if (numUnflushedLines > 0 && !FlushPolicy.LINE_COUNT.equals(FLUSH_POLICY))
+            {
+            return Math.max(1, timeOfOldestUnflushedLineMillis + FLUSH_INTERVAL_MILLIS - System.currentTimeMillis());
+            }
+         return FLUSH_INTERVAL_MILLIS;
+         }
+      finally
+         {
+         writerLock.unlock();
+         }
+      }
+
+   private void flushIfNecessary(final boolean isQueueIdle)
+      {
+      if (writer != null && numUnflushedLines > 0)
+         {
+         final boolean isFlushDue;
+         if (FlushPolicy.LINE_COUNT.equals(FLUSH_POLICY))
+            {
+            isFlushDue = isQueueIdle || numUnflushedLines >= FLUSH_LINE_COUNT;
+            }
+         else
+            {
+            isFlushDue = System.currentTimeMillis() - timeOfOldestUnflushedLineMillis >= FLUSH_INTERVAL_MILLIS;
+            }
+
+         if (isFlushDue)
+            {
+            try
+               {
+               flush();
+               }
+            catch (IOException e)
+               {
+               handleWriterFailure("IOException while trying to flush the file", e);
+               }
+            }
+         }
+      }
+
+   private void flush() throws IOException
+      {
       writer.flush();
+      if (FlushPolicy.FSYNC.equals(FLUSH_POLICY))
+         {
+         outputStream.getFD().sync();
+         }
+      numUnflushedLines = 0;
+      }
+
+   private void rollOverIfNecessary() throws IOException
+      {
+      final boolean isRolloverDue;
+      final String rolledFileNameSuffix;
+      switch (ROLLOVER_POLICY)
+         {
+         case DAILY:
+            isRolloverDue = !dayFormat.format(new Date()).equals(dayOfCurrentFile);
+            rolledFileNameSuffix = dayOfCurrentFile;
+            break;
+         case SIZE:
+            isRolloverDue = sizeOfCurrentFileInBytes >= ROLLOVER_SIZE_BYTES;
+            rolledFileNameSuffix = timeFormat.format(new Date());
+            break;
+         default:
+            isRolloverDue = false;
+            rolledFileNameSuffix = null;
+         }
+
+      if (isRolloverDue)
+         {
+         flush();
+         writer.close();
+
+         // if the new file can't be opened below, the next line will try again
+         writer = null;
+
+         // find a name that isn't already taken (which can only happen if the clock has been changed)
+         File rolledFile = new File(dataFile.getParentFile(), DATA_FILE_BASE_NAME + "_" + rolledFileNameSuffix + DATA_FILE_EXTENSION);
+         for (int i = 1; rolledFile.exists() || new File(rolledFile.getPath() + GZIP_FILE_EXTENSION).exists(); i++)
+            {
+            rolledFile = new File(dataFile.getParentFile(), DATA_FILE_BASE_NAME + "_" + rolledFileNameSuffix + "_" + i + DATA_FILE_EXTENSION);
+            }
+
+         if (dataFile.renameTo(rolledFile))
+            {
+            LOG.info("CsvDataSampleStore.rollOverIfNecessary(): Rolled the data file over to [" + rolledFile.getName() + "]");
+            if (WILL_GZIP_ROLLED_FILES)
+               {
+               submitCompressionTask(rolledFile);
+               }
+            }
+         else
+            {
+            LOG.error("CsvDataSampleStore.rollOverIfNecessary(): Failed to rename the data file to [" + rolledFile.getName() + "], will continue appending to the current file");
+            }
+
+         openWriter();
+         }
+      }
+
+   private void submitCompressionTask(@NotNull final File file)
+      {
+      lastCompressionTask = COMPRESSION_TASKS.submit(
+            new Runnable()
+            {
+            @Override
+            public void run()
+               {
+               final File gzipFile = new File(file.getPath() + GZIP_FILE_EXTENSION);
+               InputStream in = null;
+               OutputStream out = null;
+               try
+                  {
+                  in = new BufferedInputStream(new FileInputStream(file));
+                  out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(gzipFile)));
+                  IOUtils.copy(in, out);
+                  out.close();
+                  out = null;
+
+                  if (!file.delete())
+                     {
+                     LOG.error("CsvDataSampleStore.submitCompressionTask(): Failed to delete [" + file.getName() + "] after compressing it");
+                     }
+                  LOG.debug("CsvDataSampleStore.submitCompressionTask(): Compressed [" + file.getName() + "]");
+                  }
+               catch (IOException e)
+                  {
+                  LOG.error("CsvDataSampleStore.submitCompressionTask(): IOException while trying to compress [" + file.getName() + "]", e);
+                  IOUtils.closeQuietly(out);
+                  out = null;
+                  //noinspection ResultOfMethodCallIgnored
+                  gzipFile.delete();
+                  }
+               finally
+                  {
+                  IOUtils.closeQuietly(in);
+                  IOUtils.closeQuietly(out);
+                  }
+               }
+            });
       }
 
    /** Not supported, does nothing. */
@@ -94,6 +654,30 @@ final class CsvDataSampleStore implements DataSampleStore
       return new DataSampleSetImpl(null);
       }
 
+   /** Not supported, so the returned {@link DataSampleSet} will never contain any data samples. */
+   @NotNull
+   @Override
+   public DataSampleSet getNewestDataSamplesToUpload(final int sampledSinceUtcSecs, final int maxNumberRequested)
+      {
+      return new DataSampleSetImpl(null);
+      }
+
+   /** Not supported, so the returned cursor will never contain any data samples. */
+   @NotNull
+   @Override
+   public DataSampleCursor query(final int fromUtcSecs, final int toUtcSecs)
+      {
+      return DataSampleCursor.EMPTY;
+      }
+
+   /** Not supported, so the returned list is always empty. */
+   @NotNull
+   @Override
+   public List<DataSampleRollup> getRollups(@NotNull final DataSampleRollup.Resolution resolution, final int fromUtcSecs, final int toUtcSecs)
+      {
+      return Collections.emptyList();
+      }
+
    /** Not supported, does nothing. */
    @Override
    public void markDataSamplesAsUploaded(@NotNull final DataSampleSet dataSampleSet, final long uploadTimestampUtcMillis)
@@ -108,17 +692,176 @@ final class CsvDataSampleStore implements DataSampleStore
       // not supported
       }
 
+   /** Not supported, so always returns <code>false</code>. */
+   @Override
+   public boolean markDataSamplesAsSpooled(@NotNull final DataSampleSet dataSampleSet)
+      {
+      return false;
+      }
+
+   /** Not supported, so the returned set is always empty. */
+   @NotNull
+   @Override
+   public Set<Integer> getSpooledDataSampleIds()
+      {
+      return Collections.emptySet();
+      }
+
+   /** Not supported, so always returns 0. */
+   @Override
+   public int releaseSpooledDataSamples(@NotNull final Set<Integer> idsToKeep)
+      {
+      return 0;
+      }
+
+   /** Not supported, does nothing. */
+   @Override
+   public void markDataSamplesAsRejected(@NotNull final DataSampleSet dataSampleSet, final int maxNumberOfRejections)
+      {
+      // not supported
+      }
+
+   /** Not supported, does nothing. */
+   @Override
+   public void renewUploadClaim(@NotNull final DataSampleSet dataSampleSet)
+      {
+      // not supported
+      }
+
+   /** Not supported, so the returned {@link DataSampleSet} will never contain any data samples. */
+   @NotNull
+   @Override
+   public DataSampleSet getDataSamplesSavedAfter(final int databaseId, final int maxNumberRequested)
+      {
+      return new DataSampleSetImpl(null);
+      }
+
+   /** Not supported, so always returns 0. */
+   @Override
+   public int getUploadCursor(@NotNull final String mirrorName)
+      {
+      return 0;
+      }
+
+   /** Not supported, so always returns <code>false</code>. */
+   @Override
+   public boolean setUploadCursor(@NotNull final String mirrorName, final int databaseId)
+      {
+      return false;
+      }
+
+   /** Not supported, so always returns 0. */
+   @Override
+   public int getAggregateCursor(@NotNull final DataSampleRollup.Resolution resolution)
+      {
+      return 0;
+      }
+
+   /** Not supported, so always returns <code>false</code>. */
+   @Override
+   public boolean setAggregateCursor(@NotNull final DataSampleRollup.Resolution resolution, final int bucketStartUtcSecs)
+      {
+      return false;
+      }
+
+   /** Not supported, so no samples are ever deleted. */
+   @Override
+   public int deleteUploadedDataSamples(final long uploadedBeforeUtcMillis, final int maxNumberToDelete)
+      {
+      return 0;
+      }
+
+   /** Not supported, so nothing is ever reclaimed. */
+   @Override
+   public long compact()
+      {
+      return 0;
+      }
+
+   /** Saves are never contended, so this always returns 0. */
+   @Override
+   public long getSaveLockWaitMillis()
+      {
+      return 0;
+      }
+
+   /** Not supported, so this always returns 0. */
+   @Override
+   public long getUploadLockWaitMillis()
+      {
+      return 0;
+      }
+
+   /** Not supported, so this always returns 0. */
+   @Override
+   public int getNumDataSamples(@NotNull final DataSampleUploadStatus status)
+      {
+      return 0;
+      }
+
+   /**
+    * Stops accepting new samples, waits (for up to 30 seconds) for the writer thread to write out everything already
+    * queued and close the file, then waits (for up to 60 seconds) for any pending compression to finish.
+    */
    @Override
    public void shutdown()
       {
+      shutdown(Long.MAX_VALUE);
+      }
+
+   /**
+    * Same as {@link #shutdown()}, but stops waiting for the writer and for compression once the given deadline has
+    * passed.  The writer keeps writing out what's queued in the background, but whatever it hasn't written by the time
+    * the process exits is lost from the CSV file (though not from the database).
+    */
+   @Override
+   public void shutdown(final long deadlineUtcMillis)
+      {
+      // once this is cleared, nothing more can be queued (or, for a synchronous store, written), and the writer exits as
+      // soon as it has written what's queued
+      queueLock.writeLock().lock();
       try
          {
-         writer.close();
+         isRunning = false;
+         }
+      finally
+         {
+         queueLock.writeLock().unlock();
+         }
+      try
+         {
+         writerExecutor.shutdown();
+         if (!writerExecutor.awaitTermination(getMillisUntil(deadlineUtcMillis, WRITER_SHUTDOWN_TIMEOUT_MILLIS), TimeUnit.MILLISECONDS))
+            {
+            LOG.error("CsvDataSampleStore.shutdown(): Timed out waiting for the writer to finish");
+            }
+         final Future<?> compressionTask = lastCompressionTask;
+         if (compressionTask != null)
+            {
+            try
+               {
+               compressionTask.get(getMillisUntil(deadlineUtcMillis, COMPRESSION_SHUTDOWN_TIMEOUT_MILLIS), TimeUnit.MILLISECONDS);
+               }
+            catch (TimeoutException e)
+               {
+               LOG.error("CsvDataSampleStore.shutdown(): Timed out waiting for compression to finish");
+               }
+            catch (ExecutionException e)
+               {
+               LOG.error("CsvDataSampleStore.shutdown(): ExecutionException while waiting for compression to finish", e);
+               }
+            }
          LOG.debug("CsvDataSampleStore.shutdown(): Successfully shut down the CsvDataSampleStore");
          }
-      catch (IOException e)
+      catch (InterruptedException e)
          {
-         LOG.error("CsvDataSampleStore.shutdown(): IOException while trying to close the writer", e);
+         LOG.error("CsvDataSampleStore.shutdown(): InterruptedException while waiting for the writer to finish", e);
          }
       }
+
+   /** Returns the number of milliseconds until the given deadline, but no more than the given maximum, and never less than zero. */
+   private static long getMillisUntil(final long deadlineUtcMillis, final long maxMillis)
+      {
+      return Math.max(0, Math.min(maxMillis, deadlineUtcMillis - System.currentTimeMillis()));
+      }
    }
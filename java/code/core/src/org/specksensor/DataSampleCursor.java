@@ -0,0 +1,98 @@
+package org.specksensor;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>
+ * <code>DataSampleCursor</code> is a forward-only {@link Iterator} over {@link Speck.DataSample data samples} which
+ * fetches samples lazily from the underlying store, so that arbitrarily large result sets are never held in memory.
+ * The cursor is closed automatically once it has been exhausted, but callers which stop iterating early must call
+ * {@link #close()} to release the resources held by the cursor.  Removal is not supported.
+ * </p>
+ * <p>
+ * A cursor whose samples couldn't be read (or couldn't all be read) ends early, and then reports that it
+ * {@link #hasFailed() failed}, so that callers can tell a truncated result from a complete one.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+interface DataSampleCursor extends Iterator<Speck.DataSample>
+   {
+   /** A cursor which never contains any data samples. */
+   DataSampleCursor EMPTY = new DataSampleCursor()
+   {
+   @Override
+   public boolean hasNext()
+      {
+      return false;
+      }
+
+   @Override
+   public Speck.DataSample next()
+      {
+      throw new NoSuchElementException();
+      }
+
+   @Override
+   public void remove()
+      {
+      throw new UnsupportedOperationException("Removal is not supported");
+      }
+
+   @Override
+   public boolean hasFailed()
+      {
+      return false;
+      }
+
+   @Override
+   public void close()
+      {
+      // nothing to do
+      }
+   };
+
+   /** A cursor which never contains any data samples, because they couldn't be read. */
+   DataSampleCursor FAILED = new DataSampleCursor()
+   {
+   @Override
+   public boolean hasNext()
+      {
+      return false;
+      }
+
+   @Override
+   public Speck.DataSample next()
+      {
+      throw new NoSuchElementException();
+      }
+
+   @Override
+   public void remove()
+      {
+      throw new UnsupportedOperationException("Removal is not supported");
+      }
+
+   @Override
+   public boolean hasFailed()
+      {
+      return true;
+      }
+
+   @Override
+   public void close()
+      {
+      // nothing to do
+      }
+   };
+
+   /**
+    * Returns <code>true</code> if the cursor ended early (or never started) because the samples couldn't be read, in
+    * which case the samples returned so far are only part of the result.
+    */
+   boolean hasFailed();
+
+   /** Releases the resources held by this cursor.  It's safe to call this more than once. */
+   void close();
+   }
@@ -0,0 +1,138 @@
+package org.specksensor;
+
+import java.io.IOException;
+import java.io.Writer;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>DataSampleExporter</code> exports the {@link Speck.DataSample data samples} stored in a Speck's local database
+ * within a given time range, streaming them to a {@link Writer} as either CSV or JSON.  Samples are read from the
+ * database lazily, so the full range is never held in memory.
+ * </p>
+ * <p>
+ * The exporter opens the Speck's database directly, so it cannot be used while another process (e.g. the gateway) has
+ * the same database open.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class DataSampleExporter
+   {
+   private static final Logger LOG = Logger.getLogger(DataSampleExporter.class);
+
+   private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+   public enum Format
+      {
+         CSV("csv"),
+         JSON("json");
+
+      /** Returns the <code>Format</code> having the given name (case insensitive), or <code>null</code> if there is none. */
+      @Nullable
+      public static Format findByName(@Nullable final String name)
+         {
+         for (final Format format : values())
+            {
+            if (format.name.equalsIgnoreCase(StringUtils.trim(name)))
+               {
+               return format;
+               }
+            }
+         return null;
+         }
+
+      private final String name;
+
+      private Format(final String name)
+         {
+         this.name = name;
+         }
+
+      public String getName()
+         {
+         return name;
+         }
+      }
+
+   @NotNull
+   private final SpeckConfig speckConfig;
+
+   @NotNull
+   private final DataSampleStore dataSampleStore;
+
+   public DataSampleExporter(@NotNull final SpeckConfig speckConfig) throws InitializationException
+      {
+      this.speckConfig = speckConfig;
+      this.dataSampleStore = new DatabaseDataSampleStore(speckConfig);
+      }
+
+   /**
+    * Writes all samples with a sample time within the given range (inclusive) to the given <code>writer</code> in the
+    * given <code>format</code>, in ascending order of sample time, and returns the number of samples written.  CSV
+    * output has the same layout as the <code>data_samples.csv</code> file, and JSON output has the same layout as an
+    * upload.  The writer is flushed, but not closed.  Throws an {@link IOException} if the samples can't be written, or
+    * can't all be read from the database, in which case whatever was written is incomplete.
+    */
+   public int export(final int fromUtcSecs, final int toUtcSecs, @NotNull final Format format, @NotNull final Writer writer) throws IOException
+      {
+      final ApiSupport apiSupport = speckConfig.getApiSupport();
+      int numExported = 0;
+      final DataSampleCursor cursor = dataSampleStore.query(fromUtcSecs, toUtcSecs);
+      try
+         {
+         if (Format.JSON.equals(format))
+            {
+            writer.write("{\"channel_names\":" + DataSampleSetImpl.getChannelNamesAsJson(apiSupport) + ",\"data\":[");
+            while (cursor.hasNext())
+               {
+               if (numExported > 0)
+                  {
+                  writer.write(",");
+                  }
+               writer.write(LINE_SEPARATOR);
+               writer.write(cursor.next().toJsonArray(apiSupport));
+               numExported++;
+               }
+            writer.write("]}");
+            writer.write(LINE_SEPARATOR);
+            }
+         else
+            {
+            writer.write(StringUtils.join(apiSupport.getDataSampleFieldNames(), ','));
+            writer.write(LINE_SEPARATOR);
+            while (cursor.hasNext())
+               {
+               writer.write(cursor.next().toCsv(apiSupport));
+               writer.write(LINE_SEPARATOR);
+               numExported++;
+               }
+            }
+         writer.flush();
+
+         if (cursor.hasFailed())
+            {
+            LOG.error("DataSampleExporter.export(): Failed to read the samples in range [" + fromUtcSecs + ", " + toUtcSecs + "] after exporting [" + numExported + "] of them");
+            throw new IOException("Failed to read the samples from the database (after exporting " + numExported + " of them)");
+            }
+         }
+      finally
+         {
+         cursor.close();
+         }
+
+      if (LOG.isInfoEnabled())
+         {
+         LOG.info("DataSampleExporter.export(): Exported [" + numExported + "] samples in range [" + fromUtcSecs + ", " + toUtcSecs + "] as " + format.getName());
+         }
+      return numExported;
+      }
+
+   public void shutdown()
+      {
+      dataSampleStore.shutdown();
+      }
+   }
@@ -0,0 +1,1293 @@
+package org.specksensor;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.HttpClient;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>DataSampleImporter</code> bulk imports {@link Speck.DataSample data samples} from CSV archives, i.e. the
+ * <code>data_samples.csv</code> files written by the gateway, their rolled-over (and optionally gzipped) siblings, and
+ * backups of them.  The samples are either saved to a Speck's local database, from which the gateway uploads them as
+ * usual, or uploaded straight to the server without touching the database.
+ * </p>
+ * <p>
+ * Each file's header must match the {@link ApiSupport#getDataSampleFieldNames() field names} of the Speck's protocol
+ * version, or the file is skipped.  Plain files are split into chunks of a few megabytes, and gzipped files are read
+ * whole, and the chunks are parsed in parallel, straight from the bytes, into primitive arrays.  A single consumer
+ * drops rows which don't have a valid value for every field, drops samples whose sample time has already been seen
+ * (whichever file it was in), and hands the rest over in large batches, either to
+ * {@link DatabaseDataSampleStore#saveBatch(List) batched saves} (which also skip samples already in the database) or to
+ * a few concurrent uploads over pooled connections.  Parsed rows pass through a bounded queue, so memory use doesn't
+ * depend on the size of the archives.
+ * </p>
+ * <p>
+ * Importing into the database opens the Speck's database directly, so, like the {@link DataSampleExporter}, it cannot
+ * be used while another process (e.g. the gateway) has the same database open.  Uploading directly doesn't use the
+ * database at all.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class DataSampleImporter
+   {
+   private static final Logger LOG = Logger.getLogger(DataSampleImporter.class);
+
+   /** Number of threads parsing chunks.  Defaults to the number of processors. */
+   public static final String PARSER_THREADS_SYSTEM_PROPERTY = "org.specksensor.DataSampleImporter.parser-threads";
+
+   /** Size of the chunks into which plain (not gzipped) files are split for parsing.  Defaults to 8 MB. */
+   public static final String CHUNK_SIZE_MB_SYSTEM_PROPERTY = "org.specksensor.DataSampleImporter.chunk-size-mb";
+
+   /** Number of samples saved in one transaction, or uploaded in one request.  Defaults to 5000. */
+   public static final String BATCH_SIZE_SYSTEM_PROPERTY = "org.specksensor.DataSampleImporter.batch-size";
+
+   /** Number of concurrent uploads (and pooled connections) when uploading directly.  Defaults to 4. */
+   public static final String UPLOAD_CONNECTIONS_SYSTEM_PROPERTY = "org.specksensor.DataSampleImporter.upload-connections";
+
+   private static final int NUM_PARSER_THREADS = Math.max(1, SystemPropertyUtils.getInt(PARSER_THREADS_SYSTEM_PROPERTY, Runtime.getRuntime().availableProcessors()));
+   private static final long CHUNK_SIZE_BYTES = Math.max(1, SystemPropertyUtils.getInt(CHUNK_SIZE_MB_SYSTEM_PROPERTY, 8)) * 1024L * 1024L;
+   private static final int BATCH_SIZE = Math.max(1, SystemPropertyUtils.getInt(BATCH_SIZE_SYSTEM_PROPERTY, 5000));
+   private static final int UPLOAD_CONNECTIONS = Math.max(1, SystemPropertyUtils.getInt(UPLOAD_CONNECTIONS_SYSTEM_PROPERTY, 4));
+
+   /** Number of rows parsed before they're handed to the consumer. */
+   private static final int ROWS_PER_BLOCK = 64 * 1024;
+
+   /** Number of parsed blocks which may wait for the consumer, which bounds the memory used by parsing. */
+   private static final int MAX_QUEUED_BLOCKS = NUM_PARSER_THREADS * 2;
+
+   private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+   /** Lines longer than this can't be samples, and are counted as invalid rows. */
+   private static final int MAX_LINE_LENGTH = 1024;
+
+   private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+   /**
+    * Failed uploads are retried a few times before their samples are counted as failed.  Only uploads which reached
+    * the server (or tried to) count, since the server's circuit breaker is waited out rather than charged as an attempt.
+    */
+   private static final RetryPolicy UPLOAD_RETRY_POLICY = new RetryPolicy(5, 2000, 30000, 0.2);
+
+   /** How often to check whether another upload's trial request has closed the server's circuit breaker again. */
+   private static final long HALF_OPEN_POLL_MILLIS = 250;
+
+   private static final String GZIP_FILE_EXTENSION = ".gz";
+   private static final String CHARSET = "UTF-8";
+
+   /** Receives a snapshot of the import's {@link Progress} about once a second, and once more when it's done. */
+   public interface ProgressListener
+      {
+      void handleProgress(@NotNull Progress progress);
+      }
+
+   /** An inclusive range of sample times, in UTC seconds since the epoch. */
+   public static final class TimeRange
+      {
+      private final int startSampleTime;
+      private final int endSampleTime;
+
+      private TimeRange(final int startSampleTime, final int endSampleTime)
+         {
+         this.startSampleTime = startSampleTime;
+         this.endSampleTime = endSampleTime;
+         }
+
+      public int getStartSampleTime()
+         {
+         return startSampleTime;
+         }
+
+      public int getEndSampleTime()
+         {
+         return endSampleTime;
+         }
+
+      @Override
+      public String toString()
+         {
+         return startSampleTime + "-" + endSampleTime;
+         }
+      }
+
+   /** An immutable snapshot of an import's counters. */
+   public static final class Progress
+      {
+      private final int numFiles;
+      private final int numSkippedFiles;
+      private final long totalBytes;
+      private final long numBytesParsed;
+      private final long numRows;
+      private final long numInvalidRows;
+      private final long numDuplicates;
+      private final long numImported;
+      private final long numRejected;
+      private final long numFailed;
+      @NotNull
+      private final List<TimeRange> failedTimeRanges;
+      private final long elapsedMillis;
+      private final boolean isDone;
+
+      private Progress(final int numFiles,
+                       final int numSkippedFiles,
+                       final long totalBytes,
+                       final long numBytesParsed,
+                       final long numRows,
+                       final long numInvalidRows,
+                       final long numDuplicates,
+                       final long numImported,
+                       final long numRejected,
+                       final long numFailed,
+                       @NotNull final List<TimeRange> failedTimeRanges,
+                       final long elapsedMillis,
+                       final boolean isDone)
+         {
+         this.numFiles = numFiles;
+         this.numSkippedFiles = numSkippedFiles;
+         this.totalBytes = totalBytes;
+         this.numBytesParsed = numBytesParsed;
+         this.numRows = numRows;
+         this.numInvalidRows = numInvalidRows;
+         this.numDuplicates = numDuplicates;
+         this.numImported = numImported;
+         this.numRejected = numRejected;
+         this.numFailed = numFailed;
+         this.failedTimeRanges = failedTimeRanges;
+         this.elapsedMillis = elapsedMillis;
+         this.isDone = isDone;
+         }
+
+      /** Returns the number of files being imported, including those skipped. */
+      public int getNumFiles()
+         {
+         return numFiles;
+         }
+
+      /** Returns the number of files which were skipped because their header doesn't match, or they can't be read. */
+      public int getNumSkippedFiles()
+         {
+         return numSkippedFiles;
+         }
+
+      public long getTotalBytes()
+         {
+         return totalBytes;
+         }
+
+      public long getNumBytesParsed()
+         {
+         return numBytesParsed;
+         }
+
+      /** Returns the number of rows read (other than headers). */
+      public long getNumRows()
+         {
+         return numRows;
+         }
+
+      /** Returns the number of rows which don't have a valid value for every field. */
+      public long getNumInvalidRows()
+         {
+         return numInvalidRows;
+         }
+
+      /** Returns the number of samples dropped because a sample with the same sample time was already imported or saved. */
+      public long getNumDuplicates()
+         {
+         return numDuplicates;
+         }
+
+      /** Returns the number of samples saved to the database, or accepted by the server. */
+      public long getNumImported()
+         {
+         return numImported;
+         }
+
+      /** Returns the number of samples rejected by the server. */
+      public long getNumRejected()
+         {
+         return numRejected;
+         }
+
+      /** Returns the number of samples which couldn't be saved or uploaded because of an error. */
+      public long getNumFailed()
+         {
+         return numFailed;
+         }
+
+      /**
+       * Returns the ranges of sample times, in order, of the samples which couldn't be saved or uploaded because of an
+       * error, so that they can be imported again.  A range may also include samples which were imported.
+       */
+      @NotNull
+      public List<TimeRange> getFailedTimeRanges()
+         {
+         return failedTimeRanges;
+         }
+
+      public long getElapsedMillis()
+         {
+         return elapsedMillis;
+         }
+
+      public boolean isDone()
+         {
+         return isDone;
+         }
+
+      public double getPercentComplete()
+         {
+         return (totalBytes > 0) ? Math.min(100, 100.0 * numBytesParsed / totalBytes) : 100;
+         }
+
+      /** Returns the average number of rows read per second so far. */
+      public long getRowsPerSecond()
+         {
+         return (elapsedMillis > 0) ? numRows * 1000 / elapsedMillis : 0;
+         }
+
+      @Override
+      public String toString()
+         {
+         return String.format("%5.1f%% %,d rows (%,d rows/s): %,d imported, %,d duplicates, %,d invalid, %,d rejected, %,d failed, %d of %d files skipped",
+                              getPercentComplete(),
+                              numRows,
+                              getRowsPerSecond(),
+                              numImported,
+                              numDuplicates,
+                              numInvalidRows,
+                              numRejected,
+                              numFailed,
+                              numSkippedFiles,
+                              numFiles);
+         }
+      }
+
+   /**
+    * Returns the {@link ApiSupport} whose {@link ApiSupport#getDataSampleFieldNames() field names} match the header of
+    * the given CSV file, or <code>null</code> if there isn't one (or the file can't be read).
+    */
+   @Nullable
+   public static ApiSupport detectApiSupport(@NotNull final File file)
+      {
+      final String header = readHeader(file);
+      if (header != null)
+         {
+         for (int version = 1; ApiSupport.isVersionNumberValid(version); version++)
+            {
+            final ApiSupport apiSupport = ApiSupport.getInstance(version);
+            if (header.equals(StringUtils.join(apiSupport.getDataSampleFieldNames(), ',')))
+               {
+               return apiSupport;
+               }
+            }
+         }
+      return null;
+      }
+
+   /** Returns the first line of the given file, or <code>null</code> if it can't be read. */
+   @Nullable
+   private static String readHeader(@NotNull final File file)
+      {
+      InputStream inputStream = null;
+      try
+         {
+         inputStream = openFile(file);
+         final StringBuilder header = new StringBuilder();
+         int b;
+         while ((b = inputStream.read()) >= 0 && b != '\n' && header.length() < MAX_LINE_LENGTH)
+            {
+            if (b != '\r')
+               {
+               header.append((char)b);
+               }
+            }
+         return header.toString().trim();
+         }
+      catch (IOException e)
+         {
+         LOG.error("DataSampleImporter.readHeader(): IOException while trying to read the header of [" + file + "]", e);
+         }
+      finally
+         {
+         IOUtils.closeQuietly(inputStream);
+         }
+      return null;
+      }
+
+   @NotNull
+   private static InputStream openFile(@NotNull final File file) throws IOException
+      {
+      final InputStream inputStream = new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE);
+      return isGzipped(file) ? new GZIPInputStream(inputStream, READ_BUFFER_SIZE) : inputStream;
+      }
+
+   private static boolean isGzipped(@NotNull final File file)
+      {
+      return file.getName().endsWith(GZIP_FILE_EXTENSION);
+      }
+
+   /** The part of a file parsed by one task: a byte range of a plain file, or the whole of a gzipped file. */
+   private static final class Chunk
+      {
+      @NotNull
+      private final File file;
+      private final long start;
+      private final long end;
+
+      private Chunk(@NotNull final File file, final long start, final long end)
+         {
+         this.file = file;
+         this.start = start;
+         this.end = end;
+         }
+
+      private long getLength()
+         {
+         return end - start;
+         }
+      }
+
+   /** Parsed rows, handed from a parser to the consumer. */
+   private static final class Block
+      {
+      private final int[] sampleTimes = new int[ROWS_PER_BLOCK];
+      private final int[] rawParticleCounts = new int[ROWS_PER_BLOCK];
+      private final int[] particleCountsOrConcentrations = new int[ROWS_PER_BLOCK];
+      private final int[] temperatures = new int[ROWS_PER_BLOCK];
+      private final int[] humidities = new int[ROWS_PER_BLOCK];
+      private int size = 0;
+      private long numInvalidRows = 0;
+      private long numBytes = 0;
+      private boolean isEndOfChunk = false;
+
+      private boolean isFull()
+         {
+         return size == ROWS_PER_BLOCK;
+         }
+      }
+
+   /**
+    * The sample times seen so far, as one bit per second, in blocks of 2^16 seconds (about 18 hours), so that a year of
+    * samples takes about 4 MB no matter how many samples there are.
+    */
+   private static final class SampleTimeSet
+      {
+      private static final int BITS_PER_BLOCK_LOG2 = 16;
+      private static final int BLOCK_MASK = (1 << BITS_PER_BLOCK_LOG2) - 1;
+
+      private final Map<Integer, BitSet> blocks = new HashMap<Integer, BitSet>();
+
+      /** Adds the given sample time, returning <code>false</code> if it was already in the set. */
+      private boolean add(final int sampleTime)
+         {
+         final Integer blockNumber = sampleTime >>> BITS_PER_BLOCK_LOG2;
+         BitSet block = blocks.get(blockNumber);
+         if (block == null)
+            {
+            block = new BitSet(1 << BITS_PER_BLOCK_LOG2);
+            blocks.put(blockNumber, block);
+            }
+         final int bit = sampleTime & BLOCK_MASK;
+         if (block.get(bit))
+            {
+            return false;
+            }
+         block.set(bit);
+         return true;
+         }
+      }
+
+   /** Where the consumer sends the samples. */
+   private interface Sink
+      {
+      void write(@NotNull List<Speck.DataSample> dataSamples);
+
+      /** Waits for anything written to be finished, reporting progress while it waits. */
+      void finish();
+      }
+
+   @NotNull
+   private final SpeckConfig speckConfig;
+
+   @NotNull
+   private final ApiSupport apiSupport;
+
+   // the counters of the import in progress
+   private final AtomicLong numBytesParsed = new AtomicLong(0);
+   private final AtomicLong numRows = new AtomicLong(0);
+   private final AtomicLong numInvalidRows = new AtomicLong(0);
+   private final AtomicLong numDuplicates = new AtomicLong(0);
+   private final AtomicLong numImported = new AtomicLong(0);
+   private final AtomicLong numRejected = new AtomicLong(0);
+   private final AtomicLong numFailed = new AtomicLong(0);
+   private final List<TimeRange> failedTimeRanges = new ArrayList<TimeRange>();
+
+   /** Held by an upload while it waits for the server's circuit breaker, and makes the trial request. */
+   private final Object circuitBreakerTrialLock = new Object();
+   private int numFiles = 0;
+   private int numSkippedFiles = 0;
+   private long totalBytes = 0;
+   private long startTimeMillis = 0;
+   private long lastProgressTimeMillis = 0;
+
+   @Nullable
+   private ProgressListener progressListener = null;
+
+   public DataSampleImporter(@NotNull final SpeckConfig speckConfig)
+      {
+      this.speckConfig = speckConfig;
+      this.apiSupport = speckConfig.getApiSupport();
+      }
+
+   /**
+    * Imports the samples in the given CSV files into the Speck's local database, so that the gateway will upload them,
+    * and returns the final {@link Progress}.
+    */
+   @NotNull
+   public synchronized Progress importIntoStore(@NotNull final List<File> files, @Nullable final ProgressListener progressListener) throws InitializationException
+      {
+      final DatabaseDataSampleStore dataSampleStore = new DatabaseDataSampleStore(speckConfig);
+      try
+         {
+         return importFiles(files,
+                            new Sink()
+                            {
+                            @Override
+                            public void write(@NotNull final List<Speck.DataSample> dataSamples)
+                               {
+                               final int numSaved = dataSampleStore.saveBatch(dataSamples);
+                               if (numSaved < 0)
+                                  {
+                                  recordFailure(dataSamples);
+                                  }
+                               else
+                                  {
+                                  numImported.addAndGet(numSaved);
+                                  numDuplicates.addAndGet(dataSamples.size() - numSaved);
+                                  }
+                               }
+
+                            @Override
+                            public void finish()
+                               {
+                               // saves are synchronous, so there's nothing to wait for
+                               }
+                            },
+                            progressListener);
+         }
+      finally
+         {
+         dataSampleStore.shutdown();
+         }
+      }
+
+   /**
+    * Uploads the samples in the given CSV files straight to the server given by the credentials, without saving them
+    * to the database, and returns the final {@link Progress}.
+    */
+   @NotNull
+   public synchronized Progress importAndUpload(@NotNull final List<File> files,
+                                                @NotNull final RemoteStorageCredentials remoteStorageCredentials,
+                                                @Nullable final ProgressListener progressListener)
+      {
+      final CloseableHttpClient httpClient = DataSampleUploadHelper.createPooledHttpClient(UPLOAD_CONNECTIONS);
+      final ExecutorService uploadExecutor = Executors.newFixedThreadPool(UPLOAD_CONNECTIONS, new DaemonThreadFactory(DataSampleImporter.class + ".upload"));
+
+      // limits the batches waiting for an upload thread, so that parsing can't get far ahead of uploading
+      final Semaphore uploadPermits = new Semaphore(UPLOAD_CONNECTIONS * 2);
+      try
+         {
+         return importFiles(files,
+                            new Sink()
+                            {
+                            @Override
+                            public void write(@NotNull final List<Speck.DataSample> dataSamples)
+                               {
+                               uploadPermits.acquireUninterruptibly();
+                               uploadExecutor.execute(
+                                     new Runnable()
+                                     {
+                                     @Override
+                                     public void run()
+                                        {
+                                        try
+                                           {
+                                           upload(dataSamples, remoteStorageCredentials, httpClient);
+                                           }
+                                        finally
+                                           {
+                                           uploadPermits.release();
+                                           }
+                                        }
+                                     });
+                               }
+
+                            @Override
+                            public void finish()
+                               {
+                               uploadExecutor.shutdown();
+                               try
+                                  {
+                                  while (!uploadExecutor.awaitTermination(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS))
+                                     {
+                                     reportProgress(false);
+                                     }
+                                  }
+                               catch (InterruptedException e)
+                                  {
+                                  LOG.error("DataSampleImporter.importAndUpload(): InterruptedException while waiting for the uploads to finish", e);
+                                  Thread.currentThread().interrupt();
+                                  }
+                               }
+                            },
+                            progressListener);
+         }
+      finally
+         {
+         uploadExecutor.shutdownNow();
+         IOUtils.closeQuietly(httpClient);
+         }
+      }
+
+   private void upload(@NotNull final List<Speck.DataSample> dataSamples,
+                       @NotNull final RemoteStorageCredentials remoteStorageCredentials,
+                       @NotNull final HttpClient httpClient)
+      {
+      final DataSampleSet dataSampleSet = new DataSampleSetImpl(new TreeSet<Speck.DataSample>(dataSamples));
+      final String json = dataSampleSet.toJson(apiSupport);
+      final DataSampleSetUploadResponse response = UPLOAD_RETRY_POLICY.execute(
+            "upload [" + dataSamples.size() + "] imported samples",
+            new RetryPolicy.Attempt<DataSampleSetUploadResponse>()
+            {
+            @Nullable
+            @Override
+            public DataSampleSetUploadResponse attempt(final int attemptNumber, final int maxNumberOfAttempts)
+               {
+               final CircuitBreaker circuitBreaker = DataSampleUploadHelper.getCircuitBreaker(remoteStorageCredentials);
+               final DataSampleSetUploadResponse response;
+               if (CircuitBreaker.State.CLOSED.equals(circuitBreaker.getState()))
+                  {
+                  response = DataSampleUploadHelper.upload(remoteStorageCredentials, new StringEntity(json, ContentType.APPLICATION_JSON), httpClient);
+                  }
+               else
+                  {
+                  // uploads which find the server unavailable take turns, so that only one of them makes the trial request
+                  synchronized (circuitBreakerTrialLock)
+                     {
+                     if (!waitForCircuitBreaker(circuitBreaker))
+                        {
+                        return null;
+                        }
+                     response = DataSampleUploadHelper.upload(remoteStorageCredentials, new StringEntity(json, ContentType.APPLICATION_JSON), httpClient);
+                     }
+                  }
+
+               // only retry if the server didn't say what it did with the samples
+               return (response.wasSuccessful() || response.getPayload() != null) ? response : null;
+               }
+            });
+
+      final DataSampleSetUploadResponse.Payload payload = (response == null) ? null : response.getPayload();
+      if (payload == null)
+         {
+         if (response != null && response.wasSuccessful())
+            {
+            numImported.addAndGet(dataSamples.size());
+            }
+         else
+            {
+            LOG.error("DataSampleImporter.upload(): Failed to upload [" + dataSamples.size() + "] samples [" + response + "]");
+            recordFailure(dataSamples);
+            }
+         }
+      else
+         {
+         final int numFailures = (payload.getNumFailedRecords() == null) ? 0 : payload.getNumFailedRecords();
+         numImported.addAndGet(dataSamples.size() - numFailures);
+         numRejected.addAndGet(numFailures);
+         }
+      }
+
+   /**
+    * Sleeps until the given circuit breaker will let a request through, so that a refusal by the breaker, which never
+    * reaches the server, doesn't use up one of an upload's attempts.  Returns <code>false</code> if interrupted while
+    * waiting.
+    */
+   private boolean waitForCircuitBreaker(@NotNull final CircuitBreaker circuitBreaker)
+      {
+      try
+         {
+         while (true)
+            {
+            final CircuitBreaker.State state = circuitBreaker.getState();
+            if (CircuitBreaker.State.CLOSED.equals(state))
+               {
+               return true;
+               }
+            if (CircuitBreaker.State.OPEN.equals(state))
+               {
+               final long millisUntilRetry = circuitBreaker.getMillisUntilRetry();
+               if (millisUntilRetry <= 0)
+                  {
+                  return true;
+                  }
+               Thread.sleep(millisUntilRetry);
+               }
+            else
+               {
+               // another upload is making the trial request
+               Thread.sleep(HALF_OPEN_POLL_MILLIS);
+               }
+            }
+         }
+      catch (InterruptedException e)
+         {
+         LOG.error("DataSampleImporter.waitForCircuitBreaker(): InterruptedException while waiting for the server to become available", e);
+         Thread.currentThread().interrupt();
+         return false;
+         }
+      }
+
+   /** Counts the given samples as failed, and records their range of sample times. */
+   private void recordFailure(@NotNull final List<Speck.DataSample> dataSamples)
+      {
+      numFailed.addAndGet(dataSamples.size());
+
+      int start = Integer.MAX_VALUE;
+      int end = Integer.MIN_VALUE;
+      for (final Speck.DataSample dataSample : dataSamples)
+         {
+         start = Math.min(start, dataSample.getSampleTime());
+         end = Math.max(end, dataSample.getSampleTime());
+         }
+      if (!dataSamples.isEmpty())
+         {
+         synchronized (failedTimeRanges)
+            {
+            failedTimeRanges.add(new TimeRange(start, end));
+            }
+         }
+      }
+
+   /** Returns the failed time ranges recorded so far, in order, with overlapping or adjoining ranges merged. */
+   @NotNull
+   private List<TimeRange> getFailedTimeRanges()
+      {
+      final List<TimeRange> ranges;
+      synchronized (failedTimeRanges)
+         {
+         if (failedTimeRanges.isEmpty())
+            {
+            return Collections.emptyList();
+            }
+         ranges = new ArrayList<TimeRange>(failedTimeRanges);
+         }
+      Collections.sort(ranges,
+                       new Comparator<TimeRange>()
+                       {
+                       @Override
+                       public int compare(final TimeRange range1, final TimeRange range2)
+                          {
+                          return (range1.startSampleTime < range2.startSampleTime) ? -1 : ((range1.startSampleTime == range2.startSampleTime) ? 0 : 1);
+                          }
+                       });
+      final List<TimeRange> mergedRanges = new ArrayList<TimeRange>();
+      TimeRange current = ranges.get(0);
+      for (final TimeRange range : ranges)
+         {
+         if ((long)range.startSampleTime <= (long)current.endSampleTime + 1)
+            {
+            current = new TimeRange(current.startSampleTime, Math.max(current.endSampleTime, range.endSampleTime));
+            }
+         else
+            {
+            mergedRanges.add(current);
+            current = range;
+            }
+         }
+      mergedRanges.add(current);
+      return Collections.unmodifiableList(mergedRanges);
+      }
+
+   @NotNull
+   private Progress importFiles(@NotNull final List<File> files, @NotNull final Sink sink, @Nullable final ProgressListener progressListener)
+      {
+      resetCounters(progressListener);
+
+      final List<Chunk> chunks = createChunks(files);
+      final BlockingQueue<Block> queue = new ArrayBlockingQueue<Block>(MAX_QUEUED_BLOCKS);
+      final ExecutorService parserExecutor = Executors.newFixedThreadPool(NUM_PARSER_THREADS, new DaemonThreadFactory(DataSampleImporter.class + ".parser"));
+      try
+         {
+         for (final Chunk chunk : chunks)
+            {
+            parserExecutor.execute(
+                  new Runnable()
+                  {
+                  @Override
+                  public void run()
+                     {
+                     parse(chunk, queue);
+                     }
+                  });
+            }
+
+         final SampleTimeSet sampleTimes = new SampleTimeSet();
+         List<Speck.DataSample> batch = new ArrayList<Speck.DataSample>(BATCH_SIZE);
+         int numChunksRemaining = chunks.size();
+         while (numChunksRemaining > 0)
+            {
+            final Block block = queue.poll(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            if (block != null)
+               {
+               for (int i = 0; i < block.size; i++)
+                  {
+                  if (sampleTimes.add(block.sampleTimes[i]))
+                     {
+                     batch.add(new DataSample(null,
+                                              block.sampleTimes[i],
+                                              block.rawParticleCounts[i],
+                                              block.particleCountsOrConcentrations[i],
+                                              block.temperatures[i],
+                                              block.humidities[i]));
+                     if (batch.size() >= BATCH_SIZE)
+                        {
+                        sink.write(batch);
+                        batch = new ArrayList<Speck.DataSample>(BATCH_SIZE);
+                        }
+                     }
+                  else
+                     {
+                     numDuplicates.incrementAndGet();
+                     }
+                  }
+               numRows.addAndGet(block.size + block.numInvalidRows);
+               numInvalidRows.addAndGet(block.numInvalidRows);
+               numBytesParsed.addAndGet(block.numBytes);
+               if (block.isEndOfChunk)
+                  {
+                  numChunksRemaining--;
+                  }
+               }
+            reportProgress(false);
+            }
+         if (!batch.isEmpty())
+            {
+            sink.write(batch);
+            }
+         sink.finish();
+         }
+      catch (InterruptedException e)
+         {
+         LOG.error("DataSampleImporter.importFiles(): InterruptedException while importing, so the import is incomplete", e);
+         Thread.currentThread().interrupt();
+         }
+      finally
+         {
+         parserExecutor.shutdownNow();
+         }
+
+      final Progress progress = reportProgress(true);
+      if (LOG.isInfoEnabled())
+         {
+         LOG.info("DataSampleImporter.importFiles(): Import finished in " + progress.getElapsedMillis() + " ms: " + progress);
+         }
+      return progress;
+      }
+
+   private void resetCounters(@Nullable final ProgressListener progressListener)
+      {
+      this.progressListener = progressListener;
+      numBytesParsed.set(0);
+      numRows.set(0);
+      numInvalidRows.set(0);
+      numDuplicates.set(0);
+      numImported.set(0);
+      numRejected.set(0);
+      numFailed.set(0);
+      synchronized (failedTimeRanges)
+         {
+         failedTimeRanges.clear();
+         }
+      numFiles = 0;
+      numSkippedFiles = 0;
+      totalBytes = 0;
+      startTimeMillis = System.currentTimeMillis();
+      lastProgressTimeMillis = startTimeMillis;
+      }
+
+   /** Checks each file's header, and splits the files whose header matches into chunks. */
+   @NotNull
+   private List<Chunk> createChunks(@NotNull final List<File> files)
+      {
+      final String expectedHeader = StringUtils.join(apiSupport.getDataSampleFieldNames(), ',');
+      final List<Chunk> chunks = new ArrayList<Chunk>();
+      for (final File file : files)
+         {
+         numFiles++;
+         final String header = readHeader(file);
+         if (expectedHeader.equals(header))
+            {
+            final long length = file.length();
+            totalBytes += length;
+            if (isGzipped(file))
+               {
+               chunks.add(new Chunk(file, 0, length));
+               }
+            else
+               {
+               for (long start = 0; start < length; start += CHUNK_SIZE_BYTES)
+                  {
+                  chunks.add(new Chunk(file, start, Math.min(length, start + CHUNK_SIZE_BYTES)));
+                  }
+               }
+            }
+         else
+            {
+            numSkippedFiles++;
+            if (header != null)
+               {
+               LOG.error("DataSampleImporter.createChunks(): Skipping [" + file + "], since its header [" + header + "] doesn't match the expected header [" + expectedHeader + "]");
+               }
+            }
+         }
+      return chunks;
+      }
+
+   /**
+    * Parses the rows which start within the given chunk, handing them to the consumer through the given queue in
+    * blocks.  The last block handed over is always marked as the end of the chunk, even if the chunk couldn't be read.
+    */
+   private void parse(@NotNull final Chunk chunk, @NotNull final BlockingQueue<Block> queue)
+      {
+      final boolean isGzipped = isGzipped(chunk.file);
+      final long chunkLength = chunk.getLength();
+      final byte[] expectedHeader = getBytes(StringUtils.join(apiSupport.getDataSampleFieldNames(), ','));
+
+      Block block = new Block();
+      long numBytesReported = 0;
+      CountingInputStream countingInputStream = null;
+      try
+         {
+         countingInputStream = new CountingInputStream(new FileInputStream(chunk.file));
+         InputStream inputStream = countingInputStream;
+         if (isGzipped)
+            {
+            inputStream = new GZIPInputStream(inputStream, READ_BUFFER_SIZE);
+            }
+         else if (chunk.start > 0)
+            {
+            // the line which straddles the start of the chunk belongs to the previous chunk
+            IOUtils.skipFully(inputStream, chunk.start - 1);
+            }
+
+         final byte[] buffer = new byte[READ_BUFFER_SIZE];
+         int lineStart = 0;
+         int bufferEnd = 0;
+         int scanPosition = 0;
+
+         // the offset, relative to the start of the chunk, of the start of the line at lineStart (or -1 while skipping
+         // to the end of a line which isn't ours)
+         long lineOffset = (chunk.start > 0 && !isGzipped) ? -1 : 0;
+         boolean isLineTooLong = false;
+         boolean isEndOfStream = false;
+         while (isGzipped || lineOffset < chunkLength)
+            {
+            // find the end of the current line
+            int newlinePosition = -1;
+            for (int i = scanPosition; i < bufferEnd; i++)
+               {
+               if (buffer[i] == '\n')
+                  {
+                  newlinePosition = i;
+                  break;
+                  }
+               }
+
+            if (newlinePosition < 0 && !isEndOfStream)
+               {
+               // move the partial line to the start of the buffer, and read some more
+               if (lineStart > 0)
+                  {
+                  System.arraycopy(buffer, lineStart, buffer, 0, bufferEnd - lineStart);
+                  bufferEnd -= lineStart;
+                  lineStart = 0;
+                  }
+               if (bufferEnd == buffer.length)
+                  {
+                  // the line doesn't fit in the buffer, so drop what we have of it
+                  isLineTooLong = true;
+                  bufferEnd = 0;
+                  }
+               scanPosition = bufferEnd;
+               final int numRead = inputStream.read(buffer, bufferEnd, buffer.length - bufferEnd);
+               if (numRead < 0)
+                  {
+                  isEndOfStream = true;
+                  }
+               else
+                  {
+                  bufferEnd += numRead;
+                  }
+               }
+            else
+               {
+               final int lineEnd = (newlinePosition < 0) ? bufferEnd : newlinePosition;
+               final int nextLineStart = (newlinePosition < 0) ? bufferEnd : newlinePosition + 1;
+               final long lineLength = (long)(nextLineStart - lineStart) + (isLineTooLong ? READ_BUFFER_SIZE : 0);
+               if (lineOffset >= 0)
+                  {
+                  if (isLineTooLong || lineEnd - lineStart > MAX_LINE_LENGTH)
+                     {
+                     block.numInvalidRows++;
+                     }
+                  else if (lineEnd > lineStart)
+                     {
+                     parseLine(buffer, lineStart, lineEnd, block, expectedHeader);
+                     }
+                  lineOffset += lineLength;
+                  }
+               else
+                  {
+                  // we were positioned one byte before the chunk, so this is the byte count of the end of the line
+                  // which the previous chunk parses
+                  lineOffset = lineLength - 1;
+                  }
+               isLineTooLong = false;
+               lineStart = nextLineStart;
+               scanPosition = nextLineStart;
+
+               if (block.isFull())
+                  {
+                  final long numBytesRead = Math.min(chunkLength, countingInputStream.getByteCount());
+                  block.numBytes = numBytesRead - numBytesReported;
+                  numBytesReported = numBytesRead;
+                  queue.put(block);
+                  block = new Block();
+                  }
+               if (newlinePosition < 0)
+                  {
+                  // that was the last line
+                  break;
+                  }
+               }
+            }
+         }
+      catch (IOException e)
+         {
+         LOG.error("DataSampleImporter.parse(): IOException while trying to read [" + chunk.file + "] from byte [" + chunk.start + "], so the rest of the chunk will be skipped", e);
+         }
+      catch (InterruptedException e)
+         {
+         LOG.error("DataSampleImporter.parse(): InterruptedException while parsing [" + chunk.file + "]", e);
+         Thread.currentThread().interrupt();
+         }
+      catch (RuntimeException e)
+         {
+         LOG.error("DataSampleImporter.parse(): RuntimeException while parsing [" + chunk.file + "] from byte [" + chunk.start + "], so the rest of the chunk will be skipped", e);
+         }
+      finally
+         {
+         IOUtils.closeQuietly(countingInputStream);
+
+         // the consumer waits for the end of every chunk, so it's handed over however parsing ended (unless the import
+         // is being abandoned)
+         if (!Thread.currentThread().isInterrupted())
+            {
+            block.numBytes = chunkLength - numBytesReported;
+            block.isEndOfChunk = true;
+            try
+               {
+               queue.put(block);
+               }
+            catch (InterruptedException e)
+               {
+               LOG.error("DataSampleImporter.parse(): InterruptedException while handing over the last block of [" + chunk.file + "]", e);
+               Thread.currentThread().interrupt();
+               }
+            }
+         }
+      }
+
+   /**
+    * Parses the line between the given positions into the next row of the given block, or counts it as invalid.  Lines
+    * which are a copy of the header (e.g. in files which were concatenated) are ignored.
+    */
+   private void parseLine(@NotNull final byte[] buffer, final int start, final int end, @NotNull final Block block, @NotNull final byte[] expectedHeader)
+      {
+      int lineEnd = end;
+      if (lineEnd > start && buffer[lineEnd - 1] == '\r')
+         {
+         lineEnd--;
+         }
+
+      // headers start with a letter, and samples never do
+      if (lineEnd > start && Character.isLetter(buffer[start]))
+         {
+         if (lineEnd - start != expectedHeader.length || !regionEquals(buffer, start, expectedHeader))
+            {
+            block.numInvalidRows++;
+            }
+         return;
+         }
+
+      final int row = block.size;
+      block.temperatures[row] = 0;
+      int position = start;
+      int fieldIndex = 0;
+      final long[] value = new long[1];
+      while (position <= lineEnd)
+         {
+         int fieldEnd = position;
+         while (fieldEnd < lineEnd && buffer[fieldEnd] != ',')
+            {
+            fieldEnd++;
+            }
+
+         final boolean isValid;
+         switch (fieldIndex)
+            {
+            case 0:
+               isValid = parseInteger(buffer, position, fieldEnd, value) && value[0] > 0;
+               block.sampleTimes[row] = (int)value[0];
+               break;
+            case 1:
+               isValid = parseInteger(buffer, position, fieldEnd, value);
+               block.rawParticleCounts[row] = (int)value[0];
+               break;
+            default:
+               isValid = parseField(fieldIndex, buffer, position, fieldEnd, value, block, row);
+            }
+         if (!isValid)
+            {
+            block.numInvalidRows++;
+            return;
+            }
+
+         fieldIndex++;
+         position = fieldEnd + 1;
+         }
+
+      if (fieldIndex == apiSupport.getDataSampleFieldNames().size())
+         {
+         block.size++;
+         }
+      else
+         {
+         block.numInvalidRows++;
+         }
+      }
+
+   /** Parses the fields after the sample time and raw particle count, whose presence depends on the protocol version. */
+   private boolean parseField(final int fieldIndex,
+                              @NotNull final byte[] buffer,
+                              final int start,
+                              final int end,
+                              @NotNull final long[] value,
+                              @NotNull final Block block,
+                              final int row)
+      {
+      final List<String> fieldNames = apiSupport.getDataSampleFieldNames();
+      if (fieldIndex >= fieldNames.size())
+         {
+         return false;
+         }
+
+      int index = 2;
+      if (apiSupport.hasParticleCount())
+         {
+         if (fieldIndex == index)
+            {
+            final boolean isValid = parseInteger(buffer, start, end, value);
+            block.particleCountsOrConcentrations[row] = (int)value[0];
+            return isValid;
+            }
+         index++;
+         }
+      if (apiSupport.hasParticleConcentration())
+         {
+         if (fieldIndex == index)
+            {
+            // concentrations are stored in tenths
+            final boolean isValid = parseTenths(buffer, start, end, value);
+            block.particleCountsOrConcentrations[row] = (int)value[0];
+            return isValid;
+            }
+         index++;
+         }
+      if (apiSupport.hasTemperatureSensor())
+         {
+         if (fieldIndex == index)
+            {
+            final boolean isValid = parseTenths(buffer, start, end, value);
+            block.temperatures[row] = (int)value[0];
+            return isValid;
+            }
+         index++;
+         }
+
+      // the only field left is the humidity
+      final boolean isValid = parseInteger(buffer, start, end, value);
+      block.humidities[row] = (int)value[0];
+      return isValid;
+      }
+
+   /** Parses an optionally negative integer which fits in an <code>int</code>. */
+   private static boolean parseInteger(@NotNull final byte[] buffer, final int start, final int end, @NotNull final long[] value)
+      {
+      int position = start;
+      final boolean isNegative = position < end && buffer[position] == '-';
+      if (isNegative)
+         {
+         position++;
+         }
+      if (position == end || end - position > 10)
+         {
+         return false;
+         }
+
+      long result = 0;
+      for (; position < end; position++)
+         {
+         final int digit = buffer[position] - '0';
+         if (digit < 0 || digit > 9)
+            {
+            return false;
+            }
+         result = result * 10 + digit;
+         }
+      result = isNegative ? -result : result;
+      value[0] = result;
+      return result >= Integer.MIN_VALUE && result <= Integer.MAX_VALUE;
+      }
+
+   /**
+    * Parses a decimal number (e.g. <code>72.5</code>) as a whole number of tenths (e.g. 725), rounding if need be.
+    * Anything unusual, such as an exponent, is handed to {@link Double#parseDouble(String)}.
+    */
+   private static boolean parseTenths(@NotNull final byte[] buffer, final int start, final int end, @NotNull final long[] value)
+      {
+      final int decimalPointPosition = indexOf(buffer, start, end, (byte)'.');
+      if (decimalPointPosition < 0)
+         {
+         if (parseInteger(buffer, start, end, value))
+            {
+            value[0] *= 10;
+            return value[0] >= Integer.MIN_VALUE && value[0] <= Integer.MAX_VALUE;
+            }
+         }
+      else if (decimalPointPosition > start && end - decimalPointPosition == 2 && Character.isDigit(buffer[decimalPointPosition + 1]) && parseInteger(buffer, start, decimalPointPosition, value))
+         {
+         final int tenths = buffer[decimalPointPosition + 1] - '0';
+         value[0] = value[0] * 10 + ((buffer[start] == '-') ? -tenths : tenths);
+         return value[0] >= Integer.MIN_VALUE && value[0] <= Integer.MAX_VALUE;
+         }
+
+      // fall back to the slow path
+      try
+         {
+         final double d = Double.parseDouble(new String(buffer, start, end - start, CHARSET));
+         value[0] = Math.round(d * 10);
+         return !Double.isNaN(d) && !Double.isInfinite(d) && value[0] >= Integer.MIN_VALUE && value[0] <= Integer.MAX_VALUE;
+         }
+      catch (Exception ignored)
+         {
+         return false;
+         }
+      }
+
+   private static int indexOf(@NotNull final byte[] buffer, final int start, final int end, final byte b)
+      {
+      for (int i = start; i < end; i++)
+         {
+         if (buffer[i] == b)
+            {
+            return i;
+            }
+         }
+      return -1;
+      }
+
+   private static boolean regionEquals(@NotNull final byte[] buffer, final int start, @NotNull final byte[] expected)
+      {
+      return Arrays.equals(Arrays.copyOfRange(buffer, start, start + expected.length), expected);
+      }
+
+   @NotNull
+   private static byte[] getBytes(@NotNull final String s)
+      {
+      try
+         {
+         return s.getBytes(CHARSET);
+         }
+      catch (IOException e)
+         {
+         // UTF-8 is always supported
+         throw new IllegalStateException(e);
+         }
+      }
+
+   /** Hands a snapshot of the counters to the listener, if there is one and it's due one, and returns the snapshot. */
+   @NotNull
+   private Progress reportProgress(final boolean isDone)
+      {
+      final long now = System.currentTimeMillis();
+      final Progress progress = new Progress(numFiles,
+                                             numSkippedFiles,
+                                             totalBytes,
+                                             numBytesParsed.get(),
+                                             numRows.get(),
+                                             numInvalidRows.get(),
+                                             numDuplicates.get(),
+                                             numImported.get(),
+                                             numRejected.get(),
+                                             numFailed.get(),
+                                             getFailedTimeRanges(),
+                                             now - startTimeMillis,
+                                             isDone);
+      if (progressListener != null && (isDone || now - lastProgressTimeMillis >= PROGRESS_INTERVAL_MILLIS))
+         {
+         lastProgressTimeMillis = now;
+         try
+            {
+            progressListener.handleProgress(progress);
+            }
+         catch (Exception e)
+            {
+            LOG.error("DataSampleImporter.reportProgress(): Exception while notifying the progress listener", e);
+            }
+         }
+      return progress;
+      }
+   }
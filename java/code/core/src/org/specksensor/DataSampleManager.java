@@ -2,18 +2,24 @@ package org.specksensor;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.SortedSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
-import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -41,7 +47,18 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
             DELETES_FAILED,
             SAVES_REQUESTED,
             SAVES_SUCCESSFUL,
-            SAVES_FAILED
+            SAVES_FAILED,
+            SAMPLES_PURGED,
+            KILOBYTES_RECLAIMED,
+            SAVE_LOCK_WAIT_MILLIS,
+            UPLOAD_LOCK_WAIT_MILLIS,
+            SAMPLES_AWAITING_UPLOAD,
+            SAMPLES_BEING_UPLOADED,
+            SAMPLES_AWAITING_UPLOAD_RETRY,
+            SAMPLES_UPLOADED_AND_STORED,
+            SAMPLES_QUARANTINED,
+            BATCHES_SPOOLED_FOR_UPLOAD,
+            UPLOAD_LAG_SECONDS
          }
 
       interface Listener
@@ -57,11 +74,168 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
    private static final Logger LOG = Logger.getLogger(DataSampleManager.class);
    private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
 
+   /**
+    * Number of days to keep samples after they've been successfully uploaded.  Samples which haven't been uploaded are
+    * never purged.  A value of zero or less (the default) disables purging, so samples are kept forever.
+    */
+   public static final String RETENTION_DAYS_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.retention-days";
+
+   /** Maximum number of samples deleted per purge transaction. */
+   public static final String RETENTION_BATCH_SIZE_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.retention-batch-size";
+
+   /** Minimum number of hours between compactions of the data store. Compaction only happens after samples are purged. */
+   public static final String COMPACTION_INTERVAL_HOURS_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.compaction-interval-hours";
+
+   /** Number of recently saved samples kept in memory for live views.  See {@link #getRecentDataSamples()}. */
+   public static final String RECENT_SAMPLES_BUFFER_SIZE_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.recent-samples-buffer-size";
+
+   private static final int RETENTION_DAYS = SystemPropertyUtils.getInt(RETENTION_DAYS_SYSTEM_PROPERTY, 0);
+   private static final int RETENTION_BATCH_SIZE = Math.max(1, SystemPropertyUtils.getInt(RETENTION_BATCH_SIZE_SYSTEM_PROPERTY, 500));
+   private static final int COMPACTION_INTERVAL_HOURS = Math.max(1, SystemPropertyUtils.getInt(COMPACTION_INTERVAL_HOURS_SYSTEM_PROPERTY, 24));
+   /**
+    * Number of seconds {@link #shutdown()} allows for running tasks and in-flight uploads to finish and for the CSV file
+    * to be flushed.  Uploads which haven't finished by then are rolled back, so that they're uploaded again next time.
+    */
+   public static final String SHUTDOWN_DEADLINE_SECONDS_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.shutdown-deadline-seconds";
+
+   /**
+    * Maximum number of seconds to wait before retrying after consecutive upload failures.  The wait starts at 5 seconds
+    * and doubles with each consecutive failure, up to this maximum.
+    */
+   public static final String UPLOAD_RETRY_MAX_DELAY_SECONDS_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.upload-retry-max-delay-seconds";
+
+   /**
+    * Number of times the server may reject a sample before it's quarantined, i.e. no longer uploaded.  When the server
+    * rejects some (or all) of the samples in an upload, the set is split in half and each half is uploaded again,
+    * recursively, until the rejected samples have been isolated, so only the offending samples ever count towards this
+    * limit.
+    */
+   public static final String QUARANTINE_AFTER_REJECTIONS_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.quarantine-after-rejections";
+
+   /**
+    * Samples taken within this many seconds are uploaded in the {@link UploadRateLimiter.Lane#REAL_TIME real-time} lane,
+    * newest first, alongside (and ahead of) the backlog of older samples, which is uploaded oldest first.  Defaults to
+    * 300, and 0 turns the real-time lane off, so that all samples are uploaded oldest first.
+    */
+   public static final String REAL_TIME_WINDOW_SECONDS_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.real-time-window-seconds";
+
+   /** Number of seconds the real-time lane waits before looking for fresh samples again, once it has caught up.  Defaults to 5. */
+   public static final String REAL_TIME_UPLOAD_INTERVAL_SECONDS_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.real-time-upload-interval-seconds";
+
+   /**
+    * What gets uploaded: <code>raw</code> (the default) uploads every sample, and <code>aggregate</code> uploads the
+    * {@link DataSampleRollup rollups} of complete buckets instead (see {@link AggregateUpload}), keeping the samples in
+    * the store until they're synced during the {@link #RAW_SYNC_SCHEDULE_SYSTEM_PROPERTY raw sync schedule}.
+    */
+   public static final String UPLOAD_MODE_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.upload-mode";
+
+   /** Size, in seconds, of the buckets uploaded in aggregate mode: either 60 (the default) or 3600. */
+   public static final String AGGREGATE_WINDOW_SECONDS_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.aggregate-window-seconds";
+
+   /**
+    * Local times of day during which samples are uploaded in aggregate mode, e.g. <code>01:00-05:00</code>, when
+    * bandwidth is cheap.  The upload resumes where it left off at the start of each window.  Outside the windows (or
+    * always, if no windows are given), samples stay in the store.  See {@link AggregateUpload.RawSyncSchedule}.
+    */
+   public static final String RAW_SYNC_SCHEDULE_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.raw-sync-schedule";
+
+   public enum UploadMode
+      {
+         RAW("raw"),
+         AGGREGATE("aggregate");
+
+      @NotNull
+      private static UploadMode findByName(@Nullable final String name, @NotNull final UploadMode defaultUploadMode)
+         {
+         for (final UploadMode uploadMode : values())
+            {
+            if (uploadMode.name.equalsIgnoreCase(StringUtils.trim(name)))
+               {
+               return uploadMode;
+               }
+            }
+         return defaultUploadMode;
+         }
+
+      private final String name;
+
+      private UploadMode(final String name)
+         {
+         this.name = name;
+         }
+
+      public String getName()
+         {
+         return name;
+         }
+      }
+
+   private static final int RECENT_SAMPLES_BUFFER_SIZE = Math.max(1, SystemPropertyUtils.getInt(RECENT_SAMPLES_BUFFER_SIZE_SYSTEM_PROPERTY, 3600));
+   private static final int SHUTDOWN_DEADLINE_SECONDS = Math.max(0, SystemPropertyUtils.getInt(SHUTDOWN_DEADLINE_SECONDS_SYSTEM_PROPERTY, 30));
+   private static final int QUARANTINE_AFTER_REJECTIONS = Math.max(1, SystemPropertyUtils.getInt(QUARANTINE_AFTER_REJECTIONS_SYSTEM_PROPERTY, 3));
+   private static final int REAL_TIME_WINDOW_SECONDS = Math.max(0, SystemPropertyUtils.getInt(REAL_TIME_WINDOW_SECONDS_SYSTEM_PROPERTY, 300));
+   private static final int REAL_TIME_UPLOAD_INTERVAL_SECONDS = Math.max(1, SystemPropertyUtils.getInt(REAL_TIME_UPLOAD_INTERVAL_SECONDS_SYSTEM_PROPERTY, 5));
+   private static final UploadMode UPLOAD_MODE = UploadMode.findByName(System.getProperty(UPLOAD_MODE_SYSTEM_PROPERTY), UploadMode.RAW);
+   private static final DataSampleRollup.Resolution AGGREGATE_RESOLUTION;
+   private static final AggregateUpload.RawSyncSchedule RAW_SYNC_SCHEDULE = new AggregateUpload.RawSyncSchedule(System.getProperty(RAW_SYNC_SCHEDULE_SYSTEM_PROPERTY));
+
+   static
+      {
+      final int aggregateWindowSeconds = SystemPropertyUtils.getInt(AGGREGATE_WINDOW_SECONDS_SYSTEM_PROPERTY, DataSampleRollup.Resolution.ONE_MINUTE.getSeconds());
+      final DataSampleRollup.Resolution resolution = DataSampleRollup.Resolution.findBySeconds(aggregateWindowSeconds);
+      if (resolution == null)
+         {
+         LOG.error("DataSampleManager: Invalid aggregate window of [" + aggregateWindowSeconds + "] seconds, which must be 60 or 3600.  Defaulting to 60.");
+         AGGREGATE_RESOLUTION = DataSampleRollup.Resolution.ONE_MINUTE;
+         }
+      else
+         {
+         AGGREGATE_RESOLUTION = resolution;
+         }
+
+      if (UPLOAD_MODE == UploadMode.AGGREGATE)
+         {
+         final String msg = "DataSampleManager: uploading " + AGGREGATE_RESOLUTION.getSeconds() + " second aggregates, and " +
+                            (RAW_SYNC_SCHEDULE.isEmpty() ? "keeping samples local." : "syncing samples during [" + System.getProperty(RAW_SYNC_SCHEDULE_SYSTEM_PROPERTY) + "].");
+         LOG.info(msg);
+         CONSOLE_LOG.info(msg);
+         }
+      }
+
+   /**
+    * Shared by all managers, so that the number of threads doesn't grow with the number of connected Specks.  Each
+    * manager's download, upload (one per lane), and purge tasks never run concurrently with themselves, so a manager uses
+    * at most four workers at a time, plus one per upload mirror.
+    */
+   private static final ExecutionRuntime.Component TASKS = ExecutionRuntime.getInstance().getComponent("DataSampleManager", Integer.MAX_VALUE);
+
+   private static final RetryPolicy UPLOAD_RETRY_POLICY = new RetryPolicy(Integer.MAX_VALUE, 5000, Math.max(5, SystemPropertyUtils.getInt(UPLOAD_RETRY_MAX_DELAY_SECONDS_SYSTEM_PROPERTY, 120)) * 1000L, 0.2);
+   private static final RetryPolicy DOWNLOAD_RETRY_POLICY = new RetryPolicy(Integer.MAX_VALUE, 5000, 60000, 0.2);
+
+   private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+   private static final long MILLIS_PER_HOUR = 60L * 60L * 1000L;
+
+   /** Pause between purge batches, giving saves a chance to get at the data store in between. */
+   private static final int DELAY_IN_MILLIS_BETWEEN_PURGE_BATCHES = 1000;
+
+   /** Delay between purge passes, once a pass has found no more samples to purge. */
+   private static final int DELAY_IN_MINUTES_BETWEEN_PURGE_PASSES = 60;
+
    @Nullable
    private final DataSampleDownloader dataSampleDownloader;
 
    @NotNull
-   private final DataSampleStore dataSampleStore;
+   private final SpeckConfig speckConfig;
+
+   @NotNull
+   private final ApiSupport apiSupport;
+
+   /** Holds claimed batches until they're acknowledged, or <code>null</code> if spooling is disabled. */
+   @Nullable
+   private final UploadSpool uploadSpool;
+
+   @NotNull
+   private final MultiDestinationDataSampleStore dataSampleStore;
 
    @Nullable
    private DataSampleUploader dataSampleUploader = null;
@@ -72,12 +246,87 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
    @NotNull
    private final Lock lock = new ReentrantLock();
 
+   /** This manager's tasks which are scheduled or running on the shared {@link #TASKS}, so they can be cancelled at shutdown. */
+   @NotNull
+   private final Set<ExecutionRuntime.ScheduledTask> scheduledTasks = new HashSet<ExecutionRuntime.ScheduledTask>();
+
+   /** Tasks hold the read lock while they run, so that shutdown can wait for running tasks by taking the write lock. */
+   @NotNull
+   private final ReadWriteLock taskLock = new ReentrantReadWriteLock();
+
+   private volatile boolean isShuttingDown = false;
+
+   /**
+    * Set by {@link #shutdown()} once it has stopped waiting for uploads, just before it rolls back the unfinished ones
+    * and closes the store, so that the results of uploads which finish after that are ignored.
+    */
+   private volatile boolean hasStoppedHandlingUploads = false;
+
+   /** Additional servers which this Speck's samples are uploaded to, each at its own pace. */
+   @NotNull
+   private final List<UploadMirror> uploadMirrors = new CopyOnWriteArrayList<UploadMirror>();
+
+   /** Sets which have been handed to the uploader, but whose upload hasn't finished yet.  Guarded by itself. */
+   @NotNull
+   private final Set<DataSampleSet> uploadsInFlight = new HashSet<DataSampleSet>();
+
+   /**
+    * Sets claimed by the real-time lane, until their upload gets a response, so that the response can be recognized
+    * and the lane's next upload scheduled.  Guarded by itself.
+    */
+   @NotNull
+   private final Set<DataSampleSet> realTimeUploadsInFlight = new HashSet<DataSampleSet>();
+
+   /**
+    * Halves of sets which the server partially rejected, waiting to be uploaded before any new samples are.  The samples
+    * in them stay {@link DataSampleUploadStatus#IN_PROGRESS IN_PROGRESS} in the meantime.  Guarded by itself.
+    */
+   @NotNull
+   private final Deque<DataSampleSet> bisectedSetsAwaitingUpload = new ArrayDeque<DataSampleSet>();
+
+   /**
+    * Halves which have been submitted for upload, so that their response can be recognized.  Guarded by
+    * {@link #bisectedSetsAwaitingUpload}.
+    */
+   @NotNull
+   private final Set<DataSampleSet> bisectedSetsBeingUploaded = new HashSet<DataSampleSet>();
+
+   /** Spooled batches whose upload failed, waiting to be retried from the spool.  Guarded by itself. */
    @NotNull
-   private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(10, new DaemonThreadFactory(this.getClass() + ".executor"));
+   private final Deque<UploadSpool.Batch> spooledBatchesAwaitingRetry = new ArrayDeque<UploadSpool.Batch>();
+
+   /** Only ever accessed by the upload task, which never runs concurrently with itself. */
+   private boolean hasRecoveredUploadSpool = false;
 
    @NotNull
    private final StatisticsImpl statistics = new StatisticsImpl();
 
+   /** Only ever accessed by the download task, which never runs concurrently with itself. */
+   private int numConsecutiveDownloadFailures = 0;
+
+   /** Number of uploads which have failed since the last successful one. */
+   @NotNull
+   private final AtomicInteger numConsecutiveUploadFailures = new AtomicInteger(0);
+
+   /** Sample time of the newest sample successfully uploaded, or 0 if none have been uploaded yet. */
+   private volatile int newestUploadedSampleTimeUtcSecs = 0;
+
+   /** Uploads rollups in aggregate mode, or <code>null</code> in raw mode (or until the uploader is set). */
+   @Nullable
+   private volatile AggregateUpload aggregateUpload = null;
+
+   /**
+    * Time before which all of the Speck's samples are in the store: the time of the newest sample downloaded, or the
+    * time the Speck last said it had no more samples (less {@link #getDownloadMarkLagSecs() a margin}, since a sample
+    * being logged at that moment, or stamped by a Speck whose clock is behind ours, may still arrive), whichever is
+    * later.  Only written to by the download task.
+    */
+   private volatile int downloadedThroughUtcSecs = 0;
+
+   /** Only ever written to by the download task, which never runs concurrently with itself. */
+   @NotNull
+   private final RecentDataSampleBuffer recentDataSamples = new RecentDataSampleBuffer(RECENT_SAMPLES_BUFFER_SIZE);
+
    @NotNull
    private final Runnable downloadDataSampleRunnable =
          new Runnable()
@@ -92,7 +341,7 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
                // try to download a data sample
                final DataSampleDownloader.DownloadResponse downloadResponse = dataSampleDownloader.downloadDataSample();
 
-               final int delayInSecondsUntilNextDataSampleRequest;
+               final long delayInMillisUntilNextDataSampleRequest;
                final DataSampleDownloader.DownloadResponse.Status status = downloadResponse.getStatus();
                switch (status)
                   {
@@ -121,6 +370,8 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
                         if (saveResult.wasSuccessful())
                            {
                            statistics.incrementSavesSuccessful();
+                           recentDataSamples.add(dataSample);
+                           downloadedThroughUtcSecs = Math.max(downloadedThroughUtcSecs, dataSample.getSampleTime());
 
                            LOG.debug("DataSampleManager.downloadDataSampleRunnable.run(): Saved data sample [" + dataSample.getSampleTime() + "]");
 
@@ -161,16 +412,19 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
                            CONSOLE_LOG.error("Failed to save data sample " + dataSample.getSampleTime());
                            }
                         }
-                     delayInSecondsUntilNextDataSampleRequest = 0;
+                     numConsecutiveDownloadFailures = 0;
+                     delayInMillisUntilNextDataSampleRequest = 0;
 
                      break;
                   case NO_DATA_AVAILABLE:
 
-                     delayInSecondsUntilNextDataSampleRequest = 30;
+                     numConsecutiveDownloadFailures = 0;
+                     downloadedThroughUtcSecs = Math.max(downloadedThroughUtcSecs, (int)(System.currentTimeMillis() / 1000) - getDownloadMarkLagSecs());
+                     delayInMillisUntilNextDataSampleRequest = 30 * 1000;
 
                      if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
                         {
-                        final String message = "No data currently available.  Will try again in " + delayInSecondsUntilNextDataSampleRequest + " seconds.";
+                        final String message = "No data currently available.  Will try again in " + (delayInMillisUntilNextDataSampleRequest / 1000) + " seconds.";
                         LOG.info("DataSampleManager.downloadDataSampleRunnable.run(): " + message);
                         CONSOLE_LOG.info(message);
 
@@ -184,22 +438,24 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
                      statistics.incrementDownloadsRequested();
                      statistics.incrementDownloadsFailed();
 
-                     delayInSecondsUntilNextDataSampleRequest = 5;
+                     // back off while the device keeps failing
+                     numConsecutiveDownloadFailures++;
+                     delayInMillisUntilNextDataSampleRequest = DOWNLOAD_RETRY_POLICY.getDelayMillis(numConsecutiveDownloadFailures);
 
                      LOG.error("DataSampleManager.downloadDataSampleRunnable.run(): Download failed due to a communication failure.");
-                     CONSOLE_LOG.error("Data sample download failed due to a communication error.  Will try again in " + delayInSecondsUntilNextDataSampleRequest + " seconds.");
+                     CONSOLE_LOG.error("Data sample download failed due to a communication error.  Will try again in " + (delayInMillisUntilNextDataSampleRequest / 1000) + " seconds.");
 
                      break;
                   default:
-                     delayInSecondsUntilNextDataSampleRequest = -1;
+                     delayInMillisUntilNextDataSampleRequest = -1;
                      LOG.error("DataSampleManager.downloadDataSampleRunnable.run(): Unexpected DownloadResponse.Status: " + status);
 
                      break;
                   }
 
-               if (delayInSecondsUntilNextDataSampleRequest >= 0)
+               if (delayInMillisUntilNextDataSampleRequest >= 0)
                   {
-                  scheduleDataSampleDownload(delayInSecondsUntilNextDataSampleRequest, TimeUnit.SECONDS);
+                  scheduleDataSampleDownload(delayInMillisUntilNextDataSampleRequest, TimeUnit.MILLISECONDS);
                   }
                }
             }
@@ -216,13 +472,21 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
                {
                CONSOLE_LOG.info("Uploading data samples...");
 
-               final DataSampleSet dataSampleSet = dataSampleStore.getDataSamplesToUpload(DataSampleSet.DEFAULT_SIZE);
+               if (!hasRecoveredUploadSpool)
+                  {
+                  recoverUploadSpool();
+                  hasRecoveredUploadSpool = true;
+                  }
+
+               final DataSampleSet dataSampleSet = getNextDataSampleSetToUpload();
 
                if (dataSampleSet.isEmpty())
                   {
                   if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
                      {
-                     final String msg = "No samples found which need to be uploaded.  Will retry in 15 seconds.";
+                     final String msg = isRawUploadPaused() ?
+                                        "Samples are being kept local until the next raw sync window.  Will check again in 15 seconds." :
+                                        "No samples found which need to be uploaded.  Will retry in 15 seconds.";
                      LOG.info("DataSampleManager.uploadDataSampleRunnable(): " + msg);
                      CONSOLE_LOG.info(msg);
                      }
@@ -238,21 +502,112 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
                      CONSOLE_LOG.info(msg);
                      }
 
-                  dataSampleUploader.submitUploadDataSampleSetTask(dataSampleSet);
+                  submitUpload(dataSampleSet);
+                  }
+               }
+            }
+         };
+
+   /**
+    * Uploads the freshest samples, newest first, so that the latest readings reach the server right away, even while
+    * the upload runnable is still working through a backlog of older samples.  Samples whose upload fails are marked
+    * as failed, and left to the backlog.
+    */
+   @NotNull
+   private final Runnable realTimeUploadDataSampleRunnable =
+         new Runnable()
+         {
+         @Override
+         public void run()
+            {
+            if (dataSampleUploader != null)
+               {
+               final int sampledSinceUtcSecs = (int)(System.currentTimeMillis() / 1000) - REAL_TIME_WINDOW_SECONDS;
+               final DataSampleSet dataSampleSet = dataSampleStore.getNewestDataSamplesToUpload(sampledSinceUtcSecs, DataSampleSet.DEFAULT_SIZE);
+               if (dataSampleSet.isEmpty())
+                  {
+                  scheduleRealTimeDataSampleUpload(TimeUnit.SECONDS.toMillis(REAL_TIME_UPLOAD_INTERVAL_SECONDS));
+                  }
+               else
+                  {
+                  if (LOG.isDebugEnabled())
+                     {
+                     LOG.debug("DataSampleManager.realTimeUploadDataSampleRunnable(): Found " + dataSampleSet.size() + " fresh samples to upload.");
+                     }
+                  synchronized (realTimeUploadsInFlight)
+                     {
+                     realTimeUploadsInFlight.add(dataSampleSet);
+                     }
+                  submitUpload(dataSampleSet);
+                  }
+               }
+            }
+         };
+
+   /** Only accessed by the purge runnable, which never runs concurrently with itself. */
+   private int numSamplesPurgedSinceLastCompaction = 0;
+   private long timeOfLastCompactionMillis = 0;
+
+   @NotNull
+   private final Runnable purgeUploadedDataSamplesRunnable =
+         new Runnable()
+         {
+         @Override
+         public void run()
+            {
+            final long uploadedBeforeUtcMillis = System.currentTimeMillis() - RETENTION_DAYS * MILLIS_PER_DAY;
+            final int numPurged = dataSampleStore.deleteUploadedDataSamples(uploadedBeforeUtcMillis, RETENTION_BATCH_SIZE);
+            if (numPurged > 0)
+               {
+               statistics.incrementSamplesPurged(numPurged);
+               numSamplesPurgedSinceLastCompaction += numPurged;
+               }
+
+            if (numPurged >= RETENTION_BATCH_SIZE)
+               {
+               // there are probably more to purge, so do the next batch after a short pause
+               schedulePurgeOfUploadedDataSamples(DELAY_IN_MILLIS_BETWEEN_PURGE_BATCHES, TimeUnit.MILLISECONDS);
+               }
+            else
+               {
+               if (LOG.isInfoEnabled() && numSamplesPurgedSinceLastCompaction > 0)
+                  {
+                  LOG.info("DataSampleManager.purgeUploadedDataSamplesRunnable.run(): Purged [" + numSamplesPurgedSinceLastCompaction + "] samples uploaded more than " + RETENTION_DAYS + " day(s) ago.");
+                  }
 
-                  // update statistics
-                  statistics.incrementFileUploadsRequested();
-                  statistics.incrementSampleUploadsRequested(dataSampleSet.size());
+               // compact the data store, but only if we've purged something and it's been long enough since the last time
+               final long now = System.currentTimeMillis();
+               if (numSamplesPurgedSinceLastCompaction > 0 && now - timeOfLastCompactionMillis >= COMPACTION_INTERVAL_HOURS * MILLIS_PER_HOUR)
+                  {
+                  final long bytesReclaimed = dataSampleStore.compact();
+                  statistics.incrementKilobytesReclaimed((int)(bytesReclaimed / 1024));
+                  numSamplesPurgedSinceLastCompaction = 0;
+                  timeOfLastCompactionMillis = now;
                   }
+
+               schedulePurgeOfUploadedDataSamples(DELAY_IN_MINUTES_BETWEEN_PURGE_PASSES, TimeUnit.MINUTES);
                }
             }
          };
 
+   /**
+    * Starts preparing the local data store (i.e. booting the database engine) on a background thread, and returns
+    * immediately.  Calling this before scanning for a Speck lets the database start up while the scan is underway,
+    * rather than after.  Calling this is optional.
+    */
+   public static void prepareDataStoreInBackground()
+      {
+      DatabaseDataSampleStore.bootEngineInBackground();
+      }
+
    public DataSampleManager(@NotNull final SpeckConfig speckConfig,
                             @Nullable final DataSampleDownloader dataSampleDownloader) throws InitializationException
       {
       this.dataSampleDownloader = dataSampleDownloader;
       this.dataSampleStore = new MultiDestinationDataSampleStore(speckConfig);
+      this.speckConfig = speckConfig;
+      this.apiSupport = speckConfig.getApiSupport();
+      this.uploadSpool = UploadSpool.IS_ENABLED ? new UploadSpool(UploadSpool.getDirectory(speckConfig)) : null;
       }
 
    /**
@@ -276,11 +631,18 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
             // register self as a listener to the uploader so we can get notified when uploads are complete
             this.dataSampleUploader.addEventListener(this);
 
+            if (UPLOAD_MODE == UploadMode.AGGREGATE)
+               {
+               aggregateUpload = new AggregateUpload(AGGREGATE_RESOLUTION, dataSampleStore, dataSampleUploader);
+               }
+
             // make sure any existing downloaded samples are scheduled for upload, but only if we're already running. If
             // we're not, then don't worry about it since startup() will handle this itself.
             if (isRunning)
                {
                scheduleDataSampleUpload(0, TimeUnit.SECONDS);
+               scheduleRealTimeDataSampleUpload(0);
+               scheduleAggregateUpload(0);
                }
 
             return true;
@@ -294,6 +656,81 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
       return dataSampleUploader != null;
       }
 
+   /**
+    * Adds an upload mirror: an additional server which this Speck's samples are uploaded to, independently of the
+    * primary upload and of any other mirrors.  The mirror's progress is saved under the given name, so a mirror which is
+    * added again (e.g. after a restart) with the same name picks up where it left off.  Returns <code>true</code> if the
+    * mirror was added, <code>false</code> if a mirror with the same name has already been added.
+    *
+    * @see UploadMirror
+    */
+   public boolean addUploadMirror(@NotNull final String name, @NotNull final RemoteStorageCredentials remoteStorageCredentials)
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (hasUploadMirror(name))
+            {
+            LOG.warn("DataSampleManager.addUploadMirror(): A mirror named [" + name + "] has already been added.");
+            return false;
+            }
+
+         final UploadMirror uploadMirror = new UploadMirror(name, dataSampleStore, new DataSampleUploader(speckConfig, remoteStorageCredentials, name));
+         uploadMirror.getDataSampleUploader().addEventListener(
+               new DataSampleUploader.EventListener()
+               {
+               @Override
+               public void handleDataSamplesUploadStartingAfterDelayEvent(@NotNull final DataSampleSet dataSampleSet)
+                  {
+                  // mirrors track their progress with a cursor rather than by claiming samples, so there's nothing to renew
+                  }
+
+               @Override
+               public void handleDataSamplesUploadedEvent(@NotNull final DataSampleSet dataSampleSet, @Nullable final DataSampleSetUploadResponse uploadResponse)
+                  {
+                  // handle the response like any other task, so it's ignored once shutdown is underway
+                  new ManagedTask(
+                        new Runnable()
+                        {
+                        @Override
+                        public void run()
+                           {
+                           scheduleMirrorUpload(uploadMirror, uploadMirror.handleUploadResponse(dataSampleSet, uploadResponse));
+                           }
+                        }).run();
+                  }
+               });
+         uploadMirrors.add(uploadMirror);
+
+         final String msg = "Samples will also be uploaded to mirror [" + name + "] at [" + DataSampleUploadHelper.getUploadUrl(remoteStorageCredentials) + "]";
+         LOG.info("DataSampleManager.addUploadMirror(): " + msg);
+         CONSOLE_LOG.info(msg);
+
+         // if we're not running yet, startup() will get the mirror going
+         if (isRunning)
+            {
+            scheduleMirrorUpload(uploadMirror, 0);
+            }
+         return true;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   public boolean hasUploadMirror(@NotNull final String name)
+      {
+      for (final UploadMirror uploadMirror : uploadMirrors)
+         {
+         if (uploadMirror.getName().equals(name))
+            {
+            return true;
+            }
+         }
+      return false;
+      }
+
    public void startup()
       {
       lock.lock();  // block until condition holds
@@ -303,14 +740,33 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
             {
             isRunning = true;
 
-            // Clean up samples in the data store, in case the program was terminated while an upload was in progress
-            dataSampleStore.resetStateOfUploadingSamples();
+            // There's no need to reset samples left in progress by an upload which was interrupted when the program was
+            // terminated, since the store's claims on them expire, after which they're handed out for upload again.
 
             // schedule the command to upload downloaded data samples, which will reschedule itself upon completion
             scheduleDataSampleUpload(0, TimeUnit.SECONDS);
+            scheduleRealTimeDataSampleUpload(0);
+            scheduleAggregateUpload(0);
+            for (final UploadMirror uploadMirror : uploadMirrors)
+               {
+               scheduleMirrorUpload(uploadMirror, 0);
+               }
 
             // schedule the command to get available data samples, which will reschedule itself upon completion
             scheduleDataSampleDownload(0, TimeUnit.SECONDS);
+
+            // schedule the command to purge old, uploaded data samples (if enabled), which will reschedule itself
+            // upon completion.  We wait a bit so that it doesn't compete with the initial downloads and uploads.
+            if (RETENTION_DAYS > 0)
+               {
+               if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
+                  {
+                  final String msg = "Samples will be purged " + RETENTION_DAYS + " day(s) after being uploaded.";
+                  LOG.info("DataSampleManager.startup(): " + msg);
+                  CONSOLE_LOG.info(msg);
+                  }
+               schedulePurgeOfUploadedDataSamples(1, TimeUnit.MINUTES);
+               }
             }
          else
             {
@@ -331,71 +787,465 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
          }
       }
 
-   private void scheduleDataSampleDownload(final int delay, final TimeUnit timeUnit)
+   private void scheduleDataSampleDownload(final long delay, final TimeUnit timeUnit)
       {
       if (dataSampleDownloader != null)
          {
-         executor.schedule(downloadDataSampleRunnable, delay, timeUnit);
+         schedule(downloadDataSampleRunnable, delay, timeUnit);
          }
       }
 
-   private void scheduleDataSampleUpload(final int delay, final TimeUnit timeUnit)
+   private void scheduleDataSampleUpload(final long delay, final TimeUnit timeUnit)
       {
       if (isDataSampleUploaderDefined())
          {
-         executor.schedule(uploadDataSampleRunnable, delay, timeUnit);
+         schedule(uploadDataSampleRunnable, delay, timeUnit);
+         }
+      }
+
+   private void scheduleRealTimeDataSampleUpload(final long delayMillis)
+      {
+      if (isDataSampleUploaderDefined() && REAL_TIME_WINDOW_SECONDS > 0 && UPLOAD_MODE == UploadMode.RAW)
+         {
+         schedule(realTimeUploadDataSampleRunnable, delayMillis, TimeUnit.MILLISECONDS);
          }
       }
 
+   private void schedulePurgeOfUploadedDataSamples(final int delay, final TimeUnit timeUnit)
+      {
+      schedule(purgeUploadedDataSamplesRunnable, delay, timeUnit);
+      }
+
    /**
-    * Shuts down the <code>DataSampleManager</code>.  Once it is shut down, it cannot be started up again.
-    *
-    * @see #startup()
+    * Schedules the next aggregate upload after the given delay, if in aggregate mode.  The scheduled task reschedules
+    * itself if there's nothing to upload, and otherwise the handling of the upload's response does.
     */
-   public void shutdown()
+   private void scheduleAggregateUpload(final long delayMillis)
       {
-      LOG.debug("DataSampleManager.shutdown()");
-
-      lock.lock();  // block until condition holds
-      try
+      final AggregateUpload upload = aggregateUpload;
+      if (upload != null)
          {
-         if (isRunning)
-            {
-            isRunning = false;
-            hasBeenShutdown = true;
-
-            // shut down the executor
-            try
+         schedule(
+               new Runnable()
                {
-               LOG.debug("DataSampleManager.shutdown(): Shutting down the executor");
-               final List<Runnable> unexecutedTasks = executor.shutdownNow();
-               LOG.debug("DataSampleManager.shutdown(): Unexecuted tasks: " + (unexecutedTasks == null ? 0 : unexecutedTasks.size()));
-               LOG.debug("DataSampleManager.shutdown(): Waiting up to 30 seconds for the executor to shutdown...");
-               final boolean terminatedNormally = executor.awaitTermination(30, TimeUnit.SECONDS);
-               if (LOG.isDebugEnabled())
+               @Override
+               public void run()
                   {
-                  LOG.debug("DataSampleManager.shutdown(): Executor successfully shutdown (timed out = " + !terminatedNormally + ")");
+                  // without a Speck to download from, all the samples there will be are already in the store
+                  final int downloadedThrough = (dataSampleDownloader == null) ? (int)(System.currentTimeMillis() / 1000) : downloadedThroughUtcSecs;
+                  final long delayUntilNextUploadMillis = upload.uploadNext(downloadedThrough);
+                  if (delayUntilNextUploadMillis >= 0)
+                     {
+                     scheduleAggregateUpload(delayUntilNextUploadMillis);
+                     }
                   }
-               }
-            catch (Exception e)
+               },
+               delayMillis,
+               TimeUnit.MILLISECONDS);
+         }
+      }
+
+   /** Returns <code>true</code> if samples are being kept local because it's outside the raw sync schedule. */
+   private boolean isRawUploadPaused()
+      {
+      return UPLOAD_MODE == UploadMode.AGGREGATE && !RAW_SYNC_SCHEDULE.isOpen();
+      }
+
+   /**
+    * Schedules the mirror's next upload after the given delay.  The scheduled task reschedules itself if there's
+    * nothing to upload, and otherwise the handling of the upload's response does.
+    */
+   private void scheduleMirrorUpload(@NotNull final UploadMirror uploadMirror, final long delayMillis)
+      {
+      schedule(
+            new Runnable()
+            {
+            @Override
+            public void run()
                {
-               LOG.error("DataSampleManager.shutdown(): Exception while trying to shut down the executor", e);
+               final long delayUntilNextUploadMillis = uploadMirror.uploadNext();
+               if (delayUntilNextUploadMillis >= 0)
+                  {
+                  scheduleMirrorUpload(uploadMirror, delayUntilNextUploadMillis);
+                  }
                }
+            },
+            delayMillis,
+            TimeUnit.MILLISECONDS);
+      }
 
-            // shut down the data store
-            dataSampleStore.shutdown();
+   private void submitUpload(@NotNull final DataSampleSet dataSampleSet)
+      {
+      if (dataSampleUploader != null)
+         {
+         synchronized (uploadsInFlight)
+            {
+            uploadsInFlight.add(dataSampleSet);
             }
+         dataSampleUploader.submitUploadDataSampleSetTask(dataSampleSet, isRealTimeUpload(dataSampleSet) ? UploadRateLimiter.Lane.REAL_TIME : UploadRateLimiter.Lane.BACKLOG);
+
+         // update statistics
+         statistics.incrementFileUploadsRequested();
+         statistics.incrementSampleUploadsRequested(dataSampleSet.size());
          }
-      finally
+      }
+
+   private boolean isRealTimeUpload(@NotNull final DataSampleSet dataSampleSet)
+      {
+      synchronized (realTimeUploadsInFlight)
          {
-         lock.unlock();
+         return realTimeUploadsInFlight.contains(dataSampleSet);
          }
       }
 
-   @Override
+   /**
+    * Returns the next set to upload.  Halves of a partially rejected set come first, so that the rejected samples are
+    * isolated before moving on, then spooled batches awaiting a retry, and finally newly claimed samples (which are
+    * spooled, if spooling is enabled).  The returned set is empty if there's nothing to upload.
+    */
+   @NotNull
+   private DataSampleSet getNextDataSampleSetToUpload()
+      {
+      final DataSampleSet bisectedSet = pollBisectedSetAwaitingUpload();
+      if (bisectedSet != null)
+         {
+         return bisectedSet;
+         }
+
+      synchronized (spooledBatchesAwaitingRetry)
+         {
+         final UploadSpool.Batch batch = spooledBatchesAwaitingRetry.pollFirst();
+         if (batch != null)
+            {
+            return batch;
+            }
+         }
+
+      // in aggregate mode, samples are only claimed during the raw sync schedule, so that the sync picks up where it
+      // left off (and anything already claimed finishes) once the schedule opens again
+      if (isRawUploadPaused())
+         {
+         return new DataSampleSetImpl(null);
+         }
+
+      final DataSampleSet dataSampleSet = dataSampleStore.getDataSamplesToUpload(DataSampleSet.DEFAULT_SIZE);
+      if (uploadSpool != null && !dataSampleSet.isEmpty())
+         {
+         final UploadSpool.Batch batch = uploadSpool.write(dataSampleSet, apiSupport);
+         if (batch != null)
+            {
+            if (dataSampleStore.markDataSamplesAsSpooled(batch))
+               {
+               return batch;
+               }
+
+            // the samples are still claimed, so just upload them without the spool
+            uploadSpool.remove(batch);
+            }
+         }
+      return dataSampleSet;
+      }
+
+   /**
+    * Picks up the batches left in the spool by a previous run, so that they're uploaded without being claimed again.
+    * Spooled batches whose samples the store no longer holds for the spool (e.g. because they were acknowledged just
+    * before the spool file could be removed) are discarded, and samples the store holds for batches which are no longer
+    * in the spool (or for a spool which has since been disabled) are released, to be claimed again.
+    */
+   private void recoverUploadSpool()
+      {
+      final Set<Integer> idsToKeep = new HashSet<Integer>();
+      if (uploadSpool != null)
+         {
+         final List<UploadSpool.Batch> batches = uploadSpool.load();
+         if (!batches.isEmpty())
+            {
+            final Set<Integer> spooledIds = dataSampleStore.getSpooledDataSampleIds();
+            for (final UploadSpool.Batch batch : batches)
+               {
+               final Set<Integer> ids = new HashSet<Integer>();
+               for (final Speck.DataSample dataSample : batch.getDataSamples())
+                  {
+                  ids.add(dataSample.getDatabaseId());
+                  }
+               if (spooledIds.containsAll(ids))
+                  {
+                  idsToKeep.addAll(ids);
+                  synchronized (spooledBatchesAwaitingRetry)
+                     {
+                     spooledBatchesAwaitingRetry.addLast(batch);
+                     }
+                  }
+               else
+                  {
+                  LOG.info("DataSampleManager.recoverUploadSpool(): Discarding spooled batch " + batch + " since its samples are no longer held for the spool");
+                  uploadSpool.remove(batch);
+                  }
+               }
+
+            if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
+               {
+               final String msg = "Resuming upload of " + uploadSpool.getNumBatches() + " spooled batch(es) containing " + idsToKeep.size() + " samples.";
+               LOG.info("DataSampleManager.recoverUploadSpool(): " + msg);
+               CONSOLE_LOG.info(msg);
+               }
+            }
+         }
+      dataSampleStore.releaseSpooledDataSamples(idsToKeep);
+      }
+
+   /** Removes the given set from the spool, if it's a spooled batch, once its upload has been resolved. */
+   private void removeFromUploadSpool(@NotNull final DataSampleSet dataSampleSet)
+      {
+      if (uploadSpool != null && dataSampleSet instanceof UploadSpool.Batch)
+         {
+         uploadSpool.remove((UploadSpool.Batch)dataSampleSet);
+         }
+      }
+
+   /**
+    * Removes and returns the next half of a partially rejected set waiting to be uploaded, remembering it as being
+    * uploaded.  Returns <code>null</code> if there isn't one.
+    */
+   @Nullable
+   private DataSampleSet pollBisectedSetAwaitingUpload()
+      {
+      synchronized (bisectedSetsAwaitingUpload)
+         {
+         final DataSampleSet dataSampleSet = bisectedSetsAwaitingUpload.pollFirst();
+         if (dataSampleSet != null)
+            {
+            bisectedSetsBeingUploaded.add(dataSampleSet);
+            }
+         return dataSampleSet;
+         }
+      }
+
+   /**
+    * Splits the given set (which must contain at least two samples) in half, by sample time, and queues both halves to
+    * be uploaded ahead of any other halves still waiting, so that one partially rejected set is fully resolved before
+    * the next.  The claim on the samples is renewed, so that it can't expire (letting the samples be claimed and
+    * uploaded again by someone else) while the halves are still being resolved.  A spooled set's samples are taken over
+    * from the spool the same way, so the caller must remove the set from the spool.
+    */
+   private void bisect(@NotNull final DataSampleSet dataSampleSet)
+      {
+      dataSampleStore.renewUploadClaim(dataSampleSet);
+
+      final SortedSet<Speck.DataSample> dataSamples = dataSampleSet.getDataSamples();
+      final Iterator<Speck.DataSample> iterator = dataSamples.iterator();
+      for (int i = 0; i < dataSamples.size() / 2; i++)
+         {
+         iterator.next();
+         }
+      final Speck.DataSample firstSampleOfSecondHalf = iterator.next();
+
+      synchronized (bisectedSetsAwaitingUpload)
+         {
+         bisectedSetsAwaitingUpload.addFirst(new DataSampleSetImpl(dataSamples.tailSet(firstSampleOfSecondHalf)));
+         bisectedSetsAwaitingUpload.addFirst(new DataSampleSetImpl(dataSamples.headSet(firstSampleOfSecondHalf)));
+         }
+      }
+
+   /** Schedules the given task on the shared scheduler, unless this manager is shutting down. */
+   private void schedule(@NotNull final Runnable runnable, final long delay, @NotNull final TimeUnit timeUnit)
+      {
+      if (!isShuttingDown)
+         {
+         final ExecutionRuntime.ScheduledTask task = TASKS.schedule(new ManagedTask(runnable), delay, timeUnit);
+         synchronized (scheduledTasks)
+            {
+            // forget the tasks which have already finished, so the set only ever holds a handful
+            for (final Iterator<ExecutionRuntime.ScheduledTask> iterator = scheduledTasks.iterator(); iterator.hasNext(); )
+               {
+               if (iterator.next().isDone())
+                  {
+                  iterator.remove();
+                  }
+               }
+            scheduledTasks.add(task);
+            }
+         }
+      }
+
+   /**
+    * Shuts down the <code>DataSampleManager</code> gracefully.  Once it is shut down, it cannot be started up again.
+    * No new downloads or uploads are started, but a download which is already underway is allowed to finish saving its
+    * sample, and uploads which are already in flight are allowed to finish, until the deadline given by the
+    * {@link #SHUTDOWN_DEADLINE_SECONDS_SYSTEM_PROPERTY} passes.  Samples whose upload didn't finish (or is waiting to be
+    * retried) are then rolled back so that they'll be uploaded again, the CSV file is flushed, and the data store is
+    * closed.
+    *
+    * @see #startup()
+    */
+   public void shutdown()
+      {
+      LOG.debug("DataSampleManager.shutdown()");
+
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (isRunning)
+            {
+            isRunning = false;
+            hasBeenShutdown = true;
+
+            final long deadlineUtcMillis = System.currentTimeMillis() + SHUTDOWN_DEADLINE_SECONDS * 1000L;
+
+            // stop scheduling new tasks and cancel the scheduled ones, but don't interrupt running ones, since that could
+            // interrupt a save.  The execution runtime itself is shared, so it keeps running.
+            isShuttingDown = true;
+            final List<ExecutionRuntime.ScheduledTask> tasksToCancel;
+            synchronized (scheduledTasks)
+               {
+               tasksToCancel = new ArrayList<ExecutionRuntime.ScheduledTask>(scheduledTasks);
+               scheduledTasks.clear();
+               }
+            for (final ExecutionRuntime.ScheduledTask task : tasksToCancel)
+               {
+               task.cancel(false);
+               }
+
+            boolean didTasksFinish = false;
+            try
+               {
+               // give in-flight uploads a chance to finish, and then wait for running tasks (and upload results which are
+               // being handled).  Once we hold the write lock, the results of any uploads still in flight are ignored.
+               final int numUploadsUnfinished = waitForUploadsInFlight(deadlineUtcMillis);
+               didTasksFinish = taskLock.writeLock().tryLock(Math.max(0, deadlineUtcMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+               if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
+                  {
+                  final String msg;
+                  if (didTasksFinish && numUploadsUnfinished == 0)
+                     {
+                     msg = "All running tasks and uploads finished.";
+                     }
+                  else
+                     {
+                     msg = "Gave up waiting after " + SHUTDOWN_DEADLINE_SECONDS + " second(s) (running tasks finished = " + didTasksFinish + ", unfinished uploads = " + numUploadsUnfinished + ").";
+                     }
+                  LOG.info("DataSampleManager.shutdown(): " + msg);
+                  CONSOLE_LOG.info(msg);
+                  }
+               }
+            catch (InterruptedException e)
+               {
+               LOG.error("DataSampleManager.shutdown(): InterruptedException while waiting for running tasks and uploads to finish", e);
+               Thread.currentThread().interrupt();
+               }
+
+            try
+               {
+               // ignore the results of uploads still in flight, and drop uploads which haven't started yet (e.g. because
+               // the rate limiter delayed them), since they're about to be rolled back
+               hasStoppedHandlingUploads = true;
+               if (dataSampleUploader != null)
+                  {
+                  dataSampleUploader.shutdown();
+                  }
+               for (final UploadMirror uploadMirror : uploadMirrors)
+                  {
+                  uploadMirror.getDataSampleUploader().shutdown();
+                  }
+
+               // roll back samples whose upload didn't finish or was waiting to be retried, so nothing is left in
+               // progress, then flush the secondary destinations and close the data store
+               dataSampleStore.resetStateOfUploadingSamples();
+               dataSampleStore.shutdown(deadlineUtcMillis);
+               }
+            finally
+               {
+               if (didTasksFinish)
+                  {
+                  taskLock.writeLock().unlock();
+                  }
+               }
+            }
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /**
+    * Waits until there are no uploads in flight, or until the given deadline passes, whichever comes first.  Returns
+    * the number of uploads still in flight.
+    */
+   private int waitForUploadsInFlight(final long deadlineUtcMillis) throws InterruptedException
+      {
+      synchronized (uploadsInFlight)
+         {
+         long remainingMillis;
+         while (!uploadsInFlight.isEmpty() && (remainingMillis = deadlineUtcMillis - System.currentTimeMillis()) > 0)
+            {
+            uploadsInFlight.wait(remainingMillis);
+            }
+         return uploadsInFlight.size();
+         }
+      }
+
+   /**
+    * Renews the claim on the samples of an upload which the rate limiter held back, so that the claim can't expire
+    * (letting the samples be claimed and uploaded again by the other lane) before the upload is even sent.
+    */
+   @Override
+   public void handleDataSamplesUploadStartingAfterDelayEvent(@NotNull final DataSampleSet dataSampleSet)
+      {
+      if (!(dataSampleSet instanceof DataSampleRollupSet))
+         {
+         dataSampleStore.renewUploadClaim(dataSampleSet);
+         }
+      }
+
+   @Override
    public void handleDataSamplesUploadedEvent(@NotNull final DataSampleSet dataSampleSet, @Nullable final DataSampleSetUploadResponse uploadResponse)
       {
       LOG.debug("DataSampleManager.handleDataSamplesUploadedEvent(" + dataSampleSet + ", " + uploadResponse + ")");
+
+      // if we can't get the read lock, or can but shutdown has already released it, then shutdown has stopped waiting
+      // for uploads, and has rolled this one back
+      if (taskLock.readLock().tryLock())
+         {
+         try
+            {
+            if (hasStoppedHandlingUploads)
+               {
+               LOG.info("DataSampleManager.handleDataSamplesUploadedEvent(): Ignoring the result of an upload which finished after shutdown");
+               }
+            else if (dataSampleSet instanceof DataSampleRollupSet)
+               {
+               final AggregateUpload upload = aggregateUpload;
+               if (upload != null)
+                  {
+                  scheduleAggregateUpload(upload.handleUploadResponse((DataSampleRollupSet)dataSampleSet, uploadResponse));
+                  }
+               }
+            else
+               {
+               handleUploadResponse(dataSampleSet, uploadResponse);
+               }
+            }
+         finally
+            {
+            taskLock.readLock().unlock();
+            }
+         }
+      else
+         {
+         LOG.info("DataSampleManager.handleDataSamplesUploadedEvent(): Ignoring the result of an upload which finished after shutdown");
+         }
+
+      synchronized (uploadsInFlight)
+         {
+         uploadsInFlight.remove(dataSampleSet);
+         uploadsInFlight.notifyAll();
+         }
+      }
+
+   private void handleUploadResponse(@NotNull final DataSampleSet dataSampleSet, @Nullable final DataSampleSetUploadResponse uploadResponse)
+      {
       if (!dataSampleSet.isEmpty())
          {
          if (uploadResponse == null)
@@ -404,42 +1254,53 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
             statistics.incrementFileUploadsFailed();
             statistics.incrementSampleUploadsFailed(dataSampleSet.size());
 
-            // If the response was null, then a problem occurred during upload, so just submit a new upload job for it.
+            // If the response was null, then a problem occurred during upload, so just submit a new upload job for it,
+            // backing off while uploads keep failing.  The claim on the samples is renewed when the job is submitted,
+            // since the backoff may outlast it.
+            final long retryDelayMillis = UPLOAD_RETRY_POLICY.getDelayMillis(numConsecutiveUploadFailures.incrementAndGet());
             if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
                {
-               final String msg = "Data sample upload failure detected, will retry in 1 minute.";
+               final String msg = "Data sample upload failure detected, will retry in " + (retryDelayMillis / 1000) + " seconds.";
                LOG.info("DataSampleManager.handleDataSamplesUploadedEvent(): " + msg);
                CONSOLE_LOG.info(msg);
                }
-            executor.schedule(
+            schedule(
                   new Runnable()
                   {
                   @Override
                   public void run()
                      {
-                     if (dataSampleUploader != null)
-                        {
-                        dataSampleUploader.submitUploadDataSampleSetTask(dataSampleSet);
-
-                        // update statistics
-                        statistics.incrementFileUploadsRequested();
-                        statistics.incrementSampleUploadsRequested(dataSampleSet.size());
-                        }
+                     dataSampleStore.renewUploadClaim(dataSampleSet);
+                     submitUpload(dataSampleSet);
                      }
                   },
-                  1,
-                  TimeUnit.MINUTES);
+                  retryDelayMillis,
+                  TimeUnit.MILLISECONDS);
             }
          else
             {
+            // a set retried after a null response is resubmitted as is, so it's only forgotten once it gets a response
+            synchronized (bisectedSetsAwaitingUpload)
+               {
+               bisectedSetsBeingUploaded.remove(dataSampleSet);
+               }
+            final boolean isRealTimeSet;
+            synchronized (realTimeUploadsInFlight)
+               {
+               isRealTimeSet = realTimeUploadsInFlight.remove(dataSampleSet);
+               }
+
             if (uploadResponse.wasSuccessful())
                {
                // update statistics
                statistics.incrementFileUploadsSuccessful();
                statistics.incrementSampleUploadsSuccessful(dataSampleSet.size());
+               numConsecutiveUploadFailures.set(0);
 
                // No failures!  Tell the data store to mark the samples as uploaded
                dataSampleStore.markDataSamplesAsUploaded(dataSampleSet, uploadResponse.getTimestampUtcMillis());
+               removeFromUploadSpool(dataSampleSet);
+               newestUploadedSampleTimeUtcSecs = Math.max(newestUploadedSampleTimeUtcSecs, dataSampleSet.getDataSamples().last().getSampleTime());
                }
             else
                {
@@ -452,24 +1313,113 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
                final String payloadFailureMessage = (payload == null) ? null : payload.getFailureMessage();
                final Integer numFailures = (payload == null) ? null : payload.getNumFailedRecords();
 
-               // we had a failure, so just mark the samples as failed
-               dataSampleStore.markDataSamplesAsFailed(dataSampleSet);
-               LOG.error("DataSampleManager.handleDataSamplesUploadedEvent(): Upload failure: num failed samples is [" + numFailures + "] and failureMessage(s) [" + failureMessage + "|" + payloadFailureMessage + "]");
-               CONSOLE_LOG.error("Upload failure: Failed records = " + numFailures + " and failureMessage(s) [" + failureMessage + "|" + payloadFailureMessage + "].  Samples have been flagged as failed.");
+               // The server rejected specific samples if it says how many it rejected, even if that's all of them (a
+               // problem with the server or our credentials doesn't get as far as counting records).  A set which was
+               // rejected in whole or in part is split until the rejected samples are isolated, so that a set which the
+               // server will never accept isn't retried forever.
+               final boolean wereSamplesRejected = numFailures != null && numFailures > 0;
+               if (wereSamplesRejected && dataSampleSet.size() > 1)
+                  {
+                  // split the set and upload each half, so that the samples the server accepts don't keep getting
+                  // dragged along with the ones it rejects
+                  bisect(dataSampleSet);
+                  removeFromUploadSpool(dataSampleSet);
+                  LOG.info("DataSampleManager.handleDataSamplesUploadedEvent(): The server rejected [" + numFailures + "] of [" + dataSampleSet.size() + "] samples, so the set will be split and each half uploaded again.  FailureMessage(s) [" + failureMessage + "|" + payloadFailureMessage + "]");
+                  }
+               else if (wereSamplesRejected)
+                  {
+                  dataSampleStore.markDataSamplesAsRejected(dataSampleSet, QUARANTINE_AFTER_REJECTIONS);
+                  removeFromUploadSpool(dataSampleSet);
+                  LOG.error("DataSampleManager.handleDataSamplesUploadedEvent(): The server rejected the sample at time [" + dataSampleSet.getDataSamples().first().getSampleTime() + "]: failureMessage(s) [" + failureMessage + "|" + payloadFailureMessage + "]");
+                  CONSOLE_LOG.error("Upload failure: The server rejected the sample at time " + dataSampleSet.getDataSamples().first().getSampleTime() + " [" + failureMessage + "|" + payloadFailureMessage + "].  The sample has been flagged as failed.");
+                  }
+               else
+                  {
+                  numConsecutiveUploadFailures.incrementAndGet();
+
+                  // We had a failure.  A spooled batch stays in the spool and is retried from there, without touching the
+                  // database.  Otherwise, just mark the samples as failed, so that they'll be claimed again.
+                  final String outcome;
+                  if (dataSampleSet instanceof UploadSpool.Batch)
+                     {
+                     synchronized (spooledBatchesAwaitingRetry)
+                        {
+                        spooledBatchesAwaitingRetry.addLast((UploadSpool.Batch)dataSampleSet);
+                        }
+                     outcome = "The upload will be retried from the spool.";
+                     }
+                  else
+                     {
+                     dataSampleStore.markDataSamplesAsFailed(dataSampleSet);
+                     outcome = "Samples have been flagged as failed.";
+                     }
+                  LOG.error("DataSampleManager.handleDataSamplesUploadedEvent(): Upload failure: num failed samples is [" + numFailures + "] and failureMessage(s) [" + failureMessage + "|" + payloadFailureMessage + "]");
+                  CONSOLE_LOG.error("Upload failure: Failed records = " + numFailures + " and failureMessage(s) [" + failureMessage + "|" + payloadFailureMessage + "].  " + outcome);
+                  }
                }
 
-            // schedule another upload (wait 15 seconds if the last set had fewer than the default size, otherwise try again right away)
-            scheduleDataSampleUpload(dataSampleSet.size() < DataSampleSet.DEFAULT_SIZE ? 15 : 0, TimeUnit.SECONDS);
+            // the real-time lane keeps going right away while it finds full sets of fresh samples, and otherwise waits
+            // for more to arrive, but backs off like the backlog while uploads keep failing
+            if (isRealTimeSet)
+               {
+               final long delayMillis = (dataSampleSet.size() < DataSampleSet.DEFAULT_SIZE) ? TimeUnit.SECONDS.toMillis(REAL_TIME_UPLOAD_INTERVAL_SECONDS) : 0;
+               scheduleRealTimeDataSampleUpload(Math.max(delayMillis, UPLOAD_RETRY_POLICY.getDelayMillis(numConsecutiveUploadFailures.get())));
+               }
+            else
+               {
+               // schedule another upload (wait 15 seconds if the last set had fewer than the default size and there are
+               // no halves of a partially rejected set waiting, otherwise try again right away), but back off while
+               // uploads keep failing, so that a dead server isn't hammered
+               final boolean areBisectedSetsAwaitingUpload;
+               synchronized (bisectedSetsAwaitingUpload)
+                  {
+                  areBisectedSetsAwaitingUpload = !bisectedSetsAwaitingUpload.isEmpty();
+                  }
+               final long delayMillis = (dataSampleSet.size() < DataSampleSet.DEFAULT_SIZE && !areBisectedSetsAwaitingUpload) ? 15000 : 0;
+               scheduleDataSampleUpload(Math.max(delayMillis, UPLOAD_RETRY_POLICY.getDelayMillis(numConsecutiveUploadFailures.get())), TimeUnit.MILLISECONDS);
+               }
             }
          }
       }
 
+   /**
+    * Returns the buffer of recently saved samples, which can be read (or listened to) without touching the device or
+    * the database.
+    */
+   @NotNull
+   public RecentDataSampleBuffer getRecentDataSamples()
+      {
+      return recentDataSamples;
+      }
+
+   /**
+    * Returns the {@link DataSampleRollup rollups} at the given resolution for all buckets overlapping the given time
+    * range (inclusive), in ascending order of bucket start time.
+    */
+   @NotNull
+   public List<DataSampleRollup> getRollups(@NotNull final DataSampleRollup.Resolution resolution, final int fromUtcSecs, final int toUtcSecs)
+      {
+      return dataSampleStore.getRollups(resolution, fromUtcSecs, toUtcSecs);
+      }
+
    public String getStatisticsAsString()
       {
       lock.lock();  // block until condition holds
       try
          {
-         return statistics.toString();
+         // the lock wait times are tracked by the data store, so refresh them before rendering
+         statistics.setSaveLockWaitMillis(dataSampleStore.getSaveLockWaitMillis());
+         statistics.setUploadLockWaitMillis(dataSampleStore.getUploadLockWaitMillis());
+
+         // the backlog counts are maintained incrementally by the data store, so they're cheap to refresh
+         statistics.setValueAndPublishToListeners(Statistics.Category.SAMPLES_AWAITING_UPLOAD, dataSampleStore.getNumDataSamples(DataSampleUploadStatus.NOT_ATTEMPTED));
+         statistics.setValueAndPublishToListeners(Statistics.Category.SAMPLES_BEING_UPLOADED, dataSampleStore.getNumDataSamples(DataSampleUploadStatus.IN_PROGRESS));
+         statistics.setValueAndPublishToListeners(Statistics.Category.SAMPLES_AWAITING_UPLOAD_RETRY, dataSampleStore.getNumDataSamples(DataSampleUploadStatus.FAILURE));
+         statistics.setValueAndPublishToListeners(Statistics.Category.SAMPLES_UPLOADED_AND_STORED, dataSampleStore.getNumDataSamples(DataSampleUploadStatus.SUCCESS));
+         statistics.setValueAndPublishToListeners(Statistics.Category.SAMPLES_QUARANTINED, dataSampleStore.getNumDataSamples(DataSampleUploadStatus.QUARANTINED));
+         statistics.setValueAndPublishToListeners(Statistics.Category.BATCHES_SPOOLED_FOR_UPLOAD, (uploadSpool == null) ? 0 : uploadSpool.getNumBatches());
+         statistics.setValueAndPublishToListeners(Statistics.Category.UPLOAD_LAG_SECONDS, getUploadLagSeconds());
+         return statistics.toString() + getDestinationStatusesAsString() + getUploadMirrorStatusesAsString() + getAggregateUploadStatusAsString();
          }
       finally
          {
@@ -477,6 +1427,150 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
          }
       }
 
+   /**
+    * Returns the number of seconds between now and the sample time of the newest sample successfully uploaded, or 0 if
+    * no samples have been uploaded yet.
+    */
+   private int getUploadLagSeconds()
+      {
+      final int newestUploadedSampleTime = newestUploadedSampleTimeUtcSecs;
+      if (newestUploadedSampleTime > 0)
+         {
+         return (int)Math.max(0, System.currentTimeMillis() / 1000 - newestUploadedSampleTime);
+         }
+      return 0;
+      }
+
+   /**
+    * Returns how far (in seconds) {@link #downloadedThroughUtcSecs} lags behind the time the Speck said it had no more
+    * samples: two logging intervals, but at least a minute, so that a sample being logged at that moment (or stamped
+    * by a Speck whose clock is a little behind ours) doesn't land in a bucket which has already been uploaded.
+    */
+   private int getDownloadMarkLagSecs()
+      {
+      return Math.max(60, 2 * speckConfig.getLoggingInterval());
+      }
+
+   @NotNull
+   private String getDestinationStatusesAsString()
+      {
+      final StringWriter stringWriter = new StringWriter();
+      final PrintWriter printWriter = new PrintWriter(stringWriter);
+
+      printWriter.printf(" __________________________________________________________________ \n");
+      printWriter.printf("|                                                                  |\n");
+      printWriter.printf("| Store     Health    Queued   Saved Failed Dropped Spilled Lag ms |\n");
+      printWriter.printf("| -----     ------    ------   ----- ------ ------- ------- ------ |\n");
+      for (final MultiDestinationDataSampleStore.DestinationStatus status : dataSampleStore.getDestinationStatuses())
+         {
+         printWriter.printf("| %-9s %-9s %6d %7d %6d %7d %7d %6d |\n",
+                            status.getName(),
+                            status.getHealth().getName(),
+                            status.getQueueSize(),
+                            status.getNumSaved(),
+                            status.getNumFailed(),
+                            status.getNumDropped(),
+                            status.getNumSpilled(),
+                            status.getLagMillis());
+         }
+      printWriter.printf("|__________________________________________________________________|\n");
+
+      return stringWriter.toString();
+      }
+
+   /** Renders the upload mirrors' progress in an ASCII table, or returns an empty string if there are no mirrors. */
+   @NotNull
+   private String getUploadMirrorStatusesAsString()
+      {
+      if (uploadMirrors.isEmpty())
+         {
+         return "";
+         }
+
+      final StringWriter stringWriter = new StringWriter();
+      final PrintWriter printWriter = new PrintWriter(stringWriter);
+
+      printWriter.printf(" __________________________________________________________________ \n");
+      printWriter.printf("|                                                                  |\n");
+      printWriter.printf("| Mirror              Cursor  Uploaded  Skipped Failures State     |\n");
+      printWriter.printf("| ------              ------  --------  ------- -------- -----     |\n");
+      for (final UploadMirror uploadMirror : uploadMirrors)
+         {
+         printWriter.printf("| %-16s %9d %9d %8d %8d %-9s |\n",
+                            StringUtils.abbreviate(uploadMirror.getName(), 16),
+                            uploadMirror.getCursor(),
+                            uploadMirror.getNumSamplesUploaded(),
+                            uploadMirror.getNumSamplesSkipped(),
+                            uploadMirror.getNumConsecutiveFailures(),
+                            uploadMirror.getState().getName());
+         }
+      printWriter.printf("|__________________________________________________________________|\n");
+
+      return stringWriter.toString();
+      }
+
+   /** Renders the aggregate upload's progress in an ASCII table, or returns an empty string if not in aggregate mode. */
+   @NotNull
+   private String getAggregateUploadStatusAsString()
+      {
+      final AggregateUpload upload = aggregateUpload;
+      if (upload == null)
+         {
+         return "";
+         }
+
+      final StringWriter stringWriter = new StringWriter();
+      final PrintWriter printWriter = new PrintWriter(stringWriter);
+
+      printWriter.printf(" __________________________________________________________________ \n");
+      printWriter.printf("|                                                                  |\n");
+      printWriter.printf("| Aggregates     Next Bucket  Uploaded  Skipped Failures State     |\n");
+      printWriter.printf("| ----------     -----------  --------  ------- -------- -----     |\n");
+      printWriter.printf("| %-12s %13d %9d %8d %8d %-9s |\n",
+                         upload.getResolution().getSeconds() + " s",
+                         upload.getNextBucketStartUtcSecs(),
+                         upload.getNumRollupsUploaded(),
+                         upload.getNumRollupsSkipped(),
+                         upload.getNumConsecutiveFailures(),
+                         upload.getState().getName());
+      printWriter.printf("| Raw sync: %-54s |\n", RAW_SYNC_SCHEDULE.isEmpty() ? "never" : (RAW_SYNC_SCHEDULE.isOpen() ? "open" : "closed") + " (" + StringUtils.abbreviate(System.getProperty(RAW_SYNC_SCHEDULE_SYSTEM_PROPERTY).trim(), 44) + ")");
+      printWriter.printf("|__________________________________________________________________|\n");
+
+      return stringWriter.toString();
+      }
+
+   /** Runs a task on behalf of this manager, unless it's shutting down. */
+   private final class ManagedTask implements Runnable
+      {
+      @NotNull
+      private final Runnable runnable;
+
+      private ManagedTask(@NotNull final Runnable runnable)
+         {
+         this.runnable = runnable;
+         }
+
+      @Override
+      public void run()
+         {
+         // if we can't get the read lock, then shutdown is underway
+         if (taskLock.readLock().tryLock())
+            {
+            try
+               {
+               if (!isShuttingDown)
+                  {
+                  runnable.run();
+                  }
+               }
+            finally
+               {
+               taskLock.readLock().unlock();
+               }
+            }
+         }
+      }
+
    private static final class StatisticsImpl implements Statistics
       {
       private final Map<Category, AtomicInteger> statisticsMap;
@@ -574,6 +1668,37 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
          return incrementValueAndPublishToListeners(Category.SAVES_FAILED);
          }
 
+      private int incrementSamplesPurged(final int count)
+         {
+         return incrementValueAndPublishToListeners(Category.SAMPLES_PURGED, count);
+         }
+
+      private int incrementKilobytesReclaimed(final int count)
+         {
+         return incrementValueAndPublishToListeners(Category.KILOBYTES_RECLAIMED, count);
+         }
+
+      private void setSaveLockWaitMillis(final long millis)
+         {
+         setValueAndPublishToListeners(Category.SAVE_LOCK_WAIT_MILLIS, (int)Math.min(Integer.MAX_VALUE, millis));
+         }
+
+      private void setUploadLockWaitMillis(final long millis)
+         {
+         setValueAndPublishToListeners(Category.UPLOAD_LOCK_WAIT_MILLIS, (int)Math.min(Integer.MAX_VALUE, millis));
+         }
+
+      private void setValueAndPublishToListeners(final Category category, final int newValue)
+         {
+         if (statisticsMap.get(category).getAndSet(newValue) != newValue)
+            {
+            for (final Listener listener : listeners)
+               {
+               listener.handleValueChange(category, newValue);
+               }
+            }
+         }
+
       private int incrementValueAndPublishToListeners(final Category category)
          {
          return incrementValueAndPublishToListeners(category, 1);
@@ -605,6 +1730,17 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
          printWriter.printf("| Samples Deleted from Device         %6d       %6d   %6d |\n", statisticsMap.get(Category.DELETES_REQUESTED).get(), statisticsMap.get(Category.DELETES_SUCCESSFUL).get(), statisticsMap.get(Category.DELETES_FAILED).get());
          printWriter.printf("| Samples Uploaded to Server          %6d       %6d   %6d |\n", statisticsMap.get(Category.SAMPLE_UPLOADS_REQUESTED).get(), statisticsMap.get(Category.SAMPLE_UPLOADS_SUCCESSFUL).get(), statisticsMap.get(Category.SAMPLE_UPLOADS_FAILED).get());
          printWriter.printf("| Files Uploaded to Server            %6d       %6d   %6d |\n", statisticsMap.get(Category.FILE_UPLOADS_REQUESTED).get(), statisticsMap.get(Category.FILE_UPLOADS_SUCCESSFUL).get(), statisticsMap.get(Category.FILE_UPLOADS_FAILED).get());
+         printWriter.printf("| Samples Purged from Computer             -       %6d        - |\n", statisticsMap.get(Category.SAMPLES_PURGED).get());
+         printWriter.printf("| Storage Reclaimed on Computer (KB)       -       %6d        - |\n", statisticsMap.get(Category.KILOBYTES_RECLAIMED).get());
+         printWriter.printf("| Lock Wait for Saves (ms)                 -       %6d        - |\n", statisticsMap.get(Category.SAVE_LOCK_WAIT_MILLIS).get());
+         printWriter.printf("| Lock Wait for Upload Tasks (ms)          -       %6d        - |\n", statisticsMap.get(Category.UPLOAD_LOCK_WAIT_MILLIS).get());
+         printWriter.printf("| Samples Awaiting Upload                  -       %6d        - |\n", statisticsMap.get(Category.SAMPLES_AWAITING_UPLOAD).get());
+         printWriter.printf("| Samples Being Uploaded                   -       %6d        - |\n", statisticsMap.get(Category.SAMPLES_BEING_UPLOADED).get());
+         printWriter.printf("| Samples Awaiting Upload Retry            -       %6d        - |\n", statisticsMap.get(Category.SAMPLES_AWAITING_UPLOAD_RETRY).get());
+         printWriter.printf("| Uploaded Samples on Computer             -       %6d        - |\n", statisticsMap.get(Category.SAMPLES_UPLOADED_AND_STORED).get());
+         printWriter.printf("| Samples Quarantined                      -       %6d        - |\n", statisticsMap.get(Category.SAMPLES_QUARANTINED).get());
+         printWriter.printf("| Batches Spooled for Upload               -       %6d        - |\n", statisticsMap.get(Category.BATCHES_SPOOLED_FOR_UPLOAD).get());
+         printWriter.printf("| Upload Lag (secs)                        -       %6d        - |\n", statisticsMap.get(Category.UPLOAD_LAG_SECONDS).get());
          printWriter.printf("|__________________________________________________________________|\n");
 
          return stringWriter.toString();
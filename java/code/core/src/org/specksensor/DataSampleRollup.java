@@ -0,0 +1,177 @@
+package org.specksensor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>DataSampleRollup</code> summarizes all the {@link Speck.DataSample data samples} within a fixed-size time
+ * window (a bucket) with the minimum, maximum and mean of each channel.  Values are in the same units as the
+ * corresponding {@link Speck.DataSample} getters: particle count or concentration as returned by
+ * {@link Speck.DataSample#getParticleCountOrConcentration()}, temperature in tenths of a degree F, and humidity.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class DataSampleRollup
+   {
+   public enum Resolution
+      {
+         ONE_MINUTE(60),
+         ONE_HOUR(60 * 60);
+
+      /** Returns the resolution having the given bucket size, or <code>null</code> if there isn't one. */
+      @Nullable
+      public static Resolution findBySeconds(final int seconds)
+         {
+         for (final Resolution resolution : values())
+            {
+            if (resolution.seconds == seconds)
+               {
+               return resolution;
+               }
+            }
+         return null;
+         }
+
+      private final int seconds;
+
+      private Resolution(final int seconds)
+         {
+         this.seconds = seconds;
+         }
+
+      /** Returns the size of the buckets, in seconds. */
+      public int getSeconds()
+         {
+         return seconds;
+         }
+
+      /** Returns the start time of the bucket containing the given time. */
+      public int getBucketStart(final int timeUtcSecs)
+         {
+         return (timeUtcSecs / seconds) * seconds;
+         }
+      }
+
+   @NotNull
+   private final Resolution resolution;
+   private final int bucketStartUtcSecs;
+   private final int numSamples;
+   private final int minParticleCountOrConcentration;
+   private final int maxParticleCountOrConcentration;
+   private final long sumParticleCountOrConcentration;
+   private final int minTemperatureInTenthsOfADegreeF;
+   private final int maxTemperatureInTenthsOfADegreeF;
+   private final long sumTemperatureInTenthsOfADegreeF;
+   private final int minHumidity;
+   private final int maxHumidity;
+   private final long sumHumidity;
+
+   DataSampleRollup(@NotNull final Resolution resolution,
+                    final int bucketStartUtcSecs,
+                    final int numSamples,
+                    final int minParticleCountOrConcentration,
+                    final int maxParticleCountOrConcentration,
+                    final long sumParticleCountOrConcentration,
+                    final int minTemperatureInTenthsOfADegreeF,
+                    final int maxTemperatureInTenthsOfADegreeF,
+                    final long sumTemperatureInTenthsOfADegreeF,
+                    final int minHumidity,
+                    final int maxHumidity,
+                    final long sumHumidity)
+      {
+      this.resolution = resolution;
+      this.bucketStartUtcSecs = bucketStartUtcSecs;
+      this.numSamples = numSamples;
+      this.minParticleCountOrConcentration = minParticleCountOrConcentration;
+      this.maxParticleCountOrConcentration = maxParticleCountOrConcentration;
+      this.sumParticleCountOrConcentration = sumParticleCountOrConcentration;
+      this.minTemperatureInTenthsOfADegreeF = minTemperatureInTenthsOfADegreeF;
+      this.maxTemperatureInTenthsOfADegreeF = maxTemperatureInTenthsOfADegreeF;
+      this.sumTemperatureInTenthsOfADegreeF = sumTemperatureInTenthsOfADegreeF;
+      this.minHumidity = minHumidity;
+      this.maxHumidity = maxHumidity;
+      this.sumHumidity = sumHumidity;
+      }
+
+   @NotNull
+   public Resolution getResolution()
+      {
+      return resolution;
+      }
+
+   public int getBucketStartUtcSecs()
+      {
+      return bucketStartUtcSecs;
+      }
+
+   public int getNumSamples()
+      {
+      return numSamples;
+      }
+
+   public int getMinParticleCountOrConcentration()
+      {
+      return minParticleCountOrConcentration;
+      }
+
+   public int getMaxParticleCountOrConcentration()
+      {
+      return maxParticleCountOrConcentration;
+      }
+
+   public double getMeanParticleCountOrConcentration()
+      {
+      return mean(sumParticleCountOrConcentration);
+      }
+
+   public int getMinTemperatureInTenthsOfADegreeF()
+      {
+      return minTemperatureInTenthsOfADegreeF;
+      }
+
+   public int getMaxTemperatureInTenthsOfADegreeF()
+      {
+      return maxTemperatureInTenthsOfADegreeF;
+      }
+
+   public double getMeanTemperatureInTenthsOfADegreeF()
+      {
+      return mean(sumTemperatureInTenthsOfADegreeF);
+      }
+
+   public int getMinHumidity()
+      {
+      return minHumidity;
+      }
+
+   public int getMaxHumidity()
+      {
+      return maxHumidity;
+      }
+
+   public double getMeanHumidity()
+      {
+      return mean(sumHumidity);
+      }
+
+   private double mean(final long sum)
+      {
+      return (numSamples > 0) ? (double)sum / numSamples : 0;
+      }
+
+   @Override
+   public String toString()
+      {
+      final StringBuilder sb = new StringBuilder("DataSampleRollup{");
+      sb.append("resolution=").append(resolution);
+      sb.append(", bucketStart=").append(bucketStartUtcSecs);
+      sb.append(", numSamples=").append(numSamples);
+      sb.append(", particleCountOrConcentration=[").append(minParticleCountOrConcentration).append(", ").append(getMeanParticleCountOrConcentration()).append(", ").append(maxParticleCountOrConcentration).append(']');
+      sb.append(", temperatureInTenthsOfDegreeF=[").append(minTemperatureInTenthsOfADegreeF).append(", ").append(getMeanTemperatureInTenthsOfADegreeF()).append(", ").append(maxTemperatureInTenthsOfADegreeF).append(']');
+      sb.append(", humidity=[").append(minHumidity).append(", ").append(getMeanHumidity()).append(", ").append(maxHumidity).append(']');
+      sb.append('}');
+      return sb.toString();
+      }
+   }
@@ -0,0 +1,140 @@
+package org.specksensor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>DataSampleRollupSet</code> is a {@link DataSampleSet} of {@link DataSampleRollup rollups} rather than samples,
+ * so that rollups can be uploaded by a {@link DataSampleUploader} just like samples are.  It holds no samples, and its
+ * {@link #size() size} is the number of rollups.  The JSON uses the same <code>channel_names</code> layout as samples
+ * do, with a row per rollup (timestamped with the start of its bucket) and, for each channel, a <code>_min</code>,
+ * <code>_max</code>, and <code>_mean</code> channel, followed by a <code>sample_count</code> channel.  Values are in the
+ * same units as the samples' own channels.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class DataSampleRollupSet implements DataSampleSet
+   {
+   private static final SortedSet<Speck.DataSample> NO_DATA_SAMPLES = Collections.unmodifiableSortedSet(new TreeSet<Speck.DataSample>());
+
+   @NotNull
+   private final List<DataSampleRollup> rollups;
+
+   private final int endUtcSecs;
+
+   /**
+    * Creates a set of the given rollups, which must be in ascending order of bucket start time, and which are all the
+    * rollups before the given end time (exclusive) which hadn't been uploaded yet.
+    */
+   DataSampleRollupSet(@NotNull final List<DataSampleRollup> rollups, final int endUtcSecs)
+      {
+      this.rollups = new ArrayList<DataSampleRollup>(rollups);
+      this.endUtcSecs = endUtcSecs;
+      }
+
+   /** Always returns an empty set, since a <code>DataSampleRollupSet</code> holds rollups rather than samples. */
+   @NotNull
+   @Override
+   public SortedSet<Speck.DataSample> getDataSamples()
+      {
+      return NO_DATA_SAMPLES;
+      }
+
+   @NotNull
+   List<DataSampleRollup> getRollups()
+      {
+      return Collections.unmodifiableList(rollups);
+      }
+
+   /** Returns the time (exclusive) up to which this set accounts for all the rollups. */
+   int getEndUtcSecs()
+      {
+      return endUtcSecs;
+      }
+
+   @Override
+   public boolean isEmpty()
+      {
+      return rollups.isEmpty();
+      }
+
+   @Override
+   public int size()
+      {
+      return rollups.size();
+      }
+
+   @NotNull
+   @Override
+   public String toJson(@NotNull final ApiSupport apiSupport)
+      {
+      final List<String> rows = new ArrayList<String>(rollups.size());
+      for (final DataSampleRollup rollup : rollups)
+         {
+         final StringBuilder row = new StringBuilder("[");
+         row.append(rollup.getBucketStartUtcSecs());
+         if (apiSupport.hasParticleConcentration())
+            {
+            // concentrations are stored in tenths, like temperatures
+            appendChannel(row, rollup.getMinParticleCountOrConcentration() / 10.0, rollup.getMaxParticleCountOrConcentration() / 10.0, rollup.getMeanParticleCountOrConcentration() / 10.0);
+            }
+         else
+            {
+            appendChannel(row, rollup.getMinParticleCountOrConcentration(), rollup.getMaxParticleCountOrConcentration(), rollup.getMeanParticleCountOrConcentration());
+            }
+         if (apiSupport.hasTemperatureSensor())
+            {
+            appendChannel(row, rollup.getMinTemperatureInTenthsOfADegreeF() / 10.0, rollup.getMaxTemperatureInTenthsOfADegreeF() / 10.0, rollup.getMeanTemperatureInTenthsOfADegreeF() / 10.0);
+            }
+         appendChannel(row, rollup.getMinHumidity(), rollup.getMaxHumidity(), rollup.getMeanHumidity());
+         row.append(',').append(rollup.getNumSamples()).append(']');
+         rows.add(row.toString());
+         }
+      return "{\"channel_names\":" + getChannelNamesAsJson(apiSupport) + ",\"data\":[" + StringUtils.join(rows, ',') + "]}";
+      }
+
+   private static void appendChannel(@NotNull final StringBuilder row, final Number min, final Number max, final double mean)
+      {
+      // two decimal places is plenty for a mean, and keeps the upload small
+      row.append(',').append(min).append(',').append(max).append(',').append(Math.round(mean * 100) / 100.0);
+      }
+
+   /** Returns the JSON array of channel names for rollups of samples having the given {@link ApiSupport}. */
+   @NotNull
+   static String getChannelNamesAsJson(@NotNull final ApiSupport apiSupport)
+      {
+      final List<String> channelNames = new ArrayList<String>();
+      addChannelNames(channelNames, apiSupport.hasParticleConcentration() ? "particle_concentration" : "particle_count");
+      if (apiSupport.hasTemperatureSensor())
+         {
+         addChannelNames(channelNames, "temperature");
+         }
+      addChannelNames(channelNames, "humidity");
+      channelNames.add("\"sample_count\"");
+      return "[" + StringUtils.join(channelNames, ',') + "]";
+      }
+
+   private static void addChannelNames(@NotNull final List<String> channelNames, @NotNull final String channel)
+      {
+      channelNames.add("\"" + channel + "_min\"");
+      channelNames.add("\"" + channel + "_max\"");
+      channelNames.add("\"" + channel + "_mean\"");
+      }
+
+   @Override
+   public String toString()
+      {
+      final StringBuilder sb = new StringBuilder("DataSampleRollupSet{");
+      sb.append("size=").append(rollups.size());
+      sb.append(", end=").append(endUtcSecs);
+      sb.append('}');
+      return sb.toString();
+      }
+   }
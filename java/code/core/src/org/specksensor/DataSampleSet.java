@@ -6,7 +6,7 @@ import org.jetbrains.annotations.NotNull;
 /**
  * @author Chris Bartley (bartley@cmu.edu)
  */
-interface DataSampleSet
+public interface DataSampleSet
    {
    int DEFAULT_SIZE = 500;
 
@@ -67,7 +67,14 @@ final class DataSampleSetImpl implements DataSampleSet
          data.append(StringUtils.join(dataSamplesAsJson, ','));
          }
       data.append("]");
-      final StringBuilder channelNames = new StringBuilder("{\"channel_names\":[\"raw_particles\"");
+      return "{\"channel_names\":" + getChannelNamesAsJson(apiSupport) + ",\"data\":" + data + "}";
+      }
+
+   /** Returns the JSON array of channel names for samples having the given {@link ApiSupport}. */
+   @NotNull
+   static String getChannelNamesAsJson(@NotNull final ApiSupport apiSupport)
+      {
+      final StringBuilder channelNames = new StringBuilder("[\"raw_particles\"");
       if (apiSupport.hasParticleCount())
          {
          channelNames.append(",\"particle_count\"");
@@ -80,7 +87,7 @@ final class DataSampleSetImpl implements DataSampleSet
          {
          channelNames.append(",\"temperature\"");
          }
-      channelNames.append(",\"humidity\"],\"data\":" + data + "}");
+      channelNames.append(",\"humidity\"]");
       return channelNames.toString();
       }
    }
@@ -1,5 +1,7 @@
 package org.specksensor;
 
+import java.util.List;
+import java.util.Set;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -41,19 +43,49 @@ interface DataSampleStore
    @NotNull
    SaveResult save(@NotNull Speck.DataSample dataSample);
 
-   /** Finds all samples which are in the uploading state, and resets them so that an upload will be retried. */
+   /**
+    * Finds all samples which are in the uploading state, and resets them so that an upload will be retried.  Stores
+    * whose upload claims expire on their own don't need this to be called at startup.  Samples held by the
+    * {@link UploadSpool} are left alone.
+    */
    void resetStateOfUploadingSamples();
 
    /**
     * Returns a {@link DataSampleSet} containing up to <code>maxNumberRequested</code>
     * {@link Speck.DataSample data samples}.  This method finds data samples which currently have an upload status of
-    * {@link DataSampleUploadStatus#NOT_ATTEMPTED} and marks them as {@link DataSampleUploadStatus#IN_PROGRESS} before
-    * returning.  Defaults to returning no more than {@link DataSampleSet#DEFAULT_SIZE} data samples if the
+    * {@link DataSampleUploadStatus#NOT_ATTEMPTED} or {@link DataSampleUploadStatus#FAILURE} (or
+    * {@link DataSampleUploadStatus#IN_PROGRESS}, if the store's claim on them has expired) and marks them as
+    * {@link DataSampleUploadStatus#IN_PROGRESS} before returning.  Defaults to returning no more than {@link DataSampleSet#DEFAULT_SIZE} data samples if the
     * <code>maxNumberRequested</code> is non-positive.
     */
    @NotNull
    DataSampleSet getDataSamplesToUpload(final int maxNumberRequested);
 
+   /**
+    * Same as {@link #getDataSamplesToUpload(int)}, but only claims samples with a sample time at or after the given
+    * time, newest first, so that the freshest samples can be uploaded ahead of an older backlog.  Samples whose upload
+    * has {@link DataSampleUploadStatus#FAILURE failed} aren't claimed, since they're left to the backlog.
+    */
+   @NotNull
+   DataSampleSet getNewestDataSamplesToUpload(final int sampledSinceUtcSecs, final int maxNumberRequested);
+
+   /**
+    * Returns a {@link DataSampleCursor} over all samples with a sample time within the given range (inclusive), in
+    * ascending order of sample time, regardless of upload status.  Samples are fetched lazily as the cursor is
+    * advanced.  The caller is responsible for {@link DataSampleCursor#close() closing} the cursor.  If the samples can't
+    * be read, the cursor ends early and {@link DataSampleCursor#hasFailed() reports the failure}.
+    */
+   @NotNull
+   DataSampleCursor query(final int fromUtcSecs, final int toUtcSecs);
+
+   /**
+    * Returns the {@link DataSampleRollup rollups} at the given resolution for all buckets overlapping the given time
+    * range (inclusive), in ascending order of bucket start time.  Rollups are kept up to date as samples are saved, and
+    * are not affected by {@link #deleteUploadedDataSamples(long, int) deleting} samples.
+    */
+   @NotNull
+   List<DataSampleRollup> getRollups(@NotNull final DataSampleRollup.Resolution resolution, final int fromUtcSecs, final int toUtcSecs);
+
    /**
     * Marks the samples in the given {@link DataSampleSet} as having been successfully uploaded
     * ({@link DataSampleUploadStatus#SUCCESS}).
@@ -66,6 +98,111 @@ interface DataSampleStore
     */
    void markDataSamplesAsFailed(@NotNull final DataSampleSet dataSampleSet);
 
+   /**
+    * Marks the given samples, which must have been {@link #getDataSamplesToUpload(int) claimed for upload}, as held by
+    * the {@link UploadSpool}.  Their claim then never expires: they stay {@link DataSampleUploadStatus#IN_PROGRESS}
+    * until they're marked with the outcome of the upload, or {@link #releaseSpooledDataSamples(Set) released}.
+    * Returns <code>true</code> if all the samples were marked, <code>false</code> otherwise.
+    */
+   boolean markDataSamplesAsSpooled(@NotNull final DataSampleSet dataSampleSet);
+
+   /** Returns the IDs of all samples held by the {@link UploadSpool}. */
+   @NotNull
+   Set<Integer> getSpooledDataSampleIds();
+
+   /**
+    * Releases all samples held by the {@link UploadSpool}, other than those with the given IDs, so that they're claimed
+    * for upload again.  Returns the number of samples released.
+    */
+   int releaseSpooledDataSamples(@NotNull final Set<Integer> idsToKeep);
+
+   /**
+    * Marks the samples in the given {@link DataSampleSet} as having been rejected by the server, as opposed to having
+    * failed because of a network or server problem.  Each sample's rejection count is incremented, and samples which
+    * have now been rejected <code>maxNumberOfRejections</code> times are marked as
+    * {@link DataSampleUploadStatus#QUARANTINED} so that they're never uploaded again.  The others are marked as
+    * {@link DataSampleUploadStatus#FAILURE}, so that they'll be retried.
+    */
+   void markDataSamplesAsRejected(@NotNull final DataSampleSet dataSampleSet, final int maxNumberOfRejections);
+
+   /**
+    * Renews the upload claim on those samples in the given {@link DataSampleSet} which are still
+    * {@link DataSampleUploadStatus#IN_PROGRESS}, so that their lease starts over, e.g. when a set is split to be
+    * uploaded again in parts.  Samples held by the {@link UploadSpool} are given an ordinary claim too, so the caller
+    * must remove them from the spool, since they're no longer held by it.
+    */
+   void renewUploadClaim(@NotNull final DataSampleSet dataSampleSet);
+
+   /**
+    * Returns up to <code>maxNumberRequested</code> samples saved after the sample having the given database ID (i.e.
+    * having a greater ID), in ascending order of ID, regardless of their upload status.  Upload mirrors use this to
+    * track their progress with an {@link #getUploadCursor(String) upload cursor}, independently of the upload status.
+    */
+   @NotNull
+   DataSampleSet getDataSamplesSavedAfter(final int databaseId, final int maxNumberRequested);
+
+   /**
+    * Returns the database ID of the last sample acknowledged by the upload mirror having the given name, or 0 if the
+    * mirror has no cursor yet.
+    */
+   int getUploadCursor(@NotNull final String mirrorName);
+
+   /**
+    * Sets the cursor of the upload mirror having the given name, creating it if necessary, and notes the time it was
+    * set.  Returns <code>true</code> on success, <code>false</code> otherwise.  See
+    * {@link #deleteUploadedDataSamples(long, int)}.
+    */
+   boolean setUploadCursor(@NotNull final String mirrorName, final int databaseId);
+
+   /**
+    * Returns the start time of the next bucket of {@link DataSampleRollup rollups} at the given resolution which needs
+    * to be uploaded in aggregate mode (see {@link AggregateUpload}), or 0 if no rollups have been uploaded yet.
+    */
+   int getAggregateCursor(@NotNull final DataSampleRollup.Resolution resolution);
+
+   /**
+    * Sets the start time of the next bucket of {@link DataSampleRollup rollups} at the given resolution which needs to
+    * be uploaded, creating the cursor if necessary.  Returns <code>true</code> on success, <code>false</code> otherwise.
+    */
+   boolean setAggregateCursor(@NotNull final DataSampleRollup.Resolution resolution, final int bucketStartUtcSecs);
+
+   /**
+    * Deletes up to <code>maxNumberToDelete</code> samples which were successfully uploaded
+    * ({@link DataSampleUploadStatus#SUCCESS}) before the given time.  Samples which have not yet been uploaded are
+    * never deleted, and neither are samples which an upload mirror hasn't reached yet, unless the mirror's
+    * {@link #setUploadCursor(String, int) cursor} hasn't been set since before the given time (e.g. because the mirror
+    * has been retired).  Returns the number of samples deleted.
+    */
+   int deleteUploadedDataSamples(final long uploadedBeforeUtcMillis, final int maxNumberToDelete);
+
+   /**
+    * Reclaims unused storage space, for example the space left behind by
+    * {@link #deleteUploadedDataSamples(long, int) deleted samples}.  Returns the number of bytes reclaimed, or 0 if
+    * nothing was reclaimed.
+    */
+   long compact();
+
+   /** Returns the cumulative time, in milliseconds, that saves have spent waiting for access to the store. */
+   long getSaveLockWaitMillis();
+
+   /**
+    * Returns the cumulative time, in milliseconds, that upload bookkeeping (getting samples to upload and marking their
+    * upload status) has spent waiting for access to the store.
+    */
+   long getUploadLockWaitMillis();
+
+   /**
+    * Returns the number of samples in the store having the given upload status.  This is cheap to call, since stores
+    * which support it maintain the counts incrementally rather than counting on demand.
+    */
+   int getNumDataSamples(@NotNull final DataSampleUploadStatus status);
+
    /** Perform any required shutdown tasks. */
    void shutdown();
+
+   /**
+    * Same as {@link #shutdown()}, but stops waiting (e.g. for queued samples to be written) once the given deadline,
+    * in UTC milliseconds, has passed.
+    */
+   void shutdown(final long deadlineUtcMillis);
    }
\ No newline at end of file
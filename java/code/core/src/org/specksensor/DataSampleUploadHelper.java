@@ -1,10 +1,12 @@
 package org.specksensor;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.io.IOUtils;
+import com.fasterxml.jackson.databind.ObjectReader;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
@@ -13,11 +15,18 @@ import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.HttpParams;
@@ -47,36 +56,125 @@ public final class DataSampleUploadHelper
     */
    public static final int SOCKET_TIMEOUT_IN_MILLIS = 5 * 60 * 1000; // 5 minutes
 
+   /**
+    * Shared by all uploads, since an {@link ObjectReader} is immutable and thread safe, and creating one (or the mapper
+    * behind it) is far more expensive than using one.
+    */
+   private static final ObjectReader UPLOAD_RESPONSE_READER = new ObjectMapper().reader(DataSampleSetUploadResponseImpl.class);
+
+   private static final String AUTHORIZATION_FAILED_MESSAGE = "Authorization Failed (HTTP " + HttpStatus.SC_UNAUTHORIZED + ")";
+
    @NotNull
    public static String getUploadUrl(@NotNull final RemoteStorageCredentials remoteStorageCredentials)
       {
-      return "http://" + remoteStorageCredentials.getHostName() + ":" + remoteStorageCredentials.getHostPort() + "/api/bodytrack/jupload?dev_nickname=" + remoteStorageCredentials.getDeviceName();
+      return "http://" + remoteStorageCredentials.getHostName() + ":" + remoteStorageCredentials.getHostPort() + getUploadPath(remoteStorageCredentials);
+      }
+
+   /** Returns the path (and query) part of the {@link #getUploadUrl(RemoteStorageCredentials) upload URL}. */
+   @NotNull
+   static String getUploadPath(@NotNull final RemoteStorageCredentials remoteStorageCredentials)
+      {
+      return "/api/bodytrack/jupload?dev_nickname=" + remoteStorageCredentials.getDeviceName();
+      }
+
+   /**
+    * Returns the {@link CircuitBreaker} for the server given by the credentials, which is shared by everything uploading
+    * to (or validating credentials against) that server.
+    */
+   @NotNull
+   public static CircuitBreaker getCircuitBreaker(@NotNull final RemoteStorageCredentials remoteStorageCredentials)
+      {
+      return CircuitBreaker.getInstance(remoteStorageCredentials.getHostName() + ":" + remoteStorageCredentials.getHostPort());
       }
 
+   /**
+    * Uploads the given entity.  If the server has been failing, the upload may be refused without contacting the
+    * server, in which case a failed response is returned.  See {@link #getCircuitBreaker(RemoteStorageCredentials)}.
+    */
    @NotNull
    public static DataSampleSetUploadResponse upload(@NotNull final RemoteStorageCredentials remoteStorageCredentials,
                                                     @NotNull final HttpEntity entity)
       {
-      // set timeouts
-      final HttpParams httpParams = new BasicHttpParams();
+      final DefaultHttpClient httpClient = new DefaultHttpClient(createHttpParams());
+      try
+         {
+         return upload(remoteStorageCredentials, entity, httpClient);
+         }
+      finally
+         {
+         // When the HttpClient instance is no longer needed, shut down the connection manager to ensure immediate
+         // deallocation of all system resources
+         httpClient.getConnectionManager().shutdown();
+         }
+      }
 
-      // This parameter expects a value of type java.lang.Integer. If this parameter is not set, connect operations
-      // will not time out (infinite timeout).
-      httpParams.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, HTTP_TIMEOUT_IN_MILLIS);
+   /**
+    * Creates an {@link HttpClient} whose connections are pooled (up to the given number per server), so that uploads
+    * made with {@link #upload(RemoteStorageCredentials, HttpEntity, HttpClient)} reuse connections instead of opening a
+    * new one every time.  The caller must close it once it's no longer needed.
+    */
+   @NotNull
+   static CloseableHttpClient createPooledHttpClient(final int maxConnectionsPerServer)
+      {
+      final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+      connectionManager.setDefaultMaxPerRoute(Math.max(1, maxConnectionsPerServer));
+      connectionManager.setMaxTotal(Math.max(1, maxConnectionsPerServer) * 4);
+      final RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(HTTP_TIMEOUT_IN_MILLIS)
+            .setSocketTimeout(SOCKET_TIMEOUT_IN_MILLIS)
+            .build();
+      return HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .build();
+      }
 
-      // This parameter expects a value of type java.lang.Integer. If this parameter is not set, read operations will
-      // not time out (infinite timeout).
-      httpParams.setParameter(CoreConnectionPNames.SO_TIMEOUT, SOCKET_TIMEOUT_IN_MILLIS);
+   /**
+    * Same as {@link #upload(RemoteStorageCredentials, HttpEntity)}, but uses the given client, which may be shared by
+    * any number of threads uploading with different credentials, and which is left open.  The entity is closed once
+    * this returns, whether or not it was sent (e.g. because the circuit breaker refused the request, or the connection
+    * failed), so that an entity streamed from a file never holds the file open.
+    */
+   @NotNull
+   static DataSampleSetUploadResponse upload(@NotNull final RemoteStorageCredentials remoteStorageCredentials,
+                                             @NotNull final HttpEntity entity,
+                                             @NotNull final HttpClient httpClient)
+      {
+      try
+         {
+         return uploadEntity(remoteStorageCredentials, entity, httpClient);
+         }
+      finally
+         {
+         EntityUtils.consumeQuietly(entity);
+         }
+      }
 
-      final HttpHost targetHost = new HttpHost(remoteStorageCredentials.getHostName(), remoteStorageCredentials.getHostPort(), "http");
+   @NotNull
+   private static DataSampleSetUploadResponse uploadEntity(@NotNull final RemoteStorageCredentials remoteStorageCredentials,
+                                                           @NotNull final HttpEntity entity,
+                                                           @NotNull final HttpClient httpClient)
+      {
+      final CircuitBreaker circuitBreaker = getCircuitBreaker(remoteStorageCredentials);
+      if (!circuitBreaker.allowRequest())
+         {
+         final String message = "Server [" + circuitBreaker.getTarget() + "] is unavailable, will try again in " + (circuitBreaker.getMillisUntilRetry() / 1000) + " second(s)";
+         LOG.debug("DataSampleUploadHelper.upload(): " + message);
+         return DataSampleSetUploadResponseImpl.createFailedResponse(message);
+         }
 
-      final DefaultHttpClient httpClient = new DefaultHttpClient(httpParams);
+      // only failures to get a response from the server count against it, not rejections of what we sent
+      boolean didServerRespond = false;
+
+      final HttpHost targetHost = new HttpHost(remoteStorageCredentials.getHostName(), remoteStorageCredentials.getHostPort(), "http");
 
       @NotNull DataSampleSetUploadResponse dataSampleSetUploadResponse;
       try
          {
-         // Set up basic auth (got this code from http://hc.apache.org/httpcomponents-client-ga/httpclient/examples/org/apache/http/examples/client/ClientPreemptiveBasicAuthentication.java)
-         httpClient.getCredentialsProvider().setCredentials(
+         // Set up basic auth (got this code from http://hc.apache.org/httpcomponents-client-ga/httpclient/examples/org/apache/http/examples/client/ClientPreemptiveBasicAuthentication.java).
+         // The credentials go in the execution context rather than the client, since the client may be shared.
+         final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+         credentialsProvider.setCredentials(
                new AuthScope(targetHost.getHostName(), targetHost.getPort()),
                new UsernamePasswordCredentials(remoteStorageCredentials.getUsername(), remoteStorageCredentials.getPassword()));
 
@@ -89,108 +187,23 @@ public final class DataSampleUploadHelper
 
          // Add AuthCache to the execution context
          final BasicHttpContext localContext = new BasicHttpContext();
+         localContext.setAttribute(ClientContext.CREDS_PROVIDER, credentialsProvider);
          localContext.setAttribute(ClientContext.AUTH_CACHE, authCache);
 
          final HttpPost httpPost = new HttpPost(getUploadUrl(remoteStorageCredentials));
          httpPost.setEntity(entity);
 
          final HttpResponse response = httpClient.execute(targetHost, httpPost, localContext);
+         didServerRespond = response.getStatusLine().getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR;
          final HttpEntity responseEntity = response.getEntity();
          if (LOG.isDebugEnabled())
             {
             LOG.debug("DataSampleUploadHelper.upload(): response status [" + response.getStatusLine() + "]");
             }
 
-         if (HttpStatus.SC_UNAUTHORIZED == response.getStatusLine().getStatusCode())
-            {
-            final String message = "Authorization Failed (HTTP " + HttpStatus.SC_UNAUTHORIZED + ")";
-            LOG.error("DataSampleUploadHelper.upload(): " + message);
-            dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
-            }
-         else
-            {
-            if (responseEntity == null)
-               {
-               final String message = "HTTP entity response is null";
-               LOG.error("DataSampleUploadHelper.upload(): " + message);
-               dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
-               }
-            else
-               {
-               try
-                  {
-                  // read the response into a String
-                  final StringWriter writer = new StringWriter();
-                  IOUtils.copy(responseEntity.getContent(), writer, "UTF-8");
-                  final String responseStr = writer.toString();
-
-                  // Skip everything before the first curly brace
-                  String json = null;
-                  try
-                     {
-                     final int openBracePosition = responseStr.indexOf("{");
-                     if (openBracePosition >= 0)
-                        {
-                        json = responseStr.substring(openBracePosition);
-                        }
-                     else
-                        {
-                        LOG.error("DataSampleUploadHelper.upload(): Error while parsing the JSON response: open brace not found");
-                        }
-                     }
-                  catch (Exception e)
-                     {
-                     LOG.error("DataSampleUploadHelper.upload(): Exception while parsing the JSON response", e);
-                     }
-
-                  if (LOG.isDebugEnabled())
-                     {
-                     LOG.debug("DataSampleUploadHelper.upload(): response [" + json + "]");
-                     }
-
-                  if (json == null)
-                     {
-                     final String message = "Response not recognized as JSON (no opening curly brace)";
-                     LOG.error("DataSampleUploadHelper.upload(): " + message);
-                     dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
-                     }
-                  else
-                     {
-                     // now parse the response, converting the JSON into a DataSampleSetUploadResponse
-                     try
-                        {
-                        final ObjectMapper mapper = new ObjectMapper();
-                        dataSampleSetUploadResponse = mapper.readValue(json, DataSampleSetUploadResponseImpl.class);
-                        }
-                     catch (IOException e)
-                        {
-                        final String message = "IOException while trying to parse the response as JSON";
-                        LOG.error("DataSampleUploadHelper.upload(): " + message, e);
-                        dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
-                        }
-                     }
-                  }
-               catch (IOException e)
-                  {
-                  final String message = "IOException while reading or parsing the response";
-                  LOG.error("DataSampleUploadHelper.upload(): " + message, e);
-                  dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
-                  }
-               catch (IllegalStateException e)
-                  {
-                  final String message = "IllegalStateException while reading the response";
-                  LOG.error("DataSampleUploadHelper.upload(): " + message, e);
-                  dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
-                  }
-               catch (Exception e)
-                  {
-                  final String message = "Exception while reading the response";
-                  LOG.error("DataSampleUploadHelper.upload(): " + message, e);
-                  dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
-                  }
-               }
-            }
+         dataSampleSetUploadResponse = readResponse(response.getStatusLine().getStatusCode(), (responseEntity == null) ? null : responseEntity.getContent());
 
+         // consuming the entity also releases the connection back to the pool, if there is one
          EntityUtils.consume(responseEntity);
          }
       catch (ClientProtocolException e)
@@ -213,14 +226,140 @@ public final class DataSampleUploadHelper
          }
       finally
          {
-         // When the HttpClient instance is no longer needed, shut down the connection manager to ensure immediate
-         // deallocation of all system resources
-         httpClient.getConnectionManager().shutdown();
+         if (didServerRespond)
+            {
+            circuitBreaker.recordSuccess();
+            }
+         else
+            {
+            circuitBreaker.recordFailure();
+            }
+         }
+
+      return dataSampleSetUploadResponse;
+      }
+
+   @NotNull
+   private static HttpParams createHttpParams()
+      {
+      // set timeouts
+      final HttpParams httpParams = new BasicHttpParams();
+
+      // This parameter expects a value of type java.lang.Integer. If this parameter is not set, connect operations
+      // will not time out (infinite timeout).
+      httpParams.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, HTTP_TIMEOUT_IN_MILLIS);
+
+      // This parameter expects a value of type java.lang.Integer. If this parameter is not set, read operations will
+      // not time out (infinite timeout).
+      httpParams.setParameter(CoreConnectionPNames.SO_TIMEOUT, SOCKET_TIMEOUT_IN_MILLIS);
+
+      return httpParams;
+      }
+
+   /**
+    * Converts the server's response into a {@link DataSampleSetUploadResponse}, returning a failed response if the
+    * request wasn't authorized or the content isn't a JSON upload response.  Used by both the blocking upload here and
+    * the {@link NonBlockingUploadEngine}.
+    */
+   @NotNull
+   static DataSampleSetUploadResponse readResponse(final int statusCode, @Nullable final InputStream content)
+      {
+      @NotNull DataSampleSetUploadResponse dataSampleSetUploadResponse;
+      if (HttpStatus.SC_UNAUTHORIZED == statusCode)
+         {
+         LOG.error("DataSampleUploadHelper.readResponse(): " + AUTHORIZATION_FAILED_MESSAGE);
+         dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(AUTHORIZATION_FAILED_MESSAGE);
          }
+      else if (content == null)
+         {
+         final String message = "HTTP entity response is null";
+         LOG.error("DataSampleUploadHelper.readResponse(): " + message);
+         dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
+         }
+      else
+         {
+         try
+            {
+            // Parse straight from the response stream, skipping everything before the first curly brace in place
+            final InputStream inputStream = new BufferedInputStream(content);
+            if (skipToOpeningBrace(inputStream))
+               {
+               // now parse the response, converting the JSON into a DataSampleSetUploadResponse
+               try
+                  {
+                  dataSampleSetUploadResponse = UPLOAD_RESPONSE_READER.readValue(inputStream);
+                  }
+               catch (JsonProcessingException e)
+                  {
+                  final String message = "JsonProcessingException while trying to parse the response as JSON";
+                  LOG.error("DataSampleUploadHelper.readResponse(): " + message, e);
+                  dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
+                  }
 
+               if (LOG.isDebugEnabled())
+                  {
+                  LOG.debug("DataSampleUploadHelper.readResponse(): response [" + dataSampleSetUploadResponse + "]");
+                  }
+               }
+            else
+               {
+               final String message = "Response not recognized as JSON (no opening curly brace)";
+               LOG.error("DataSampleUploadHelper.readResponse(): " + message);
+               dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
+               }
+            }
+         catch (IOException e)
+            {
+            final String message = "IOException while reading or parsing the response";
+            LOG.error("DataSampleUploadHelper.readResponse(): " + message, e);
+            dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
+            }
+         catch (Exception e)
+            {
+            final String message = "Exception while reading the response";
+            LOG.error("DataSampleUploadHelper.readResponse(): " + message, e);
+            dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
+            }
+         }
       return dataSampleSetUploadResponse;
       }
 
+   /** Returns whether the given response is a failure because the server didn't accept the credentials (an HTTP 401). */
+   static boolean isAuthorizationFailure(@NotNull final DataSampleSetUploadResponse response)
+      {
+      return !response.wasSuccessful() && AUTHORIZATION_FAILED_MESSAGE.equals(response.getMessage());
+      }
+
+   /** Returns a failed response having the given message. */
+   @NotNull
+   static DataSampleSetUploadResponse createFailedResponse(@NotNull final String message)
+      {
+      return DataSampleSetUploadResponseImpl.createFailedResponse(message);
+      }
+
+   /**
+    * Advances the given stream to the first curly brace, leaving the brace as the next byte to be read.  The stream must
+    * support {@link InputStream#mark(int) mark}.  Returns <code>false</code> if the end of the stream was reached
+    * without finding a curly brace.
+    */
+   private static boolean skipToOpeningBrace(@NotNull final InputStream inputStream) throws IOException
+      {
+      while (true)
+         {
+         inputStream.mark(1);
+         final int b = inputStream.read();
+         if (b < 0)
+            {
+            return false;
+            }
+         if (b == '{')
+            {
+            inputStream.reset();
+            return true;
+            }
+         }
+      }
+
    private DataSampleUploadHelper()
       {
       // private to prevent instantiation
@@ -15,7 +15,10 @@ enum DataSampleUploadStatus
       NOT_ATTEMPTED("not_attempted"),
       IN_PROGRESS("in_progress"),
       SUCCESS("success"),
-      FAILURE("failure");
+      FAILURE("failure"),
+
+      /** Rejected by the server too many times, so no longer uploaded (but kept, so that it can be inspected). */
+      QUARANTINED("quarantined");
 
    private final String name;
 
@@ -2,9 +2,9 @@ package org.specksensor;
 
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.log4j.Logger;
@@ -23,6 +23,46 @@ public final class DataSampleUploader
    private static final int DEFAULT_MAX_NUM_UPLOAD_THREADS = 1;
    private static final int MAX_NUM_UPLOAD_THREADS;
 
+   /**
+    * How uploads are performed: <code>blocking</code> (the default) performs each upload on an upload thread (see
+    * {@link #MAX_NUM_UPLOAD_THREADS_SYSTEM_PROPERTY}), and <code>non-blocking</code> hands uploads to the
+    * {@link NonBlockingUploadEngine}, which multiplexes many uploads on a few I/O threads.
+    */
+   public static final String BACKEND_SYSTEM_PROPERTY = "org.specksensor.DataSampleUploader.backend";
+
+   public enum Backend
+      {
+         BLOCKING("blocking"),
+         NON_BLOCKING("non-blocking");
+
+      @NotNull
+      private static Backend findByName(@Nullable final String name, @NotNull final Backend defaultBackend)
+         {
+         for (final Backend backend : values())
+            {
+            if (backend.name.equalsIgnoreCase(StringUtils.trim(name)))
+               {
+               return backend;
+               }
+            }
+         return defaultBackend;
+         }
+
+      private final String name;
+
+      private Backend(final String name)
+         {
+         this.name = name;
+         }
+
+      public String getName()
+         {
+         return name;
+         }
+      }
+
+   private static final Backend BACKEND = Backend.findByName(System.getProperty(BACKEND_SYSTEM_PROPERTY), Backend.BLOCKING);
+
    static
       {
       final String maxNumUploadThreadsStr = System.getProperty(MAX_NUM_UPLOAD_THREADS_SYSTEM_PROPERTY);
@@ -46,7 +86,9 @@ public final class DataSampleUploader
          MAX_NUM_UPLOAD_THREADS = Math.max(1, maxNumUploadThreads);
          }
 
-      final String message = "DataSampleUploader: using up to [" + MAX_NUM_UPLOAD_THREADS + "] upload thread(s).";
+      final String message = (BACKEND == Backend.NON_BLOCKING) ?
+                             "DataSampleUploader: using the non-blocking upload engine." :
+                             "DataSampleUploader: using up to [" + MAX_NUM_UPLOAD_THREADS + "] upload thread(s).";
       LOG.info(message);
       CONSOLE_LOG.info(message);
       }
@@ -58,19 +100,54 @@ public final class DataSampleUploader
 
    public interface EventListener
       {
+      /**
+       * Called when an upload which the {@link UploadRateLimiter} postponed is finally about to be sent, which may be
+       * long after it was submitted.
+       */
+      void handleDataSamplesUploadStartingAfterDelayEvent(@NotNull final DataSampleSet dataSampleSet);
+
       void handleDataSamplesUploadedEvent(@NotNull final DataSampleSet dataSampleSet, @Nullable final DataSampleSetUploadResponse uploadResponse);
       }
 
-   private final ExecutorService executor = Executors.newFixedThreadPool(MAX_NUM_UPLOAD_THREADS, new DaemonThreadFactory(this.getClass() + ".executor"));
+   /**
+    * Shared by all uploaders, so that the number of simultaneous uploads stays the same no matter how many Specks are
+    * connected.  Each DataSampleManager only has one upload outstanding at a time, so the component's FIFO queue takes
+    * turns between them.
+    */
+   private static final ExecutionRuntime.Component EXECUTOR = ExecutionRuntime.getInstance().getComponent("DataSampleUploader", MAX_NUM_UPLOAD_THREADS);
+
+   private static final UploadRateLimiter RATE_LIMITER = UploadRateLimiter.getInstance();
+
    private final Set<EventListener> eventListeners = new HashSet<EventListener>();
 
+   @NotNull
+   private final ExecutionRuntime.Component executor;
+
+   private volatile boolean isShutDown = false;
+
    /**
     * Constructs a <code>DataSampleUploader</code> for the given {@link RemoteStorageCredentials} and {@link RemoteStorageCredentials}.
     */
    public DataSampleUploader(@NotNull final SpeckConfig speckConfig, @NotNull final RemoteStorageCredentials remoteStorageCredentials)
+      {
+      this(speckConfig, remoteStorageCredentials, EXECUTOR);
+      }
+
+   /**
+    * Constructs a <code>DataSampleUploader</code> for the {@link UploadMirror upload mirror} having the given name.  Its
+    * uploads run on an executor of their own (shared only with the same mirror's uploaders for other Specks), so that a
+    * slow or failing mirror never holds up uploads to the primary server or to other mirrors.
+    */
+   DataSampleUploader(@NotNull final SpeckConfig speckConfig, @NotNull final RemoteStorageCredentials remoteStorageCredentials, @NotNull final String mirrorName)
+      {
+      this(speckConfig, remoteStorageCredentials, ExecutionRuntime.getInstance().getComponent("DataSampleUploader[" + mirrorName + "]", MAX_NUM_UPLOAD_THREADS));
+      }
+
+   private DataSampleUploader(@NotNull final SpeckConfig speckConfig, @NotNull final RemoteStorageCredentials remoteStorageCredentials, @NotNull final ExecutionRuntime.Component executor)
       {
       this.speckConfig = speckConfig;
       this.remoteStorageCredentials = remoteStorageCredentials;
+      this.executor = executor;
 
       if (LOG.isInfoEnabled())
          {
@@ -86,6 +163,16 @@ public final class DataSampleUploader
       return MAX_NUM_UPLOAD_THREADS;
       }
 
+   /**
+    * Stops this uploader from starting any more uploads.  Uploads which were submitted but haven't started yet (e.g.
+    * because the {@link UploadRateLimiter} delayed them) are reported to the listeners as failed instead of being sent,
+    * but uploads which are already underway are left to finish.
+    */
+   public void shutdown()
+      {
+      isShutDown = true;
+      }
+
    public void addEventListener(@Nullable final EventListener listener)
       {
       if (listener != null)
@@ -94,7 +181,21 @@ public final class DataSampleUploader
          }
       }
 
+   /**
+    * Submits the given set for upload in the {@link UploadRateLimiter.Lane#BACKLOG backlog} lane.
+    *
+    * @see #submitUploadDataSampleSetTask(DataSampleSet, UploadRateLimiter.Lane)
+    */
    public void submitUploadDataSampleSetTask(@NotNull final DataSampleSet dataSampleSet)
+      {
+      submitUploadDataSampleSetTask(dataSampleSet, UploadRateLimiter.Lane.BACKLOG);
+      }
+
+   /**
+    * Submits the given set for upload.  The set is serialized right away, so that its size can be charged against the
+    * given lane of the shared {@link UploadRateLimiter}, and the upload is delayed if the limiter says so.
+    */
+   public void submitUploadDataSampleSetTask(@NotNull final DataSampleSet dataSampleSet, @NotNull final UploadRateLimiter.Lane lane)
       {
       if (LOG.isDebugEnabled())
          {
@@ -103,30 +204,114 @@ public final class DataSampleUploader
 
       if (!dataSampleSet.isEmpty())
          {
-         executor.execute(new UploadDataSampleSetTask(dataSampleSet));
+         // spooled batches are streamed from the spool file when the task runs, rather than held in memory until then
+         final HttpEntity entity;
+         final long numBytes;
+         if (dataSampleSet instanceof UploadSpool.Batch)
+            {
+            entity = null;
+            numBytes = ((UploadSpool.Batch)dataSampleSet).getBodyLength();
+            }
+         else
+            {
+            entity = createJsonEntity(dataSampleSet);
+            numBytes = entity.getContentLength();
+            }
+         final long delayMillis = RATE_LIMITER.reserve(dataSampleSet.size(), numBytes, lane);
+         final UploadDataSampleSetTask task = new UploadDataSampleSetTask(dataSampleSet, entity, delayMillis > 0);
+         if (delayMillis > 0)
+            {
+            executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+         else
+            {
+            executor.execute(task);
+            }
          }
       }
 
+   @NotNull
+   private HttpEntity createJsonEntity(@NotNull final DataSampleSet dataSampleSet)
+      {
+      return new StringEntity(dataSampleSet.toJson(speckConfig.getApiSupport()), ContentType.APPLICATION_JSON);
+      }
+
    private final class UploadDataSampleSetTask implements Runnable
       {
       @NotNull
       private final DataSampleSet dataSampleSet;
 
-      private UploadDataSampleSetTask(@NotNull final DataSampleSet dataSampleSet)
+      /** The entity to upload, or <code>null</code> if it should be read from the spool when the task runs. */
+      @Nullable
+      private final HttpEntity entity;
+
+      private final boolean wasPostponed;
+
+      private UploadDataSampleSetTask(@NotNull final DataSampleSet dataSampleSet, @Nullable final HttpEntity entity, final boolean wasPostponed)
          {
          this.dataSampleSet = dataSampleSet;
+         this.entity = entity;
+         this.wasPostponed = wasPostponed;
          }
 
       @Override
       public void run()
          {
-         final DataSampleSetUploadResponse dataSampleSetUploadResponse = DataSampleUploadHelper.upload(remoteStorageCredentials,
-                                                                                                       new StringEntity(dataSampleSet.toJson(speckConfig.getApiSupport()), ContentType.APPLICATION_JSON));
-         // notify listeners
+         if (isShutDown)
+            {
+            LOG.info("DataSampleUploader$UploadDataSampleSetTask.run(): Not uploading batch " + dataSampleSet + ", since the uploader has been shut down");
+            notifyEventListeners(null);
+            return;
+            }
+
+         if (wasPostponed)
+            {
+            for (final EventListener listener : eventListeners)
+               {
+               listener.handleDataSamplesUploadStartingAfterDelayEvent(dataSampleSet);
+               }
+            }
+
+         HttpEntity entityToUpload = entity;
+         if (entityToUpload == null)
+            {
+            try
+               {
+               entityToUpload = ((UploadSpool.Batch)dataSampleSet).createEntity();
+               }
+            catch (Exception e)
+               {
+               LOG.error("DataSampleUploader$UploadDataSampleSetTask.run(): Failed to read batch " + dataSampleSet + " from the spool, so serializing it again instead", e);
+               entityToUpload = createJsonEntity(dataSampleSet);
+               }
+            }
+
+         if (BACKEND == Backend.NON_BLOCKING)
+            {
+            // the engine calls us back once the upload is done, so this thread is free again right away
+            NonBlockingUploadEngine.getInstance().upload(remoteStorageCredentials,
+                                                         entityToUpload,
+                                                         new NonBlockingUploadEngine.Callback()
+                                                         {
+                                                         @Override
+                                                         public void handleUploadResponse(@NotNull final DataSampleSetUploadResponse uploadResponse)
+                                                            {
+                                                            notifyEventListeners(uploadResponse);
+                                                            }
+                                                         });
+            }
+         else
+            {
+            notifyEventListeners(DataSampleUploadHelper.upload(remoteStorageCredentials, entityToUpload));
+            }
+         }
+
+      private void notifyEventListeners(@Nullable final DataSampleSetUploadResponse dataSampleSetUploadResponse)
+         {
          for (final EventListener listener : eventListeners)
             {
             listener.handleDataSamplesUploadedEvent(dataSampleSet, dataSampleSetUploadResponse);
             }
          }
       }
-   }
\ No newline at end of file
+   }
@@ -1,6 +1,7 @@
 package org.specksensor;
 
 import java.io.File;
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -8,12 +9,23 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import edu.cmu.ri.createlab.persistence.DatabaseUtils;
@@ -27,13 +39,45 @@ import org.jetbrains.annotations.Nullable;
  * <code>DatabaseDataSampleStore</code> handles storage and retrieval of {@link Speck.DataSample data samples}, storing
  * them in a local database.
  * </p>
- * <p>By default, if the database doesn't exist it will be created in a subdirectory of the user's home directory
- * (e.g. <code>~/CREATELab/Speck/Speck00343135321504100f17/database</code>).  This can be overridden by specifying a
- * different directory in the <code>derby.system.home</code> system property.
+ * <p>If the database doesn't exist it will be created in a subdirectory of the user's home directory
+ * (e.g. <code>~/CREATELab/Speck/Speck00343135321504100f17/database</code>).  The database is opened by absolute path,
+ * so the <code>derby.system.home</code> system property (which defaults to <code>~/CREATELab/Speck</code>) only
+ * determines where Derby writes its log.  A single Derby engine is shared by the databases of all the Specks in the
+ * process, and may be booted ahead of time with {@link #bootEngineInBackground()}.  Shutting down a store only shuts
+ * down its own database.
  * </p>
  * <p>
  * Much of this code is taken from the Apache Derby project's <a href="http://svn.apache.org/repos/asf/db/derby/code/trunk/java/demo/simple/SimpleApp.java">SimpleApp example</a>.
  * </p>
+ * <p>
+ * Saves use their own connection and lock, separate from the connection and lock used for upload bookkeeping
+ * (selecting samples to upload and updating their upload status).  Both connections use row-level locking at the
+ * read-committed isolation level, so a slow upload select never holds up a save from the download thread, and vice
+ * versa.
+ * </p>
+ * <p>
+ * Samples handed out for upload are marked {@link DataSampleUploadStatus#IN_PROGRESS IN_PROGRESS} along with the time
+ * of the claim.  Claims expire after a lease (and claims left by a previous run of the program expire immediately), at
+ * which point the samples are simply handed out again, so there's no need to reset in-progress samples at startup.
+ * The exception is samples {@link #markDataSamplesAsSpooled(DataSampleSet) held by the upload spool}, whose claim never
+ * expires, since the spool persists across restarts.
+ * </p>
+ * <p>
+ * Each sample also counts how many times the server has rejected it.  Once that count reaches the limit given to
+ * {@link #markDataSamplesAsRejected(DataSampleSet, int)}, the sample is {@link DataSampleUploadStatus#QUARANTINED
+ * QUARANTINED}: it's no longer handed out for upload, and it's never purged, so it can be inspected later.
+ * </p>
+ * <p>
+ * Upload mirrors don't use the upload status at all.  Each tracks its progress with a cursor (the ID of the last sample
+ * it has acknowledged) in the SpeckUploadCursors table, and purging never deletes samples beyond the lowest cursor.
+ * </p>
+ * <p>
+ * Per-minute and per-hour rollups (min, max, and mean of each channel) are kept in the SpeckRollups table, and are
+ * updated in the same transaction as each insert.  Since a bucket's rollup doesn't depend on the order in which its
+ * samples arrive, late backfill is handled the same as live samples.  Bulk imports use
+ * {@link #saveBatch(List) batched saves}, which insert many samples in one transaction and update each bucket once.
+ * In aggregate mode, the start of the next bucket of rollups to upload is kept in the SpeckAggregateCursors table.
+ * </p>
  *
  * @author Chris Bartley (bartley@cmu.edu)
  * @author Apache Derby
@@ -46,6 +90,8 @@ final class DatabaseDataSampleStore implements DataSampleStore
    private static final String DERBY_SYSTEM_HOME_PROPERTY_KEY = "derby.system.home";
 
    private static final String DATABASE_NAME = "db";
+   private static final String SCHEMA_NAME = "SPECK";
+   private static final String TABLE_NAME = "SPECKSAMPLES";
 
    private static final String DRIVER_NAME = "org.apache.derby.jdbc.EmbeddedDriver";
    private static final String PROTOCOL = "jdbc:derby:";
@@ -54,7 +100,7 @@ final class DatabaseDataSampleStore implements DataSampleStore
    private static final String STATEMENT_INSERT_SAMPLE = "INSERT INTO SpeckSamples (raw_particle_count, particle_count, temperature, humidity, sample_timestamp_utc_secs, download_timestamp_utc_millis) VALUES (?, ?, ?, ?, ?, ?)";
 
    private static final String STATEMENT_NAME_UPDATE_ALL_SAMPLES_HAVING_STATUS = "update_all_samples_having_status";
-   private static final String STATEMENT_UPDATE_ALL_SAMPLES_HAVING_STATUS = "UPDATE SpeckSamples SET UPLOAD_STATUS = ? WHERE UPLOAD_STATUS = ?";
+   private static final String STATEMENT_UPDATE_ALL_SAMPLES_HAVING_STATUS = "UPDATE SpeckSamples SET UPLOAD_STATUS = ?, UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS = NULL WHERE UPLOAD_STATUS = ? AND (UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS IS NULL OR UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS < ?)";
 
    private static final String STATEMENT_NAME_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED = "select_samples_needing_to_be_uploaded";
    private static final String STATEMENT_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED = "SELECT\n" +
@@ -68,16 +114,147 @@ final class DatabaseDataSampleStore implements DataSampleStore
                                                                                  "       SpeckSamples.RAW_PARTICLE_COUNT,\n" +
                                                                                  "       SpeckSamples.PARTICLE_COUNT,\n" +
                                                                                  "       SpeckSamples.TEMPERATURE,\n" +
-                                                                                 "       SpeckSamples.HUMIDITY\n" +
+                                                                                 "       SpeckSamples.HUMIDITY,\n" +
+                                                                                 "       SpeckSamples.UPLOAD_STATUS\n" +
                                                                                  "    FROM SpeckSamples\n" +
                                                                                  "    WHERE\n" +
                                                                                  "       SpeckSamples.UPLOAD_STATUS = '" + DataSampleUploadStatus.NOT_ATTEMPTED.getName() + "' OR\n" +
-                                                                                 "       SpeckSamples.UPLOAD_STATUS = '" + DataSampleUploadStatus.FAILURE.getName() + "'\n" +
+                                                                                 "       SpeckSamples.UPLOAD_STATUS = '" + DataSampleUploadStatus.FAILURE.getName() + "' OR\n" +
+                                                                                 "       (SpeckSamples.UPLOAD_STATUS = '" + DataSampleUploadStatus.IN_PROGRESS.getName() + "' AND\n" +
+                                                                                 "        (SpeckSamples.UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS IS NULL OR\n" +
+                                                                                 "         SpeckSamples.UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS < ?))\n" +
                                                                                  "   ) AS TEMP\n" +
                                                                                  "WHERE NUM_ROWS <= ?\n";
 
+   private static final String STATEMENT_NAME_SELECT_NEWEST_SAMPLES_NEEDING_TO_BE_UPLOADED = "select_newest_samples_needing_to_be_uploaded";
+   private static final String STATEMENT_SELECT_NEWEST_SAMPLES_NEEDING_TO_BE_UPLOADED = "SELECT\n" +
+                                                                                        "   id,\n" +
+                                                                                        "   SAMPLE_TIMESTAMP_UTC_SECS,\n" +
+                                                                                        "   RAW_PARTICLE_COUNT,\n" +
+                                                                                        "   PARTICLE_COUNT,\n" +
+                                                                                        "   TEMPERATURE,\n" +
+                                                                                        "   HUMIDITY,\n" +
+                                                                                        "   UPLOAD_STATUS\n" +
+                                                                                        "FROM SpeckSamples\n" +
+                                                                                        "WHERE\n" +
+                                                                                        "   SAMPLE_TIMESTAMP_UTC_SECS >= ? AND\n" +
+                                                                                        "   (UPLOAD_STATUS = '" + DataSampleUploadStatus.NOT_ATTEMPTED.getName() + "' OR\n" +
+                                                                                        "    (UPLOAD_STATUS = '" + DataSampleUploadStatus.IN_PROGRESS.getName() + "' AND\n" +
+                                                                                        "     (UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS IS NULL OR\n" +
+                                                                                        "      UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS < ?)))\n" +
+                                                                                        "ORDER BY SAMPLE_TIMESTAMP_UTC_SECS DESC\n";
+
+   private static final String STATEMENT_NAME_SELECT_IDS_OF_SAMPLES_UPLOADED_BEFORE = "select_ids_of_samples_uploaded_before";
+   private static final String STATEMENT_SELECT_IDS_OF_SAMPLES_UPLOADED_BEFORE = "SELECT id FROM SpeckSamples WHERE UPLOAD_STATUS = '" + DataSampleUploadStatus.SUCCESS.getName() + "' AND UPLOAD_TIMESTAMP_UTC_MILLIS < ? AND id <= ?";
+
+   private static final String STATEMENT_NAME_SELECT_SAMPLES_SAVED_AFTER = "select_samples_saved_after";
+   private static final String STATEMENT_SELECT_SAMPLES_SAVED_AFTER = "SELECT id, SAMPLE_TIMESTAMP_UTC_SECS, RAW_PARTICLE_COUNT, PARTICLE_COUNT, TEMPERATURE, HUMIDITY FROM SpeckSamples WHERE id > ? ORDER BY id";
+
+   private static final String STATEMENT_NAME_SELECT_UPLOAD_CURSOR = "select_upload_cursor";
+   private static final String STATEMENT_SELECT_UPLOAD_CURSOR = "SELECT last_sample_id FROM SpeckUploadCursors WHERE mirror_name = ?";
+   private static final String STATEMENT_NAME_UPDATE_UPLOAD_CURSOR = "update_upload_cursor";
+   private static final String STATEMENT_UPDATE_UPLOAD_CURSOR = "UPDATE SpeckUploadCursors SET last_sample_id = ?, set_timestamp_utc_millis = ? WHERE mirror_name = ?";
+   private static final String STATEMENT_NAME_INSERT_UPLOAD_CURSOR = "insert_upload_cursor";
+   private static final String STATEMENT_INSERT_UPLOAD_CURSOR = "INSERT INTO SpeckUploadCursors (last_sample_id, set_timestamp_utc_millis, mirror_name) VALUES (?, ?, ?)";
+
+   /** The lowest cursor of the mirrors which have set their cursor since the given time, or NULL if there are none. */
+   private static final String STATEMENT_NAME_SELECT_LOWEST_UPLOAD_CURSOR = "select_lowest_upload_cursor";
+   private static final String STATEMENT_SELECT_LOWEST_UPLOAD_CURSOR = "SELECT MIN(last_sample_id) FROM SpeckUploadCursors WHERE set_timestamp_utc_millis >= ?";
+
+   private static final String STATEMENT_NAME_SELECT_AGGREGATE_CURSOR = "select_aggregate_cursor";
+   private static final String STATEMENT_SELECT_AGGREGATE_CURSOR = "SELECT next_bucket_start_utc_secs FROM SpeckAggregateCursors WHERE resolution_secs = ?";
+   private static final String STATEMENT_NAME_UPDATE_AGGREGATE_CURSOR = "update_aggregate_cursor";
+   private static final String STATEMENT_UPDATE_AGGREGATE_CURSOR = "UPDATE SpeckAggregateCursors SET next_bucket_start_utc_secs = ? WHERE resolution_secs = ?";
+   private static final String STATEMENT_NAME_INSERT_AGGREGATE_CURSOR = "insert_aggregate_cursor";
+   private static final String STATEMENT_INSERT_AGGREGATE_CURSOR = "INSERT INTO SpeckAggregateCursors (next_bucket_start_utc_secs, resolution_secs) VALUES (?, ?)";
+
+   private static final String STATEMENT_SELECT_SAMPLES_IN_RANGE = "SELECT id, SAMPLE_TIMESTAMP_UTC_SECS, RAW_PARTICLE_COUNT, PARTICLE_COUNT, TEMPERATURE, HUMIDITY FROM SpeckSamples WHERE SAMPLE_TIMESTAMP_UTC_SECS BETWEEN ? AND ? ORDER BY SAMPLE_TIMESTAMP_UTC_SECS";
+
+   private static final String ROLLUP_COLUMN_NAMES = "num_samples, min_particle_count, max_particle_count, sum_particle_count, min_temperature, max_temperature, sum_temperature, min_humidity, max_humidity, sum_humidity";
+
+   private static final String STATEMENT_NAME_UPDATE_ROLLUP = "update_rollup";
+   private static final String STATEMENT_UPDATE_ROLLUP = "UPDATE SpeckRollups SET num_samples = num_samples + 1, " +
+                                                         getRollupColumnUpdates("particle_count") + ", " +
+                                                         getRollupColumnUpdates("temperature") + ", " +
+                                                         getRollupColumnUpdates("humidity") +
+                                                         " WHERE resolution_secs = ? AND bucket_start_utc_secs = ?";
+
+   private static final String STATEMENT_NAME_INSERT_ROLLUP = "insert_rollup";
+   private static final String STATEMENT_INSERT_ROLLUP = "INSERT INTO SpeckRollups (resolution_secs, bucket_start_utc_secs, " + ROLLUP_COLUMN_NAMES + ") VALUES (?, ?, 1, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+   /** Folds a whole batch's worth of samples into a rollup bucket at once.  See {@link #saveBatch(List)}. */
+   private static final String STATEMENT_NAME_MERGE_ROLLUP = "merge_rollup";
+   private static final String STATEMENT_MERGE_ROLLUP = "UPDATE SpeckRollups SET num_samples = num_samples + ?, " +
+                                                        getRollupColumnUpdates("particle_count") + ", " +
+                                                        getRollupColumnUpdates("temperature") + ", " +
+                                                        getRollupColumnUpdates("humidity") +
+                                                        " WHERE resolution_secs = ? AND bucket_start_utc_secs = ?";
+
+   private static final String STATEMENT_NAME_INSERT_MERGED_ROLLUP = "insert_merged_rollup";
+   private static final String STATEMENT_INSERT_MERGED_ROLLUP = "INSERT INTO SpeckRollups (resolution_secs, bucket_start_utc_secs, " + ROLLUP_COLUMN_NAMES + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+   private static final String STATEMENT_NAME_SELECT_SAMPLE_TIMES_IN_RANGE = "select_sample_times_in_range";
+   private static final String STATEMENT_SELECT_SAMPLE_TIMES_IN_RANGE = "SELECT SAMPLE_TIMESTAMP_UTC_SECS FROM SpeckSamples WHERE SAMPLE_TIMESTAMP_UTC_SECS BETWEEN ? AND ?";
+
+   /**
+    * When looking for samples already in the store, a batch's sample times are split into runs wherever there's a gap
+    * longer than this, and each run is looked up separately, so that no lookup scans much more than the batch covers.
+    */
+   private static final int MAX_SAMPLE_TIME_GAP_WITHIN_RUN_SECS = 3600;
+
+   private static final String STATEMENT_SELECT_ROLLUPS_IN_RANGE = "SELECT bucket_start_utc_secs, " + ROLLUP_COLUMN_NAMES + " FROM SpeckRollups WHERE resolution_secs = ? AND bucket_start_utc_secs BETWEEN ? AND ? ORDER BY bucket_start_utc_secs";
+
+   private static final String STATEMENT_SELECT_COUNTERS = "SELECT name, counter_value FROM SpeckCounters";
+   private static final String STATEMENT_INSERT_COUNTER = "INSERT INTO SpeckCounters (name, counter_value) VALUES (?, ?)";
+   private static final String STATEMENT_DELETE_COUNTERS = "DELETE FROM SpeckCounters";
+   private static final String STATEMENT_COUNT_SAMPLES_BY_UPLOAD_STATUS = "SELECT upload_status, COUNT(*) FROM SpeckSamples GROUP BY upload_status";
+
+   /**
+    * Name of the counter which is set to 1 when the upload status counts are checkpointed at shutdown, and cleared to 0
+    * once they've been loaded at startup.  If it's not 1 at startup (e.g. after a crash), the counts are recomputed.
+    */
+   private static final String COUNTER_NAME_CHECKPOINT_IS_CURRENT = "checkpoint_is_current";
+
+   // The three SMALLINT flags are purge, defragment, and truncate.  We skip defragmenting since it moves rows around
+   // and holds locks for much longer, which would stall saves while it runs.
+   private static final String STATEMENT_INPLACE_COMPRESS_TABLE = "CALL SYSCS_UTIL.SYSCS_INPLACE_COMPRESS_TABLE(?, ?, 1, 0, 1)";
+   private static final String STATEMENT_SELECT_ALLOCATED_BYTES = "SELECT SUM((NUMALLOCATEDPAGES + NUMFREEPAGES) * PAGESIZE) FROM TABLE (SYSCS_DIAG.SPACE_TABLE(?, ?)) AS T";
+
+   /** Number of rows fetched from the database at a time when iterating over the results of a {@link #query(int, int) query}. */
+   static final String QUERY_FETCH_SIZE_SYSTEM_PROPERTY = "org.specksensor.DatabaseDataSampleStore.query-fetch-size";
+   private static final int QUERY_FETCH_SIZE = Math.max(1, SystemPropertyUtils.getInt(QUERY_FETCH_SIZE_SYSTEM_PROPERTY, 500));
+
+   /**
+    * How long a sample's upload claim (its {@link DataSampleUploadStatus#IN_PROGRESS IN_PROGRESS} status) lasts before
+    * the sample may be handed out for upload again.  This must be comfortably longer than an upload can take, including
+    * the {@link DataSampleUploadHelper#HTTP_TIMEOUT_IN_MILLIS connection} and
+    * {@link DataSampleUploadHelper#SOCKET_TIMEOUT_IN_MILLIS socket} timeouts.  Claims made before this store was
+    * created (i.e. by a previous run of the program) have always expired.
+    */
+   static final String UPLOAD_LEASE_MINUTES_SYSTEM_PROPERTY = "org.specksensor.DatabaseDataSampleStore.upload-lease-minutes";
+   private static final long UPLOAD_LEASE_MILLIS = TimeUnit.MINUTES.toMillis(Math.max(1, SystemPropertyUtils.getInt(UPLOAD_LEASE_MINUTES_SYSTEM_PROPERTY, 30)));
+
+   /**
+    * The claim timestamp given to samples held by the {@link UploadSpool}.  Since it's later than any real time, the
+    * claim never expires: the samples stay {@link DataSampleUploadStatus#IN_PROGRESS IN_PROGRESS} until the spooled
+    * batch is acknowledged, or {@link #releaseSpooledDataSamples(Set) released}.
+    */
+   private static final long SPOOL_CLAIM_TIMESTAMP_UTC_MILLIS = Long.MAX_VALUE;
+
+   private static final String STATEMENT_SELECT_IDS_OF_SPOOLED_SAMPLES = "SELECT id FROM SpeckSamples WHERE UPLOAD_STATUS = '" + DataSampleUploadStatus.IN_PROGRESS.getName() + "' AND UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS = " + SPOOL_CLAIM_TIMESTAMP_UTC_MILLIS;
+
+   private static final String STATEMENT_NAME_RENEW_UPLOAD_CLAIM = "renew_upload_claim";
+   private static final String STATEMENT_RENEW_UPLOAD_CLAIM = "UPDATE SpeckSamples SET UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS = ? WHERE ID = ? AND UPLOAD_STATUS = '" + DataSampleUploadStatus.IN_PROGRESS.getName() + "'";
+
+   // Rejected samples which have reached the limit are quarantined first, and then the rest are marked as failed.  Both
+   // only touch samples which are still IN_PROGRESS, in case the claim on them expired and they were reclaimed.
+   private static final String REJECTED_SAMPLE_SET_CLAUSE = "SET UPLOAD_REJECTION_COUNT = UPLOAD_REJECTION_COUNT + 1, UPLOAD_TIMESTAMP_UTC_MILLIS = NULL, UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS = NULL, UPLOAD_STATUS = ";
+   private static final String STATEMENT_NAME_QUARANTINE_REJECTED_SAMPLE = "quarantine_rejected_sample";
+   private static final String STATEMENT_QUARANTINE_REJECTED_SAMPLE = "UPDATE SpeckSamples " + REJECTED_SAMPLE_SET_CLAUSE + "'" + DataSampleUploadStatus.QUARANTINED.getName() + "' WHERE ID = ? AND UPLOAD_STATUS = '" + DataSampleUploadStatus.IN_PROGRESS.getName() + "' AND UPLOAD_REJECTION_COUNT >= ?";
+   private static final String STATEMENT_NAME_FAIL_REJECTED_SAMPLE = "fail_rejected_sample";
+   private static final String STATEMENT_FAIL_REJECTED_SAMPLE = "UPDATE SpeckSamples " + REJECTED_SAMPLE_SET_CLAUSE + "'" + DataSampleUploadStatus.FAILURE.getName() + "' WHERE ID = ? AND UPLOAD_STATUS = '" + DataSampleUploadStatus.IN_PROGRESS.getName() + "'";
+
    private static final String SQL_STATE_DUPLICATE_KEY = "23505";
-   private static final int SQL_ERROR_CODE_DUPLICATE_KEY = 30000;
    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
    /**
@@ -102,30 +279,172 @@ final class DatabaseDataSampleStore implements DataSampleStore
       return s.toString();
       }
 
-   private Connection connection = null;
+   /** Guards {@link #engineBootTask}. */
+   private static final Lock ENGINE_LOCK = new ReentrantLock();
+
+   /** The task which boots the Derby engine, or <code>null</code> if the engine hasn't been booted yet. */
+   @Nullable
+   private static FutureTask<Boolean> engineBootTask = null;
+
+   /**
+    * Starts booting the Derby engine on a background thread, unless it's already booted or booting, and returns
+    * immediately.  Booting the engine is the slowest part of opening a database, so calling this early (e.g. before
+    * scanning for a Speck) takes it off the connect path.  Calling this is optional, since the constructor will boot
+    * the engine if necessary.
+    */
+   static void bootEngineInBackground()
+      {
+      ENGINE_LOCK.lock();  // block until condition holds
+      try
+         {
+         if (engineBootTask == null)
+            {
+            engineBootTask = new FutureTask<Boolean>(
+                  new Callable<Boolean>()
+                  {
+                  public Boolean call()
+                     {
+                     return bootEngine();
+                     }
+                  });
+            ExecutionRuntime.getInstance().getComponent("DatabaseEngine", 1).execute(engineBootTask);
+            }
+         }
+      finally
+         {
+         ENGINE_LOCK.unlock();
+         }
+      }
+
+   /**
+    * Boots the Derby engine, if it isn't already booted or booting, and waits for it.  Returns <code>true</code> if the
+    * engine booted successfully, <code>false</code> otherwise.  A failed boot is forgotten so that the next call tries
+    * again.
+    */
+   private static boolean awaitEngine()
+      {
+      bootEngineInBackground();
+
+      final FutureTask<Boolean> task;
+      ENGINE_LOCK.lock();  // block until condition holds
+      try
+         {
+         task = engineBootTask;
+         }
+      finally
+         {
+         ENGINE_LOCK.unlock();
+         }
+
+      boolean wasSuccessful = false;
+      if (task != null)
+         {
+         try
+            {
+            wasSuccessful = task.get();
+            }
+         catch (InterruptedException e)
+            {
+            LOG.error("DatabaseDataSampleStore.awaitEngine(): InterruptedException while waiting for the database engine to boot", e);
+            Thread.currentThread().interrupt();
+            }
+         catch (ExecutionException e)
+            {
+            LOG.error("DatabaseDataSampleStore.awaitEngine(): ExecutionException while waiting for the database engine to boot", e);
+            }
+
+         if (!wasSuccessful)
+            {
+            forgetEngine(task);
+            }
+         }
+      return wasSuccessful;
+      }
+
+   /** Forgets the given boot task (if it's still the current one), so that the engine will be booted again when next needed. */
+   private static void forgetEngine(@NotNull final FutureTask<Boolean> task)
+      {
+      ENGINE_LOCK.lock();  // block until condition holds
+      try
+         {
+         if (engineBootTask == task)
+            {
+            engineBootTask = null;
+            }
+         }
+      finally
+         {
+         ENGINE_LOCK.unlock();
+         }
+      }
+
+   /**
+    * Loads the driver specified by {@link #DRIVER_NAME}, which also boots the embedded Derby engine, and returns
+    * <code>true</code> upon success, <code>false</code> otherwise.  Databases are opened by absolute path, so the Derby
+    * home directory (set here, since static Derby system properties must be set before loading the driver in order for
+    * them to have any effect) only determines where Derby keeps its log file.
+    */
+   private static boolean bootEngine()
+      {
+      if (System.getProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY) == null)
+         {
+         System.setProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY, SpeckConstants.FilePaths.getRootDataDirectory().getAbsolutePath());
+         }
+      if (LOG.isInfoEnabled())
+         {
+         LOG.info("DatabaseDataSampleStore.bootEngine(): Booting the database engine with System.getProperty(" + DERBY_SYSTEM_HOME_PROPERTY_KEY + ") = [" + System.getProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY) + "]");
+         }
+
+      final long startTime = System.currentTimeMillis();
+      final boolean wasSuccessful = loadDriver();
+      if (wasSuccessful && LOG.isInfoEnabled())
+         {
+         LOG.info("DatabaseDataSampleStore.bootEngine(): Database engine booted in [" + (System.currentTimeMillis() - startTime) + "] millis");
+         }
+      return wasSuccessful;
+      }
+
+   /**
+    * Returns the SET clauses which fold a new value into the min, max, and sum columns for the given channel.  Each
+    * takes five parameters: the new value twice for the min, twice for the max, and once for the sum.
+    */
+   private static String getRollupColumnUpdates(@NotNull final String channel)
+      {
+      return "min_" + channel + " = CASE WHEN ? < min_" + channel + " THEN CAST(? AS INTEGER) ELSE min_" + channel + " END, " +
+             "max_" + channel + " = CASE WHEN ? > max_" + channel + " THEN CAST(? AS INTEGER) ELSE max_" + channel + " END, " +
+             "sum_" + channel + " = sum_" + channel + " + ?";
+      }
+
+   @NotNull
+   private final String databaseUrl;
+   private final Properties connectionProperties = new Properties();
+   private Connection insertConnection = null;
+   private Connection uploadConnection = null;
    private final Map<String, PreparedStatement> preparedStatements = new HashMap<String, PreparedStatement>();
    private boolean isShutDown = false;
-   private final Lock lock = new ReentrantLock();
+
+   /** Upload claims made before this time were made by a previous run of the program, so they've necessarily expired. */
+   private final long creationTimeUtcMillis = System.currentTimeMillis();
+   private final Lock insertLock = new ReentrantLock();
+   private final Lock uploadLock = new ReentrantLock();
+   private final AtomicLong insertLockWaitNanos = new AtomicLong(0);
+   private final AtomicLong uploadLockWaitNanos = new AtomicLong(0);
+   private final Map<DataSampleUploadStatus, AtomicInteger> uploadStatusCounts = new EnumMap<DataSampleUploadStatus, AtomicInteger>(DataSampleUploadStatus.class);
 
    DatabaseDataSampleStore(@NotNull final SpeckConfig speckConfig) throws InitializationException
       {
-      lock.lock();  // block until condition holds
+      for (final DataSampleUploadStatus status : DataSampleUploadStatus.values())
+         {
+         uploadStatusCounts.put(status, new AtomicInteger(0));
+         }
+
+      lockAll();
       try
          {
-         // Define the Derby home directory.  We do this because the database will be created under the directory
-         // specified by the derby.system.home system property.
-         if (LOG.isInfoEnabled())
-            {
-            LOG.info("DatabaseDataSampleStore.DatabaseDataSampleStore(): Previous value of System.getProperty(" + DERBY_SYSTEM_HOME_PROPERTY_KEY + ") = [" + System.getProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY) + "]");
-            }
          final File dataDirectory = SpeckConstants.FilePaths.getDeviceDataDirectory(speckConfig);
          final File databaseParentDirectory = new File(dataDirectory, "database");
          final File databaseDirectory = new File(databaseParentDirectory, DATABASE_NAME);
-         System.setProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY, databaseParentDirectory.getAbsolutePath());
-         if (LOG.isInfoEnabled())
-            {
-            LOG.info("DatabaseDataSampleStore.DatabaseDataSampleStore(): New value of System.getProperty(" + DERBY_SYSTEM_HOME_PROPERTY_KEY + ") = [" + System.getProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY) + "]");
-            }
+         databaseUrl = PROTOCOL + databaseDirectory.getAbsolutePath();
 
          // Make sure the database directory parent exists
          //noinspection ResultOfMethodCallIgnored
@@ -141,8 +460,9 @@ final class DatabaseDataSampleStore implements DataSampleStore
             LOG.info("DatabaseDataSampleStore.DatabaseDataSampleStore(): Database will be stored in directory [" + databaseDirectory.getAbsolutePath() + "]");
             }
 
-         // Load the JDBC driver
-         if (!loadDriver())
+         // Wait for the engine to boot, which is usually already underway (or done) if bootEngineInBackground() was
+         // called earlier
+         if (!awaitEngine())
             {
             LOG.fatal("DatabaseDataSampleStore.DatabaseDataSampleStore(): Could not load the database driver.  Aborting.");
             System.exit(1);
@@ -151,16 +471,16 @@ final class DatabaseDataSampleStore implements DataSampleStore
          // Define connection properties. Providing a user name and password is optional in the embedded framework, but,
          // by default, the schema APP will be used when no username is provided. Otherwise, the schema name is the same
          // as the user name.
-         final Properties properties = new Properties();
-         properties.put("user", "speck");
-         properties.put("password", "speck");
+         connectionProperties.put("user", "speck");
+         connectionProperties.put("password", "speck");
 
          try
             {
             // This connection specifies create=true in the connection URL to cause the database to be created when connecting
             // for the first time. To remove the database, remove the directory derbyDB (the same as the database name) and
             // its contents.
-            connection = DriverManager.getConnection(PROTOCOL + DATABASE_NAME + ";create=true", properties);
+            insertConnection = DriverManager.getConnection(databaseUrl + ";create=true", connectionProperties);
+            uploadConnection = DriverManager.getConnection(databaseUrl, connectionProperties);
             }
          catch (SQLException e)
             {
@@ -170,21 +490,49 @@ final class DatabaseDataSampleStore implements DataSampleStore
             }
 
          boolean wasSetupSuccessful = false;
-         if (connection != null)
+         if (insertConnection != null && uploadConnection != null)
             {
             try
                {
                // We want transactions committed for us automatically. Autocommit is on by default in JDBC, but
-               // there's no harm in making it explicit here.
-               connection.setAutoCommit(true);
+               // there's no harm in making it explicit here.  Read-committed is also Derby's default, but we depend on
+               // it (and the row-level locking that comes with it) to keep the two connections out of each other's way.
+               for (final Connection connection : new Connection[]{insertConnection, uploadConnection})
+                  {
+                  connection.setAutoCommit(true);
+                  connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                  }
 
                // Creates tables, if necessary
-               initializeDatabase(connection);
+               initializeDatabase(insertConnection);
+               initializeUploadStatusCounts(insertConnection);
 
-               // create prepared statements for insert and update
-               preparedStatements.put(STATEMENT_NAME_INSERT_SAMPLE, connection.prepareStatement(STATEMENT_INSERT_SAMPLE));
-               preparedStatements.put(STATEMENT_NAME_UPDATE_ALL_SAMPLES_HAVING_STATUS, connection.prepareStatement(STATEMENT_UPDATE_ALL_SAMPLES_HAVING_STATUS));
-               preparedStatements.put(STATEMENT_NAME_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED, connection.prepareStatement(STATEMENT_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED));
+               // Saves insert the sample and update its rollups in a single transaction, so that a failed or duplicate
+               // insert never gets counted in the rollups.
+               insertConnection.setAutoCommit(false);
+
+               // create prepared statements for insert (on the insert connection) and upload bookkeeping (on the upload connection)
+               preparedStatements.put(STATEMENT_NAME_INSERT_SAMPLE, insertConnection.prepareStatement(STATEMENT_INSERT_SAMPLE));
+               preparedStatements.put(STATEMENT_NAME_UPDATE_ROLLUP, insertConnection.prepareStatement(STATEMENT_UPDATE_ROLLUP));
+               preparedStatements.put(STATEMENT_NAME_INSERT_ROLLUP, insertConnection.prepareStatement(STATEMENT_INSERT_ROLLUP));
+               preparedStatements.put(STATEMENT_NAME_MERGE_ROLLUP, insertConnection.prepareStatement(STATEMENT_MERGE_ROLLUP));
+               preparedStatements.put(STATEMENT_NAME_INSERT_MERGED_ROLLUP, insertConnection.prepareStatement(STATEMENT_INSERT_MERGED_ROLLUP));
+               preparedStatements.put(STATEMENT_NAME_SELECT_SAMPLE_TIMES_IN_RANGE, insertConnection.prepareStatement(STATEMENT_SELECT_SAMPLE_TIMES_IN_RANGE));
+               preparedStatements.put(STATEMENT_NAME_UPDATE_ALL_SAMPLES_HAVING_STATUS, uploadConnection.prepareStatement(STATEMENT_UPDATE_ALL_SAMPLES_HAVING_STATUS));
+               preparedStatements.put(STATEMENT_NAME_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED, uploadConnection.prepareStatement(STATEMENT_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED));
+               preparedStatements.put(STATEMENT_NAME_SELECT_NEWEST_SAMPLES_NEEDING_TO_BE_UPLOADED, uploadConnection.prepareStatement(STATEMENT_SELECT_NEWEST_SAMPLES_NEEDING_TO_BE_UPLOADED));
+               preparedStatements.put(STATEMENT_NAME_SELECT_IDS_OF_SAMPLES_UPLOADED_BEFORE, uploadConnection.prepareStatement(STATEMENT_SELECT_IDS_OF_SAMPLES_UPLOADED_BEFORE));
+               preparedStatements.put(STATEMENT_NAME_SELECT_SAMPLES_SAVED_AFTER, uploadConnection.prepareStatement(STATEMENT_SELECT_SAMPLES_SAVED_AFTER));
+               preparedStatements.put(STATEMENT_NAME_SELECT_UPLOAD_CURSOR, uploadConnection.prepareStatement(STATEMENT_SELECT_UPLOAD_CURSOR));
+               preparedStatements.put(STATEMENT_NAME_UPDATE_UPLOAD_CURSOR, uploadConnection.prepareStatement(STATEMENT_UPDATE_UPLOAD_CURSOR));
+               preparedStatements.put(STATEMENT_NAME_INSERT_UPLOAD_CURSOR, uploadConnection.prepareStatement(STATEMENT_INSERT_UPLOAD_CURSOR));
+               preparedStatements.put(STATEMENT_NAME_SELECT_LOWEST_UPLOAD_CURSOR, uploadConnection.prepareStatement(STATEMENT_SELECT_LOWEST_UPLOAD_CURSOR));
+               preparedStatements.put(STATEMENT_NAME_SELECT_AGGREGATE_CURSOR, uploadConnection.prepareStatement(STATEMENT_SELECT_AGGREGATE_CURSOR));
+               preparedStatements.put(STATEMENT_NAME_UPDATE_AGGREGATE_CURSOR, uploadConnection.prepareStatement(STATEMENT_UPDATE_AGGREGATE_CURSOR));
+               preparedStatements.put(STATEMENT_NAME_INSERT_AGGREGATE_CURSOR, uploadConnection.prepareStatement(STATEMENT_INSERT_AGGREGATE_CURSOR));
+               preparedStatements.put(STATEMENT_NAME_RENEW_UPLOAD_CLAIM, uploadConnection.prepareStatement(STATEMENT_RENEW_UPLOAD_CLAIM));
+               preparedStatements.put(STATEMENT_NAME_QUARANTINE_REJECTED_SAMPLE, uploadConnection.prepareStatement(STATEMENT_QUARANTINE_REJECTED_SAMPLE));
+               preparedStatements.put(STATEMENT_NAME_FAIL_REJECTED_SAMPLE, uploadConnection.prepareStatement(STATEMENT_FAIL_REJECTED_SAMPLE));
 
                wasSetupSuccessful = true;
                }
@@ -210,7 +558,7 @@ final class DatabaseDataSampleStore implements DataSampleStore
          }
       finally
          {
-         lock.unlock();
+         unlockAll();
          }
       }
 
@@ -218,7 +566,7 @@ final class DatabaseDataSampleStore implements DataSampleStore
    @NotNull
    public SaveResult save(@NotNull final Speck.DataSample dataSample)
       {
-      lock.lock();  // block until condition holds
+      lockForInsert();
       try
          {
          final PreparedStatement insertStatement = preparedStatements.get(STATEMENT_NAME_INSERT_SAMPLE);
@@ -235,6 +583,12 @@ final class DatabaseDataSampleStore implements DataSampleStore
                insertStatement.setInt(5, dataSample.getSampleTime());
                insertStatement.setLong(6, dataSample.getDownloadTime());
                insertStatement.executeUpdate();
+               for (final DataSampleRollup.Resolution resolution : DataSampleRollup.Resolution.values())
+                  {
+                  updateRollup(resolution, dataSample);
+                  }
+               insertConnection.commit();
+               uploadStatusCounts.get(DataSampleUploadStatus.NOT_ATTEMPTED).incrementAndGet();
 
                if (LOG.isDebugEnabled())
                   {
@@ -244,7 +598,10 @@ final class DatabaseDataSampleStore implements DataSampleStore
                }
             catch (SQLException e)
                {
-               if (e.getErrorCode() == SQL_ERROR_CODE_DUPLICATE_KEY && SQL_STATE_DUPLICATE_KEY.equals(e.getSQLState()))
+               rollbackInsertTransaction();
+               // Only check the SQL state, since Derby reports the error code as the severity, which differs depending
+               // on whether the statement ran in its own (auto-committed) transaction.
+               if (SQL_STATE_DUPLICATE_KEY.equals(e.getSQLState()))
                   {
                   LOG.error("DatabaseDataSampleStore.save(): Saved failed because a sample with timestamp [" + dataSample.getSampleTime() + "] already exists.  Duplicate sample timestamps are not allowed.");
                   isDuplicate = true;
@@ -264,14 +621,263 @@ final class DatabaseDataSampleStore implements DataSampleStore
          }
       finally
          {
-         lock.unlock();
+         insertLock.unlock();
+         }
+      }
+
+   /**
+    * Folds the given sample into its rollup bucket at the given resolution, creating the bucket if necessary.  MUST be
+    * called from within an insert lock block, which also guarantees that no other save can create the same bucket
+    * between the update and the insert.
+    */
+   private void updateRollup(@NotNull final DataSampleRollup.Resolution resolution, @NotNull final Speck.DataSample dataSample) throws SQLException
+      {
+      final int bucketStart = resolution.getBucketStart(dataSample.getSampleTime());
+      final int[] values = new int[]{dataSample.getParticleCountOrConcentration(), dataSample.getTemperatureInTenthsOfADegreeF(), dataSample.getHumidity()};
+
+      final PreparedStatement updateStatement = preparedStatements.get(STATEMENT_NAME_UPDATE_ROLLUP);
+      int i = 1;
+      for (final int value : values)
+         {
+         for (int j = 0; j < 5; j++)
+            {
+            updateStatement.setInt(i++, value);
+            }
+         }
+      updateStatement.setInt(i++, resolution.getSeconds());
+      updateStatement.setInt(i, bucketStart);
+
+      if (updateStatement.executeUpdate() == 0)
+         {
+         final PreparedStatement insertStatement = preparedStatements.get(STATEMENT_NAME_INSERT_ROLLUP);
+         insertStatement.setInt(1, resolution.getSeconds());
+         insertStatement.setInt(2, bucketStart);
+         i = 3;
+         for (final int value : values)
+            {
+            insertStatement.setInt(i++, value);     // min
+            insertStatement.setInt(i++, value);     // max
+            insertStatement.setLong(i++, value);    // sum
+            }
+         insertStatement.executeUpdate();
+         }
+      }
+
+   /**
+    * Saves the given samples, which must have distinct sample times, in a single transaction, skipping any whose sample
+    * time is already in the store.  This is far faster than {@link #save(Speck.DataSample) saving} them one at a time,
+    * since the inserts are sent as a JDBC batch, and each rollup bucket is updated once per batch rather than once per
+    * sample.  Returns the number of samples saved, or -1 if the batch couldn't be saved (in which case none of it was).
+    */
+   int saveBatch(@NotNull final List<Speck.DataSample> dataSamples)
+      {
+      if (dataSamples.isEmpty())
+         {
+         return 0;
+         }
+
+      int minSampleTime = Integer.MAX_VALUE;
+      int maxSampleTime = Integer.MIN_VALUE;
+      for (final Speck.DataSample dataSample : dataSamples)
+         {
+         minSampleTime = Math.min(minSampleTime, dataSample.getSampleTime());
+         maxSampleTime = Math.max(maxSampleTime, dataSample.getSampleTime());
+         }
+
+      lockForInsert();
+      try
+         {
+         try
+            {
+            // find the samples which are already in the store, so that a single duplicate doesn't fail the whole batch.
+            // Only the runs of sample times the batch actually covers are looked up, since a batch may hold samples
+            // from far apart (e.g. from different parts of an import), and the store may hold everything in between.
+            final Set<Integer> existingSampleTimes = new HashSet<Integer>();
+            final int[] sampleTimes = new int[dataSamples.size()];
+            for (int i = 0; i < sampleTimes.length; i++)
+               {
+               sampleTimes[i] = dataSamples.get(i).getSampleTime();
+               }
+            Arrays.sort(sampleTimes);
+            int runStart = sampleTimes[0];
+            for (int i = 1; i < sampleTimes.length; i++)
+               {
+               if ((long)sampleTimes[i] - sampleTimes[i - 1] > MAX_SAMPLE_TIME_GAP_WITHIN_RUN_SECS)
+                  {
+                  addSampleTimesInRange(existingSampleTimes, runStart, sampleTimes[i - 1]);
+                  runStart = sampleTimes[i];
+                  }
+               }
+            addSampleTimesInRange(existingSampleTimes, runStart, sampleTimes[sampleTimes.length - 1]);
+
+            final PreparedStatement insertStatement = preparedStatements.get(STATEMENT_NAME_INSERT_SAMPLE);
+            final Map<DataSampleRollup.Resolution, Map<Integer, long[]>> bucketsByResolution = new EnumMap<DataSampleRollup.Resolution, Map<Integer, long[]>>(DataSampleRollup.Resolution.class);
+            int numSaved = 0;
+            for (final Speck.DataSample dataSample : dataSamples)
+               {
+               if (!existingSampleTimes.contains(dataSample.getSampleTime()))
+                  {
+                  insertStatement.setInt(1, dataSample.getRawParticleCount());
+                  insertStatement.setInt(2, dataSample.getParticleCountOrConcentration());
+                  insertStatement.setInt(3, dataSample.getTemperatureInTenthsOfADegreeF());
+                  insertStatement.setInt(4, dataSample.getHumidity());
+                  insertStatement.setInt(5, dataSample.getSampleTime());
+                  insertStatement.setLong(6, dataSample.getDownloadTime());
+                  insertStatement.addBatch();
+                  for (final DataSampleRollup.Resolution resolution : DataSampleRollup.Resolution.values())
+                     {
+                     addToBucket(bucketsByResolution, resolution, dataSample);
+                     }
+                  numSaved++;
+                  }
+               }
+
+            if (numSaved > 0)
+               {
+               insertStatement.executeBatch();
+               for (final Map.Entry<DataSampleRollup.Resolution, Map<Integer, long[]>> entry : bucketsByResolution.entrySet())
+                  {
+                  for (final Map.Entry<Integer, long[]> bucket : entry.getValue().entrySet())
+                     {
+                     mergeRollup(entry.getKey(), bucket.getKey(), bucket.getValue());
+                     }
+                  }
+               insertConnection.commit();
+               uploadStatusCounts.get(DataSampleUploadStatus.NOT_ATTEMPTED).addAndGet(numSaved);
+               }
+
+            if (LOG.isDebugEnabled())
+               {
+               LOG.debug("DatabaseDataSampleStore.saveBatch(): Saved [" + numSaved + "] of [" + dataSamples.size() + "] samples in range [" + minSampleTime + ", " + maxSampleTime + "] to the database.");
+               }
+            return numSaved;
+            }
+         catch (SQLException e)
+            {
+            rollbackInsertTransaction();
+            LOG.error("DatabaseDataSampleStore.saveBatch(): SQLException while trying to save [" + dataSamples.size() + "] samples in range [" + minSampleTime + ", " + maxSampleTime + "] " + getSqlExceptionAsString(e));
+            }
+         return -1;
+         }
+      finally
+         {
+         insertLock.unlock();
+         }
+      }
+
+   /** Adds the sample times of the samples in the store within the given range (inclusive) to the given set. */
+   private void addSampleTimesInRange(@NotNull final Set<Integer> sampleTimes, final int minSampleTime, final int maxSampleTime) throws SQLException
+      {
+      final PreparedStatement selectStatement = preparedStatements.get(STATEMENT_NAME_SELECT_SAMPLE_TIMES_IN_RANGE);
+      selectStatement.setInt(1, minSampleTime);
+      selectStatement.setInt(2, maxSampleTime);
+      final ResultSet resultSet = selectStatement.executeQuery();
+      try
+         {
+         while (resultSet.next())
+            {
+            sampleTimes.add(resultSet.getInt(1));
+            }
+         }
+      finally
+         {
+         resultSet.close();
+         }
+      }
+
+   /**
+    * Folds the given sample into its bucket at the given resolution, where each bucket is an array holding the number
+    * of samples followed by the min, max, and sum of each channel.
+    */
+   private static void addToBucket(@NotNull final Map<DataSampleRollup.Resolution, Map<Integer, long[]>> bucketsByResolution,
+                                   @NotNull final DataSampleRollup.Resolution resolution,
+                                   @NotNull final Speck.DataSample dataSample)
+      {
+      Map<Integer, long[]> buckets = bucketsByResolution.get(resolution);
+      if (buckets == null)
+         {
+         buckets = new HashMap<Integer, long[]>();
+         bucketsByResolution.put(resolution, buckets);
+         }
+
+      final int bucketStart = resolution.getBucketStart(dataSample.getSampleTime());
+      final int[] values = new int[]{dataSample.getParticleCountOrConcentration(), dataSample.getTemperatureInTenthsOfADegreeF(), dataSample.getHumidity()};
+      long[] bucket = buckets.get(bucketStart);
+      if (bucket == null)
+         {
+         bucket = new long[1 + values.length * 3];
+         for (int i = 0; i < values.length; i++)
+            {
+            bucket[1 + i * 3] = Integer.MAX_VALUE;
+            bucket[2 + i * 3] = Integer.MIN_VALUE;
+            }
+         buckets.put(bucketStart, bucket);
+         }
+      bucket[0]++;
+      for (int i = 0; i < values.length; i++)
+         {
+         bucket[1 + i * 3] = Math.min(bucket[1 + i * 3], values[i]);
+         bucket[2 + i * 3] = Math.max(bucket[2 + i * 3], values[i]);
+         bucket[3 + i * 3] += values[i];
+         }
+      }
+
+   /**
+    * Folds a bucket built by {@link #addToBucket(Map, DataSampleRollup.Resolution, Speck.DataSample)} into the stored
+    * rollup, creating it if necessary.  MUST be called from within an insert lock block.
+    */
+   private void mergeRollup(@NotNull final DataSampleRollup.Resolution resolution, final int bucketStart, @NotNull final long[] bucket) throws SQLException
+      {
+      final PreparedStatement updateStatement = preparedStatements.get(STATEMENT_NAME_MERGE_ROLLUP);
+      int i = 1;
+      updateStatement.setInt(i++, (int)bucket[0]);
+      for (int channel = 0; channel < 3; channel++)
+         {
+         final int min = (int)bucket[1 + channel * 3];
+         final int max = (int)bucket[2 + channel * 3];
+         updateStatement.setInt(i++, min);
+         updateStatement.setInt(i++, min);
+         updateStatement.setInt(i++, max);
+         updateStatement.setInt(i++, max);
+         updateStatement.setLong(i++, bucket[3 + channel * 3]);
+         }
+      updateStatement.setInt(i++, resolution.getSeconds());
+      updateStatement.setInt(i, bucketStart);
+
+      if (updateStatement.executeUpdate() == 0)
+         {
+         final PreparedStatement insertStatement = preparedStatements.get(STATEMENT_NAME_INSERT_MERGED_ROLLUP);
+         insertStatement.setInt(1, resolution.getSeconds());
+         insertStatement.setInt(2, bucketStart);
+         insertStatement.setInt(3, (int)bucket[0]);
+         i = 4;
+         for (int channel = 0; channel < 3; channel++)
+            {
+            insertStatement.setInt(i++, (int)bucket[1 + channel * 3]);    // min
+            insertStatement.setInt(i++, (int)bucket[2 + channel * 3]);    // max
+            insertStatement.setLong(i++, bucket[3 + channel * 3]);        // sum
+            }
+         insertStatement.executeUpdate();
+         }
+      }
+
+   /** MUST be called from within an insert lock block. */
+   private void rollbackInsertTransaction()
+      {
+      try
+         {
+         insertConnection.rollback();
+         }
+      catch (SQLException e)
+         {
+         LOG.error("DatabaseDataSampleStore.rollbackInsertTransaction(): SQLException while trying to roll back the insert transaction " + getSqlExceptionAsString(e), e);
          }
       }
 
    @Override
    public void resetStateOfUploadingSamples()
       {
-      lock.lock();  // block until condition holds
+      lockForUpload();
       try
          {
          final PreparedStatement updateStatement = preparedStatements.get(STATEMENT_NAME_UPDATE_ALL_SAMPLES_HAVING_STATUS);
@@ -281,7 +887,9 @@ final class DatabaseDataSampleStore implements DataSampleStore
                {
                updateStatement.setString(1, DataSampleUploadStatus.NOT_ATTEMPTED.getName());
                updateStatement.setString(2, DataSampleUploadStatus.IN_PROGRESS.getName());
-               updateStatement.executeUpdate();
+               updateStatement.setLong(3, SPOOL_CLAIM_TIMESTAMP_UTC_MILLIS);
+               final int numReset = updateStatement.executeUpdate();
+               transferUploadStatusCount(DataSampleUploadStatus.IN_PROGRESS, DataSampleUploadStatus.NOT_ATTEMPTED, numReset);
 
                if (LOG.isDebugEnabled())
                   {
@@ -300,7 +908,7 @@ final class DatabaseDataSampleStore implements DataSampleStore
          }
       finally
          {
-         lock.unlock();
+         uploadLock.unlock();
          }
       }
 
@@ -308,115 +916,870 @@ final class DatabaseDataSampleStore implements DataSampleStore
    @Override
    public DataSampleSet getDataSamplesToUpload(final int maxNumberRequested)
       {
-      lock.lock();  // block until condition holds
+      return claimDataSamplesToUpload(null, maxNumberRequested);
+      }
+
+   @NotNull
+   @Override
+   public DataSampleSet getNewestDataSamplesToUpload(final int sampledSinceUtcSecs, final int maxNumberRequested)
+      {
+      return claimDataSamplesToUpload(sampledSinceUtcSecs, maxNumberRequested);
+      }
+
+   /**
+    * Claims up to the given number of samples needing to be uploaded: in table order if <code>sampledSinceUtcSecs</code>
+    * is <code>null</code>, otherwise only those sampled at or after that time, newest first.
+    */
+   @NotNull
+   private DataSampleSet claimDataSamplesToUpload(@Nullable final Integer sampledSinceUtcSecs, final int maxNumberRequested)
+      {
+      lockForUpload();
       try
          {
          final SortedSet<Speck.DataSample> dataSamples = new TreeSet<Speck.DataSample>();
-         final PreparedStatement selectStatement = preparedStatements.get(STATEMENT_NAME_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED);
+         final PreparedStatement selectStatement = preparedStatements.get((sampledSinceUtcSecs == null) ? STATEMENT_NAME_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED : STATEMENT_NAME_SELECT_NEWEST_SAMPLES_NEEDING_TO_BE_UPLOADED);
          if (selectStatement != null)
             {
             final int maxNumberToGet = (maxNumberRequested < 1) ? DataSampleSet.DEFAULT_SIZE : maxNumberRequested;
             try
                {
-               selectStatement.setInt(1, maxNumberToGet);
+               // claims older than the lease, or made before this store was created, have expired
+               final long now = System.currentTimeMillis();
+               final long claimExpiryUtcMillis = Math.max(now - UPLOAD_LEASE_MILLIS, creationTimeUtcMillis);
+
+               // the newest-first query returns the same columns, minus the leading row number
+               final int firstColumn;
+               if (sampledSinceUtcSecs == null)
+                  {
+                  selectStatement.setLong(1, claimExpiryUtcMillis);
+                  selectStatement.setInt(2, maxNumberToGet);
+                  firstColumn = 2;
+                  }
+               else
+                  {
+                  selectStatement.setMaxRows(maxNumberToGet);
+                  selectStatement.setInt(1, sampledSinceUtcSecs);
+                  selectStatement.setLong(2, claimExpiryUtcMillis);
+                  firstColumn = 1;
+                  }
 
                final ResultSet resultSet = selectStatement.executeQuery();
 
                // Build up our DataSampleSet, but also build the List of IDs so we can create
                // a query to mark all these samples' upload state as IN_PROGRESS.
                final List<Integer> ids = new ArrayList<Integer>();
+               int numFailedPreviously = 0;
+               int numExpiredClaims = 0;
                while (resultSet.next())
                   {
-                  final int id = resultSet.getInt(2);
+                  final int id = resultSet.getInt(firstColumn);
                   ids.add(id);
-                  dataSamples.add(new DataSample(id,                         // databaseId
-                                                 resultSet.getInt(3),        // sampleTimeUtcSeconds
-                                                 resultSet.getInt(4),        // rawParticleCount
-                                                 resultSet.getInt(5),        // particleCount
-                                                 resultSet.getInt(6),        // temperatureInTenthsOfDegreeF
-                                                 resultSet.getInt(7)));      // humidity
+                  final String previousStatus = resultSet.getString(firstColumn + 6);
+                  if (DataSampleUploadStatus.FAILURE.getName().equals(previousStatus))
+                     {
+                     numFailedPreviously++;
+                     }
+                  else if (DataSampleUploadStatus.IN_PROGRESS.getName().equals(previousStatus))
+                     {
+                     numExpiredClaims++;
+                     }
+                  dataSamples.add(new DataSample(id,                                  // databaseId
+                                                 resultSet.getInt(firstColumn + 1),   // sampleTimeUtcSeconds
+                                                 resultSet.getInt(firstColumn + 2),   // rawParticleCount
+                                                 resultSet.getInt(firstColumn + 3),   // particleCount
+                                                 resultSet.getInt(firstColumn + 4),   // temperatureInTenthsOfDegreeF
+                                                 resultSet.getInt(firstColumn + 5))); // humidity
                   }
 
-               // if the update failed, then we should just return an empty DataSampleSet
-               if (!markDataSamplesWithStatus(ids, DataSampleUploadStatus.IN_PROGRESS, null))
+               // if the update failed, then we should just return an empty DataSampleSet.  Samples whose claim had
+               // expired were already counted as IN_PROGRESS, so only the others need to be transferred.
+               if (markDataSamplesWithStatus(ids, null, DataSampleUploadStatus.IN_PROGRESS, now))
+                  {
+                  transferUploadStatusCount(DataSampleUploadStatus.FAILURE, DataSampleUploadStatus.IN_PROGRESS, numFailedPreviously);
+                  transferUploadStatusCount(DataSampleUploadStatus.NOT_ATTEMPTED, DataSampleUploadStatus.IN_PROGRESS, ids.size() - numFailedPreviously - numExpiredClaims);
+                  if (numExpiredClaims > 0 && LOG.isInfoEnabled())
+                     {
+                     LOG.info("DatabaseDataSampleStore.claimDataSamplesToUpload(): Reclaimed [" + numExpiredClaims + "] samples whose upload claim had expired");
+                     }
+                  }
+               else
                   {
                   dataSamples.clear();
                   }
                }
             catch (SQLException e)
                {
-               LOG.error("DatabaseDataSampleStore.getDataSamplesToUpload(): SQLException while trying to get data samples to upload", e);
+               LOG.error("DatabaseDataSampleStore.claimDataSamplesToUpload(): SQLException while trying to get data samples to upload", e);
                }
             }
          else
             {
-            LOG.error("DatabaseDataSampleStore.resetStateOfUploadingSamples(): Reset failed because no update statement is defined!");
+            LOG.error("DatabaseDataSampleStore.claimDataSamplesToUpload(): Claim failed because no select statement is defined!");
             }
 
          return new DataSampleSetImpl(dataSamples);
          }
       finally
          {
-         lock.unlock();
+         uploadLock.unlock();
          }
       }
 
-   @Override
+   /**
+    * Returns a cursor backed by an open JDBC result set on a connection of its own, so that a long-running iteration
+    * never holds up saves or upload bookkeeping.  The returned cursor is not thread safe.
+    */
+   @NotNull
+   @Override
+   public DataSampleCursor query(final int fromUtcSecs, final int toUtcSecs)
+      {
+      lockForUpload();
+      try
+         {
+         if (isShutDown)
+            {
+            return DataSampleCursor.FAILED;
+            }
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+
+      Connection queryConnection = null;
+      PreparedStatement selectStatement = null;
+      try
+         {
+         queryConnection = DriverManager.getConnection(databaseUrl, connectionProperties);
+         queryConnection.setAutoCommit(true);
+         queryConnection.setReadOnly(true);
+         queryConnection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+         selectStatement = queryConnection.prepareStatement(STATEMENT_SELECT_SAMPLES_IN_RANGE, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+         selectStatement.setFetchSize(QUERY_FETCH_SIZE);
+         selectStatement.setInt(1, fromUtcSecs);
+         selectStatement.setInt(2, toUtcSecs);
+         return new DatabaseDataSampleCursor(queryConnection, selectStatement, selectStatement.executeQuery());
+         }
+      catch (SQLException e)
+         {
+         LOG.error("DatabaseDataSampleStore.query(): SQLException while trying to query for samples in range [" + fromUtcSecs + ", " + toUtcSecs + "] " + getSqlExceptionAsString(e), e);
+         closeStatement(selectStatement);
+         closeConnection(queryConnection);
+         }
+      return DataSampleCursor.FAILED;
+      }
+
+   /** Reads the rollups on a connection of its own, for the same reasons as {@link #query(int, int)}. */
+   @NotNull
+   @Override
+   public List<DataSampleRollup> getRollups(@NotNull final DataSampleRollup.Resolution resolution, final int fromUtcSecs, final int toUtcSecs)
+      {
+      final List<DataSampleRollup> rollups = new ArrayList<DataSampleRollup>();
+
+      lockForUpload();
+      try
+         {
+         if (isShutDown)
+            {
+            return rollups;
+            }
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+
+      Connection queryConnection = null;
+      PreparedStatement selectStatement = null;
+      try
+         {
+         queryConnection = DriverManager.getConnection(databaseUrl, connectionProperties);
+         queryConnection.setAutoCommit(true);
+         queryConnection.setReadOnly(true);
+         queryConnection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+         selectStatement = queryConnection.prepareStatement(STATEMENT_SELECT_ROLLUPS_IN_RANGE);
+         selectStatement.setFetchSize(QUERY_FETCH_SIZE);
+         selectStatement.setInt(1, resolution.getSeconds());
+         selectStatement.setInt(2, resolution.getBucketStart(fromUtcSecs));
+         selectStatement.setInt(3, toUtcSecs);
+         final ResultSet resultSet = selectStatement.executeQuery();
+         while (resultSet.next())
+            {
+            rollups.add(new DataSampleRollup(resolution,
+                                             resultSet.getInt(1),          // bucketStartUtcSecs
+                                             resultSet.getInt(2),          // numSamples
+                                             resultSet.getInt(3),          // minParticleCountOrConcentration
+                                             resultSet.getInt(4),          // maxParticleCountOrConcentration
+                                             resultSet.getLong(5),         // sumParticleCountOrConcentration
+                                             resultSet.getInt(6),          // minTemperatureInTenthsOfADegreeF
+                                             resultSet.getInt(7),          // maxTemperatureInTenthsOfADegreeF
+                                             resultSet.getLong(8),         // sumTemperatureInTenthsOfADegreeF
+                                             resultSet.getInt(9),          // minHumidity
+                                             resultSet.getInt(10),         // maxHumidity
+                                             resultSet.getLong(11)));      // sumHumidity
+            }
+         resultSet.close();
+         }
+      catch (SQLException e)
+         {
+         LOG.error("DatabaseDataSampleStore.getRollups(): SQLException while trying to get " + resolution + " rollups in range [" + fromUtcSecs + ", " + toUtcSecs + "] " + getSqlExceptionAsString(e), e);
+         rollups.clear();
+         }
+      finally
+         {
+         closeStatement(selectStatement);
+         closeConnection(queryConnection);
+         }
+      return rollups;
+      }
+
+   @Override
    public void markDataSamplesAsUploaded(@NotNull final DataSampleSet dataSampleSet, final long uploadTimestampUtcMillis)
       {
-      lock.lock();  // block until condition holds
+      lockForUpload();
       try
          {
-         markDataSamplesWithStatus(dataSampleSet, DataSampleUploadStatus.SUCCESS, uploadTimestampUtcMillis);
+         markDataSamplesWithStatus(dataSampleSet, DataSampleUploadStatus.IN_PROGRESS, DataSampleUploadStatus.SUCCESS, uploadTimestampUtcMillis);
          }
       finally
          {
-         lock.unlock();
+         uploadLock.unlock();
          }
       }
 
    @Override
    public void markDataSamplesAsFailed(@NotNull final DataSampleSet dataSampleSet)
       {
-      lock.lock();  // block until condition holds
+      lockForUpload();
+      try
+         {
+         markDataSamplesWithStatus(dataSampleSet, DataSampleUploadStatus.IN_PROGRESS, DataSampleUploadStatus.FAILURE, null);
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   @Override
+   public boolean markDataSamplesAsSpooled(@NotNull final DataSampleSet dataSampleSet)
+      {
+      lockForUpload();
+      try
+         {
+         final List<Integer> ids = getIds(dataSampleSet);
+         if (!ids.isEmpty())
+            {
+            Statement updateStatement = null;
+            try
+               {
+               updateStatement = uploadConnection.createStatement();
+               final int numUpdated = updateStatement.executeUpdate("UPDATE SpeckSamples " +
+                                                                    "SET UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS=" + SPOOL_CLAIM_TIMESTAMP_UTC_MILLIS + " " +
+                                                                    "WHERE ID IN (" + StringUtils.join(ids, ",") + ") AND UPLOAD_STATUS='" + DataSampleUploadStatus.IN_PROGRESS.getName() + "'");
+               return numUpdated == ids.size();
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.markDataSamplesAsSpooled(): SQLException while trying to mark data samples as spooled " + getSqlExceptionAsString(e), e);
+               }
+            finally
+               {
+               closeStatement(updateStatement);
+               }
+            }
+         return false;
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   @NotNull
+   @Override
+   public Set<Integer> getSpooledDataSampleIds()
+      {
+      lockForUpload();
+      try
+         {
+         final Set<Integer> ids = new HashSet<Integer>();
+         Statement statement = null;
+         try
+            {
+            statement = uploadConnection.createStatement();
+            final ResultSet resultSet = statement.executeQuery(STATEMENT_SELECT_IDS_OF_SPOOLED_SAMPLES);
+            while (resultSet.next())
+               {
+               ids.add(resultSet.getInt(1));
+               }
+            resultSet.close();
+            }
+         catch (SQLException e)
+            {
+            LOG.error("DatabaseDataSampleStore.getSpooledDataSampleIds(): SQLException while trying to get the IDs of spooled samples " + getSqlExceptionAsString(e), e);
+            }
+         finally
+            {
+            closeStatement(statement);
+            }
+         return ids;
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   @Override
+   public int releaseSpooledDataSamples(@NotNull final Set<Integer> idsToKeep)
+      {
+      lockForUpload();
+      try
+         {
+         Statement updateStatement = null;
+         try
+            {
+            updateStatement = uploadConnection.createStatement();
+            final int numReleased = updateStatement.executeUpdate("UPDATE SpeckSamples " +
+                                                                  "SET UPLOAD_STATUS='" + DataSampleUploadStatus.NOT_ATTEMPTED.getName() + "', UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS=NULL " +
+                                                                  "WHERE UPLOAD_STATUS='" + DataSampleUploadStatus.IN_PROGRESS.getName() + "' AND UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS=" + SPOOL_CLAIM_TIMESTAMP_UTC_MILLIS +
+                                                                  (idsToKeep.isEmpty() ? "" : " AND ID NOT IN (" + StringUtils.join(idsToKeep, ",") + ")"));
+            transferUploadStatusCount(DataSampleUploadStatus.IN_PROGRESS, DataSampleUploadStatus.NOT_ATTEMPTED, numReleased);
+            if (numReleased > 0 && LOG.isInfoEnabled())
+               {
+               LOG.info("DatabaseDataSampleStore.releaseSpooledDataSamples(): Released [" + numReleased + "] samples which are no longer in the upload spool");
+               }
+            return numReleased;
+            }
+         catch (SQLException e)
+            {
+            LOG.error("DatabaseDataSampleStore.releaseSpooledDataSamples(): SQLException while trying to release spooled samples " + getSqlExceptionAsString(e), e);
+            }
+         finally
+            {
+            closeStatement(updateStatement);
+            }
+         return 0;
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   @Override
+   public void markDataSamplesAsRejected(@NotNull final DataSampleSet dataSampleSet, final int maxNumberOfRejections)
+      {
+      lockForUpload();
+      try
+         {
+         final List<Integer> ids = getIds(dataSampleSet);
+         final PreparedStatement quarantineStatement = preparedStatements.get(STATEMENT_NAME_QUARANTINE_REJECTED_SAMPLE);
+         final PreparedStatement failStatement = preparedStatements.get(STATEMENT_NAME_FAIL_REJECTED_SAMPLE);
+         if (!ids.isEmpty() && quarantineStatement != null && failStatement != null)
+            {
+            try
+               {
+               for (final Integer id : ids)
+                  {
+                  quarantineStatement.setInt(1, id);
+                  quarantineStatement.setInt(2, maxNumberOfRejections - 1);
+                  quarantineStatement.addBatch();
+                  }
+               final int numQuarantined = sum(quarantineStatement.executeBatch());
+               transferUploadStatusCount(DataSampleUploadStatus.IN_PROGRESS, DataSampleUploadStatus.QUARANTINED, numQuarantined);
+
+               for (final Integer id : ids)
+                  {
+                  failStatement.setInt(1, id);
+                  failStatement.addBatch();
+                  }
+               final int numFailed = sum(failStatement.executeBatch());
+               transferUploadStatusCount(DataSampleUploadStatus.IN_PROGRESS, DataSampleUploadStatus.FAILURE, numFailed);
+
+               if (LOG.isInfoEnabled())
+                  {
+                  LOG.info("DatabaseDataSampleStore.markDataSamplesAsRejected(): Marked [" + numFailed + "] rejected samples' upload status as " + DataSampleUploadStatus.FAILURE + " and quarantined [" + numQuarantined + "]");
+                  }
+               if (numQuarantined > 0)
+                  {
+                  CONSOLE_LOG.info("Quarantined " + numQuarantined + " sample(s) which the server rejected " + maxNumberOfRejections + " time(s).  They won't be uploaded again.");
+                  }
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.markDataSamplesAsRejected(): SQLException while trying to mark data samples as rejected " + getSqlExceptionAsString(e), e);
+               clearBatch(quarantineStatement);
+               clearBatch(failStatement);
+               }
+            }
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   @Override
+   public void renewUploadClaim(@NotNull final DataSampleSet dataSampleSet)
+      {
+      lockForUpload();
+      try
+         {
+         final List<Integer> ids = getIds(dataSampleSet);
+         final PreparedStatement updateStatement = preparedStatements.get(STATEMENT_NAME_RENEW_UPLOAD_CLAIM);
+         if (!ids.isEmpty() && updateStatement != null)
+            {
+            try
+               {
+               final long now = System.currentTimeMillis();
+               for (final Integer id : ids)
+                  {
+                  updateStatement.setLong(1, now);
+                  updateStatement.setInt(2, id);
+                  updateStatement.addBatch();
+                  }
+               final int numRenewed = sum(updateStatement.executeBatch());
+               if (LOG.isDebugEnabled())
+                  {
+                  LOG.debug("DatabaseDataSampleStore.renewUploadClaim(): Renewed the upload claim on [" + numRenewed + "] of [" + ids.size() + "] samples");
+                  }
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.renewUploadClaim(): SQLException while trying to renew the upload claim " + getSqlExceptionAsString(e), e);
+               clearBatch(updateStatement);
+               }
+            }
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   /** Returns the total number of rows updated by a batch, given its update counts. */
+   private static int sum(@NotNull final int[] updateCounts)
+      {
+      int total = 0;
+      for (final int updateCount : updateCounts)
+         {
+         total += Math.max(0, updateCount);
+         }
+      return total;
+      }
+
+   /** Clears the given statement's batch, so that a failed batch isn't run again along with the next one. */
+   private static void clearBatch(@NotNull final PreparedStatement statement)
+      {
+      try
+         {
+         statement.clearBatch();
+         }
+      catch (SQLException e)
+         {
+         LOG.error("DatabaseDataSampleStore.clearBatch(): SQLException while trying to clear a batch " + getSqlExceptionAsString(e), e);
+         }
+      }
+
+   @NotNull
+   @Override
+   public DataSampleSet getDataSamplesSavedAfter(final int databaseId, final int maxNumberRequested)
+      {
+      lockForUpload();
+      try
+         {
+         final SortedSet<Speck.DataSample> dataSamples = new TreeSet<Speck.DataSample>();
+         final PreparedStatement selectStatement = preparedStatements.get(STATEMENT_NAME_SELECT_SAMPLES_SAVED_AFTER);
+         if (selectStatement != null)
+            {
+            try
+               {
+               selectStatement.setMaxRows((maxNumberRequested < 1) ? DataSampleSet.DEFAULT_SIZE : maxNumberRequested);
+               selectStatement.setInt(1, databaseId);
+               final ResultSet resultSet = selectStatement.executeQuery();
+               while (resultSet.next())
+                  {
+                  dataSamples.add(new DataSample(resultSet.getInt(1),        // databaseId
+                                                 resultSet.getInt(2),        // sampleTimeUtcSeconds
+                                                 resultSet.getInt(3),        // rawParticleCount
+                                                 resultSet.getInt(4),        // particleCount
+                                                 resultSet.getInt(5),        // temperatureInTenthsOfDegreeF
+                                                 resultSet.getInt(6)));      // humidity
+                  }
+               resultSet.close();
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.getDataSamplesSavedAfter(): SQLException while trying to get the samples saved after sample [" + databaseId + "] " + getSqlExceptionAsString(e), e);
+               }
+            }
+         else
+            {
+            LOG.error("DatabaseDataSampleStore.getDataSamplesSavedAfter(): Select failed because no select statement is defined!");
+            }
+
+         return new DataSampleSetImpl(dataSamples);
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   @Override
+   public int getUploadCursor(@NotNull final String mirrorName)
+      {
+      lockForUpload();
+      try
+         {
+         final PreparedStatement selectStatement = preparedStatements.get(STATEMENT_NAME_SELECT_UPLOAD_CURSOR);
+         if (selectStatement != null)
+            {
+            try
+               {
+               selectStatement.setString(1, mirrorName);
+               final ResultSet resultSet = selectStatement.executeQuery();
+               try
+                  {
+                  return resultSet.next() ? resultSet.getInt(1) : 0;
+                  }
+               finally
+                  {
+                  resultSet.close();
+                  }
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.getUploadCursor(): SQLException while trying to get the cursor of mirror [" + mirrorName + "] " + getSqlExceptionAsString(e), e);
+               }
+            }
+         return 0;
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   @Override
+   public boolean setUploadCursor(@NotNull final String mirrorName, final int databaseId)
+      {
+      lockForUpload();
+      try
+         {
+         final PreparedStatement updateStatement = preparedStatements.get(STATEMENT_NAME_UPDATE_UPLOAD_CURSOR);
+         final PreparedStatement insertStatement = preparedStatements.get(STATEMENT_NAME_INSERT_UPLOAD_CURSOR);
+         if (updateStatement != null && insertStatement != null)
+            {
+            try
+               {
+               // the update and insert take their parameters in the same order
+               final long now = System.currentTimeMillis();
+               for (final PreparedStatement statement : new PreparedStatement[]{updateStatement, insertStatement})
+                  {
+                  statement.setInt(1, databaseId);
+                  statement.setLong(2, now);
+                  statement.setString(3, mirrorName);
+                  if (statement.executeUpdate() > 0)
+                     {
+                     return true;
+                     }
+                  }
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.setUploadCursor(): SQLException while trying to set the cursor of mirror [" + mirrorName + "] to [" + databaseId + "] " + getSqlExceptionAsString(e), e);
+               }
+            }
+         return false;
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   @Override
+   public int getAggregateCursor(@NotNull final DataSampleRollup.Resolution resolution)
+      {
+      lockForUpload();
+      try
+         {
+         final PreparedStatement selectStatement = preparedStatements.get(STATEMENT_NAME_SELECT_AGGREGATE_CURSOR);
+         if (selectStatement != null)
+            {
+            try
+               {
+               selectStatement.setInt(1, resolution.getSeconds());
+               final ResultSet resultSet = selectStatement.executeQuery();
+               try
+                  {
+                  return resultSet.next() ? resultSet.getInt(1) : 0;
+                  }
+               finally
+                  {
+                  resultSet.close();
+                  }
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.getAggregateCursor(): SQLException while trying to get the " + resolution + " aggregate cursor " + getSqlExceptionAsString(e), e);
+               }
+            }
+         return 0;
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   @Override
+   public boolean setAggregateCursor(@NotNull final DataSampleRollup.Resolution resolution, final int bucketStartUtcSecs)
+      {
+      lockForUpload();
+      try
+         {
+         final PreparedStatement updateStatement = preparedStatements.get(STATEMENT_NAME_UPDATE_AGGREGATE_CURSOR);
+         final PreparedStatement insertStatement = preparedStatements.get(STATEMENT_NAME_INSERT_AGGREGATE_CURSOR);
+         if (updateStatement != null && insertStatement != null)
+            {
+            try
+               {
+               // the update and insert take their parameters in the same order
+               for (final PreparedStatement statement : new PreparedStatement[]{updateStatement, insertStatement})
+                  {
+                  statement.setInt(1, bucketStartUtcSecs);
+                  statement.setInt(2, resolution.getSeconds());
+                  if (statement.executeUpdate() > 0)
+                     {
+                     return true;
+                     }
+                  }
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.setAggregateCursor(): SQLException while trying to set the " + resolution + " aggregate cursor to [" + bucketStartUtcSecs + "] " + getSqlExceptionAsString(e), e);
+               }
+            }
+         return false;
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   /**
+    * Returns the lowest cursor of the upload mirrors whose cursor has been set since the given time, or
+    * {@link Integer#MAX_VALUE} if there are none.  Callers must hold the upload lock.
+    */
+   private int getLowestUploadCursor(final long setSinceUtcMillis) throws SQLException
+      {
+      final PreparedStatement selectStatement = preparedStatements.get(STATEMENT_NAME_SELECT_LOWEST_UPLOAD_CURSOR);
+      if (selectStatement == null)
+         {
+         // fail safe, and don't purge anything
+         return 0;
+         }
+      selectStatement.setLong(1, setSinceUtcMillis);
+      final ResultSet resultSet = selectStatement.executeQuery();
+      try
+         {
+         if (resultSet.next())
+            {
+            final int lowestCursor = resultSet.getInt(1);
+            if (!resultSet.wasNull())
+               {
+               return lowestCursor;
+               }
+            }
+         return Integer.MAX_VALUE;
+         }
+      finally
+         {
+         resultSet.close();
+         }
+      }
+
+   @Override
+   public int deleteUploadedDataSamples(final long uploadedBeforeUtcMillis, final int maxNumberToDelete)
+      {
+      lockForUpload();
+      try
+         {
+         int numDeleted = 0;
+         final PreparedStatement selectStatement = preparedStatements.get(STATEMENT_NAME_SELECT_IDS_OF_SAMPLES_UPLOADED_BEFORE);
+         if (selectStatement != null)
+            {
+            if (maxNumberToDelete > 0)
+               {
+               Statement deleteStatement = null;
+               try
+                  {
+                  // Find a batch of IDs, then delete just those rows.  Keeping each delete small keeps the transaction
+                  // (and the time we hold the lock) short, so saves aren't held up while we purge.
+                  selectStatement.setMaxRows(maxNumberToDelete);
+                  selectStatement.setLong(1, uploadedBeforeUtcMillis);
+                  selectStatement.setInt(2, getLowestUploadCursor(uploadedBeforeUtcMillis));
+                  final ResultSet resultSet = selectStatement.executeQuery();
+                  final List<Integer> ids = new ArrayList<Integer>();
+                  while (resultSet.next())
+                     {
+                     ids.add(resultSet.getInt(1));
+                     }
+                  resultSet.close();
+
+                  if (!ids.isEmpty())
+                     {
+                     deleteStatement = uploadConnection.createStatement();
+                     numDeleted = deleteStatement.executeUpdate("DELETE FROM SpeckSamples WHERE ID IN (" + StringUtils.join(ids, ",") + ")");
+                     uploadStatusCounts.get(DataSampleUploadStatus.SUCCESS).addAndGet(-numDeleted);
+                     }
+
+                  if (LOG.isDebugEnabled())
+                     {
+                     LOG.debug("DatabaseDataSampleStore.deleteUploadedDataSamples(): Deleted [" + numDeleted + "] samples uploaded before [" + uploadedBeforeUtcMillis + "]");
+                     }
+                  }
+               catch (SQLException e)
+                  {
+                  LOG.error("DatabaseDataSampleStore.deleteUploadedDataSamples(): SQLException while trying to delete uploaded samples " + getSqlExceptionAsString(e), e);
+                  }
+               finally
+                  {
+                  closeStatement(deleteStatement);
+                  }
+               }
+            }
+         else
+            {
+            LOG.error("DatabaseDataSampleStore.deleteUploadedDataSamples(): Delete failed because no select statement is defined!");
+            }
+
+         return numDeleted;
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+      }
+
+   @Override
+   public long compact()
+      {
+      lockForUpload();
+      try
+         {
+         if (isShutDown)
+            {
+            return 0;
+            }
+         }
+      finally
+         {
+         uploadLock.unlock();
+         }
+
+      // Compaction gets its own connection instead of using one of the shared ones (which are guarded by locks) so
+      // that saves and upload bookkeeping can continue while Derby works through the table.
+      Connection maintenanceConnection = null;
+      CallableStatement compressStatement = null;
+      try
+         {
+         maintenanceConnection = DriverManager.getConnection(databaseUrl, connectionProperties);
+         maintenanceConnection.setAutoCommit(true);
+
+         final long allocatedBytesBefore = getAllocatedBytes(maintenanceConnection);
+
+         compressStatement = maintenanceConnection.prepareCall(STATEMENT_INPLACE_COMPRESS_TABLE);
+         compressStatement.setString(1, SCHEMA_NAME);
+         compressStatement.setString(2, TABLE_NAME);
+         compressStatement.execute();
+
+         final long bytesReclaimed = Math.max(0, allocatedBytesBefore - getAllocatedBytes(maintenanceConnection));
+         if (LOG.isInfoEnabled())
+            {
+            LOG.info("DatabaseDataSampleStore.compact(): Compacted table " + TABLE_NAME + ", reclaiming [" + bytesReclaimed + "] bytes");
+            }
+         return bytesReclaimed;
+         }
+      catch (SQLException e)
+         {
+         LOG.error("DatabaseDataSampleStore.compact(): SQLException while trying to compact the database " + getSqlExceptionAsString(e), e);
+         }
+      finally
+         {
+         closeStatement(compressStatement);
+         closeConnection(maintenanceConnection);
+         }
+      return 0;
+      }
+
+   /** Returns the number of bytes allocated to the SpeckSamples table and its indexes. */
+   private long getAllocatedBytes(@NotNull final Connection connection) throws SQLException
+      {
+      PreparedStatement statement = null;
       try
          {
-         markDataSamplesWithStatus(dataSampleSet, DataSampleUploadStatus.FAILURE, null);
+         statement = connection.prepareStatement(STATEMENT_SELECT_ALLOCATED_BYTES);
+         statement.setString(1, SCHEMA_NAME);
+         statement.setString(2, TABLE_NAME);
+         final ResultSet resultSet = statement.executeQuery();
+         final long allocatedBytes = resultSet.next() ? resultSet.getLong(1) : 0;
+         resultSet.close();
+         return allocatedBytes;
          }
       finally
          {
-         lock.unlock();
+         closeStatement(statement);
          }
       }
 
    /**
-    * Marks the given samples with the given status.  MUST be called from within a lock block. Returns <code>true</code>
-    * upon success, <code>false</code> otherwise.
+    * Marks the given samples with the given status.  MUST be called from within an upload lock block. Returns
+    * <code>true</code> upon success, <code>false</code> otherwise.
     */
-   private boolean markDataSamplesWithStatus(@NotNull final DataSampleSet dataSampleSet, @NotNull final DataSampleUploadStatus status, @Nullable final Long timestampUtcMillis)
+   private boolean markDataSamplesWithStatus(@NotNull final DataSampleSet dataSampleSet, @Nullable final DataSampleUploadStatus previousStatus, @NotNull final DataSampleUploadStatus status, @Nullable final Long timestampUtcMillis)
       {
       if (!dataSampleSet.isEmpty())
          {
-         // build a list of the ids
-         final List<Integer> ids = new ArrayList<Integer>();
-         for (final Speck.DataSample sample : dataSampleSet.getDataSamples())
+         return markDataSamplesWithStatus(getIds(dataSampleSet), previousStatus, status, timestampUtcMillis);
+         }
+      return false;
+      }
+
+   /** Returns the database IDs of the samples in the given set. */
+   @NotNull
+   private static List<Integer> getIds(@NotNull final DataSampleSet dataSampleSet)
+      {
+      final List<Integer> ids = new ArrayList<Integer>();
+      for (final Speck.DataSample sample : dataSampleSet.getDataSamples())
+         {
+         final Integer id = sample.getDatabaseId();
+         if (id != null)
             {
-            final Integer id = sample.getDatabaseId();
-            if (id != null)
-               {
-               ids.add(id);
-               }
+            ids.add(id);
             }
-         return markDataSamplesWithStatus(ids, status, timestampUtcMillis);
          }
-      return false;
+      return ids;
       }
 
    /**
-    * Marks the samples associated with the given IDs with the given status.  MUST be called from within a lock block.
+    * Marks the samples associated with the given IDs with the given status.  MUST be called from within an upload lock
+    * block.  If <code>previousStatus</code> is non-<code>null</code>, the upload status counts are updated to reflect
+    * the updated samples moving from <code>previousStatus</code> to <code>status</code>, and only samples which still
+    * have the <code>previousStatus</code> are updated (so a sample whose upload claim expired and was reclaimed by a
+    * later upload is only ever counted once); otherwise, the caller is responsible for updating the counts.  The
+    * <code>timestampUtcMillis</code> is recorded as the claim time when marking samples as
+    * {@link DataSampleUploadStatus#IN_PROGRESS IN_PROGRESS}, and as the upload time otherwise.
     * Returns <code>true</code> upon success, <code>false</code> otherwise.
     */
-   private boolean markDataSamplesWithStatus(@NotNull final List<Integer> dataSamplesIds, @NotNull final DataSampleUploadStatus status, @Nullable final Long timestampUtcMillis)
+   private boolean markDataSamplesWithStatus(@NotNull final List<Integer> dataSamplesIds, @Nullable final DataSampleUploadStatus previousStatus, @NotNull final DataSampleUploadStatus status, @Nullable final Long timestampUtcMillis)
       {
       boolean wasSuccessful = false;
       if (!dataSamplesIds.isEmpty())
@@ -424,14 +1787,21 @@ final class DatabaseDataSampleStore implements DataSampleStore
          Statement updateStatement = null;
          try
             {
+            final boolean isClaim = DataSampleUploadStatus.IN_PROGRESS.equals(status);
             final String updateSql = "UPDATE SpeckSamples " +
                                      "SET " +
                                      "   UPLOAD_STATUS='" + status.getName() + "', " +
-                                     "   UPLOAD_TIMESTAMP_UTC_MILLIS=" + timestampUtcMillis + " " +
-                                     "WHERE ID IN (" + StringUtils.join(dataSamplesIds, ",") + ")";
+                                     "   UPLOAD_TIMESTAMP_UTC_MILLIS=" + (isClaim ? null : timestampUtcMillis) + ", " +
+                                     "   UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS=" + (isClaim ? timestampUtcMillis : null) + " " +
+                                     "WHERE ID IN (" + StringUtils.join(dataSamplesIds, ",") + ")" +
+                                     ((previousStatus == null) ? "" : " AND UPLOAD_STATUS='" + previousStatus.getName() + "'");
 
-            updateStatement = connection.createStatement();
-            updateStatement.executeUpdate(updateSql);
+            updateStatement = uploadConnection.createStatement();
+            final int numUpdated = updateStatement.executeUpdate(updateSql);
+            if (previousStatus != null)
+               {
+               transferUploadStatusCount(previousStatus, status, numUpdated);
+               }
             wasSuccessful = true;
             }
          catch (SQLException e)
@@ -459,33 +1829,44 @@ final class DatabaseDataSampleStore implements DataSampleStore
       return wasSuccessful;
       }
 
+   /** Shutting down the database doesn't wait on anything, so this is the same as {@link #shutdown()}. */
+   @Override
+   public void shutdown(final long deadlineUtcMillis)
+      {
+      shutdown();
+      }
+
    public void shutdown()
       {
-      lock.lock();  // block until condition holds
+      lockAll();
       try
          {
          if (!isShutDown)
             {
             LOG.debug("DatabaseDataSampleStore.shutdown(): Shutting down...");
             CONSOLE_LOG.info("Shutting down the database...");
+
+            checkpointUploadStatusCounts();
+
             try
                {
-               // the shutdown=true attribute shuts down Derby
-               DriverManager.getConnection(PROTOCOL + ";shutdown=true");
+               // the shutdown=true attribute shuts down only this database, leaving the engine running for the
+               // databases of any other Specks (and for this one, should it be opened again)
+               DriverManager.getConnection(databaseUrl + ";shutdown=true");
                }
             catch (SQLException e)
                {
-               if (((e.getErrorCode() == 50000) && ("XJ015".equals(e.getSQLState()))))
+               if (((e.getErrorCode() == 45000) && ("08006".equals(e.getSQLState()))))
                   {
                   // we got the expected exception
-                  LOG.info("DatabaseDataSampleStore.shutdown(): Derby shut down normally");
+                  LOG.info("DatabaseDataSampleStore.shutdown(): Database shut down normally");
                   CONSOLE_LOG.info("Database shut down normally");
                   }
                else
                   {
                   // if the error code or SQLState is different, we have
                   // an unexpected exception (shutdown failed)
-                  LOG.error("DatabaseDataSampleStore.shutdown(): Derby did not shut down normally: " + getSqlExceptionAsString(e), e);
+                  LOG.error("DatabaseDataSampleStore.shutdown(): Database did not shut down normally: " + getSqlExceptionAsString(e), e);
                   CONSOLE_LOG.error("Database did not shut down normally: " + getSqlExceptionAsString(e));
                   }
                }
@@ -500,36 +1881,187 @@ final class DatabaseDataSampleStore implements DataSampleStore
                }
             preparedStatements.clear();
 
-            // close the connection
-            try
+            // close the connections
+            for (final Connection connection : new Connection[]{insertConnection, uploadConnection})
                {
-               if (connection != null)
+               try
                   {
-                  connection.close();
-                  connection = null;
-                  LOG.info("DatabaseDataSampleStore.shutdown(): Connection closed normally");
+                  if (connection != null)
+                     {
+                     connection.close();
+                     LOG.info("DatabaseDataSampleStore.shutdown(): Connection closed normally");
+                     }
+                  }
+               catch (SQLException e)
+                  {
+                  LOG.error("DatabaseDataSampleStore.shutdown(): SQLException while closing the connection" + getSqlExceptionAsString(e));
                   }
                }
-            catch (SQLException e)
-               {
-               LOG.error("DatabaseDataSampleStore.shutdown(): SQLException while closing the connection" + getSqlExceptionAsString(e));
-               }
+            insertConnection = null;
+            uploadConnection = null;
 
             isShutDown = true;
             }
          }
       finally
          {
-         lock.unlock();
+         unlockAll();
+         }
+      }
+
+   @Override
+   public long getSaveLockWaitMillis()
+      {
+      return TimeUnit.NANOSECONDS.toMillis(insertLockWaitNanos.get());
+      }
+
+   @Override
+   public long getUploadLockWaitMillis()
+      {
+      return TimeUnit.NANOSECONDS.toMillis(uploadLockWaitNanos.get());
+      }
+
+   @Override
+   public int getNumDataSamples(@NotNull final DataSampleUploadStatus status)
+      {
+      return uploadStatusCounts.get(status).get();
+      }
+
+   /** Moves <code>count</code> samples from one upload status count to another. */
+   private void transferUploadStatusCount(@NotNull final DataSampleUploadStatus fromStatus, @NotNull final DataSampleUploadStatus toStatus, final int count)
+      {
+      if (count != 0)
+         {
+         uploadStatusCounts.get(fromStatus).addAndGet(-count);
+         uploadStatusCounts.get(toStatus).addAndGet(count);
+         }
+      }
+
+   /**
+    * Initializes the upload status counts, either from the checkpoint written at the last shutdown or, if that
+    * checkpoint isn't current, by counting.  In either case, the checkpoint is then marked as no longer current, so that
+    * the counts will be recomputed if we don't get as far as the next checkpoint.
+    */
+   private void initializeUploadStatusCounts(@NotNull final Connection connection) throws SQLException
+      {
+      final Map<String, Integer> counters = new HashMap<String, Integer>();
+      Statement statement = null;
+      try
+         {
+         statement = connection.createStatement();
+         final ResultSet counterResultSet = statement.executeQuery(STATEMENT_SELECT_COUNTERS);
+         while (counterResultSet.next())
+            {
+            counters.put(counterResultSet.getString(1), counterResultSet.getInt(2));
+            }
+         counterResultSet.close();
+
+         final Integer checkpointIsCurrent = counters.get(COUNTER_NAME_CHECKPOINT_IS_CURRENT);
+         if (checkpointIsCurrent != null && checkpointIsCurrent == 1)
+            {
+            for (final DataSampleUploadStatus status : DataSampleUploadStatus.values())
+               {
+               final Integer count = counters.get(status.getName());
+               uploadStatusCounts.get(status).set(count == null ? 0 : count);
+               }
+            LOG.info("DatabaseDataSampleStore.initializeUploadStatusCounts(): Loaded upload status counts from checkpoint: " + uploadStatusCounts);
+            }
+         else
+            {
+            final ResultSet countResultSet = statement.executeQuery(STATEMENT_COUNT_SAMPLES_BY_UPLOAD_STATUS);
+            while (countResultSet.next())
+               {
+               final String statusName = countResultSet.getString(1);
+               for (final DataSampleUploadStatus status : DataSampleUploadStatus.values())
+                  {
+                  if (status.getName().equals(statusName))
+                     {
+                     uploadStatusCounts.get(status).set(countResultSet.getInt(2));
+                     }
+                  }
+               }
+            countResultSet.close();
+            LOG.info("DatabaseDataSampleStore.initializeUploadStatusCounts(): Counted upload statuses since no current checkpoint exists: " + uploadStatusCounts);
+            }
+
+         statement.executeUpdate(STATEMENT_DELETE_COUNTERS);
+         }
+      finally
+         {
+         closeStatement(statement);
+         }
+      }
+
+   /** Persists the upload status counts and marks them as current.  MUST be called from within an insert and upload lock block. */
+   private void checkpointUploadStatusCounts()
+      {
+      if (insertConnection != null)
+         {
+         PreparedStatement deleteStatement = null;
+         PreparedStatement insertStatement = null;
+         try
+            {
+            deleteStatement = insertConnection.prepareStatement(STATEMENT_DELETE_COUNTERS);
+            deleteStatement.executeUpdate();
+            insertStatement = insertConnection.prepareStatement(STATEMENT_INSERT_COUNTER);
+            for (final DataSampleUploadStatus status : DataSampleUploadStatus.values())
+               {
+               insertStatement.setString(1, status.getName());
+               insertStatement.setInt(2, uploadStatusCounts.get(status).get());
+               insertStatement.executeUpdate();
+               }
+            insertStatement.setString(1, COUNTER_NAME_CHECKPOINT_IS_CURRENT);
+            insertStatement.setInt(2, 1);
+            insertStatement.executeUpdate();
+            insertConnection.commit();
+            LOG.info("DatabaseDataSampleStore.checkpointUploadStatusCounts(): Checkpointed upload status counts: " + uploadStatusCounts);
+            }
+         catch (SQLException e)
+            {
+            LOG.error("DatabaseDataSampleStore.checkpointUploadStatusCounts(): SQLException while trying to checkpoint the upload status counts " + getSqlExceptionAsString(e), e);
+            rollbackInsertTransaction();
+            }
+         finally
+            {
+            closeStatement(deleteStatement);
+            closeStatement(insertStatement);
+            }
          }
       }
 
+   private void lockForInsert()
+      {
+      final long startTime = System.nanoTime();
+      insertLock.lock();  // block until condition holds
+      insertLockWaitNanos.addAndGet(System.nanoTime() - startTime);
+      }
+
+   private void lockForUpload()
+      {
+      final long startTime = System.nanoTime();
+      uploadLock.lock();  // block until condition holds
+      uploadLockWaitNanos.addAndGet(System.nanoTime() - startTime);
+      }
+
+   /** Acquires both locks, always in the same order to prevent deadlock. */
+   private void lockAll()
+      {
+      insertLock.lock();
+      uploadLock.lock();
+      }
+
+   private void unlockAll()
+      {
+      uploadLock.unlock();
+      insertLock.unlock();
+      }
+
    /**
     * Loads the driver specified by {@link #DRIVER_NAME} and returns <code>true</code> upon success, <code>false</code>
     * otherwise.  Note that any static Derby system properties must be set before loading the driver in order for them
     * to have any effect.
     */
-   private boolean loadDriver()
+   private static boolean loadDriver()
       {
         /*
          *  The JDBC driver is loaded by loading its class.
@@ -593,13 +2125,16 @@ final class DatabaseDataSampleStore implements DataSampleStore
                               "   download_timestamp_utc_millis BIGINT      NOT NULL,\n" +
                               "   upload_timestamp_utc_millis   BIGINT,\n" +
                               "   upload_status                 VARCHAR(13) NOT NULL DEFAULT 'not_attempted',\n" +
+                              "   upload_claim_timestamp_utc_millis BIGINT,\n" +
+                              "   upload_rejection_count        INTEGER     NOT NULL DEFAULT 0,\n" +
                               "   CONSTRAINT SpeckSamples_PrimaryKey PRIMARY KEY (id),\n" +
                               "   CONSTRAINT SpeckSamples_SampleTimestamp_Unique UNIQUE (sample_timestamp_utc_secs),\n" +
                               "   CONSTRAINT SpeckSamples_StatusContraint CHECK (upload_status IN\n" +
                               "                                                   ('not_attempted',\n" +
                               "                                                    'in_progress',\n" +
                               "                                                    'success',\n" +
-                              "                                                    'failure'))\n" +
+                              "                                                    'failure',\n" +
+                              "                                                    'quarantined'))\n" +
                               ")");
 
             LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Creating indeces for table SpeckSamples...");
@@ -619,6 +2154,184 @@ final class DatabaseDataSampleStore implements DataSampleStore
             closeStatement(statement);
             }
          }
+
+      // Databases created before upload claims expired won't have the claim timestamp column.  Samples left
+      // IN_PROGRESS in such a database have a null claim timestamp, which is treated as expired.
+      if (!doesColumnExist(connection, TABLE_NAME, "UPLOAD_CLAIM_TIMESTAMP_UTC_MILLIS"))
+         {
+         Statement statement = null;
+
+         try
+            {
+            LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Adding the upload claim timestamp column to table SpeckSamples...");
+            statement = connection.createStatement();
+            statement.execute("ALTER TABLE SpeckSamples ADD COLUMN upload_claim_timestamp_utc_millis BIGINT");
+            }
+         finally
+            {
+            closeStatement(statement);
+            }
+         }
+
+      // Databases created before samples could be quarantined won't have the rejection count column, and their status
+      // constraint won't allow the quarantined status.
+      if (!doesColumnExist(connection, TABLE_NAME, "UPLOAD_REJECTION_COUNT"))
+         {
+         Statement statement = null;
+
+         try
+            {
+            LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Adding the upload rejection count column to table SpeckSamples...");
+            statement = connection.createStatement();
+            statement.execute("ALTER TABLE SpeckSamples ADD COLUMN upload_rejection_count INTEGER NOT NULL DEFAULT 0");
+            statement.execute("ALTER TABLE SpeckSamples DROP CONSTRAINT SpeckSamples_StatusContraint");
+            statement.execute("ALTER TABLE SpeckSamples ADD CONSTRAINT SpeckSamples_StatusContraint CHECK (upload_status IN\n" +
+                              "                                                   ('not_attempted',\n" +
+                              "                                                    'in_progress',\n" +
+                              "                                                    'success',\n" +
+                              "                                                    'failure',\n" +
+                              "                                                    'quarantined'))");
+            }
+         finally
+            {
+            closeStatement(statement);
+            }
+         }
+
+      if (!DatabaseUtils.doesTableExist(connection, "SpeckCounters"))
+         {
+         Statement statement = null;
+
+         try
+            {
+            LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Creating table SpeckCounters...");
+            statement = connection.createStatement();
+            statement.execute("CREATE TABLE SpeckCounters (\n" +
+                              "   name          VARCHAR(32) NOT NULL,\n" +
+                              "   counter_value INTEGER     NOT NULL,\n" +
+                              "   CONSTRAINT SpeckCounters_PrimaryKey PRIMARY KEY (name)\n" +
+                              ")");
+            }
+         finally
+            {
+            closeStatement(statement);
+            }
+         }
+
+      if (!DatabaseUtils.doesTableExist(connection, "SpeckUploadCursors"))
+         {
+         Statement statement = null;
+
+         try
+            {
+            LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Creating table SpeckUploadCursors...");
+            statement = connection.createStatement();
+            statement.execute("CREATE TABLE SpeckUploadCursors (\n" +
+                              "   mirror_name              VARCHAR(64) NOT NULL,\n" +
+                              "   last_sample_id           INTEGER     NOT NULL,\n" +
+                              "   set_timestamp_utc_millis BIGINT      NOT NULL,\n" +
+                              "   CONSTRAINT SpeckUploadCursors_PrimaryKey PRIMARY KEY (mirror_name)\n" +
+                              ")");
+            }
+         finally
+            {
+            closeStatement(statement);
+            }
+         }
+
+      if (!DatabaseUtils.doesTableExist(connection, "SpeckAggregateCursors"))
+         {
+         Statement statement = null;
+
+         try
+            {
+            LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Creating table SpeckAggregateCursors...");
+            statement = connection.createStatement();
+            statement.execute("CREATE TABLE SpeckAggregateCursors (\n" +
+                              "   resolution_secs            INTEGER NOT NULL,\n" +
+                              "   next_bucket_start_utc_secs INTEGER NOT NULL,\n" +
+                              "   CONSTRAINT SpeckAggregateCursors_PrimaryKey PRIMARY KEY (resolution_secs)\n" +
+                              ")");
+            }
+         finally
+            {
+            closeStatement(statement);
+            }
+         }
+
+      if (!DatabaseUtils.doesTableExist(connection, "SpeckRollups"))
+         {
+         Statement statement = null;
+
+         try
+            {
+            LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Creating table SpeckRollups...");
+            statement = connection.createStatement();
+            statement.execute("CREATE TABLE SpeckRollups (\n" +
+                              "   resolution_secs       INTEGER NOT NULL,\n" +
+                              "   bucket_start_utc_secs INTEGER NOT NULL,\n" +
+                              "   num_samples           INTEGER NOT NULL,\n" +
+                              "   min_particle_count    INTEGER NOT NULL,\n" +
+                              "   max_particle_count    INTEGER NOT NULL,\n" +
+                              "   sum_particle_count    BIGINT  NOT NULL,\n" +
+                              "   min_temperature       INTEGER NOT NULL,\n" +
+                              "   max_temperature       INTEGER NOT NULL,\n" +
+                              "   sum_temperature       BIGINT  NOT NULL,\n" +
+                              "   min_humidity          INTEGER NOT NULL,\n" +
+                              "   max_humidity          INTEGER NOT NULL,\n" +
+                              "   sum_humidity          BIGINT  NOT NULL,\n" +
+                              "   CONSTRAINT SpeckRollups_PrimaryKey PRIMARY KEY (resolution_secs, bucket_start_utc_secs)\n" +
+                              ")");
+
+            // Seed the rollups from any samples saved before the rollups existed.  From here on, they're maintained by save().
+            for (final DataSampleRollup.Resolution resolution : DataSampleRollup.Resolution.values())
+               {
+               LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Seeding " + resolution + " rollups...");
+               final String bucketStart = "(sample_timestamp_utc_secs / " + resolution.getSeconds() + ") * " + resolution.getSeconds();
+               statement.execute("INSERT INTO SpeckRollups (resolution_secs, bucket_start_utc_secs, " + ROLLUP_COLUMN_NAMES + ")\n" +
+                                 "SELECT " + resolution.getSeconds() + ", " + bucketStart + ", COUNT(*),\n" +
+                                 "       MIN(particle_count), MAX(particle_count), SUM(CAST(particle_count AS BIGINT)),\n" +
+                                 "       MIN(temperature), MAX(temperature), SUM(CAST(temperature AS BIGINT)),\n" +
+                                 "       MIN(humidity), MAX(humidity), SUM(CAST(humidity AS BIGINT))\n" +
+                                 "FROM SpeckSamples\n" +
+                                 "GROUP BY " + bucketStart);
+               }
+
+            LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Rollup initialization complete!");
+            }
+         finally
+            {
+            closeStatement(statement);
+            }
+         }
+      }
+
+   private static boolean doesColumnExist(@NotNull final Connection connection, @NotNull final String tableName, @NotNull final String columnName) throws SQLException
+      {
+      final ResultSet resultSet = connection.getMetaData().getColumns(null, SCHEMA_NAME, tableName, columnName);
+      try
+         {
+         return resultSet.next();
+         }
+      finally
+         {
+         resultSet.close();
+         }
+      }
+
+   private void closeConnection(@Nullable final Connection connection)
+      {
+      try
+         {
+         if (connection != null)
+            {
+            connection.close();
+            }
+         }
+      catch (SQLException e)
+         {
+         LOG.error("DatabaseDataSampleStore.closeConnection(): SQLException while trying to close the connection.  Oh well.", e);
+         }
       }
 
    private boolean closeStatement(@Nullable final Statement statement)
@@ -637,4 +2350,104 @@ final class DatabaseDataSampleStore implements DataSampleStore
          }
       return false;
       }
+
+   private final class DatabaseDataSampleCursor implements DataSampleCursor
+      {
+      @NotNull
+      private final Connection connection;
+
+      @NotNull
+      private final Statement statement;
+
+      @NotNull
+      private final ResultSet resultSet;
+
+      @Nullable
+      private Speck.DataSample nextDataSample = null;
+
+      private boolean isClosed = false;
+
+      private boolean hasFailed = false;
+
+      private DatabaseDataSampleCursor(@NotNull final Connection connection, @NotNull final Statement statement, @NotNull final ResultSet resultSet)
+         {
+         this.connection = connection;
+         this.statement = statement;
+         this.resultSet = resultSet;
+         }
+
+      @Override
+      public boolean hasNext()
+         {
+         if (nextDataSample == null && !isClosed)
+            {
+            try
+               {
+               if (resultSet.next())
+                  {
+                  nextDataSample = new DataSample(resultSet.getInt(1),        // databaseId
+                                                  resultSet.getInt(2),        // sampleTimeUtcSeconds
+                                                  resultSet.getInt(3),        // rawParticleCount
+                                                  resultSet.getInt(4),        // particleCount
+                                                  resultSet.getInt(5),        // temperatureInTenthsOfDegreeF
+                                                  resultSet.getInt(6));       // humidity
+                  }
+               else
+                  {
+                  close();
+                  }
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.DatabaseDataSampleCursor.hasNext(): SQLException while trying to fetch the next sample " + getSqlExceptionAsString(e), e);
+               hasFailed = true;
+               close();
+               }
+            }
+         return nextDataSample != null;
+         }
+
+      @Override
+      public Speck.DataSample next()
+         {
+         if (!hasNext())
+            {
+            throw new NoSuchElementException();
+            }
+         final Speck.DataSample dataSample = nextDataSample;
+         nextDataSample = null;
+         return dataSample;
+         }
+
+      @Override
+      public void remove()
+         {
+         throw new UnsupportedOperationException("Removal is not supported");
+         }
+
+      @Override
+      public boolean hasFailed()
+         {
+         return hasFailed;
+         }
+
+      @Override
+      public void close()
+         {
+         if (!isClosed)
+            {
+            isClosed = true;
+            try
+               {
+               resultSet.close();
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.DatabaseDataSampleCursor.close(): SQLException while trying to close the result set.  Oh well.", e);
+               }
+            closeStatement(statement);
+            closeConnection(connection);
+            }
+         }
+      }
    }
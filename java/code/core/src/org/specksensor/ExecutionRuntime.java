@@ -0,0 +1,508 @@
+package org.specksensor;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>ExecutionRuntime</code> is the single, bounded set of threads shared by all the gateway's components and all
+ * connected Specks, so that the number of threads no longer grows with every component and every device.  It consists
+ * of a timer thread, which only ever hands due tasks over to the workers, and a fixed-size pool of worker threads (or,
+ * optionally, virtual threads, when running on a JVM which supports them).
+ * </p>
+ * <p>
+ * Each component runs its tasks through its own {@link Component}, which limits how many of the component's tasks may
+ * run at once (so that, for example, long-running uploads can never take all the workers) and keeps queue and latency
+ * metrics for the component.  Long-lived blocking consumers (e.g. the CSV writer) keep threads of their own, since they
+ * would otherwise hold on to a worker for as long as they live.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class ExecutionRuntime
+   {
+   private static final Logger LOG = Logger.getLogger(ExecutionRuntime.class);
+
+   /** Number of worker threads shared by all components.  Ignored when using virtual threads. */
+   public static final String WORKER_THREAD_COUNT_SYSTEM_PROPERTY = "org.specksensor.ExecutionRuntime.worker-thread-count";
+
+   /** Whether to run tasks on virtual threads rather than pooled worker threads, if the JVM supports them. Defaults to false. */
+   public static final String USE_VIRTUAL_THREADS_SYSTEM_PROPERTY = "org.specksensor.ExecutionRuntime.use-virtual-threads";
+
+   private static final int WORKER_THREAD_COUNT = Math.max(1, SystemPropertyUtils.getInt(WORKER_THREAD_COUNT_SYSTEM_PROPERTY, 8));
+   private static final boolean USE_VIRTUAL_THREADS = SystemPropertyUtils.getBoolean(USE_VIRTUAL_THREADS_SYSTEM_PROPERTY, false);
+
+   private static final ExecutionRuntime INSTANCE = new ExecutionRuntime();
+
+   @NotNull
+   public static ExecutionRuntime getInstance()
+      {
+      return INSTANCE;
+      }
+
+   public interface ComponentStatus
+      {
+      @NotNull
+      String getName();
+
+      /** Returns the maximum number of the component's tasks which may run at once. */
+      int getMaxConcurrency();
+
+      /** Returns the number of the component's tasks which are due, but waiting for a worker. */
+      int getNumQueued();
+
+      int getNumRunning();
+
+      long getNumCompleted();
+
+      /** Returns the number of the component's tasks which threw an exception. */
+      long getNumFailed();
+
+      /** Returns the mean time the component's tasks spent waiting for a worker after they were due. */
+      long getMeanQueueWaitMillis();
+
+      long getMaxQueueWaitMillis();
+
+      long getMeanRunMillis();
+
+      long getMaxRunMillis();
+      }
+
+   @NotNull
+   private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory(ExecutionRuntime.class + ".timer"));
+
+   @NotNull
+   private final ExecutorService workers;
+
+   @NotNull
+   private final List<Component> components = new CopyOnWriteArrayList<Component>();
+
+   private ExecutionRuntime()
+      {
+      ExecutorService virtualThreadExecutor = null;
+      if (USE_VIRTUAL_THREADS)
+         {
+         virtualThreadExecutor = createVirtualThreadExecutor();
+         }
+
+      if (virtualThreadExecutor == null)
+         {
+         workers = Executors.newFixedThreadPool(WORKER_THREAD_COUNT, new DaemonThreadFactory(ExecutionRuntime.class + ".worker"));
+         LOG.info("ExecutionRuntime.ExecutionRuntime(): Using [" + WORKER_THREAD_COUNT + "] worker thread(s)");
+         }
+      else
+         {
+         workers = virtualThreadExecutor;
+         LOG.info("ExecutionRuntime.ExecutionRuntime(): Using virtual threads");
+         }
+      }
+
+   /**
+    * Returns a virtual-thread-per-task executor, or <code>null</code> if the JVM doesn't support virtual threads.  It's
+    * looked up reflectively, since we're built for JVMs which predate them.
+    */
+   private static ExecutorService createVirtualThreadExecutor()
+      {
+      try
+         {
+         final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService)method.invoke(null);
+         }
+      catch (NoSuchMethodException ignored)
+         {
+         LOG.info("ExecutionRuntime.createVirtualThreadExecutor(): Virtual threads aren't supported by this JVM, so worker threads will be used instead");
+         }
+      catch (Exception e)
+         {
+         LOG.error("ExecutionRuntime.createVirtualThreadExecutor(): Exception while trying to create the virtual thread executor, so worker threads will be used instead", e);
+         }
+      return null;
+      }
+
+   /**
+    * Returns the component having the given name, creating it if it doesn't already exist.  The
+    * <code>maxConcurrency</code> only applies when the component is created.
+    */
+   @NotNull
+   public Component getComponent(@NotNull final String name, final int maxConcurrency)
+      {
+      synchronized (components)
+         {
+         for (final Component component : components)
+            {
+            if (component.getName().equals(name))
+               {
+               return component;
+               }
+            }
+         final Component component = new Component(name, Math.max(1, maxConcurrency));
+         components.add(component);
+         return component;
+         }
+      }
+
+   /** Returns the statuses of all the components, in the order they were created. */
+   @NotNull
+   public List<ComponentStatus> getComponentStatuses()
+      {
+      return new ArrayList<ComponentStatus>(components);
+      }
+
+   /** Renders the component statuses in an ASCII table */
+   @NotNull
+   public String getComponentStatusesAsString()
+      {
+      final StringWriter stringWriter = new StringWriter();
+      final PrintWriter printWriter = new PrintWriter(stringWriter);
+
+      printWriter.printf(" __________________________________________________________________ \n");
+      printWriter.printf("|                                                                  |\n");
+      printWriter.printf("| Component          Max Queue Run    Done Fail  Wait ms    Run ms |\n");
+      printWriter.printf("|                                               mean/max  mean/max |\n");
+      printWriter.printf("| ---------          --- ----- --- ------- ---- -------- --------- |\n");
+      for (final ComponentStatus status : getComponentStatuses())
+         {
+         printWriter.printf("| %-18.18s %3d %5d %3d %7d %4d %8s %9s |\n",
+                            status.getName(),
+                            Math.min(999, status.getMaxConcurrency()),
+                            status.getNumQueued(),
+                            status.getNumRunning(),
+                            status.getNumCompleted(),
+                            status.getNumFailed(),
+                            status.getMeanQueueWaitMillis() + "/" + status.getMaxQueueWaitMillis(),
+                            status.getMeanRunMillis() + "/" + status.getMaxRunMillis());
+         }
+      printWriter.printf("|__________________________________________________________________|\n");
+
+      return stringWriter.toString();
+      }
+
+   /**
+    * A named view of the runtime through which a component runs its tasks.  At most {@link #getMaxConcurrency()} of
+    * the component's tasks run at once, and the rest wait, in the order they became due.
+    */
+   public final class Component implements Executor, ComponentStatus
+      {
+      @NotNull
+      private final String name;
+      private final int maxConcurrency;
+
+      /** Guarded by <code>this</code>. */
+      private final Queue<QueuedTask> queue = new LinkedList<QueuedTask>();
+
+      /** Guarded by <code>this</code>. */
+      private int numRunning = 0;
+
+      private final AtomicLong numCompleted = new AtomicLong(0);
+      private final AtomicLong numFailed = new AtomicLong(0);
+      private final AtomicLong totalQueueWaitNanos = new AtomicLong(0);
+      private final AtomicLong maxQueueWaitNanos = new AtomicLong(0);
+      private final AtomicLong totalRunNanos = new AtomicLong(0);
+      private final AtomicLong maxRunNanos = new AtomicLong(0);
+
+      private Component(@NotNull final String name, final int maxConcurrency)
+         {
+         this.name = name;
+         this.maxConcurrency = maxConcurrency;
+         }
+
+      /** Runs the given task as soon as the component's concurrency limit and a worker allow. */
+      @Override
+      public void execute(@NotNull final Runnable runnable)
+         {
+         synchronized (this)
+            {
+            queue.add(new QueuedTask(runnable));
+            }
+         dispatch();
+         }
+
+      /** Same as {@link #execute(Runnable)}, but returns a {@link Future} which completes when the task does. */
+      @NotNull
+      public Future<?> submit(@NotNull final Runnable runnable)
+         {
+         final FutureTask<Object> futureTask = new FutureTask<Object>(runnable, null);
+         execute(futureTask);
+         return futureTask;
+         }
+
+      /** Runs the given task once, after the given delay. */
+      @NotNull
+      public ScheduledTask schedule(@NotNull final Runnable runnable, final long delay, @NotNull final TimeUnit timeUnit)
+         {
+         final FutureTask<Object> futureTask = new FutureTask<Object>(runnable, null);
+         final ScheduledTask scheduledTask = new ScheduledTask(futureTask);
+         scheduledTask.setTimerFuture(timer.schedule(
+               new Runnable()
+               {
+               @Override
+               public void run()
+                  {
+                  execute(futureTask);
+                  }
+               },
+               delay,
+               timeUnit));
+         return scheduledTask;
+         }
+
+      /**
+       * Runs the given task repeatedly, first after the <code>initialDelay</code>, and then <code>delay</code> after
+       * each run finishes, until cancelled.  Runs never overlap, so a slow run never causes a pile-up.
+       */
+      @NotNull
+      public ScheduledTask scheduleWithFixedDelay(@NotNull final Runnable runnable, final long initialDelay, final long delay, @NotNull final TimeUnit timeUnit)
+         {
+         final ScheduledTask scheduledTask = new ScheduledTask(null);
+         final Runnable repeatingRunnable =
+               new Runnable()
+               {
+               @Override
+               public void run()
+                  {
+                  if (!scheduledTask.isCancelled())
+                     {
+                     try
+                        {
+                        runnable.run();
+                        }
+                     finally
+                        {
+                        if (!scheduledTask.isCancelled())
+                           {
+                           scheduleRepeat(scheduledTask, this, delay, timeUnit);
+                           }
+                        }
+                     }
+                  }
+               };
+         scheduleRepeat(scheduledTask, repeatingRunnable, initialDelay, timeUnit);
+         return scheduledTask;
+         }
+
+      private void scheduleRepeat(@NotNull final ScheduledTask scheduledTask, @NotNull final Runnable repeatingRunnable, final long delay, @NotNull final TimeUnit timeUnit)
+         {
+         scheduledTask.setTimerFuture(timer.schedule(
+               new Runnable()
+               {
+               @Override
+               public void run()
+                  {
+                  execute(repeatingRunnable);
+                  }
+               },
+               delay,
+               timeUnit));
+         }
+
+      /** Hands queued tasks to the workers, up to the concurrency limit. */
+      private void dispatch()
+         {
+         final List<QueuedTask> tasksToRun = new ArrayList<QueuedTask>();
+         synchronized (this)
+            {
+            while (numRunning < maxConcurrency && !queue.isEmpty())
+               {
+               numRunning++;
+               tasksToRun.add(queue.poll());
+               }
+            }
+         for (final QueuedTask task : tasksToRun)
+            {
+            workers.execute(task);
+            }
+         }
+
+      @NotNull
+      @Override
+      public String getName()
+         {
+         return name;
+         }
+
+      @Override
+      public int getMaxConcurrency()
+         {
+         return maxConcurrency;
+         }
+
+      @Override
+      public synchronized int getNumQueued()
+         {
+         return queue.size();
+         }
+
+      @Override
+      public synchronized int getNumRunning()
+         {
+         return numRunning;
+         }
+
+      @Override
+      public long getNumCompleted()
+         {
+         return numCompleted.get();
+         }
+
+      @Override
+      public long getNumFailed()
+         {
+         return numFailed.get();
+         }
+
+      @Override
+      public long getMeanQueueWaitMillis()
+         {
+         return mean(totalQueueWaitNanos);
+         }
+
+      @Override
+      public long getMaxQueueWaitMillis()
+         {
+         return TimeUnit.NANOSECONDS.toMillis(maxQueueWaitNanos.get());
+         }
+
+      @Override
+      public long getMeanRunMillis()
+         {
+         return mean(totalRunNanos);
+         }
+
+      @Override
+      public long getMaxRunMillis()
+         {
+         return TimeUnit.NANOSECONDS.toMillis(maxRunNanos.get());
+         }
+
+      private long mean(@NotNull final AtomicLong totalNanos)
+         {
+         final long count = numCompleted.get();
+         return (count > 0) ? TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / count) : 0;
+         }
+
+      private void recordMax(@NotNull final AtomicLong max, final long value)
+         {
+         long currentMax;
+         while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value))
+            {
+            // try again
+            }
+         }
+
+      private final class QueuedTask implements Runnable
+         {
+         @NotNull
+         private final Runnable runnable;
+         private final long queuedNanos = System.nanoTime();
+
+         private QueuedTask(@NotNull final Runnable runnable)
+            {
+            this.runnable = runnable;
+            }
+
+         @Override
+         public void run()
+            {
+            final long startNanos = System.nanoTime();
+            final long queueWaitNanos = startNanos - queuedNanos;
+            try
+               {
+               runnable.run();
+
+               // FutureTasks swallow exceptions, so dig them out
+               if (runnable instanceof FutureTask && !((FutureTask)runnable).isCancelled())
+                  {
+                  ((FutureTask)runnable).get();
+                  }
+               }
+            catch (Throwable t)
+               {
+               numFailed.incrementAndGet();
+               LOG.error("ExecutionRuntime.Component.QueuedTask.run(): Exception while running a task for component [" + name + "]", t);
+               }
+            finally
+               {
+               final long runNanos = System.nanoTime() - startNanos;
+               totalQueueWaitNanos.addAndGet(queueWaitNanos);
+               recordMax(maxQueueWaitNanos, queueWaitNanos);
+               totalRunNanos.addAndGet(runNanos);
+               recordMax(maxRunNanos, runNanos);
+               numCompleted.incrementAndGet();
+
+               synchronized (Component.this)
+                  {
+                  numRunning--;
+                  }
+               dispatch();
+               }
+            }
+         }
+      }
+
+   /** A handle on a task scheduled through a {@link Component}, which can be used to cancel it. */
+   public final class ScheduledTask
+      {
+      /** The task itself, or <code>null</code> if it's a repeating task. */
+      private final FutureTask<Object> futureTask;
+      private volatile ScheduledFuture<?> timerFuture = null;
+      private volatile boolean isCancelled = false;
+
+      private ScheduledTask(final FutureTask<Object> futureTask)
+         {
+         this.futureTask = futureTask;
+         }
+
+      private void setTimerFuture(@NotNull final ScheduledFuture<?> timerFuture)
+         {
+         this.timerFuture = timerFuture;
+         }
+
+      /**
+       * Cancels the task, so that it won't run again.  If <code>mayInterruptIfRunning</code> is <code>true</code>, a
+       * one-time task which is already running is interrupted.
+       */
+      public void cancel(final boolean mayInterruptIfRunning)
+         {
+         isCancelled = true;
+         final ScheduledFuture<?> currentTimerFuture = timerFuture;
+         if (currentTimerFuture != null && currentTimerFuture.cancel(false))
+            {
+            // remove the timer entry now, rather than leaving it in the queue until it would have come due
+            timer.purge();
+            }
+         if (futureTask != null)
+            {
+            futureTask.cancel(mayInterruptIfRunning);
+            }
+         }
+
+      public boolean isCancelled()
+         {
+         return isCancelled;
+         }
+
+      /** Returns <code>true</code> if the task has been cancelled or, for a one-time task, has finished running. */
+      public boolean isDone()
+         {
+         return isCancelled || (futureTask != null && futureTask.isDone());
+         }
+      }
+   }
@@ -1,32 +1,210 @@
 package org.specksensor;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
+ * <p>
+ * <code>MultiDestinationDataSampleStore</code> saves {@link Speck.DataSample data samples} to a primary store (the
+ * database), and fans them out to any number of secondary destinations (e.g. the CSV file).
+ * </p>
+ * <p>
+ * Saves to the primary store are synchronous, and its {@link SaveResult} is what's returned from
+ * {@link #save(Speck.DataSample)}.  All retrieval and upload bookkeeping is handled by the primary store.  Each
+ * secondary destination has its own bounded queue and worker thread, so a slow destination never delays the primary
+ * store or the other destinations.  What happens when a destination's queue is full is determined by its
+ * {@link BackpressurePolicy}.  Since the destination's worker thread already keeps saves off the caller's thread, a
+ * destination's store should save synchronously (the CSV store is created that way), so that its failures show up in
+ * the destination's {@link DestinationStatus status}.
+ * </p>
+ *
  * @author Chris Bartley (bartley@cmu.edu)
  */
 final class MultiDestinationDataSampleStore implements DataSampleStore
    {
+   private static final Logger LOG = Logger.getLogger(MultiDestinationDataSampleStore.class);
+
+   /** Capacity of the CSV destination's queue. */
+   static final String CSV_QUEUE_CAPACITY_SYSTEM_PROPERTY = "org.specksensor.MultiDestinationDataSampleStore.csv.queue-capacity";
+
+   /** What to do when the CSV destination's queue is full: <code>block</code>, <code>drop</code>, or <code>spill</code> (the default). */
+   static final String CSV_BACKPRESSURE_POLICY_SYSTEM_PROPERTY = "org.specksensor.MultiDestinationDataSampleStore.csv.backpressure";
+
+   private static final int CSV_QUEUE_CAPACITY = Math.max(1, SystemPropertyUtils.getInt(CSV_QUEUE_CAPACITY_SYSTEM_PROPERTY, 10000));
+   private static final BackpressurePolicy CSV_BACKPRESSURE_POLICY = BackpressurePolicy.findByName(System.getProperty(CSV_BACKPRESSURE_POLICY_SYSTEM_PROPERTY), BackpressurePolicy.SPILL);
+
+   private static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 30 * 1000;
+
+   private static final String SPILL_FILE_PREFIX = "spill_";
+   private static final String SPILL_FILE_EXTENSION = ".txt";
+   private static final String REPLAY_FILE_EXTENSION = ".replay";
+   private static final String COMMA = ",";
+
+   enum BackpressurePolicy
+      {
+         /** Block the caller until there's room in the queue. */
+         BLOCK("block"),
+
+         /** Discard the sample. */
+         DROP("drop"),
+
+         /** Append the sample to a spill file on disk, to be replayed once the queue has drained. */
+         SPILL("spill");
+
+      @NotNull
+      private static BackpressurePolicy findByName(@Nullable final String name, @NotNull final BackpressurePolicy defaultPolicy)
+         {
+         for (final BackpressurePolicy policy : values())
+            {
+            if (policy.name.equalsIgnoreCase(StringUtils.trim(name)))
+               {
+               return policy;
+               }
+            }
+         return defaultPolicy;
+         }
+
+      private final String name;
+
+      private BackpressurePolicy(final String name)
+         {
+         this.name = name;
+         }
+
+      public String getName()
+         {
+         return name;
+         }
+      }
+
+   enum Health
+      {
+         HEALTHY("healthy"),
+         BACKLOGGED("backlog"),
+         FAILING("failing");
+
+      private final String name;
+
+      private Health(final String name)
+         {
+         this.name = name;
+         }
+
+      public String getName()
+         {
+         return name;
+         }
+      }
+
+   /** Read-only view of a secondary destination's health and throughput. */
+   interface DestinationStatus
+      {
+      @NotNull
+      String getName();
+
+      @NotNull
+      Health getHealth();
+
+      /** Number of samples waiting in the queue. */
+      int getQueueSize();
+
+      int getNumSaved();
+
+      int getNumFailed();
+
+      int getNumDropped();
+
+      int getNumSpilled();
+
+      /**
+       * Returns the lag, in milliseconds, between a sample being handed to the destination and the destination saving
+       * it.  This is the larger of the lag of the most recently saved sample and the age of the oldest queued sample.
+       */
+      long getLagMillis();
+      }
+
    @NotNull
-   private final DataSampleStore csvDataSampleStore;
    private final DataSampleStore databaseDataSampleStore;
 
+   @NotNull
+   private final File dataFileDirectory;
+
+   @NotNull
+   private final List<Destination> destinations = new CopyOnWriteArrayList<Destination>();
+
    MultiDestinationDataSampleStore(@NotNull final SpeckConfig speckConfig) throws InitializationException
       {
       databaseDataSampleStore = new DatabaseDataSampleStore(speckConfig);
-      csvDataSampleStore = new CsvDataSampleStore(speckConfig);
+      dataFileDirectory = SpeckConstants.FilePaths.getDeviceDataDirectory(speckConfig);
+      addDestination("csv", new CsvDataSampleStore(speckConfig, false), CSV_QUEUE_CAPACITY, CSV_BACKPRESSURE_POLICY);
       }
 
+   /**
+    * Registers a secondary destination.  Every sample which isn't a duplicate in the primary store will be queued for
+    * saving to the given <code>store</code>.  The <code>name</code> must be unique, since it's used to name the destination's
+    * spill file.
+    */
+   void addDestination(@NotNull final String name,
+                       @NotNull final DataSampleStore store,
+                       final int queueCapacity,
+                       @NotNull final BackpressurePolicy backpressurePolicy)
+      {
+      final Destination destination = new Destination(name, store, queueCapacity, backpressurePolicy);
+      destinations.add(destination);
+      if (LOG.isInfoEnabled())
+         {
+         LOG.info("MultiDestinationDataSampleStore.addDestination(): Added destination [" + name + "] with queue capacity [" + queueCapacity + "] and backpressure policy [" + backpressurePolicy.getName() + "]");
+         }
+      }
+
+   /** Returns the status of each of the secondary destinations, in the order they were added. */
+   @NotNull
+   List<DestinationStatus> getDestinationStatuses()
+      {
+      return Collections.<DestinationStatus>unmodifiableList(new ArrayList<Destination>(destinations));
+      }
+
+   /**
+    * Saves the sample to the primary store and returns its {@link SaveResult}.  Unless the sample was a duplicate, it's
+    * also queued for each of the secondary destinations.
+    */
    @Override
    @NotNull
    public SaveResult save(@NotNull final Speck.DataSample dataSample)
       {
       final SaveResult databaseSaveResult = databaseDataSampleStore.save(dataSample);
 
-      // don't write to the CSV if it was a duplicate
+      // don't write to the secondary destinations if it was a duplicate
       if (!SaveResult.FAILURE_DUPLICATE.equals(databaseSaveResult))
          {
-         return csvDataSampleStore.save(dataSample);
+         for (final Destination destination : destinations)
+            {
+            destination.enqueue(dataSample);
+            }
          }
 
       return databaseSaveResult;
@@ -45,6 +223,27 @@ final class MultiDestinationDataSampleStore implements DataSampleStore
       return databaseDataSampleStore.getDataSamplesToUpload(maxNumberRequested);
       }
 
+   @NotNull
+   @Override
+   public DataSampleSet getNewestDataSamplesToUpload(final int sampledSinceUtcSecs, final int maxNumberRequested)
+      {
+      return databaseDataSampleStore.getNewestDataSamplesToUpload(sampledSinceUtcSecs, maxNumberRequested);
+      }
+
+   @NotNull
+   @Override
+   public DataSampleCursor query(final int fromUtcSecs, final int toUtcSecs)
+      {
+      return databaseDataSampleStore.query(fromUtcSecs, toUtcSecs);
+      }
+
+   @NotNull
+   @Override
+   public List<DataSampleRollup> getRollups(@NotNull final DataSampleRollup.Resolution resolution, final int fromUtcSecs, final int toUtcSecs)
+      {
+      return databaseDataSampleStore.getRollups(resolution, fromUtcSecs, toUtcSecs);
+      }
+
    @Override
    public void markDataSamplesAsUploaded(@NotNull final DataSampleSet dataSampleSet, final long uploadTimestampUtcMillis)
       {
@@ -58,9 +257,563 @@ final class MultiDestinationDataSampleStore implements DataSampleStore
       }
 
    @Override
+   public boolean markDataSamplesAsSpooled(@NotNull final DataSampleSet dataSampleSet)
+      {
+      return databaseDataSampleStore.markDataSamplesAsSpooled(dataSampleSet);
+      }
+
+   @NotNull
+   @Override
+   public Set<Integer> getSpooledDataSampleIds()
+      {
+      return databaseDataSampleStore.getSpooledDataSampleIds();
+      }
+
+   @Override
+   public int releaseSpooledDataSamples(@NotNull final Set<Integer> idsToKeep)
+      {
+      return databaseDataSampleStore.releaseSpooledDataSamples(idsToKeep);
+      }
+
+   @Override
+   public void markDataSamplesAsRejected(@NotNull final DataSampleSet dataSampleSet, final int maxNumberOfRejections)
+      {
+      databaseDataSampleStore.markDataSamplesAsRejected(dataSampleSet, maxNumberOfRejections);
+      }
+
+   @Override
+   public void renewUploadClaim(@NotNull final DataSampleSet dataSampleSet)
+      {
+      databaseDataSampleStore.renewUploadClaim(dataSampleSet);
+      }
+
+   @NotNull
+   @Override
+   public DataSampleSet getDataSamplesSavedAfter(final int databaseId, final int maxNumberRequested)
+      {
+      return databaseDataSampleStore.getDataSamplesSavedAfter(databaseId, maxNumberRequested);
+      }
+
+   @Override
+   public int getUploadCursor(@NotNull final String mirrorName)
+      {
+      return databaseDataSampleStore.getUploadCursor(mirrorName);
+      }
+
+   @Override
+   public boolean setUploadCursor(@NotNull final String mirrorName, final int databaseId)
+      {
+      return databaseDataSampleStore.setUploadCursor(mirrorName, databaseId);
+      }
+
+   @Override
+   public int getAggregateCursor(@NotNull final DataSampleRollup.Resolution resolution)
+      {
+      return databaseDataSampleStore.getAggregateCursor(resolution);
+      }
+
+   @Override
+   public boolean setAggregateCursor(@NotNull final DataSampleRollup.Resolution resolution, final int bucketStartUtcSecs)
+      {
+      return databaseDataSampleStore.setAggregateCursor(resolution, bucketStartUtcSecs);
+      }
+
+   @Override
+   public int deleteUploadedDataSamples(final long uploadedBeforeUtcMillis, final int maxNumberToDelete)
+      {
+      return databaseDataSampleStore.deleteUploadedDataSamples(uploadedBeforeUtcMillis, maxNumberToDelete);
+      }
+
+   @Override
+   public long compact()
+      {
+      return databaseDataSampleStore.compact();
+      }
+
+   @Override
+   public long getSaveLockWaitMillis()
+      {
+      return databaseDataSampleStore.getSaveLockWaitMillis();
+      }
+
+   @Override
+   public long getUploadLockWaitMillis()
+      {
+      return databaseDataSampleStore.getUploadLockWaitMillis();
+      }
+
+   @Override
+   public int getNumDataSamples(@NotNull final DataSampleUploadStatus status)
+      {
+      return databaseDataSampleStore.getNumDataSamples(status);
+      }
+
+   /**
+    * Same as {@link #shutdown(long)}, but allows 30 seconds for the secondary destinations to drain their queues.
+    */
+   @Override
    public void shutdown()
       {
-      databaseDataSampleStore.shutdown();
-      csvDataSampleStore.shutdown();
+      shutdown(System.currentTimeMillis() + DEFAULT_DRAIN_TIMEOUT_MILLIS);
+      }
+
+   /**
+    * Lets each secondary destination drain its queue until the given deadline and then shuts it down, and then shuts
+    * down the primary store.  Samples still queued for a destination when the deadline passes are spilled to disk
+    * rather than lost.  Any spilled samples which haven't been replayed remain on disk and will be replayed on the next
+    * startup.
+    */
+   @Override
+   public void shutdown(final long deadlineUtcMillis)
+      {
+      for (final Destination destination : destinations)
+         {
+         destination.shutdown(deadlineUtcMillis);
+         }
+      databaseDataSampleStore.shutdown(deadlineUtcMillis);
+      }
+
+   private static final class QueuedDataSample
+      {
+      @NotNull
+      private final Speck.DataSample dataSample;
+      private final long enqueueTimeMillis;
+
+      private QueuedDataSample(@NotNull final Speck.DataSample dataSample, final long enqueueTimeMillis)
+         {
+         this.dataSample = dataSample;
+         this.enqueueTimeMillis = enqueueTimeMillis;
+         }
+      }
+
+   private final class Destination implements DestinationStatus
+      {
+      private static final int POLL_TIMEOUT_IN_MILLIS = 1000;
+
+      @NotNull
+      private final String name;
+
+      @NotNull
+      private final DataSampleStore store;
+
+      @NotNull
+      private final BackpressurePolicy backpressurePolicy;
+
+      @NotNull
+      private final BlockingQueue<QueuedDataSample> queue;
+
+      @NotNull
+      private final ExecutorService executor;
+
+      @NotNull
+      private final File spillFile;
+
+      @NotNull
+      private final File replayFile;
+
+      @NotNull
+      private final Lock spillLock = new ReentrantLock();
+
+      /** Once a sample has been spilled, all subsequent samples are spilled too (until replay), so ordering is preserved. */
+      private volatile boolean isSpilling;
+
+      /** The writer for the spill file, which is kept open while spilling.  Guarded by the spill lock. */
+      @Nullable
+      private BufferedWriter spillWriter = null;
+
+      /**
+       * Number of lines at the start of the replay file which have already been replayed, so that a replay which fails
+       * partway through resumes where it left off rather than saving those lines again.  Only touched by the worker.
+       */
+      private int numReplayedLines = 0;
+
+      private volatile boolean isRunning = true;
+
+      private final AtomicInteger numSaved = new AtomicInteger(0);
+      private final AtomicInteger numFailed = new AtomicInteger(0);
+      private final AtomicInteger numDropped = new AtomicInteger(0);
+      private final AtomicInteger numSpilled = new AtomicInteger(0);
+      private final AtomicInteger numConsecutiveFailures = new AtomicInteger(0);
+      private final AtomicLong lagMillisOfLastSavedSample = new AtomicLong(0);
+
+      @NotNull
+      private final Runnable workerRunnable =
+            new Runnable()
+            {
+            @Override
+            public void run()
+               {
+               // keep going until we've been shut down AND have saved everything that was queued before the shutdown
+               while (isRunning || !queue.isEmpty())
+                  {
+                  try
+                     {
+                     final QueuedDataSample queuedDataSample = queue.poll(POLL_TIMEOUT_IN_MILLIS, TimeUnit.MILLISECONDS);
+                     if (queuedDataSample != null)
+                        {
+                        saveToStore(queuedDataSample);
+                        }
+                     else if (isRunning)
+                        {
+                        replaySpilledSamples();
+                        }
+                     }
+                  catch (InterruptedException e)
+                     {
+                     LOG.error("MultiDestinationDataSampleStore.Destination.workerRunnable.run(): InterruptedException while waiting for samples for destination [" + name + "]", e);
+                     break;
+                     }
+                  }
+               }
+            };
+
+      private Destination(@NotNull final String name,
+                          @NotNull final DataSampleStore store,
+                          final int queueCapacity,
+                          @NotNull final BackpressurePolicy backpressurePolicy)
+         {
+         this.name = name;
+         this.store = store;
+         this.backpressurePolicy = backpressurePolicy;
+         this.queue = new LinkedBlockingQueue<QueuedDataSample>(Math.max(1, queueCapacity));
+         this.spillFile = new File(dataFileDirectory, SPILL_FILE_PREFIX + name + SPILL_FILE_EXTENSION);
+         this.replayFile = new File(dataFileDirectory, SPILL_FILE_PREFIX + name + REPLAY_FILE_EXTENSION);
+
+         // samples spilled during a previous run must be replayed before any new ones are saved
+         this.isSpilling = spillFile.exists() || replayFile.exists();
+
+         this.executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory(MultiDestinationDataSampleStore.class + ".destination." + name));
+         this.executor.execute(workerRunnable);
+         }
+
+      private void enqueue(@NotNull final Speck.DataSample dataSample)
+         {
+         final QueuedDataSample queuedDataSample = new QueuedDataSample(dataSample, System.currentTimeMillis());
+         switch (backpressurePolicy)
+            {
+            case BLOCK:
+               try
+                  {
+                  queue.put(queuedDataSample);
+                  }
+               catch (InterruptedException e)
+                  {
+                  LOG.error("MultiDestinationDataSampleStore.Destination.enqueue(): InterruptedException while waiting to queue sample " + dataSample.getSampleTime() + " for destination [" + name + "]", e);
+                  numDropped.incrementAndGet();
+                  }
+               break;
+            case DROP:
+               if (!queue.offer(queuedDataSample))
+                  {
+                  numDropped.incrementAndGet();
+                  LOG.error("MultiDestinationDataSampleStore.Destination.enqueue(): Queue full, dropped sample " + dataSample.getSampleTime() + " for destination [" + name + "]");
+                  }
+               break;
+            case SPILL:
+               spillLock.lock();  // block until condition holds
+               try
+                  {
+                  if (isSpilling || !queue.offer(queuedDataSample))
+                     {
+                     isSpilling = true;
+                     spill(queuedDataSample);
+                     }
+                  }
+               finally
+                  {
+                  spillLock.unlock();
+                  }
+               break;
+            default:
+               LOG.error("MultiDestinationDataSampleStore.Destination.enqueue(): Unexpected BackpressurePolicy: " + backpressurePolicy);
+            }
+         }
+
+      /**
+       * Appends the sample to the spill file, opening it if it isn't already open, and flushing it so the sample isn't
+       * lost if the gateway dies.  Must be called while holding the spill lock.
+       */
+      private void spill(@NotNull final QueuedDataSample queuedDataSample)
+         {
+         final Speck.DataSample dataSample = queuedDataSample.dataSample;
+         try
+            {
+            if (spillWriter == null)
+               {
+               spillWriter = new BufferedWriter(new FileWriter(spillFile, true));
+               }
+            final BufferedWriter writer = spillWriter;
+            writer.write(String.valueOf(queuedDataSample.enqueueTimeMillis));
+            writer.write(COMMA);
+            writer.write(String.valueOf(dataSample.getSampleTime()));
+            writer.write(COMMA);
+            writer.write(String.valueOf(dataSample.getRawParticleCount()));
+            writer.write(COMMA);
+            writer.write(String.valueOf(dataSample.getParticleCountOrConcentration()));
+            writer.write(COMMA);
+            writer.write(String.valueOf(dataSample.getTemperatureInTenthsOfADegreeF()));
+            writer.write(COMMA);
+            writer.write(String.valueOf(dataSample.getHumidity()));
+            writer.newLine();
+            writer.flush();
+            numSpilled.incrementAndGet();
+            }
+         catch (IOException e)
+            {
+            numDropped.incrementAndGet();
+            LOG.error("MultiDestinationDataSampleStore.Destination.spill(): IOException while trying to spill sample " + dataSample.getSampleTime() + " for destination [" + name + "]", e);
+
+            // reopen it for the next sample
+            closeSpillWriter();
+            }
+         }
+
+      /** Must be called while holding the spill lock. */
+      private void closeSpillWriter()
+         {
+         IOUtils.closeQuietly(spillWriter);
+         spillWriter = null;
+         }
+
+      /**
+       * Replays spilled samples, if any.  The spill file is renamed before replaying so that new samples can start going
+       * to the queue again (or to a new spill file, if the queue fills up again) while the old ones are replayed.
+       */
+      private void replaySpilledSamples()
+         {
+         if (!replayFile.exists())
+            {
+            spillLock.lock();  // block until condition holds
+            try
+               {
+               if (!isSpilling)
+                  {
+                  return;
+                  }
+
+               // the spill file must be closed before it can be renamed (on Windows, at least)
+               closeSpillWriter();
+               if (spillFile.exists() && !spillFile.renameTo(replayFile))
+                  {
+                  LOG.error("MultiDestinationDataSampleStore.Destination.replaySpilledSamples(): Failed to rename spill file for destination [" + name + "], will try again later");
+                  return;
+                  }
+               isSpilling = false;
+               }
+            finally
+               {
+               spillLock.unlock();
+               }
+            }
+
+         if (replayFile.exists())
+            {
+            LOG.info("MultiDestinationDataSampleStore.Destination.replaySpilledSamples(): Replaying spilled samples for destination [" + name + "]");
+            BufferedReader reader = null;
+            try
+               {
+               reader = new BufferedReader(new FileReader(replayFile));
+               int lineNumber = 0;
+               String line;
+               while ((line = reader.readLine()) != null)
+                  {
+                  // skip the lines replayed by an earlier attempt which failed partway through
+                  if (lineNumber++ < numReplayedLines)
+                     {
+                     continue;
+                     }
+                  final QueuedDataSample queuedDataSample = parseSpilledSample(line);
+                  if (queuedDataSample != null)
+                     {
+                     saveToStore(queuedDataSample);
+                     }
+                  numReplayedLines++;
+                  }
+               reader.close();
+               reader = null;
+
+               // if the file can't be deleted, every line will be skipped next time, and the delete tried again
+               if (replayFile.delete())
+                  {
+                  numReplayedLines = 0;
+                  }
+               else
+                  {
+                  LOG.error("MultiDestinationDataSampleStore.Destination.replaySpilledSamples(): Failed to delete replay file for destination [" + name + "]");
+                  }
+               }
+            catch (IOException e)
+               {
+               LOG.error("MultiDestinationDataSampleStore.Destination.replaySpilledSamples(): IOException while replaying spilled samples for destination [" + name + "], will resume after the [" + numReplayedLines + "] sample(s) already replayed", e);
+               }
+            finally
+               {
+               IOUtils.closeQuietly(reader);
+               }
+            }
+         }
+
+      @Nullable
+      private QueuedDataSample parseSpilledSample(@NotNull final String line)
+         {
+         final String[] values = line.split(COMMA);
+         if (values.length == 6)
+            {
+            try
+               {
+               final DataSample dataSample = new DataSample(null,
+                                                            Integer.parseInt(values[1]),
+                                                            Integer.parseInt(values[2]),
+                                                            Integer.parseInt(values[3]),
+                                                            Integer.parseInt(values[4]),
+                                                            Integer.parseInt(values[5]));
+               return new QueuedDataSample(dataSample, Long.parseLong(values[0]));
+               }
+            catch (NumberFormatException e)
+               {
+               LOG.error("MultiDestinationDataSampleStore.Destination.parseSpilledSample(): NumberFormatException while parsing spilled sample [" + line + "] for destination [" + name + "]", e);
+               }
+            }
+         else
+            {
+            LOG.error("MultiDestinationDataSampleStore.Destination.parseSpilledSample(): Ignoring malformed spilled sample [" + line + "] for destination [" + name + "]");
+            }
+         numFailed.incrementAndGet();
+         return null;
+         }
+
+      private void saveToStore(@NotNull final QueuedDataSample queuedDataSample)
+         {
+         if (store.save(queuedDataSample.dataSample).wasSuccessful())
+            {
+            numSaved.incrementAndGet();
+            numConsecutiveFailures.set(0);
+            }
+         else
+            {
+            numFailed.incrementAndGet();
+            numConsecutiveFailures.incrementAndGet();
+            }
+         lagMillisOfLastSavedSample.set(System.currentTimeMillis() - queuedDataSample.enqueueTimeMillis);
+         }
+
+      private void shutdown(final long deadlineUtcMillis)
+         {
+         isRunning = false;
+         try
+            {
+            executor.shutdown();
+            if (!executor.awaitTermination(Math.max(0, deadlineUtcMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+               {
+               final int numSpilled = spillQueuedSamples();
+               if (numSpilled > 0)
+                  {
+                  LOG.error("MultiDestinationDataSampleStore.Destination.shutdown(): Timed out waiting for destination [" + name + "] to drain its queue, so spilled the remaining [" + numSpilled + "] sample(s) to disk");
+                  }
+               }
+            }
+         catch (InterruptedException e)
+            {
+            LOG.error("MultiDestinationDataSampleStore.Destination.shutdown(): InterruptedException while waiting for destination [" + name + "] to drain its queue", e);
+            spillQueuedSamples();
+            }
+
+         spillLock.lock();  // block until condition holds
+         try
+            {
+            closeSpillWriter();
+            }
+         finally
+            {
+            spillLock.unlock();
+            }
+         store.shutdown(deadlineUtcMillis);
+         }
+
+      /**
+       * Moves any samples still in the queue to the spill file, so they'll be replayed on the next startup.  Returns the
+       * number of samples moved.
+       */
+      private int spillQueuedSamples()
+         {
+         final List<QueuedDataSample> queuedDataSamples = new ArrayList<QueuedDataSample>();
+         queue.drainTo(queuedDataSamples);
+         if (!queuedDataSamples.isEmpty())
+            {
+            spillLock.lock();  // block until condition holds
+            try
+               {
+               for (final QueuedDataSample queuedDataSample : queuedDataSamples)
+                  {
+                  spill(queuedDataSample);
+                  }
+               }
+            finally
+               {
+               spillLock.unlock();
+               }
+            }
+         return queuedDataSamples.size();
+         }
+
+      @NotNull
+      @Override
+      public String getName()
+         {
+         return name;
+         }
+
+      @NotNull
+      @Override
+      public Health getHealth()
+         {
+         if (numConsecutiveFailures.get() > 0)
+            {
+            return Health.FAILING;
+            }
+         if (isSpilling || replayFile.exists() || queue.remainingCapacity() == 0)
+            {
+            return Health.BACKLOGGED;
+            }
+         return Health.HEALTHY;
+         }
+
+      @Override
+      public int getQueueSize()
+         {
+         return queue.size();
+         }
+
+      @Override
+      public int getNumSaved()
+         {
+         return numSaved.get();
+         }
+
+      @Override
+      public int getNumFailed()
+         {
+         return numFailed.get();
+         }
+
+      @Override
+      public int getNumDropped()
+         {
+         return numDropped.get();
+         }
+
+      @Override
+      public int getNumSpilled()
+         {
+         return numSpilled.get();
+         }
+
+      @Override
+      public long getLagMillis()
+         {
+         final QueuedDataSample oldest = queue.peek();
+         final long ageOfOldestQueuedSample = (oldest == null) ? 0 : System.currentTimeMillis() - oldest.enqueueTimeMillis;
+         return Math.max(lagMillisOfLastSavedSample.get(), ageOfOldestQueuedSample);
+         }
       }
    }
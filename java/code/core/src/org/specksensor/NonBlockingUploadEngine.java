@@ -0,0 +1,698 @@
+package org.specksensor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>NonBlockingUploadEngine</code> performs uploads with non-blocking sockets, multiplexing many in-flight uploads
+ * on a small number of I/O threads, so that slow links and slow servers no longer tie up a thread per upload.  It's an
+ * alternative to the blocking {@link DataSampleUploadHelper#upload(RemoteStorageCredentials, HttpEntity) upload}, and
+ * is used by the {@link DataSampleUploader} when the {@link DataSampleUploader.Backend#NON_BLOCKING non-blocking
+ * backend} is selected.
+ * </p>
+ * <p>
+ * Each upload is a single HTTP/1.1 POST, sent with preemptive basic auth on its own connection (closed once the response
+ * has been read), and is subject to the same connection and inactivity timeouts as the blocking upload.  Responses are
+ * parsed by the same code as the blocking upload, and count against the server's {@link CircuitBreaker} in the same
+ * way.  Completed uploads are handed back on the shared {@link ExecutionRuntime}, never on an I/O thread, so callbacks
+ * are free to block (e.g. on the database).
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class NonBlockingUploadEngine
+   {
+   private static final Logger LOG = Logger.getLogger(NonBlockingUploadEngine.class);
+
+   /** Number of threads performing socket I/O for all uploads.  Defaults to 2. */
+   public static final String NUM_IO_THREADS_SYSTEM_PROPERTY = "org.specksensor.NonBlockingUploadEngine.num-io-threads";
+
+   /** Maximum number of uploads in flight at once.  Further uploads wait their turn.  Defaults to 256. */
+   public static final String MAX_IN_FLIGHT_UPLOADS_SYSTEM_PROPERTY = "org.specksensor.NonBlockingUploadEngine.max-in-flight-uploads";
+
+   private static final int NUM_IO_THREADS = Math.max(1, SystemPropertyUtils.getInt(NUM_IO_THREADS_SYSTEM_PROPERTY, 2));
+   private static final int MAX_IN_FLIGHT_UPLOADS = Math.max(1, SystemPropertyUtils.getInt(MAX_IN_FLIGHT_UPLOADS_SYSTEM_PROPERTY, 256));
+
+   private static final int BUFFER_SIZE = 8 * 1024;
+   private static final String CHARSET = "ISO-8859-1";
+   private static final byte[] END_OF_HEADERS = {'\r', '\n', '\r', '\n'};
+
+   private static NonBlockingUploadEngine instance = null;
+
+   /** Returns the engine, starting its I/O threads the first time it's called. */
+   @NotNull
+   public static synchronized NonBlockingUploadEngine getInstance()
+      {
+      if (instance == null)
+         {
+         instance = new NonBlockingUploadEngine();
+         }
+      return instance;
+      }
+
+   public interface Callback
+      {
+      void handleUploadResponse(@NotNull final DataSampleSetUploadResponse uploadResponse);
+      }
+
+   /** Runs the callbacks, so that they never run on (and never hold up) an I/O thread. */
+   private final ExecutionRuntime.Component callbackExecutor = ExecutionRuntime.getInstance().getComponent("NonBlockingUploadEngine", NUM_IO_THREADS);
+
+   @NotNull
+   private final IoThread[] ioThreads = new IoThread[NUM_IO_THREADS];
+
+   private final AtomicInteger nextIoThread = new AtomicInteger(0);
+
+   /** Uploads waiting for one of the in-flight uploads to finish.  Guarded by <code>this</code>. */
+   @NotNull
+   private final Queue<Exchange> exchangesAwaitingStart = new LinkedList<Exchange>();
+
+   /** Guarded by <code>this</code>. */
+   private int numInFlight = 0;
+
+   private NonBlockingUploadEngine()
+      {
+      final DaemonThreadFactory threadFactory = new DaemonThreadFactory(NonBlockingUploadEngine.class + ".io");
+      for (int i = 0; i < ioThreads.length; i++)
+         {
+         try
+            {
+            ioThreads[i] = new IoThread(Selector.open());
+            }
+         catch (IOException e)
+            {
+            // there's no sensible way to carry on without a selector
+            throw new IllegalStateException("Failed to open a selector for the non-blocking upload engine", e);
+            }
+         threadFactory.newThread(ioThreads[i]).start();
+         }
+      LOG.info("NonBlockingUploadEngine.NonBlockingUploadEngine(): Using [" + NUM_IO_THREADS + "] I/O thread(s) for up to [" + MAX_IN_FLIGHT_UPLOADS + "] in-flight upload(s)");
+      }
+
+   public synchronized int getNumInFlight()
+      {
+      return numInFlight;
+      }
+
+   public synchronized int getNumAwaitingStart()
+      {
+      return exchangesAwaitingStart.size();
+      }
+
+   /**
+    * Uploads the given entity, without blocking, and calls the callback once the upload has finished (or failed).  If
+    * the server has been failing, the upload may be refused without contacting the server, in which case the callback
+    * receives a failed response.  See {@link DataSampleUploadHelper#getCircuitBreaker(RemoteStorageCredentials)}.  The
+    * entity is closed once the upload has finished, or been refused.
+    */
+   public void upload(@NotNull final RemoteStorageCredentials remoteStorageCredentials,
+                      @NotNull final HttpEntity entity,
+                      @NotNull final Callback callback)
+      {
+      final CircuitBreaker circuitBreaker = DataSampleUploadHelper.getCircuitBreaker(remoteStorageCredentials);
+      if (!circuitBreaker.allowRequest())
+         {
+         final String message = "Server [" + circuitBreaker.getTarget() + "] is unavailable, will try again in " + (circuitBreaker.getMillisUntilRetry() / 1000) + " second(s)";
+         LOG.debug("NonBlockingUploadEngine.upload(): " + message);
+         EntityUtils.consumeQuietly(entity);
+         complete(callback, DataSampleUploadHelper.createFailedResponse(message));
+         return;
+         }
+
+      // resolve the host here, since a slow lookup on an I/O thread would hold up every upload on it
+      final InetSocketAddress address = new InetSocketAddress(remoteStorageCredentials.getHostName(), remoteStorageCredentials.getHostPort());
+      if (address.isUnresolved())
+         {
+         final String message = "Unknown host [" + remoteStorageCredentials.getHostName() + "]";
+         LOG.error("NonBlockingUploadEngine.upload(): " + message);
+         circuitBreaker.recordFailure();
+         EntityUtils.consumeQuietly(entity);
+         complete(callback, DataSampleUploadHelper.createFailedResponse(message));
+         return;
+         }
+
+      final Exchange exchange = new Exchange(remoteStorageCredentials, address, circuitBreaker, entity, callback);
+      synchronized (this)
+         {
+         if (numInFlight >= MAX_IN_FLIGHT_UPLOADS)
+            {
+            exchangesAwaitingStart.add(exchange);
+            return;
+            }
+         numInFlight++;
+         }
+      start(exchange);
+      }
+
+   private void start(@NotNull final Exchange exchange)
+      {
+      final IoThread ioThread = ioThreads[(nextIoThread.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.length];
+      ioThread.add(exchange);
+      }
+
+   /** Called once an exchange has finished, whether or not it succeeded, to start the next one waiting (if any). */
+   private void finish(@NotNull final Exchange exchange, @NotNull final DataSampleSetUploadResponse uploadResponse)
+      {
+      final Exchange nextExchange;
+      synchronized (this)
+         {
+         nextExchange = exchangesAwaitingStart.poll();
+         if (nextExchange == null)
+            {
+            numInFlight--;
+            }
+         }
+      if (nextExchange != null)
+         {
+         start(nextExchange);
+         }
+      complete(exchange.callback, uploadResponse);
+      }
+
+   private void complete(@NotNull final Callback callback, @NotNull final DataSampleSetUploadResponse uploadResponse)
+      {
+      callbackExecutor.execute(
+            new Runnable()
+            {
+            @Override
+            public void run()
+               {
+               callback.handleUploadResponse(uploadResponse);
+               }
+            });
+      }
+
+   private final class IoThread implements Runnable
+      {
+      @NotNull
+      private final Selector selector;
+
+      /** Exchanges handed to this thread, but not yet registered with its selector. */
+      @NotNull
+      private final Queue<Exchange> newExchanges = new ConcurrentLinkedQueue<Exchange>();
+
+      private IoThread(@NotNull final Selector selector)
+         {
+         this.selector = selector;
+         }
+
+      private void add(@NotNull final Exchange exchange)
+         {
+         newExchanges.add(exchange);
+         selector.wakeup();
+         }
+
+      @Override
+      public void run()
+         {
+         while (true)
+            {
+            try
+               {
+               selector.select(1000);
+
+               Exchange exchange;
+               while ((exchange = newExchanges.poll()) != null)
+                  {
+                  exchange.start(selector);
+                  }
+
+               final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+               while (selectedKeys.hasNext())
+                  {
+                  final SelectionKey key = selectedKeys.next();
+                  selectedKeys.remove();
+                  ((Exchange)key.attachment()).handle(key);
+                  }
+
+               // time out any exchanges which have gone quiet
+               final long nowNanos = System.nanoTime();
+               for (final SelectionKey key : selector.keys())
+                  {
+                  final Exchange registeredExchange = (Exchange)key.attachment();
+                  if (key.isValid() && registeredExchange != null && nowNanos - registeredExchange.deadlineNanos > 0)
+                     {
+                     registeredExchange.fail(registeredExchange.isConnected ? "Timed out waiting for the server" : "Timed out while connecting", null);
+                     }
+                  }
+               }
+            catch (Exception e)
+               {
+               // keep going, since giving up would strand every upload on this thread
+               LOG.error("NonBlockingUploadEngine$IoThread.run(): Exception in the I/O loop", e);
+               }
+            }
+         }
+      }
+
+   /** A single upload: the request, its connection, and the response as it arrives. */
+   private final class Exchange
+      {
+      @NotNull
+      private final RemoteStorageCredentials remoteStorageCredentials;
+      @NotNull
+      private final InetSocketAddress address;
+      @NotNull
+      private final CircuitBreaker circuitBreaker;
+      @NotNull
+      private final HttpEntity entity;
+      @NotNull
+      private final Callback callback;
+
+      @Nullable
+      private SocketChannel channel = null;
+      @Nullable
+      private InputStream body = null;
+      private long numBodyBytesRemaining;
+      private ByteBuffer requestBuffer;
+      private final ByteBuffer responseBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+      private final ByteArrayOutputStream response = new ByteArrayOutputStream(512);
+      private boolean isConnected = false;
+      private boolean isFinished = false;
+      private long deadlineNanos;
+
+      private Exchange(@NotNull final RemoteStorageCredentials remoteStorageCredentials,
+                       @NotNull final InetSocketAddress address,
+                       @NotNull final CircuitBreaker circuitBreaker,
+                       @NotNull final HttpEntity entity,
+                       @NotNull final Callback callback)
+         {
+         this.remoteStorageCredentials = remoteStorageCredentials;
+         this.address = address;
+         this.circuitBreaker = circuitBreaker;
+         this.entity = entity;
+         this.callback = callback;
+         }
+
+      private void start(@NotNull final Selector selector)
+         {
+         deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DataSampleUploadHelper.HTTP_TIMEOUT_IN_MILLIS);
+         try
+            {
+            numBodyBytesRemaining = entity.getContentLength();
+            if (numBodyBytesRemaining < 0)
+               {
+               throw new IOException("The length of the upload must be known in advance");
+               }
+            body = entity.getContent();
+            requestBuffer = ByteBuffer.wrap(createRequestHeader());
+
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(address))
+               {
+               handleConnected();
+               channel.register(selector, SelectionKey.OP_WRITE, this);
+               }
+            else
+               {
+               channel.register(selector, SelectionKey.OP_CONNECT, this);
+               }
+            }
+         catch (Exception e)
+            {
+            fail("Exception while trying to start the upload", e);
+            }
+         }
+
+      @NotNull
+      private byte[] createRequestHeader() throws IOException
+         {
+         final String credentials = remoteStorageCredentials.getUsername() + ":" + remoteStorageCredentials.getPassword();
+         final Header contentType = entity.getContentType();
+
+         final StringBuilder sb = new StringBuilder();
+         sb.append("POST ").append(DataSampleUploadHelper.getUploadPath(remoteStorageCredentials)).append(" HTTP/1.1\r\n");
+         sb.append("Host: ").append(remoteStorageCredentials.getHostName()).append(':').append(remoteStorageCredentials.getHostPort()).append("\r\n");
+         sb.append("Authorization: Basic ").append(Base64.encodeBase64String(credentials.getBytes("UTF-8"))).append("\r\n");
+         if (contentType != null)
+            {
+            sb.append(contentType.getName()).append(": ").append(contentType.getValue()).append("\r\n");
+            }
+         sb.append("Content-Length: ").append(numBodyBytesRemaining).append("\r\n");
+         sb.append("Connection: close\r\n");
+         sb.append("\r\n");
+         return sb.toString().getBytes(CHARSET);
+         }
+
+      private void handleConnected()
+         {
+         isConnected = true;
+         touch();
+         }
+
+      /** Pushes the inactivity deadline back, since there has been progress. */
+      private void touch()
+         {
+         deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DataSampleUploadHelper.SOCKET_TIMEOUT_IN_MILLIS);
+         }
+
+      private void handle(@NotNull final SelectionKey key)
+         {
+         try
+            {
+            if (key.isConnectable())
+               {
+               if (channel.finishConnect())
+                  {
+                  handleConnected();
+                  key.interestOps(SelectionKey.OP_WRITE);
+                  }
+               }
+            else if (key.isWritable())
+               {
+               if (write())
+                  {
+                  key.interestOps(SelectionKey.OP_READ);
+                  }
+               }
+            else if (key.isReadable())
+               {
+               read();
+               }
+            }
+         catch (Exception e)
+            {
+            fail("Exception while trying to upload", e);
+            }
+         }
+
+      /** Writes as much of the request as the socket will take, returning <code>true</code> once all of it is written. */
+      private boolean write() throws IOException
+         {
+         while (true)
+            {
+            if (!requestBuffer.hasRemaining())
+               {
+               if (numBodyBytesRemaining <= 0)
+                  {
+                  return true;
+                  }
+
+               // refill the buffer with the next chunk of the body
+               final byte[] chunk = new byte[(int)Math.min(BUFFER_SIZE, numBodyBytesRemaining)];
+               final int numBytesRead = body.read(chunk);
+               if (numBytesRead < 0)
+                  {
+                  throw new IOException("The upload ended " + numBodyBytesRemaining + " byte(s) short of its length");
+                  }
+               numBodyBytesRemaining -= numBytesRead;
+               requestBuffer = ByteBuffer.wrap(chunk, 0, numBytesRead);
+               }
+
+            if (channel.write(requestBuffer) > 0)
+               {
+               touch();
+               }
+            if (requestBuffer.hasRemaining())
+               {
+               // the socket is full, so wait until it's writable again
+               return false;
+               }
+            }
+         }
+
+      private void read() throws IOException
+         {
+         int numBytesRead;
+         while ((numBytesRead = channel.read(responseBuffer)) > 0)
+            {
+            touch();
+            response.write(responseBuffer.array(), 0, responseBuffer.position());
+            responseBuffer.clear();
+            }
+
+         final byte[] bytes = response.toByteArray();
+         final HttpResponse httpResponse = HttpResponse.parse(bytes, numBytesRead < 0);
+         if (httpResponse != null)
+            {
+            succeed(httpResponse);
+            }
+         else if (numBytesRead < 0)
+            {
+            fail("Connection closed before the response was complete (" + bytes.length + " byte(s) read)", null);
+            }
+         }
+
+      private void succeed(@NotNull final HttpResponse httpResponse)
+         {
+         if (LOG.isDebugEnabled())
+            {
+            LOG.debug("NonBlockingUploadEngine$Exchange.succeed(): response status [" + httpResponse.statusCode + "]");
+            }
+         close();
+
+         // only failures to get a response from the server count against it, not rejections of what we sent
+         if (httpResponse.statusCode < HttpStatus.SC_INTERNAL_SERVER_ERROR)
+            {
+            circuitBreaker.recordSuccess();
+            }
+         else
+            {
+            circuitBreaker.recordFailure();
+            }
+
+         final InputStream content = (httpResponse.body == null) ? null : new ByteArrayInputStream(httpResponse.body);
+         finish(this, DataSampleUploadHelper.readResponse(httpResponse.statusCode, content));
+         }
+
+      private void fail(@NotNull final String message, @Nullable final Exception e)
+         {
+         if (isFinished)
+            {
+            return;
+            }
+         LOG.error("NonBlockingUploadEngine$Exchange.fail(): " + message, e);
+         close();
+         circuitBreaker.recordFailure();
+         finish(this, DataSampleUploadHelper.createFailedResponse(message));
+         }
+
+      private void close()
+         {
+         isFinished = true;
+         if (channel != null)
+            {
+            try
+               {
+               // closing the channel also cancels its key
+               channel.close();
+               }
+            catch (IOException e)
+               {
+               LOG.error("NonBlockingUploadEngine$Exchange.close(): IOException while closing the channel", e);
+               }
+            }
+         if (body != null)
+            {
+            try
+               {
+               body.close();
+               }
+            catch (IOException e)
+               {
+               LOG.error("NonBlockingUploadEngine$Exchange.close(): IOException while closing the upload content", e);
+               }
+            }
+         else
+            {
+            // the upload failed before it got as far as opening the content
+            EntityUtils.consumeQuietly(entity);
+            }
+         }
+      }
+
+   /** The parts of an HTTP response we care about. */
+   private static final class HttpResponse
+      {
+      /**
+       * Parses the given response bytes, returning <code>null</code> if the response isn't complete yet.  Bodies may be
+       * delimited by a <code>Content-Length</code>, by chunked transfer coding, or (if neither is given) by the server
+       * closing the connection.
+       */
+      @Nullable
+      private static HttpResponse parse(@NotNull final byte[] bytes, final boolean isEndOfStream) throws IOException
+         {
+         final int headerLength = indexOf(bytes, END_OF_HEADERS, 0);
+         if (headerLength < 0)
+            {
+            return null;
+            }
+
+         final String[] headerLines = new String(bytes, 0, headerLength, CHARSET).split("\r\n");
+         final String[] statusLine = headerLines[0].split(" ");
+         if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/"))
+            {
+            throw new IOException("Malformed status line [" + headerLines[0] + "]");
+            }
+         final int statusCode;
+         try
+            {
+            statusCode = Integer.parseInt(statusLine[1]);
+            }
+         catch (NumberFormatException e)
+            {
+            throw new IOException("Malformed status line [" + headerLines[0] + "]");
+            }
+
+         long contentLength = -1;
+         boolean isChunked = false;
+         for (int i = 1; i < headerLines.length; i++)
+            {
+            final int colon = headerLines[i].indexOf(':');
+            if (colon > 0)
+               {
+               final String name = headerLines[i].substring(0, colon).trim();
+               final String value = headerLines[i].substring(colon + 1).trim();
+               if ("Content-Length".equalsIgnoreCase(name))
+                  {
+                  try
+                     {
+                     contentLength = Long.parseLong(value);
+                     }
+                  catch (NumberFormatException e)
+                     {
+                     throw new IOException("Malformed Content-Length [" + value + "]");
+                     }
+                  }
+               else if ("Transfer-Encoding".equalsIgnoreCase(name) && value.toLowerCase().contains("chunked"))
+                  {
+                  isChunked = true;
+                  }
+               }
+            }
+
+         final int bodyStart = headerLength + END_OF_HEADERS.length;
+         final byte[] body;
+         if (isChunked)
+            {
+            body = decodeChunks(bytes, bodyStart);
+            if (body == null)
+               {
+               return null;
+               }
+            }
+         else if (contentLength >= 0)
+            {
+            if (bytes.length - bodyStart < contentLength)
+               {
+               return null;
+               }
+            body = copy(bytes, bodyStart, (int)contentLength);
+            }
+         else
+            {
+            if (!isEndOfStream)
+               {
+               return null;
+               }
+            body = copy(bytes, bodyStart, bytes.length - bodyStart);
+            }
+
+         return new HttpResponse(statusCode, (body.length > 0) ? body : null);
+         }
+
+      /** Returns the decoded body, or <code>null</code> if the last chunk hasn't arrived yet. */
+      @Nullable
+      private static byte[] decodeChunks(@NotNull final byte[] bytes, final int bodyStart) throws IOException
+         {
+         final ByteArrayOutputStream body = new ByteArrayOutputStream();
+         int position = bodyStart;
+         while (true)
+            {
+            final int endOfSizeLine = indexOf(bytes, END_OF_HEADERS, position, 2);
+            if (endOfSizeLine < 0)
+               {
+               return null;
+               }
+            final String sizeLine = new String(bytes, position, endOfSizeLine - position, CHARSET);
+            final int semicolon = sizeLine.indexOf(';');
+            final int chunkSize;
+            try
+               {
+               chunkSize = Integer.parseInt(((semicolon < 0) ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+               }
+            catch (NumberFormatException e)
+               {
+               throw new IOException("Malformed chunk size [" + sizeLine + "]");
+               }
+            if (chunkSize == 0)
+               {
+               // we don't care about trailers, but wait for them so the whole response has been read
+               return (indexOf(bytes, END_OF_HEADERS, endOfSizeLine) < 0) ? null : body.toByteArray();
+               }
+            final int chunkStart = endOfSizeLine + 2;
+            if (bytes.length < chunkStart + chunkSize + 2)
+               {
+               return null;
+               }
+            body.write(bytes, chunkStart, chunkSize);
+            position = chunkStart + chunkSize + 2;
+            }
+         }
+
+      private static int indexOf(@NotNull final byte[] bytes, @NotNull final byte[] target, final int fromIndex)
+         {
+         return indexOf(bytes, target, fromIndex, target.length);
+         }
+
+      /** Returns the index of the first <code>targetLength</code> bytes of the target, or -1 if they don't occur. */
+      private static int indexOf(@NotNull final byte[] bytes, @NotNull final byte[] target, final int fromIndex, final int targetLength)
+         {
+         outer:
+         for (int i = fromIndex; i <= bytes.length - targetLength; i++)
+            {
+            for (int j = 0; j < targetLength; j++)
+               {
+               if (bytes[i + j] != target[j])
+                  {
+                  continue outer;
+                  }
+               }
+            return i;
+            }
+         return -1;
+         }
+
+      @NotNull
+      private static byte[] copy(@NotNull final byte[] bytes, final int from, final int length)
+         {
+         final byte[] copy = new byte[length];
+         System.arraycopy(bytes, from, copy, 0, length);
+         return copy;
+         }
+
+      private final int statusCode;
+      @Nullable
+      private final byte[] body;
+
+      private HttpResponse(final int statusCode, @Nullable final byte[] body)
+         {
+         this.statusCode = statusCode;
+         this.body = body;
+         }
+      }
+   }
@@ -0,0 +1,176 @@
+package org.specksensor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>RecentDataSampleBuffer</code> is a fixed-size ring buffer of the most recently saved
+ * {@link Speck.DataSample data samples}, for live displays and local analytics which shouldn't have to go to the
+ * device or the database.  Samples are kept in the order they were saved, which isn't necessarily sample time order
+ * (e.g. while a backlog is being downloaded).
+ * </p>
+ * <p>
+ * There must only ever be a single writer, but any number of threads may read, and neither side ever blocks.  Each
+ * channel is stored in its own primitive array.  The writer claims a slot before overwriting it and publishes it
+ * afterwards, so readers copy only published slots, and discard any which the writer may have claimed while they were
+ * copying.  The arrays are {@link AtomicIntegerArray AtomicIntegerArrays} so that slot reads and writes are ordered
+ * with respect to the claimed and published sequence numbers.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class RecentDataSampleBuffer
+   {
+   private static final Logger LOG = Logger.getLogger(RecentDataSampleBuffer.class);
+
+   public interface Listener
+      {
+      /** Called on the writer's thread after the given sample has been added to the buffer. */
+      void handleDataSample(@NotNull Speck.DataSample dataSample);
+      }
+
+   private final int capacity;
+   private final AtomicIntegerArray sampleTimes;
+   private final AtomicIntegerArray rawParticleCounts;
+   private final AtomicIntegerArray particleCountsOrConcentrations;
+   private final AtomicIntegerArray temperaturesInTenthsOfADegreeF;
+   private final AtomicIntegerArray humidities;
+
+   /** Total number of samples the writer has started writing. Only ever written by the writer. */
+   private volatile long claimedSequence = 0;
+
+   /** Total number of samples the writer has finished writing. Only ever written by the writer. */
+   private volatile long publishedSequence = 0;
+
+   private final Set<Listener> listeners = new CopyOnWriteArraySet<Listener>();
+
+   RecentDataSampleBuffer(final int capacity)
+      {
+      this.capacity = Math.max(1, capacity);
+      sampleTimes = new AtomicIntegerArray(this.capacity);
+      rawParticleCounts = new AtomicIntegerArray(this.capacity);
+      particleCountsOrConcentrations = new AtomicIntegerArray(this.capacity);
+      temperaturesInTenthsOfADegreeF = new AtomicIntegerArray(this.capacity);
+      humidities = new AtomicIntegerArray(this.capacity);
+      }
+
+   /** Adds the given sample to the buffer, overwriting the oldest if the buffer is full.  MUST only be called by a single writer. */
+   void add(@NotNull final Speck.DataSample dataSample)
+      {
+      final long sequence = publishedSequence;
+      final int slot = (int)(sequence % capacity);
+
+      claimedSequence = sequence + 1;
+      sampleTimes.set(slot, dataSample.getSampleTime());
+      rawParticleCounts.set(slot, dataSample.getRawParticleCount());
+      particleCountsOrConcentrations.set(slot, dataSample.getParticleCountOrConcentration());
+      temperaturesInTenthsOfADegreeF.set(slot, dataSample.getTemperatureInTenthsOfADegreeF());
+      humidities.set(slot, dataSample.getHumidity());
+      publishedSequence = sequence + 1;
+
+      for (final Listener listener : listeners)
+         {
+         try
+            {
+            listener.handleDataSample(dataSample);
+            }
+         catch (Exception e)
+            {
+            LOG.error("RecentDataSampleBuffer.add(): Exception while notifying listener [" + listener + "]", e);
+            }
+         }
+      }
+
+   public void addListener(@Nullable final Listener listener)
+      {
+      if (listener != null)
+         {
+         listeners.add(listener);
+         }
+      }
+
+   public void removeListener(@Nullable final Listener listener)
+      {
+      if (listener != null)
+         {
+         listeners.remove(listener);
+         }
+      }
+
+   /** Returns the maximum number of samples held by the buffer. */
+   public int getCapacity()
+      {
+      return capacity;
+      }
+
+   /** Returns the total number of samples ever added to the buffer. */
+   public long getNumSamplesAdded()
+      {
+      return publishedSequence;
+      }
+
+   /** Returns the most recently added sample, or <code>null</code> if no samples have been added. */
+   @Nullable
+   public Speck.DataSample getLatest()
+      {
+      final List<Speck.DataSample> snapshot = getSnapshot(1);
+      return snapshot.isEmpty() ? null : snapshot.get(0);
+      }
+
+   /** Returns a copy of all the samples currently in the buffer, oldest first. */
+   @NotNull
+   public List<Speck.DataSample> getSnapshot()
+      {
+      return getSnapshot(capacity);
+      }
+
+   /**
+    * Returns a copy of the (up to) <code>maxNumSamples</code> most recently added samples, oldest first.  The returned
+    * samples have no database ID, and their download time is the time of the snapshot.
+    */
+   @NotNull
+   public List<Speck.DataSample> getSnapshot(final int maxNumSamples)
+      {
+      final long end = publishedSequence;
+      final long start = Math.max(0, end - Math.min(Math.max(0, maxNumSamples), capacity));
+      final int numToCopy = (int)(end - start);
+
+      final int[] copiedSampleTimes = new int[numToCopy];
+      final int[] copiedRawParticleCounts = new int[numToCopy];
+      final int[] copiedParticleCountsOrConcentrations = new int[numToCopy];
+      final int[] copiedTemperatures = new int[numToCopy];
+      final int[] copiedHumidities = new int[numToCopy];
+      for (int i = 0; i < numToCopy; i++)
+         {
+         final int slot = (int)((start + i) % capacity);
+         copiedSampleTimes[i] = sampleTimes.get(slot);
+         copiedRawParticleCounts[i] = rawParticleCounts.get(slot);
+         copiedParticleCountsOrConcentrations[i] = particleCountsOrConcentrations.get(slot);
+         copiedTemperatures[i] = temperaturesInTenthsOfADegreeF.get(slot);
+         copiedHumidities[i] = humidities.get(slot);
+         }
+
+      // any slot the writer claimed while we were copying may be torn, so skip it
+      final long firstValid = Math.max(start, claimedSequence - capacity);
+      final int firstValidIndex = (int)Math.min(numToCopy, firstValid - start);
+
+      final List<Speck.DataSample> snapshot = new ArrayList<Speck.DataSample>(numToCopy - firstValidIndex);
+      for (int i = firstValidIndex; i < numToCopy; i++)
+         {
+         snapshot.add(new DataSample(null,
+                                     copiedSampleTimes[i],
+                                     copiedRawParticleCounts[i],
+                                     copiedParticleCountsOrConcentrations[i],
+                                     copiedTemperatures[i],
+                                     copiedHumidities[i]));
+         }
+      return snapshot;
+      }
+   }
@@ -13,15 +13,35 @@ public final class RemoteStorageCredentialsValidator
    {
    private static final Pattern DEVICE_NAME_PATTERN = Pattern.compile("[a-zA-Z0-9_]+");
 
-   /** Returns <code>true</code> if the given {@link RemoteStorageCredentials} are valid; <code>false</code> otherwise. */
+   /** Validation is retried a few times, quickly, if the server can't be reached. */
+   private static final RetryPolicy RETRY_POLICY = new RetryPolicy(3, 1000, 4000, 0.2);
+
+   /**
+    * Returns <code>true</code> if the given {@link RemoteStorageCredentials} are valid; <code>false</code> otherwise.
+    * Failures to reach the server are retried a few times, but rejections by the server are not.
+    */
    public static boolean isValid(@Nullable final RemoteStorageCredentials remoteStorageCredentials)
       {
       if (remoteStorageCredentials != null && isDeviceNameValid(remoteStorageCredentials.getDeviceName()))
          {
-         // Send an empty JSON to test authenticaton
-         final DataSampleSetUploadResponse dataSampleSetUploadResponse = DataSampleUploadHelper.upload(remoteStorageCredentials,
-                                                                                                       new StringEntity("{}", ContentType.APPLICATION_JSON));
-         return dataSampleSetUploadResponse.wasSuccessful();
+         final CircuitBreaker circuitBreaker = DataSampleUploadHelper.getCircuitBreaker(remoteStorageCredentials);
+         final DataSampleSetUploadResponse dataSampleSetUploadResponse = RETRY_POLICY.execute(
+               "validate the credentials for [" + circuitBreaker.getTarget() + "]",
+               new RetryPolicy.Attempt<DataSampleSetUploadResponse>()
+               {
+               @Nullable
+               @Override
+               public DataSampleSetUploadResponse attempt(final int attemptNumber, final int maxNumberOfAttempts)
+                  {
+                  // Send an empty JSON to test authenticaton
+                  final DataSampleSetUploadResponse response = DataSampleUploadHelper.upload(remoteStorageCredentials,
+                                                                                             new StringEntity("{}", ContentType.APPLICATION_JSON));
+
+                  // only retry if the server couldn't be reached
+                  return (response.wasSuccessful() || !circuitBreaker.isFailing()) ? response : null;
+                  }
+               });
+         return dataSampleSetUploadResponse != null && dataSampleSetUploadResponse.wasSuccessful();
          }
       return false;
       }
@@ -0,0 +1,129 @@
+package org.specksensor;
+
+import java.util.Random;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>RetryPolicy</code> determines how long to wait before retrying a failed action.  The delay doubles with each
+ * consecutive failure, from the initial delay up to the maximum delay, and is randomly spread by the jitter fraction so
+ * that retries from many clients (or many Specks) don't all land at the same moment.
+ * </p>
+ * <p>
+ * Callers which retry asynchronously (e.g. by rescheduling a task) can just ask for the {@link #getDelayMillis(int)
+ * delay}.  Callers which retry synchronously can use {@link #execute(String, Attempt)}, which sleeps between attempts.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class RetryPolicy
+   {
+   private static final Logger LOG = Logger.getLogger(RetryPolicy.class);
+
+   private static final Random RANDOM = new Random();
+
+   public interface Attempt<ReturnType>
+      {
+      /**
+       * Makes a single attempt, returning the result, or <code>null</code> if the attempt failed and should be retried.
+       * Exceptions are treated as failures too.
+       */
+      @Nullable
+      ReturnType attempt(final int attemptNumber, final int maxNumberOfAttempts) throws Exception;
+      }
+
+   private final int maxNumberOfAttempts;
+   private final long initialDelayMillis;
+   private final long maxDelayMillis;
+   private final double jitterFraction;
+
+   /**
+    * Creates a <code>RetryPolicy</code>.
+    *
+    * @param maxNumberOfAttempts the maximum number of attempts made by {@link #execute(String, Attempt)}, including the first
+    * @param initialDelayMillis the delay after the first failure
+    * @param maxDelayMillis the maximum delay (including jitter), no matter how many consecutive failures there have been
+    * @param jitterFraction how much delays are randomly spread, as a fraction of the delay (e.g. 0.2 means +/- 20%)
+    */
+   public RetryPolicy(final int maxNumberOfAttempts, final long initialDelayMillis, final long maxDelayMillis, final double jitterFraction)
+      {
+      this.maxNumberOfAttempts = Math.max(1, maxNumberOfAttempts);
+      this.initialDelayMillis = Math.max(0, initialDelayMillis);
+      this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+      this.jitterFraction = Math.min(1, Math.max(0, jitterFraction));
+      }
+
+   public int getMaxNumberOfAttempts()
+      {
+      return maxNumberOfAttempts;
+      }
+
+   /**
+    * Returns the delay, in milliseconds, before retrying after the given number of consecutive failures.  Returns 0 if
+    * there have been no failures.
+    */
+   public long getDelayMillis(final int numConsecutiveFailures)
+      {
+      if (numConsecutiveFailures < 1)
+         {
+         return 0;
+         }
+
+      // double the delay for each failure after the first, taking care not to overflow
+      long delayMillis = initialDelayMillis;
+      for (int i = 1; i < numConsecutiveFailures && delayMillis < maxDelayMillis; i++)
+         {
+         delayMillis *= 2;
+         }
+      delayMillis = Math.min(delayMillis, maxDelayMillis);
+
+      final double jitter;
+      synchronized (RANDOM)
+         {
+         jitter = (RANDOM.nextDouble() * 2 - 1) * jitterFraction;
+         }
+      return Math.min(maxDelayMillis, Math.max(0, Math.round(delayMillis * (1 + jitter))));
+      }
+
+   /**
+    * Makes up to {@link #getMaxNumberOfAttempts()} attempts, sleeping between them, and returns the first
+    * non-<code>null</code> result.  Returns <code>null</code> if every attempt failed, or if interrupted while sleeping.
+    */
+   @Nullable
+   public <ReturnType> ReturnType execute(@NotNull final String description, @NotNull final Attempt<ReturnType> attempt)
+      {
+      for (int attemptNumber = 1; attemptNumber <= maxNumberOfAttempts; attemptNumber++)
+         {
+         try
+            {
+            final ReturnType val = attempt.attempt(attemptNumber, maxNumberOfAttempts);
+            if (val != null)
+               {
+               return val;
+               }
+            }
+         catch (Exception e)
+            {
+            LOG.error("RetryPolicy.execute(): Exception during attempt " + attemptNumber + " of " + maxNumberOfAttempts + " to " + description, e);
+            }
+
+         if (attemptNumber < maxNumberOfAttempts)
+            {
+            try
+               {
+               Thread.sleep(getDelayMillis(attemptNumber));
+               }
+            catch (InterruptedException e)
+               {
+               LOG.error("RetryPolicy.execute(): InterruptedException while waiting to retry " + description, e);
+               Thread.currentThread().interrupt();
+               return null;
+               }
+            }
+         }
+
+      return null;
+      }
+   }
@@ -66,6 +66,13 @@ public final class SpeckConstants
          SPECK_ROOT_DATA_DIRECTORY.mkdirs();
          }
 
+      /** Returns the directory under which all the Speck data directories are stored. */
+      @NotNull
+      public static File getRootDataDirectory()
+         {
+         return SPECK_ROOT_DATA_DIRECTORY;
+         }
+
       /**
        * Creates (if necessary) and returns the directory into which data files for the given {@link SpeckConfig}
        * should be stored.
@@ -1,5 +1,8 @@
 package org.specksensor;
 
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
@@ -22,6 +25,22 @@ public class SpeckFactory
       return SpeckProxy.create();
       }
 
+   /**
+    * Tries to create a {@link Speck} for every attached Speck which isn't already connected, by connecting to each in
+    * turn until no more can be found.  Returns an empty list if no connections could be established.
+    */
+   @NotNull
+   public static List<Speck> createAll()
+      {
+      final List<Speck> specks = new ArrayList<Speck>();
+      Speck speck;
+      while ((speck = SpeckProxy.create()) != null)
+         {
+         specks.add(speck);
+         }
+      return specks;
+      }
+
    private SpeckFactory()
       {
       // private to prevent instantiation
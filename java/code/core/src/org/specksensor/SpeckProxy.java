@@ -2,9 +2,6 @@ package org.specksensor;
 
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -17,7 +14,6 @@ import edu.cmu.ri.createlab.usb.hid.HIDDeviceNoReturnValueCommandExecutor;
 import edu.cmu.ri.createlab.usb.hid.HIDDeviceNotFoundException;
 import edu.cmu.ri.createlab.usb.hid.HIDDeviceReturnValueCommandExecutor;
 import edu.cmu.ri.createlab.util.commandexecution.CommandExecutionFailureHandler;
-import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -38,6 +34,12 @@ class SpeckProxy implements Speck
 
    private static final int DELAY_IN_SECONDS_BETWEEN_PINGS = 5;
 
+   /** HID commands which may fail transiently (e.g. while the device settles after connecting) are retried quickly. */
+   private static final RetryPolicy HID_COMMAND_RETRY_POLICY = new RetryPolicy(3, 200, 800, 0.2);
+
+   /** Shared by the pingers of all connected Specks. */
+   private static final ExecutionRuntime.Component PING_TASKS = ExecutionRuntime.getInstance().getComponent("SpeckProxy.ping", Integer.MAX_VALUE);
+
    /**
     * Tries to create a <code>SpeckProxy</code>. Returns <code>null</code> if the connection could not be established.
     */
@@ -81,8 +83,7 @@ class SpeckProxy implements Speck
    private final HIDDevice hidDevice;
 
    private final Pinger pinger = new Pinger();
-   private final ScheduledExecutorService pingExecutorService = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(this.getClass() + ".pingExecutorService"));
-   private final ScheduledFuture<?> pingScheduledFuture;
+   private final ExecutionRuntime.ScheduledTask pingScheduledTask;
    private final Collection<CreateLabDevicePingFailureEventListener> createLabDevicePingFailureEventListeners = new HashSet<CreateLabDevicePingFailureEventListener>();
    private final GetDataSampleCommandStrategy getCurrentSampleCommandStrategy = GetDataSampleCommandStrategy.createGetCurrentSampleCommandStrategy();
    private final GetDataSampleCommandStrategy getHistoricSampleCommandStrategy = GetDataSampleCommandStrategy.createGetHistoricSampleCommandStrategy();
@@ -117,25 +118,26 @@ class SpeckProxy implements Speck
       speckConfigReturnValueCommandExecutor = new HIDDeviceReturnValueCommandExecutor<SpeckConfig>(commandQueue, commandExecutionFailureHandler);
 
       // we cache the config since writes are much less common than reads
-      final SpeckConfig tempSpeckConfig =
-            new RetryingActionExecutor<SpeckConfig>()
+      final SpeckConfig tempSpeckConfig = HID_COMMAND_RETRY_POLICY.execute(
+            "read the Speck config",
+            new RetryPolicy.Attempt<SpeckConfig>()
             {
             private final ReadWriteSpeckConfigCommandStrategy getSpeckConfigCommandStrategy = ReadWriteSpeckConfigCommandStrategy.createReadableSpeckConfigCommandStrategy();
 
             @Override
             @Nullable
-            protected SpeckConfig executionWorkhorse(final int attemptNumber, final int maxNumberOfAttempts)
+            public SpeckConfig attempt(final int attemptNumber, final int maxNumberOfAttempts)
                {
                final String msg = "Reading Speck config (attempt " + attemptNumber + " of " + maxNumberOfAttempts + ")...";
                CONSOLE_LOG.info(msg);
                if (LOG.isInfoEnabled())
                   {
-                  LOG.info("SpeckProxy.executionWorkhorse(): " + msg);
+                  LOG.info("SpeckProxy.SpeckProxy(): " + msg);
                   }
-               LOG.debug("SpeckProxy.executionWorkhorse(): Reading config...");
+               LOG.debug("SpeckProxy.SpeckProxy(): Reading config...");
                return speckConfigReturnValueCommandExecutor.execute(getSpeckConfigCommandStrategy);
                }
-            }.execute();
+            });
 
       if (tempSpeckConfig == null)
          {
@@ -150,25 +152,26 @@ class SpeckProxy implements Speck
          // if we got a valid SpeckConfig, we now need to check whether we need to get the extended config
          if (tempSpeckConfig.getApiSupport().hasExtendedId())
             {
-            final SpeckConfig tempExtendedSpeckConfig =
-                  new RetryingActionExecutor<SpeckConfig>()
+            final SpeckConfig tempExtendedSpeckConfig = HID_COMMAND_RETRY_POLICY.execute(
+                  "read the extended Speck config",
+                  new RetryPolicy.Attempt<SpeckConfig>()
                   {
                   private final ReadExtendedSpeckConfigCommandStrategy getExtendedSpeckConfigCommandStrategy = new ReadExtendedSpeckConfigCommandStrategy(tempSpeckConfig);
 
                   @Override
                   @Nullable
-                  protected SpeckConfig executionWorkhorse(final int attemptNumber, final int maxNumberOfAttempts)
+                  public SpeckConfig attempt(final int attemptNumber, final int maxNumberOfAttempts)
                      {
                      final String msg = "Reading extended Speck config (attempt " + attemptNumber + " of " + maxNumberOfAttempts + ")...";
                      CONSOLE_LOG.info(msg);
                      if (LOG.isInfoEnabled())
                         {
-                        LOG.info("SpeckProxy.executionWorkhorse(): " + msg);
+                        LOG.info("SpeckProxy.SpeckProxy(): " + msg);
                         }
-                     LOG.debug("SpeckProxy.executionWorkhorse(): Reading extended config...");
+                     LOG.debug("SpeckProxy.SpeckProxy(): Reading extended config...");
                      return speckConfigReturnValueCommandExecutor.execute(getExtendedSpeckConfigCommandStrategy);
                      }
-                  }.execute();
+                  });
 
             if (tempExtendedSpeckConfig == null)
                {
@@ -194,10 +197,10 @@ class SpeckProxy implements Speck
 
       // TODO: smarter pinging?
       // schedule periodic pings
-      pingScheduledFuture = pingExecutorService.scheduleAtFixedRate(pinger,
-                                                                    DELAY_IN_SECONDS_BETWEEN_PINGS, // delay before first ping
-                                                                    DELAY_IN_SECONDS_BETWEEN_PINGS, // delay between pings
-                                                                    TimeUnit.SECONDS);
+      pingScheduledTask = PING_TASKS.scheduleWithFixedDelay(pinger,
+                                                            DELAY_IN_SECONDS_BETWEEN_PINGS, // delay before first ping
+                                                            DELAY_IN_SECONDS_BETWEEN_PINGS, // delay between pings
+                                                            TimeUnit.SECONDS);
       }
 
    public String getPortName()
@@ -362,8 +365,7 @@ class SpeckProxy implements Speck
       // turn off the pinger
       try
          {
-         pingScheduledFuture.cancel(false);
-         pingExecutorService.shutdownNow();
+         pingScheduledTask.cancel(false);
          LOG.debug("SpeckProxy.disconnect(): Successfully shut down the Speck pinger.");
          }
       catch (Exception e)
@@ -438,56 +440,6 @@ class SpeckProxy implements Speck
          }
       }
 
-   private abstract static class RetryingActionExecutor<ReturnType>
-      {
-      private static final int MAX_RETRIES = 3;
-      private static final int SLEEP_DURATION_IN_MILLIS = 200;
-
-      /**
-       * Executes an action and returns the result, retrying if necessary up to three times.  Returns <code>null</code>
-       * only if it fails to get a non-<code>null</code> result.
-       */
-      @SuppressWarnings({"BusyWait"})
-      @Nullable
-      protected final ReturnType execute()
-         {
-         int retryCount = 0;
-         do
-            {
-            try
-               {
-               final ReturnType val = executionWorkhorse(retryCount + 1, MAX_RETRIES);
-               if (val != null)
-                  {
-                  return val;
-                  }
-               }
-            catch (Exception e)
-               {
-               LOG.error("Exception while executing the action", e);
-               }
-            retryCount++;
-            if (retryCount < MAX_RETRIES)
-               {
-               try
-                  {
-                  Thread.sleep(SLEEP_DURATION_IN_MILLIS);
-                  }
-               catch (InterruptedException e)
-                  {
-                  LOG.error("InterruptedException while sleeping", e);
-                  }
-               }
-            }
-         while (retryCount < MAX_RETRIES);
-
-         return null;
-         }
-
-      @Nullable
-      protected abstract ReturnType executionWorkhorse(final int attemptNumber, final int maxNumberOfAttempts);
-      }
-
    private class Pinger implements Runnable
       {
       private boolean isPaused = false;
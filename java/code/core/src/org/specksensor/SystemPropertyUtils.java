@@ -0,0 +1,78 @@
+package org.specksensor;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>SystemPropertyUtils</code> provides helper methods for reading tunable values from system properties.  If a
+ * property is undefined or can't be parsed, the given default is returned instead.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class SystemPropertyUtils
+   {
+   private static final Logger LOG = Logger.getLogger(SystemPropertyUtils.class);
+
+   /**
+    * Returns the value of the system property with the given <code>key</code> as an int, or the given
+    * <code>defaultValue</code> if the property is undefined or not an int.
+    */
+   public static int getInt(@NotNull final String key, final int defaultValue)
+      {
+      final String valueStr = System.getProperty(key);
+      if (valueStr != null)
+         {
+         try
+            {
+            return Integer.parseInt(valueStr.trim());
+            }
+         catch (NumberFormatException e)
+            {
+            LOG.error("SystemPropertyUtils.getInt(): NumberFormatException while trying to parse [" + valueStr + "] as an int for system property [" + key + "].  Defaulting to " + defaultValue, e);
+            }
+         }
+      return defaultValue;
+      }
+
+   /**
+    * Returns the value of the system property with the given <code>key</code> as a long, or the given
+    * <code>defaultValue</code> if the property is undefined or not a long.
+    */
+   public static long getLong(@NotNull final String key, final long defaultValue)
+      {
+      final String valueStr = System.getProperty(key);
+      if (valueStr != null)
+         {
+         try
+            {
+            return Long.parseLong(valueStr.trim());
+            }
+         catch (NumberFormatException e)
+            {
+            LOG.error("SystemPropertyUtils.getLong(): NumberFormatException while trying to parse [" + valueStr + "] as a long for system property [" + key + "].  Defaulting to " + defaultValue, e);
+            }
+         }
+      return defaultValue;
+      }
+
+   /**
+    * Returns the value of the system property with the given <code>key</code> as a boolean, or the given
+    * <code>defaultValue</code> if the property is undefined.
+    */
+   public static boolean getBoolean(@NotNull final String key, final boolean defaultValue)
+      {
+      final String valueStr = System.getProperty(key);
+      if (valueStr != null)
+         {
+         return Boolean.parseBoolean(valueStr.trim());
+         }
+      return defaultValue;
+      }
+
+   private SystemPropertyUtils()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -0,0 +1,258 @@
+package org.specksensor;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>UploadMirror</code> uploads a Speck's samples to an additional server (e.g. a research mirror), alongside the
+ * primary upload.  The primary upload tracks each sample's {@link DataSampleUploadStatus upload status}, but a mirror
+ * only tracks a {@link DataSampleStore#getUploadCursor(String) cursor}: the database ID of the last sample it has
+ * acknowledged.  Each mirror uploads the samples saved after its cursor, in the order they were saved, so any number of
+ * mirrors can make independent progress over the same samples without touching the upload status.
+ * </p>
+ * <p>
+ * Each mirror has its own {@link DataSampleUploader} (and so its own executor and circuit breaker), and its own
+ * {@link RetryPolicy}, so a failing mirror backs off on its own and never holds up the primary upload or the other
+ * mirrors.  Mirrors don't bisect partially rejected uploads: the cursor moves past any samples the mirror rejects, and
+ * past a set the mirror has rejected outright several times in a row, so that a bad sample can't stall the mirror.
+ * </p>
+ * <p>
+ * The mirror doesn't schedule anything itself.  Its {@link DataSampleManager} asks it for the
+ * {@link #uploadNext() next upload} and passes it the {@link #handleUploadResponse(DataSampleSet, DataSampleSetUploadResponse)
+ * response}, each of which says how long to wait before the next upload.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class UploadMirror
+   {
+   private static final Logger LOG = Logger.getLogger(UploadMirror.class);
+   private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
+
+   /**
+    * Maximum number of seconds to wait before retrying after consecutive upload failures.  Defaults to 600, and can be
+    * overridden for a particular mirror by appending a dot and the mirror's name to the property name.
+    */
+   static final String RETRY_MAX_DELAY_SECONDS_SYSTEM_PROPERTY = "org.specksensor.UploadMirror.retry-max-delay-seconds";
+
+   /**
+    * Number of consecutive times a mirror may reject every sample in a set before the mirror's cursor moves past the
+    * set anyway.  Defaults to 3.
+    */
+   static final String SKIP_AFTER_REJECTIONS_SYSTEM_PROPERTY = "org.specksensor.UploadMirror.skip-after-rejections";
+
+   private static final int DEFAULT_RETRY_MAX_DELAY_SECONDS = 600;
+   private static final int SKIP_AFTER_REJECTIONS = Math.max(1, SystemPropertyUtils.getInt(SKIP_AFTER_REJECTIONS_SYSTEM_PROPERTY, 3));
+
+   /** Delay before looking for more samples, once the mirror has caught up. */
+   private static final long DELAY_WHEN_CAUGHT_UP_MILLIS = 15000;
+
+   /**
+    * How often the cursor is set again, even if it hasn't moved, so that a mirror which is still configured keeps
+    * holding back purging however long it's been failing (or idle).  Only a mirror which is no longer configured stops.
+    */
+   private static final long CURSOR_REFRESH_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+   public enum State
+      {
+         WAITING("waiting"),
+         UPLOADING("uploading"),
+         FAILING("failing");
+
+      private final String name;
+
+      private State(final String name)
+         {
+         this.name = name;
+         }
+
+      public String getName()
+         {
+         return name;
+         }
+      }
+
+   @NotNull
+   private final String name;
+
+   @NotNull
+   private final DataSampleStore dataSampleStore;
+
+   @NotNull
+   private final DataSampleUploader dataSampleUploader;
+
+   @NotNull
+   private final RetryPolicy retryPolicy;
+
+   // The fields below are only accessed by the mirror's upload task and by the handling of its upload's response,
+   // which never run at the same time, since the mirror only ever has one upload in flight.  They're volatile so that
+   // the statistics see them.
+   private volatile boolean hasLoadedCursor = false;
+   private volatile int cursor = 0;
+   private volatile long cursorSetTimeMillis = 0;
+   private volatile int numConsecutiveFailures = 0;
+   private volatile int numConsecutiveRejections = 0;
+   private volatile long numSamplesUploaded = 0;
+   private volatile long numSamplesSkipped = 0;
+   private volatile State state = State.WAITING;
+
+   UploadMirror(@NotNull final String name, @NotNull final DataSampleStore dataSampleStore, @NotNull final DataSampleUploader dataSampleUploader)
+      {
+      this.name = name;
+      this.dataSampleStore = dataSampleStore;
+      this.dataSampleUploader = dataSampleUploader;
+      final int maxDelaySeconds = Math.max(5, SystemPropertyUtils.getInt(RETRY_MAX_DELAY_SECONDS_SYSTEM_PROPERTY + "." + name,
+                                                                         SystemPropertyUtils.getInt(RETRY_MAX_DELAY_SECONDS_SYSTEM_PROPERTY, DEFAULT_RETRY_MAX_DELAY_SECONDS)));
+      this.retryPolicy = new RetryPolicy(Integer.MAX_VALUE, 5000, maxDelaySeconds * 1000L, 0.2);
+      }
+
+   @NotNull
+   String getName()
+      {
+      return name;
+      }
+
+   @NotNull
+   DataSampleUploader getDataSampleUploader()
+      {
+      return dataSampleUploader;
+      }
+
+   /**
+    * Submits the next set of samples for upload, returning -1 if a set was submitted (in which case the caller must wait
+    * for the response), or the number of milliseconds to wait before trying again if there was nothing to upload.
+    */
+   long uploadNext()
+      {
+      if (!hasLoadedCursor)
+         {
+         // setting the cursor right away (even if it's unchanged) creates it, so it holds back purging from now on
+         cursor = dataSampleStore.getUploadCursor(name);
+         hasLoadedCursor = saveCursor();
+         LOG.info("UploadMirror.uploadNext(): Mirror [" + name + "] resuming after sample [" + cursor + "]");
+         }
+      else if (System.currentTimeMillis() - cursorSetTimeMillis >= CURSOR_REFRESH_INTERVAL_MILLIS && !saveCursor())
+         {
+         LOG.error("UploadMirror.uploadNext(): Failed to refresh the cursor of mirror [" + name + "]");
+         }
+
+      final DataSampleSet dataSampleSet = dataSampleStore.getDataSamplesSavedAfter(cursor, DataSampleSet.DEFAULT_SIZE);
+      if (dataSampleSet.isEmpty())
+         {
+         state = State.WAITING;
+         return DELAY_WHEN_CAUGHT_UP_MILLIS;
+         }
+
+      state = State.UPLOADING;
+      dataSampleUploader.submitUploadDataSampleSetTask(dataSampleSet);
+      return -1;
+      }
+
+   /**
+    * Moves the cursor past the given set if it was accepted (or partially accepted, or rejected too many times), and
+    * returns the number of milliseconds to wait before the next upload.
+    */
+   long handleUploadResponse(@NotNull final DataSampleSet dataSampleSet, @Nullable final DataSampleSetUploadResponse uploadResponse)
+      {
+      final DataSampleSetUploadResponse.Payload payload = (uploadResponse == null) ? null : uploadResponse.getPayload();
+      final int numSuccessful = (payload == null || payload.getNumSuccessfulRecords() == null) ? 0 : payload.getNumSuccessfulRecords();
+      final int numFailures = (payload == null || payload.getNumFailedRecords() == null) ? 0 : payload.getNumFailedRecords();
+
+      final boolean wasAccepted = uploadResponse != null && (uploadResponse.wasSuccessful() || numSuccessful > 0);
+      final boolean wasRejected = !wasAccepted && payload != null && numFailures > 0;
+      if (wasRejected)
+         {
+         numConsecutiveRejections++;
+         }
+
+      if (wasAccepted || (wasRejected && numConsecutiveRejections >= SKIP_AFTER_REJECTIONS))
+         {
+         if (wasAccepted)
+            {
+            numSamplesUploaded += dataSampleSet.size() - numFailures;
+            numSamplesSkipped += numFailures;
+            if (numFailures > 0)
+               {
+               LOG.warn("UploadMirror.handleUploadResponse(): Mirror [" + name + "] rejected [" + numFailures + "] of [" + dataSampleSet.size() + "] samples, which won't be uploaded to it again");
+               }
+            }
+         else
+            {
+            numSamplesSkipped += dataSampleSet.size();
+            final String msg = "Mirror [" + name + "] rejected a set of " + dataSampleSet.size() + " samples " + numConsecutiveRejections + " times in a row, so it's being skipped.";
+            LOG.error("UploadMirror.handleUploadResponse(): " + msg);
+            CONSOLE_LOG.error(msg);
+            }
+
+         numConsecutiveFailures = 0;
+         numConsecutiveRejections = 0;
+         cursor = Math.max(cursor, getHighestDatabaseId(dataSampleSet));
+         if (!saveCursor())
+            {
+            LOG.error("UploadMirror.handleUploadResponse(): Failed to save the cursor of mirror [" + name + "], so some samples may be uploaded to it again after a restart");
+            }
+
+         // keep going if there are probably more samples waiting
+         state = State.WAITING;
+         return (dataSampleSet.size() < DataSampleSet.DEFAULT_SIZE) ? DELAY_WHEN_CAUGHT_UP_MILLIS : 0;
+         }
+
+      numConsecutiveFailures++;
+      state = State.FAILING;
+      final long delayMillis = retryPolicy.getDelayMillis(numConsecutiveFailures);
+      LOG.error("UploadMirror.handleUploadResponse(): Upload to mirror [" + name + "] failed [" + uploadResponse + "], will retry in " + delayMillis + " ms (consecutive failures = " + numConsecutiveFailures + ")");
+      return delayMillis;
+      }
+
+   /** Saves the cursor, which also notes the time, so that it keeps holding back purging. */
+   private boolean saveCursor()
+      {
+      if (dataSampleStore.setUploadCursor(name, cursor))
+         {
+         cursorSetTimeMillis = System.currentTimeMillis();
+         return true;
+         }
+      return false;
+      }
+
+   private static int getHighestDatabaseId(@NotNull final DataSampleSet dataSampleSet)
+      {
+      int highestId = 0;
+      for (final Speck.DataSample dataSample : dataSampleSet.getDataSamples())
+         {
+         if (dataSample.getDatabaseId() != null)
+            {
+            highestId = Math.max(highestId, dataSample.getDatabaseId());
+            }
+         }
+      return highestId;
+      }
+
+   int getCursor()
+      {
+      return cursor;
+      }
+
+   long getNumSamplesUploaded()
+      {
+      return numSamplesUploaded;
+      }
+
+   long getNumSamplesSkipped()
+      {
+      return numSamplesSkipped;
+      }
+
+   int getNumConsecutiveFailures()
+      {
+      return numConsecutiveFailures;
+      }
+
+   @NotNull
+   State getState()
+      {
+      return state;
+      }
+   }
@@ -0,0 +1,501 @@
+package org.specksensor;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>UploadRateLimiter</code> keeps uploads within a budget of samples per second and bytes per second, so that
+ * uploading a large backlog (e.g. after a long outage) doesn't saturate a shared uplink.  Each budget is a token
+ * bucket which holds up to {@link #BURST_SECONDS_SYSTEM_PROPERTY a few seconds} worth of budget, so short bursts go
+ * through at full speed.  Uploads are never refused: an upload which exceeds the budget is simply delayed until the
+ * budget has caught up.
+ * </p>
+ * <p>
+ * The budgets can vary by time of day with a {@link #SCHEDULE_SYSTEM_PROPERTY schedule}.  A rate of 0 means
+ * unlimited, and the limiter does nothing at all unless some limit has been configured.
+ * </p>
+ * <p>
+ * Each budget is split between two {@link Lane lanes}: the {@link Lane#REAL_TIME real-time} lane, which uploads the
+ * freshest samples, gets {@link #REAL_TIME_PERCENT_SYSTEM_PROPERTY a share} of the budget, and the
+ * {@link Lane#BACKLOG backlog} lane gets the rest.  A lane may use whatever the other lane has left over, so a busy
+ * lane gets the whole budget while the other one is idle, but a lane which has fallen behind gets its own share back.
+ * </p>
+ * <p>
+ * There is one limiter, shared by all uploaders, since all Specks connected to the gateway share the same uplink.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class UploadRateLimiter
+   {
+   private static final Logger LOG = Logger.getLogger(UploadRateLimiter.class);
+   private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
+
+   /** Maximum average number of samples uploaded per second, or 0 (the default) for no limit. */
+   public static final String SAMPLES_PER_SECOND_SYSTEM_PROPERTY = "org.specksensor.UploadRateLimiter.samples-per-second";
+
+   /** Maximum average number of bytes uploaded per second, or 0 (the default) for no limit. */
+   public static final String BYTES_PER_SECOND_SYSTEM_PROPERTY = "org.specksensor.UploadRateLimiter.bytes-per-second";
+
+   /** Number of seconds worth of budget which may be used in a burst, after uploads have been idle.  Defaults to 10. */
+   public static final String BURST_SECONDS_SYSTEM_PROPERTY = "org.specksensor.UploadRateLimiter.burst-seconds";
+
+   /**
+    * Time-of-day budgets which override the samples and bytes per second limits, as a comma-separated list of entries
+    * of the form <code>HH:mm-HH:mm samples/bytes</code>, in local time.  For example,
+    * <code>08:00-18:00 5/2000, 18:00-22:00 20/0</code> limits uploads to 5 samples and 2000 bytes per second during the
+    * working day, and to 20 samples per second (with no limit on bytes) in the evening.  Windows may wrap around
+    * midnight, and the first window containing the current time wins.  Outside all windows, the samples and bytes per
+    * second limits apply.
+    */
+   public static final String SCHEDULE_SYSTEM_PROPERTY = "org.specksensor.UploadRateLimiter.schedule";
+
+   /** Percentage (from 1 to 99) of each budget set aside for the {@link Lane#REAL_TIME real-time} lane.  Defaults to 20. */
+   public static final String REAL_TIME_PERCENT_SYSTEM_PROPERTY = "org.specksensor.UploadRateLimiter.real-time-percent";
+
+   private static final UploadRateLimiter INSTANCE = new UploadRateLimiter(SystemPropertyUtils.getInt(SAMPLES_PER_SECOND_SYSTEM_PROPERTY, 0),
+                                                                           SystemPropertyUtils.getLong(BYTES_PER_SECOND_SYSTEM_PROPERTY, 0),
+                                                                           SystemPropertyUtils.getInt(BURST_SECONDS_SYSTEM_PROPERTY, 10),
+                                                                           System.getProperty(SCHEDULE_SYSTEM_PROPERTY),
+                                                                           SystemPropertyUtils.getInt(REAL_TIME_PERCENT_SYSTEM_PROPERTY, 20));
+
+   private static final Pattern SCHEDULE_ENTRY_PATTERN = Pattern.compile("\\s*(\\d{1,2}):(\\d{2})\\s*-\\s*(\\d{1,2}):(\\d{2})\\s+(\\d+)\\s*/\\s*(\\d+)\\s*");
+
+   private static final int MINUTES_PER_DAY = 24 * 60;
+
+   @NotNull
+   public static UploadRateLimiter getInstance()
+      {
+      return INSTANCE;
+      }
+
+   public enum Lane
+      {
+         REAL_TIME("real-time"),
+         BACKLOG("backlog");
+
+      private final String name;
+
+      private Lane(final String name)
+         {
+         this.name = name;
+         }
+
+      public String getName()
+         {
+         return name;
+         }
+      }
+
+   public enum State
+      {
+         UNLIMITED("unlimited"),
+         OPEN("open"),
+         THROTTLED("throttled");
+
+      private final String name;
+
+      private State(final String name)
+         {
+         this.name = name;
+         }
+
+      public String getName()
+         {
+         return name;
+         }
+      }
+
+   private final long defaultSamplesPerSecond;
+   private final long defaultBytesPerSecond;
+   private final int burstSeconds;
+   private final int realTimePercent;
+
+   @NotNull
+   private final List<Window> schedule;
+
+   /** Each lane's share of the samples budget.  Guarded by <code>this</code>. */
+   @NotNull
+   private final Map<Lane, TokenBucket> sampleBuckets = new EnumMap<Lane, TokenBucket>(Lane.class);
+
+   /** Each lane's share of the bytes budget.  Guarded by <code>this</code>. */
+   @NotNull
+   private final Map<Lane, TokenBucket> byteBuckets = new EnumMap<Lane, TokenBucket>(Lane.class);
+
+   /** Rates of the whole (unsplit) budgets.  Guarded by <code>this</code>. */
+   private long samplesPerSecond = 0;
+   private long bytesPerSecond = 0;
+
+   /** Guarded by <code>this</code>. */
+   @Nullable
+   private Window activeWindow = null;
+
+   /** Guarded by <code>this</code>. */
+   private long numUploads = 0;
+
+   /** Guarded by <code>this</code>. */
+   private long numThrottledUploads = 0;
+
+   /** Guarded by <code>this</code>. */
+   private long totalThrottleMillis = 0;
+
+   /** Time at which the most recently throttled upload is due to go out.  Guarded by <code>this</code>. */
+   private long throttledUntilNanos = System.nanoTime();
+
+   UploadRateLimiter(final long samplesPerSecond, final long bytesPerSecond, final int burstSeconds, @Nullable final String schedule, final int realTimePercent)
+      {
+      this.defaultSamplesPerSecond = Math.max(0, samplesPerSecond);
+      this.defaultBytesPerSecond = Math.max(0, bytesPerSecond);
+      this.burstSeconds = Math.max(1, burstSeconds);
+      this.realTimePercent = Math.min(99, Math.max(1, realTimePercent));
+      this.schedule = parseSchedule(schedule);
+      for (final Lane lane : Lane.values())
+         {
+         sampleBuckets.put(lane, new TokenBucket());
+         byteBuckets.put(lane, new TokenBucket());
+         }
+
+      if (isEnabled())
+         {
+         final String msg = "Uploads are limited to " + describeRate(defaultSamplesPerSecond) + " samples/sec and " + describeRate(defaultBytesPerSecond) + " bytes/sec (" + this.realTimePercent + "% for real-time uploads), with " + this.schedule.size() + " time-of-day window(s).";
+         LOG.info("UploadRateLimiter.UploadRateLimiter(): " + msg);
+         CONSOLE_LOG.info(msg);
+         }
+      }
+
+   /** Returns whether any limit has been configured. */
+   public boolean isEnabled()
+      {
+      return defaultSamplesPerSecond > 0 || defaultBytesPerSecond > 0 || !schedule.isEmpty();
+      }
+
+   /** Same as {@link #reserve(int, long, Lane)}, for the {@link Lane#BACKLOG backlog} lane. */
+   public long reserve(final int numSamples, final long numBytes)
+      {
+      return reserve(numSamples, numBytes, Lane.BACKLOG);
+      }
+
+   /**
+    * Takes the given number of samples and bytes out of the given lane's share of the budget (borrowing whatever the
+    * other lane has left over), and returns the number of milliseconds the caller must wait before uploading them (0 if
+    * they can be uploaded right away).  The budget is taken whether or not the caller has to wait, so concurrent
+    * callers in the same lane queue up behind one another.
+    */
+   public synchronized long reserve(final int numSamples, final long numBytes, @NotNull final Lane lane)
+      {
+      numUploads++;
+      if (!isEnabled())
+         {
+         return 0;
+         }
+
+      final long now = System.nanoTime();
+      updateRates(now);
+      final Lane otherLane = (lane == Lane.REAL_TIME) ? Lane.BACKLOG : Lane.REAL_TIME;
+      final long delayNanos = Math.max(sampleBuckets.get(lane).reserve(numSamples, sampleBuckets.get(otherLane), now),
+                                       byteBuckets.get(lane).reserve(numBytes, byteBuckets.get(otherLane), now));
+      if (delayNanos <= 0)
+         {
+         return 0;
+         }
+
+      final long delayMillis = TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1;
+      numThrottledUploads++;
+      totalThrottleMillis += delayMillis;
+      throttledUntilNanos = Math.max(throttledUntilNanos, now + delayNanos);
+      if (LOG.isDebugEnabled())
+         {
+         LOG.debug("UploadRateLimiter.reserve(): Delaying upload of [" + numSamples + "] samples and [" + numBytes + "] bytes by [" + delayMillis + "] ms");
+         }
+      return delayMillis;
+      }
+
+   @NotNull
+   public synchronized State getState()
+      {
+      if (!isEnabled())
+         {
+         return State.UNLIMITED;
+         }
+      final long now = System.nanoTime();
+      updateRates(now);
+      if (samplesPerSecond <= 0 && bytesPerSecond <= 0)
+         {
+         return State.UNLIMITED;
+         }
+      return (throttledUntilNanos - now > 0) ? State.THROTTLED : State.OPEN;
+      }
+
+   /** Renders the limiter's budgets and throttling in an ASCII table, or returns an empty string if it isn't enabled. */
+   @NotNull
+   public synchronized String getStatusAsString()
+      {
+      if (!isEnabled())
+         {
+         return "";
+         }
+
+      final State state = getState();
+      final long now = System.nanoTime();
+      final StringWriter stringWriter = new StringWriter();
+      final PrintWriter printWriter = new PrintWriter(stringWriter);
+
+      printWriter.printf(" __________________________________________________________________ \n");
+      printWriter.printf("|                                                                  |\n");
+      printWriter.printf("| Upload Limit        Per Second        Burst        Available     |\n");
+      printWriter.printf("| ------------        ----------        -----        ---------     |\n");
+      printWriter.printf("| Samples           %12s %12s %16s     |\n", describeRate(samplesPerSecond), describeRate(samplesPerSecond * burstSeconds), describeTokens(sampleBuckets, now));
+      printWriter.printf("| Bytes             %12s %12s %16s     |\n", describeRate(bytesPerSecond), describeRate(bytesPerSecond * burstSeconds), describeTokens(byteBuckets, now));
+      printWriter.printf("|                                                                  |\n");
+      printWriter.printf("| State: %-10s Window: %-38s |\n", state.getName(), (activeWindow == null) ? "default" : activeWindow.toString());
+      printWriter.printf("| Lanes: real-time %2d%%, backlog %2d%% (each uses the other's spare)  |\n", realTimePercent, 100 - realTimePercent);
+      printWriter.printf("| Uploads: %7d   Throttled: %7d   Total Wait (s): %8d |\n", numUploads, numThrottledUploads, totalThrottleMillis / 1000);
+      printWriter.printf("|__________________________________________________________________|\n");
+
+      return stringWriter.toString();
+      }
+
+   /** Applies the rates for the current time of day.  MUST be called while synchronized on <code>this</code>. */
+   private void updateRates(final long now)
+      {
+      final Calendar calendar = Calendar.getInstance();
+      final int minuteOfDay = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+
+      Window window = null;
+      for (final Window candidate : schedule)
+         {
+         if (candidate.contains(minuteOfDay))
+            {
+            window = candidate;
+            break;
+            }
+         }
+
+      if (window != activeWindow)
+         {
+         activeWindow = window;
+         if (LOG.isInfoEnabled())
+            {
+            LOG.info("UploadRateLimiter.updateRates(): Switching to the " + ((window == null) ? "default" : "[" + window + "]") + " upload limits");
+            }
+         }
+
+      samplesPerSecond = (window == null) ? defaultSamplesPerSecond : window.samplesPerSecond;
+      bytesPerSecond = (window == null) ? defaultBytesPerSecond : window.bytesPerSecond;
+      for (final Lane lane : Lane.values())
+         {
+         sampleBuckets.get(lane).setRate(samplesPerSecond > 0, getLaneRate(samplesPerSecond, lane), burstSeconds, now);
+         byteBuckets.get(lane).setRate(bytesPerSecond > 0, getLaneRate(bytesPerSecond, lane), burstSeconds, now);
+         }
+      }
+
+   /**
+    * Returns the lane's share of the given (positive) rate.  The two shares always add up to the rate.  The real-time
+    * share is at least 1, so the backlog's share can be 0 when the rate is tiny, in which case the backlog only gets
+    * what it borrows from the real-time lane.
+    */
+   private long getLaneRate(final long rate, @NotNull final Lane lane)
+      {
+      if (rate <= 0)
+         {
+         return 0;
+         }
+      final long realTimeRate = Math.min(rate, Math.max(1, rate * realTimePercent / 100));
+      return (lane == Lane.REAL_TIME) ? realTimeRate : rate - realTimeRate;
+      }
+
+   /** Describes the tokens available across all lanes.  MUST be called while synchronized on the limiter. */
+   @NotNull
+   private static String describeTokens(@NotNull final Map<Lane, TokenBucket> buckets, final long now)
+      {
+      long total = 0;
+      for (final TokenBucket bucket : buckets.values())
+         {
+         if (bucket.isUnlimited())
+            {
+            return "-";
+            }
+         total += bucket.getTokens(now);
+         }
+      return String.valueOf(total);
+      }
+
+   @NotNull
+   private static String describeRate(final long rate)
+      {
+      return (rate <= 0) ? "unlimited" : String.valueOf(rate);
+      }
+
+   @NotNull
+   private static List<Window> parseSchedule(@Nullable final String schedule)
+      {
+      if (schedule == null || schedule.trim().length() == 0)
+         {
+         return Collections.emptyList();
+         }
+
+      final List<Window> windows = new ArrayList<Window>();
+      for (final String entry : schedule.split(","))
+         {
+         final Matcher matcher = SCHEDULE_ENTRY_PATTERN.matcher(entry);
+         final int startMinute;
+         final int endMinute;
+         if (matcher.matches() &&
+             (startMinute = toMinuteOfDay(matcher.group(1), matcher.group(2))) >= 0 &&
+             (endMinute = toMinuteOfDay(matcher.group(3), matcher.group(4))) >= 0)
+            {
+            windows.add(new Window(startMinute, endMinute, Long.parseLong(matcher.group(5)), Long.parseLong(matcher.group(6))));
+            }
+         else
+            {
+            LOG.error("UploadRateLimiter.parseSchedule(): Ignoring invalid schedule entry [" + entry + "].  Entries must be of the form HH:mm-HH:mm samples/bytes");
+            }
+         }
+      return windows;
+      }
+
+   /** Returns the minute of the day for the given hours and minutes, or -1 if they're out of range. */
+   private static int toMinuteOfDay(@NotNull final String hours, @NotNull final String minutes)
+      {
+      final int h = Integer.parseInt(hours);
+      final int m = Integer.parseInt(minutes);
+      return (h <= 24 && m < 60 && h * 60 + m <= MINUTES_PER_DAY) ? h * 60 + m : -1;
+      }
+
+   /** A time-of-day window, from its start (inclusive) to its end (exclusive), with its own budgets. */
+   private static final class Window
+      {
+      private final int startMinute;
+      private final int endMinute;
+      private final long samplesPerSecond;
+      private final long bytesPerSecond;
+
+      private Window(final int startMinute, final int endMinute, final long samplesPerSecond, final long bytesPerSecond)
+         {
+         this.startMinute = startMinute;
+         this.endMinute = endMinute;
+         this.samplesPerSecond = samplesPerSecond;
+         this.bytesPerSecond = bytesPerSecond;
+         }
+
+      private boolean contains(final int minuteOfDay)
+         {
+         if (startMinute <= endMinute)
+            {
+            return startMinute <= minuteOfDay && minuteOfDay < endMinute;
+            }
+
+         // wraps around midnight
+         return minuteOfDay >= startMinute || minuteOfDay < endMinute;
+         }
+
+      @Override
+      public String toString()
+         {
+         return String.format("%02d:%02d-%02d:%02d %s/%s", startMinute / 60, startMinute % 60, endMinute / 60, endMinute % 60, describeRate(samplesPerSecond), describeRate(bytesPerSecond));
+         }
+      }
+
+   /**
+    * A token bucket which refills at its rate, up to its capacity.  Reservations may take the bucket below empty, in
+    * which case the reservation must wait until the bucket has refilled back to empty.  This lets a single upload which
+    * is larger than the bucket's capacity through, after a suitable wait.  A reservation may also borrow another
+    * bucket's spare tokens, but never takes that bucket below empty, unless this bucket is limited to a rate of 0, in
+    * which case all it can do is borrow, and waiting for the other bucket to refill is the only way to cover the rest.
+    * Not thread safe.
+    */
+   private static final class TokenBucket
+      {
+      private boolean isLimited = false;
+      private long rate = 0;
+      private long capacity = 0;
+      private double tokens = 0;
+      private long lastRefillNanos = System.nanoTime();
+
+      private boolean isUnlimited()
+         {
+         return !isLimited;
+         }
+
+      /**
+       * Changes whether the bucket is limited, and its rate (if necessary), starting with a full bucket when it goes
+       * from unlimited to limited.
+       */
+      private void setRate(final boolean newIsLimited, final long newRate, final int burstSeconds, final long now)
+         {
+         if (newIsLimited != isLimited || newRate != rate)
+            {
+            refill(now);
+            final boolean wasUnlimited = isUnlimited();
+            isLimited = newIsLimited;
+            rate = newIsLimited ? Math.max(0, newRate) : 0;
+            capacity = rate * burstSeconds;
+            tokens = wasUnlimited ? capacity : Math.min(tokens, capacity);
+            lastRefillNanos = now;
+            }
+         }
+
+      /**
+       * Takes the given cost out of the bucket, covering whatever the bucket can't with the spare bucket's tokens (if it
+       * has any), and returns how long, in nanoseconds, the caller must wait.
+       */
+      private long reserve(final long cost, @NotNull final TokenBucket spare, final long now)
+         {
+         if (isUnlimited())
+            {
+            return 0;
+            }
+         refill(now);
+         spare.refill(now);
+         final double shortfall = cost - Math.max(0, tokens);
+         if (shortfall > 0 && spare.tokens > 0)
+            {
+            final double borrowed = Math.min(shortfall, spare.tokens);
+            spare.tokens -= borrowed;
+            tokens += borrowed;
+            }
+         tokens -= cost;
+         if (tokens >= 0)
+            {
+            return 0;
+            }
+         if (rate > 0)
+            {
+            return (long)Math.ceil(-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+            }
+
+         // with no rate of its own, the rest is owed to the spare bucket, and the caller waits for that to refill
+         spare.tokens += tokens;
+         tokens = 0;
+         return (spare.tokens >= 0 || spare.rate <= 0) ? 0 : (long)Math.ceil(-spare.tokens * TimeUnit.SECONDS.toNanos(1) / spare.rate);
+         }
+
+      private long getTokens(final long now)
+         {
+         refill(now);
+         return (long)Math.floor(tokens);
+         }
+
+      private void refill(final long now)
+         {
+         if (rate > 0)
+            {
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * (double)rate / TimeUnit.SECONDS.toNanos(1));
+            }
+         lastRefillNanos = now;
+         }
+      }
+   }
@@ -0,0 +1,1148 @@
+package org.specksensor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>UploadRelay</code> lets one gateway upload on behalf of the other gateways on its LAN.  It serves a
+ * <code>/api/bodytrack/jupload</code> endpoint which peer gateways upload to (by pointing their upload host and port at
+ * the relay) exactly as they would to the remote server, and forwards what they upload to the remote server.
+ * </p>
+ * <p>
+ * An upload is acknowledged as soon as it's been written, gzipped and synced to disk, to a file in the relay spool
+ * directory (e.g. <code>~/CREATELab/Speck/relay-spool</code>), so the peers never wait on the WAN, and an outage of the
+ * remote server only ever fills the relay's disk.  Files are written under a temporary name and renamed once synced,
+ * so an upload is either wholly in the spool or not at all.  Every few seconds, the spooled uploads are grouped by
+ * credentials, device and channels, and each group is forwarded as one upload of up to
+ * {@link #MAX_BATCH_SAMPLES_SYSTEM_PROPERTY several thousand} samples (without duplicate timestamps), over a pool of
+ * persistent connections.  A group whose upload fails backs off on its own, without holding up the others.
+ * </p>
+ * <p>
+ * A group in which the server rejects any samples is split up, and its uploads are forwarded one at a time.  An upload
+ * which the server rejects samples from several times in a row is moved to a <code>rejected</code> directory, rather
+ * than being retried forever (or having its samples dropped).
+ * </p>
+ * <p>
+ * Credentials are validated by passing the peer's validation request on to the remote server, and an upload is only
+ * acknowledged once the remote server has accepted its uploader's credentials, so that uploads the remote server would
+ * refuse never reach the spool.  While the remote server is unreachable, credentials which it has already accepted
+ * since the relay started are still accepted, so that a peer gateway which restarts during an outage can carry on
+ * uploading to the relay.  Credentials are only ever kept in memory: spool files name the uploader, but don't hold its
+ * password, so uploads spooled before the relay restarted wait until their uploader's credentials are validated again.
+ * Likewise, credentials which the remote server refuses while their uploads are being forwarded are forgotten, so that
+ * their uploads wait, and the peer's next upload is validated again rather than acknowledged.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class UploadRelay
+   {
+   private static final Logger LOG = Logger.getLogger(UploadRelay.class);
+   private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
+
+   /** Maximum number of samples forwarded in a single upload.  Defaults to 5000. */
+   public static final String MAX_BATCH_SAMPLES_SYSTEM_PROPERTY = "org.specksensor.UploadRelay.max-batch-samples";
+
+   /** How often the spool is checked for uploads to forward.  Defaults to 10 seconds. */
+   public static final String FORWARD_INTERVAL_SECONDS_SYSTEM_PROPERTY = "org.specksensor.UploadRelay.forward-interval-seconds";
+
+   /** Maximum number of concurrent uploads (and pooled connections) to the remote server.  Defaults to 4. */
+   public static final String UPSTREAM_CONNECTIONS_SYSTEM_PROPERTY = "org.specksensor.UploadRelay.upstream-connections";
+
+   /**
+    * Whether forwarded uploads are gzipped (and sent with a <code>Content-Encoding: gzip</code> header).  Defaults to
+    * <code>false</code>, since the remote server must support compressed request bodies.
+    */
+   public static final String COMPRESS_UPSTREAM_SYSTEM_PROPERTY = "org.specksensor.UploadRelay.compress-upstream";
+
+   private static final int MAX_BATCH_SAMPLES = Math.max(1, SystemPropertyUtils.getInt(MAX_BATCH_SAMPLES_SYSTEM_PROPERTY, 5000));
+   private static final int FORWARD_INTERVAL_SECONDS = Math.max(1, SystemPropertyUtils.getInt(FORWARD_INTERVAL_SECONDS_SYSTEM_PROPERTY, 10));
+   private static final int UPSTREAM_CONNECTIONS = Math.max(1, SystemPropertyUtils.getInt(UPSTREAM_CONNECTIONS_SYSTEM_PROPERTY, 4));
+   private static final boolean IS_UPSTREAM_COMPRESSED = SystemPropertyUtils.getBoolean(COMPRESS_UPSTREAM_SYSTEM_PROPERTY, false);
+
+   /** Number of peer requests handled at once. */
+   private static final int NUM_INGEST_THREADS = 4;
+
+   /** Number of consecutive times the server may reject an upload outright before it's moved out of the spool. */
+   private static final int SKIP_AFTER_REJECTIONS = 3;
+
+   /** The most samples read from the spool in one pass, so that a long outage can't exhaust the heap. */
+   private static final int MAX_SAMPLES_PER_PASS = MAX_BATCH_SAMPLES * UPSTREAM_CONNECTIONS * 2;
+
+   private static final RetryPolicy RETRY_POLICY = new RetryPolicy(Integer.MAX_VALUE, 5000, 600000, 0.2);
+
+   public static final String UPLOAD_PATH = "/api/bodytrack/jupload";
+   private static final String DEVICE_NAME_QUERY_PARAMETER = "dev_nickname";
+   private static final String BASIC_AUTHORIZATION_PREFIX = "Basic ";
+
+   private static final String DIRECTORY_NAME = "relay-spool";
+   private static final String REJECTED_DIRECTORY_NAME = "rejected";
+   private static final String FILE_NAME_PREFIX = "upload-";
+   private static final String FILE_EXTENSION = ".json.gz";
+   private static final String TEMP_FILE_EXTENSION = ".tmp";
+   private static final String CHARSET = "UTF-8";
+
+   private static final String USERNAME_FIELD = "username";
+   private static final String DEVICE_NAME_FIELD = "device";
+   private static final String CHANNEL_NAMES_FIELD = "channel_names";
+   private static final String DATA_FIELD = "data";
+
+   /** Returns the relay spool directory. */
+   @NotNull
+   public static File getDirectory()
+      {
+      return new File(SpeckConstants.FilePaths.getRootDataDirectory(), DIRECTORY_NAME);
+      }
+
+   /** The uploads in a spool file, along with who they're from. */
+   private static final class SpooledUpload
+      {
+      @NotNull
+      private final File file;
+
+      @NotNull
+      private final String username;
+
+      @NotNull
+      private final String deviceName;
+
+      @NotNull
+      private final JsonNode channelNames;
+
+      @NotNull
+      private final JsonNode data;
+
+      private SpooledUpload(@NotNull final File file,
+                            @NotNull final String username,
+                            @NotNull final String deviceName,
+                            @NotNull final JsonNode channelNames,
+                            @NotNull final JsonNode data)
+         {
+         this.file = file;
+         this.username = username;
+         this.deviceName = deviceName;
+         this.channelNames = channelNames;
+         this.data = data;
+         }
+
+      /** Identifies the uploader, whose forwarded uploads succeed or fail together. */
+      @NotNull
+      private String getUploaderKey()
+         {
+         return UploadRelay.getUploaderKey(username, deviceName);
+         }
+
+      /** Identifies the uploads which can be merged with this one. */
+      @NotNull
+      private String getGroupKey()
+         {
+         return getUploaderKey() + "\n" + channelNames;
+         }
+      }
+
+   /**
+    * Who a spool file's uploads are from, which is all the forward pass needs to know to decide whether to forward it
+    * yet, so that it doesn't have to read (and decompress) the files it isn't going to forward.
+    */
+   private static final class SpoolFileSummary
+      {
+      @NotNull
+      private final String username;
+
+      @NotNull
+      private final String uploaderKey;
+
+      private SpoolFileSummary(@NotNull final String username, @NotNull final String deviceName)
+         {
+         this.username = username;
+         this.uploaderKey = getUploaderKey(username, deviceName);
+         }
+      }
+
+   @NotNull
+   private static String getUploaderKey(@NotNull final String username, @NotNull final String deviceName)
+      {
+      return username + "\n" + deviceName;
+      }
+
+   /** Spooled uploads which are forwarded together, as a single upload. */
+   private static final class Batch
+      {
+      @NotNull
+      private final List<SpooledUpload> uploads = new ArrayList<SpooledUpload>();
+      private int numSamples = 0;
+
+      private void add(@NotNull final SpooledUpload upload)
+         {
+         uploads.add(upload);
+         numSamples += upload.data.size();
+         }
+
+      @NotNull
+      private SpooledUpload getFirst()
+         {
+         return uploads.get(0);
+         }
+      }
+
+   /** How long an uploader's forwarded uploads must wait after failing. */
+   private static final class Backoff
+      {
+      private final int numConsecutiveFailures;
+      private final long notBeforeMillis;
+
+      private Backoff(final int numConsecutiveFailures, final long notBeforeMillis)
+         {
+         this.numConsecutiveFailures = numConsecutiveFailures;
+         this.notBeforeMillis = notBeforeMillis;
+         }
+      }
+
+   /** The remote server's verdict on an uploader's credentials. */
+   private enum Verdict
+      {
+      ACCEPTED, REJECTED, UNREACHABLE
+      }
+
+   @NotNull
+   private final HttpServer httpServer;
+
+   @NotNull
+   private final String upstreamHostName;
+
+   private final int upstreamPort;
+
+   @NotNull
+   private final File directory;
+
+   @NotNull
+   private final File rejectedDirectory;
+
+   @NotNull
+   private final ObjectMapper objectMapper = new ObjectMapper();
+
+   @NotNull
+   private final CloseableHttpClient httpClient = DataSampleUploadHelper.createPooledHttpClient(UPSTREAM_CONNECTIONS);
+
+   @NotNull
+   private final ExecutionRuntime.Component forwardComponent = ExecutionRuntime.getInstance().getComponent("RelayForward", 1);
+
+   @NotNull
+   private final ExecutionRuntime.Component upstreamComponent = ExecutionRuntime.getInstance().getComponent("RelayUpstream", UPSTREAM_CONNECTIONS);
+
+   @Nullable
+   private ExecutionRuntime.ScheduledTask forwardTask = null;
+
+   @NotNull
+   private final Runnable forwardPass =
+         new Runnable()
+         {
+         @Override
+         public void run()
+            {
+            forward();
+            }
+         };
+
+   /** Uploaders (authorization and device name) whose credentials the remote server has accepted. */
+   @NotNull
+   private final Set<String> validatedUploaderKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   /**
+    * The <code>Authorization</code> header most recently accepted by the remote server for each username, with which
+    * that user's spooled uploads are forwarded.  Only ever kept in memory, so the spool files only need the username.
+    */
+   @NotNull
+   private final ConcurrentMap<String, String> authorizationByUsername = new ConcurrentHashMap<String, String>();
+
+   /** Names of spool files currently being forwarded. */
+   @NotNull
+   private final Set<String> inFlightFileNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   @NotNull
+   private final ConcurrentMap<String, Integer> numRejectionsByFileName = new ConcurrentHashMap<String, Integer>();
+
+   /** Summaries of the spool files written or read since the relay started. */
+   @NotNull
+   private final ConcurrentMap<String, SpoolFileSummary> summaryByFileName = new ConcurrentHashMap<String, SpoolFileSummary>();
+
+   @NotNull
+   private final ConcurrentMap<String, Backoff> backoffByUploaderKey = new ConcurrentHashMap<String, Backoff>();
+
+   /** Whether the last pass left uploads in the spool which could have been forwarded right away. */
+   private volatile boolean wereUploadsLeftWaiting = false;
+
+   private final AtomicInteger fileSequenceNumber = new AtomicInteger(0);
+   private final AtomicInteger numSpooledFiles = new AtomicInteger(0);
+   private final AtomicLong numPeerUploads = new AtomicLong(0);
+   private final AtomicLong numPeerValidations = new AtomicLong(0);
+   private final AtomicLong numBadRequests = new AtomicLong(0);
+   private final AtomicLong numUnauthorizedUploads = new AtomicLong(0);
+   private final AtomicLong numSamplesSpooled = new AtomicLong(0);
+   private final AtomicLong numSamplesRejectedOnReceipt = new AtomicLong(0);
+   private final AtomicLong numUpstreamUploads = new AtomicLong(0);
+   private final AtomicLong numUpstreamFailures = new AtomicLong(0);
+   private final AtomicLong numSamplesForwarded = new AtomicLong(0);
+   private final AtomicLong numSamplesRejectedUpstream = new AtomicLong(0);
+   private final AtomicLong numFilesRejected = new AtomicLong(0);
+
+   /**
+    * Creates a relay which listens for peer uploads on the given port (or on any free port, if 0), and forwards them to
+    * the remote server at the given host and port.  The relay isn't started until {@link #start()} is called.
+    */
+   public UploadRelay(final int port, @NotNull final String upstreamHostName, final int upstreamPort) throws IOException
+      {
+      this.upstreamHostName = upstreamHostName;
+      this.upstreamPort = upstreamPort;
+      directory = getDirectory();
+      rejectedDirectory = new File(directory, REJECTED_DIRECTORY_NAME);
+
+      httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+      httpServer.setExecutor(ExecutionRuntime.getInstance().getComponent("RelayIngest", NUM_INGEST_THREADS));
+      httpServer.createContext(UPLOAD_PATH,
+                               new HttpHandler()
+                               {
+                               @Override
+                               public void handle(final HttpExchange exchange) throws IOException
+                                  {
+                                  try
+                                     {
+                                     handleRequest(exchange);
+                                     }
+                                  catch (Exception e)
+                                     {
+                                     LOG.error("UploadRelay.handle(): Exception while handling a request", e);
+                                     respond(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, "KO", "Internal error: " + e.getMessage(), null);
+                                     }
+                                  finally
+                                     {
+                                     exchange.close();
+                                     }
+                                  }
+                               });
+      }
+
+   /** Starts accepting peer uploads, and forwarding the spooled ones (including any left over from a previous run). */
+   public void start()
+      {
+      //noinspection ResultOfMethodCallIgnored
+      directory.mkdirs();
+      numSpooledFiles.set(listSpoolFiles().length);
+
+      httpServer.start();
+      forwardTask = forwardComponent.scheduleWithFixedDelay(forwardPass, 0, FORWARD_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+      final String msg = "Relaying uploads received on port " + getPort() + " to " + upstreamHostName + ":" + upstreamPort + " (" + numSpooledFiles.get() + " upload(s) already spooled)";
+      LOG.info("UploadRelay.start(): " + msg + ", max batch samples = " + MAX_BATCH_SAMPLES + ", upstream connections = " + UPSTREAM_CONNECTIONS + ", compress upstream = " + IS_UPSTREAM_COMPRESSED);
+      CONSOLE_LOG.info(msg);
+      }
+
+   /** Stops accepting peer uploads and stops forwarding.  Anything still spooled is forwarded after the next start. */
+   public void stop()
+      {
+      httpServer.stop(1);
+      if (forwardTask != null)
+         {
+         forwardTask.cancel(false);
+         }
+      IOUtils.closeQuietly(httpClient);
+      }
+
+   public int getPort()
+      {
+      return httpServer.getAddress().getPort();
+      }
+
+   /** Returns the number of peer uploads waiting in the spool to be forwarded. */
+   public int getNumSpooledUploads()
+      {
+      return numSpooledFiles.get();
+      }
+
+   public long getNumSamplesSpooled()
+      {
+      return numSamplesSpooled.get();
+      }
+
+   public long getNumSamplesForwarded()
+      {
+      return numSamplesForwarded.get();
+      }
+
+   public long getNumUpstreamUploads()
+      {
+      return numUpstreamUploads.get();
+      }
+
+   /** Renders the relay's counters in an ASCII table. */
+   @NotNull
+   public String getStatisticsAsString()
+      {
+      final StringWriter stringWriter = new StringWriter();
+      final PrintWriter printWriter = new PrintWriter(stringWriter);
+
+      printWriter.printf(" __________________________________________________________________ \n");
+      printWriter.printf("|                                                                  |\n");
+      printWriter.printf("| Upload Relay                                                     |\n");
+      printWriter.printf("| ------------                                                     |\n");
+      printWriter.printf("| %-38s %25d |\n", "Peer Uploads", numPeerUploads.get());
+      printWriter.printf("| %-38s %25d |\n", "Peer Credential Validations", numPeerValidations.get());
+      printWriter.printf("| %-38s %25d |\n", "Bad Peer Requests", numBadRequests.get());
+      printWriter.printf("| %-38s %25d |\n", "Peer Uploads Refused (Credentials)", numUnauthorizedUploads.get());
+      printWriter.printf("| %-38s %25d |\n", "Samples Spooled", numSamplesSpooled.get());
+      printWriter.printf("| %-38s %25d |\n", "Samples Rejected on Receipt", numSamplesRejectedOnReceipt.get());
+      printWriter.printf("| %-38s %25d |\n", "Uploads Waiting in Spool", numSpooledFiles.get());
+      printWriter.printf("| %-38s %25d |\n", "Upstream Uploads", numUpstreamUploads.get());
+      printWriter.printf("| %-38s %25d |\n", "Upstream Upload Failures", numUpstreamFailures.get());
+      printWriter.printf("| %-38s %25d |\n", "Samples Forwarded", numSamplesForwarded.get());
+      printWriter.printf("| %-38s %25d |\n", "Samples Rejected Upstream", numSamplesRejectedUpstream.get());
+      printWriter.printf("| %-38s %25d |\n", "Uploads Moved to Rejected", numFilesRejected.get());
+      printWriter.printf("|__________________________________________________________________|\n");
+
+      return stringWriter.toString();
+      }
+
+   private void handleRequest(@NotNull final HttpExchange exchange) throws IOException
+      {
+      if (!UPLOAD_PATH.equals(exchange.getRequestURI().getPath()))
+         {
+         numBadRequests.incrementAndGet();
+         respond(exchange, HttpStatus.SC_NOT_FOUND, "KO", "Not found", null);
+         return;
+         }
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod()))
+         {
+         numBadRequests.incrementAndGet();
+         respond(exchange, HttpStatus.SC_METHOD_NOT_ALLOWED, "KO", "Uploads must be POSTed", null);
+         return;
+         }
+
+      final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      final String[] usernameAndPassword = decodeBasicAuthorization(authorization);
+      if (authorization == null || usernameAndPassword == null)
+         {
+         numBadRequests.incrementAndGet();
+         exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"BodyTrack\"");
+         respond(exchange, HttpStatus.SC_UNAUTHORIZED, "KO", "Authentication required", null);
+         return;
+         }
+
+      final String deviceName = getQueryParameter(exchange.getRequestURI().getRawQuery(), DEVICE_NAME_QUERY_PARAMETER);
+      final JsonNode body = readBody(exchange);
+      if (!RemoteStorageCredentialsValidator.isDeviceNameValid(deviceName) || body == null || !body.isObject())
+         {
+         numBadRequests.incrementAndGet();
+         respond(exchange, HttpStatus.SC_BAD_REQUEST, "KO", "Missing or invalid " + ((body == null || !body.isObject()) ? "JSON" : DEVICE_NAME_QUERY_PARAMETER), null);
+         return;
+         }
+
+      //noinspection ConstantConditions
+      final RemoteStorageCredentials credentials = new RemoteStorageCredentialsImpl(upstreamHostName, upstreamPort, usernameAndPassword[0], usernameAndPassword[1], deviceName);
+      final String uploaderKey = authorization + "\n" + deviceName;
+      if (body.get(DATA_FIELD) == null)
+         {
+         // an upload without data is how gateways validate their credentials
+         handleValidation(exchange, credentials, authorization, uploaderKey);
+         }
+      else
+         {
+         handleUpload(exchange, credentials, authorization, uploaderKey, body);
+         }
+      }
+
+   /** Passes a validation request on to the remote server, and answers with its verdict. */
+   private void handleValidation(@NotNull final HttpExchange exchange,
+                                 @NotNull final RemoteStorageCredentials credentials,
+                                 @NotNull final String authorization,
+                                 @NotNull final String uploaderKey) throws IOException
+      {
+      final Verdict verdict = validate(credentials, authorization, uploaderKey);
+      if (Verdict.ACCEPTED.equals(verdict))
+         {
+         respond(exchange, HttpStatus.SC_OK, "OK", "Credentials accepted", null);
+         }
+      else if (Verdict.UNREACHABLE.equals(verdict) && validatedUploaderKeys.contains(uploaderKey))
+         {
+         respond(exchange, HttpStatus.SC_OK, "OK", "Remote server unreachable, but these credentials were accepted earlier", null);
+         }
+      else if (Verdict.UNREACHABLE.equals(verdict))
+         {
+         // an HTTP 5xx, so that the peer counts it as a failure to reach the server, rather than a rejection
+         respond(exchange, HttpStatus.SC_BAD_GATEWAY, "KO", "Remote server unreachable", null);
+         }
+      else
+         {
+         respond(exchange, HttpStatus.SC_OK, "KO", "Credentials rejected by the remote server", null);
+         }
+      }
+
+   /**
+    * Asks the remote server whether it accepts the given credentials.  Accepted credentials are remembered (in memory
+    * only) so that the uploader's uploads can be acknowledged and forwarded, and rejected ones are forgotten.
+    */
+   @NotNull
+   private Verdict validate(@NotNull final RemoteStorageCredentials credentials,
+                            @NotNull final String authorization,
+                            @NotNull final String uploaderKey) throws IOException
+      {
+      numPeerValidations.incrementAndGet();
+      final DataSampleSetUploadResponse response = DataSampleUploadHelper.upload(credentials,
+                                                                                 new ByteArrayEntity("{}".getBytes(CHARSET), ContentType.APPLICATION_JSON),
+                                                                                 httpClient);
+      if (response.wasSuccessful())
+         {
+         validatedUploaderKeys.add(uploaderKey);
+         authorizationByUsername.put(credentials.getUsername(), authorization);
+         return Verdict.ACCEPTED;
+         }
+      if (DataSampleUploadHelper.getCircuitBreaker(credentials).isFailing())
+         {
+         return Verdict.UNREACHABLE;
+         }
+      validatedUploaderKeys.remove(uploaderKey);
+      return Verdict.REJECTED;
+      }
+
+   /**
+    * Spools the well-formed rows of the given upload, and answers once they're safely on disk.  The uploader's
+    * credentials are validated first, if the remote server hasn't accepted them since the relay started, so that an
+    * upload the remote server would refuse is never acknowledged.
+    */
+   private void handleUpload(@NotNull final HttpExchange exchange,
+                             @NotNull final RemoteStorageCredentials credentials,
+                             @NotNull final String authorization,
+                             @NotNull final String uploaderKey,
+                             @NotNull final JsonNode body) throws IOException
+      {
+      numPeerUploads.incrementAndGet();
+
+      if (!validatedUploaderKeys.contains(uploaderKey))
+         {
+         final Verdict verdict = validate(credentials, authorization, uploaderKey);
+         if (Verdict.REJECTED.equals(verdict))
+            {
+            numUnauthorizedUploads.incrementAndGet();
+            respond(exchange, HttpStatus.SC_UNAUTHORIZED, "KO", "Credentials rejected by the remote server", null);
+            return;
+            }
+         if (Verdict.UNREACHABLE.equals(verdict))
+            {
+            // a 5xx, so that the peer keeps its samples and tries again later
+            numUnauthorizedUploads.incrementAndGet();
+            respond(exchange, HttpStatus.SC_BAD_GATEWAY, "KO", "Remote server unreachable, and these credentials haven't been validated yet", null);
+            return;
+            }
+         }
+      final String deviceName = credentials.getDeviceName();
+
+      final JsonNode channelNames = body.get(CHANNEL_NAMES_FIELD);
+      final JsonNode data = body.get(DATA_FIELD);
+      if (!isValidChannelNames(channelNames) || !data.isArray())
+         {
+         numBadRequests.incrementAndGet();
+         respond(exchange, HttpStatus.SC_BAD_REQUEST, "KO", "Missing or invalid " + (data.isArray() ? CHANNEL_NAMES_FIELD : DATA_FIELD), null);
+         return;
+         }
+
+      // keep only rows having a numeric timestamp and a value for every channel
+      final ArrayNode validRows = objectMapper.createArrayNode();
+      for (final JsonNode row : data)
+         {
+         if (row.isArray() && row.size() == channelNames.size() + 1 && row.get(0).isNumber())
+            {
+            validRows.add(row);
+            }
+         }
+      final int numRejected = data.size() - validRows.size();
+      numSamplesRejectedOnReceipt.addAndGet(numRejected);
+
+      if (validRows.size() > 0 && !writeSpoolFile(credentials.getUsername(), deviceName, channelNames, validRows))
+         {
+         // a 5xx, so that the peer keeps its samples and tries again later
+         respond(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, "KO", "Failed to spool the upload", null);
+         return;
+         }
+
+      final ObjectNode payload = objectMapper.createObjectNode();
+      payload.put("successful_records", validRows.size());
+      payload.put("failed_records", numRejected);
+      if (numRejected > 0)
+         {
+         payload.put("failure", numRejected + " malformed record(s)");
+         }
+      if (validRows.size() == 0 && numRejected > 0)
+         {
+         respond(exchange, HttpStatus.SC_OK, "KO", "Upload failed for all records", payload);
+         }
+      else
+         {
+         respond(exchange, HttpStatus.SC_OK, "OK", "Upload successful!", payload);
+         }
+      }
+
+   private static boolean isValidChannelNames(@Nullable final JsonNode channelNames)
+      {
+      if (channelNames == null || !channelNames.isArray() || channelNames.size() == 0)
+         {
+         return false;
+         }
+      for (final JsonNode channelName : channelNames)
+         {
+         if (!channelName.isTextual())
+            {
+            return false;
+            }
+         }
+      return true;
+      }
+
+   /** Writes, syncs, and then renames a spool file.  Returns <code>false</code> if it couldn't be written. */
+   private boolean writeSpoolFile(@NotNull final String username,
+                                  @NotNull final String deviceName,
+                                  @NotNull final JsonNode channelNames,
+                                  @NotNull final ArrayNode rows)
+      {
+      //noinspection ResultOfMethodCallIgnored
+      directory.mkdirs();
+
+      final String name = FILE_NAME_PREFIX + System.currentTimeMillis() + "-" + String.format("%010d", fileSequenceNumber.incrementAndGet() & Integer.MAX_VALUE) + FILE_EXTENSION;
+      final File file = new File(directory, name);
+      final File tempFile = new File(directory, name + TEMP_FILE_EXTENSION);
+
+      final ObjectNode spooledUpload = objectMapper.createObjectNode();
+      spooledUpload.put(USERNAME_FIELD, username);
+      spooledUpload.put(DEVICE_NAME_FIELD, deviceName);
+      spooledUpload.put(CHANNEL_NAMES_FIELD, channelNames);
+      spooledUpload.put(DATA_FIELD, rows);
+
+      FileOutputStream fileOutputStream = null;
+      try
+         {
+         fileOutputStream = new FileOutputStream(tempFile);
+         final GZIPOutputStream outputStream = new GZIPOutputStream(new BufferedOutputStream(fileOutputStream));
+         outputStream.write(objectMapper.writeValueAsBytes(spooledUpload));
+         outputStream.finish();
+         outputStream.flush();
+
+         // the peer deletes its copy once it gets our answer, so make sure the file survives a power cut first
+         fileOutputStream.getFD().sync();
+         outputStream.close();
+         fileOutputStream = null;
+
+         if (!tempFile.renameTo(file))
+            {
+            throw new IOException("Failed to rename [" + tempFile + "] to [" + file + "]");
+            }
+
+         summaryByFileName.put(name, new SpoolFileSummary(username, deviceName));
+         numSpooledFiles.incrementAndGet();
+         numSamplesSpooled.addAndGet(rows.size());
+         if (LOG.isDebugEnabled())
+            {
+            LOG.debug("UploadRelay.writeSpoolFile(): Spooled [" + rows.size() + "] samples from device [" + deviceName + "] to [" + file.getName() + "]");
+            }
+         return true;
+         }
+      catch (IOException e)
+         {
+         LOG.error("UploadRelay.writeSpoolFile(): IOException while trying to spool [" + rows.size() + "] samples to [" + file + "]", e);
+         }
+      finally
+         {
+         IOUtils.closeQuietly(fileOutputStream);
+         }
+
+      //noinspection ResultOfMethodCallIgnored
+      tempFile.delete();
+      return false;
+      }
+
+   /**
+    * Reads the spool (oldest first), groups the uploads which aren't already being forwarded or backing off, and hands
+    * each group to the upstream component to be forwarded.  Uploads whose uploader's credentials aren't known (since
+    * the relay restarted after spooling them) are left in the spool until they are.  Whether a file can be forwarded is
+    * decided from its {@link SpoolFileSummary summary}, so only the files being forwarded are read, apart from reading
+    * each file left over from before the relay started once, to summarize it.
+    */
+   private void forward()
+      {
+      final long now = System.currentTimeMillis();
+      final Map<String, Batch> openBatchesByGroupKey = new LinkedHashMap<String, Batch>();
+      final List<Batch> batches = new ArrayList<Batch>();
+      int numSamplesRead = 0;
+      int numAwaitingCredentials = 0;
+      boolean wereSomeLeft = false;
+
+      final File[] files = listSpoolFiles();
+      Arrays.sort(files);
+      for (final File file : files)
+         {
+         if (numSamplesRead >= MAX_SAMPLES_PER_PASS)
+            {
+            wereSomeLeft = true;
+            break;
+            }
+         if (!inFlightFileNames.contains(file.getName()))
+            {
+            SpooledUpload upload = null;
+            SpoolFileSummary summary = summaryByFileName.get(file.getName());
+            if (summary == null)
+               {
+               upload = readSpoolFile(file);
+               if (upload != null)
+                  {
+                  summary = new SpoolFileSummary(upload.username, upload.deviceName);
+                  summaryByFileName.put(file.getName(), summary);
+                  }
+               }
+            if (summary == null)
+               {
+               // it may have just been forwarded and deleted, after we listed the spool
+               if (file.exists())
+                  {
+                  moveToRejected(file, "it can't be read");
+                  }
+               }
+            else if (!authorizationByUsername.containsKey(summary.username))
+               {
+               numAwaitingCredentials++;
+               }
+            else
+               {
+               final Backoff backoff = backoffByUploaderKey.get(summary.uploaderKey);
+               if (backoff == null || backoff.notBeforeMillis <= now)
+                  {
+                  if (upload == null)
+                     {
+                     upload = readSpoolFile(file);
+                     }
+                  if (upload == null)
+                     {
+                     if (file.exists())
+                        {
+                        moveToRejected(file, "it can't be read");
+                        }
+                     }
+                  else
+                     {
+                     numSamplesRead += upload.data.size();
+                     if (numRejectionsByFileName.containsKey(file.getName()))
+                        {
+                        // it's been rejected as part of a group, so find out whether it's the culprit on its own
+                        final Batch batch = new Batch();
+                        batch.add(upload);
+                        batches.add(batch);
+                        }
+                     else
+                        {
+                        final String groupKey = upload.getGroupKey();
+                        Batch batch = openBatchesByGroupKey.get(groupKey);
+                        if (batch != null && batch.numSamples + upload.data.size() > MAX_BATCH_SAMPLES)
+                           {
+                           batch = null;
+                           }
+                        if (batch == null)
+                           {
+                           batch = new Batch();
+                           openBatchesByGroupKey.put(groupKey, batch);
+                           batches.add(batch);
+                           }
+                        batch.add(upload);
+                        }
+                     }
+                  }
+               }
+            }
+         }
+      wereUploadsLeftWaiting = wereSomeLeft;
+      if (numAwaitingCredentials > 0 && LOG.isDebugEnabled())
+         {
+         LOG.debug("UploadRelay.forward(): [" + numAwaitingCredentials + "] spooled upload(s) are waiting for their uploader's credentials to be validated again");
+         }
+
+      for (final Batch batch : batches)
+         {
+         for (final SpooledUpload upload : batch.uploads)
+            {
+            inFlightFileNames.add(upload.file.getName());
+            }
+         upstreamComponent.execute(
+               new Runnable()
+               {
+               @Override
+               public void run()
+                  {
+                  forward(batch);
+                  }
+               });
+         }
+      }
+
+   /** Forwards the given batch as a single upload, and then deletes, keeps, or sets aside its spool files. */
+   private void forward(@NotNull final Batch batch)
+      {
+      try
+         {
+         final SpooledUpload first = batch.getFirst();
+         final String authorization = authorizationByUsername.get(first.username);
+         final String[] usernameAndPassword = (authorization == null) ? null : decodeBasicAuthorization(authorization);
+         if (usernameAndPassword == null)
+            {
+            // leave the uploads in the spool until the uploader's credentials are known again
+            return;
+            }
+
+         // merge the rows, keeping only the last row for any timestamp (e.g. if a peer uploaded the same samples twice)
+         final Map<String, JsonNode> rowsByTimestamp = new LinkedHashMap<String, JsonNode>();
+         for (final SpooledUpload upload : batch.uploads)
+            {
+            for (final JsonNode row : upload.data)
+               {
+               rowsByTimestamp.put(row.get(0).asText(), row);
+               }
+            }
+         final ObjectNode body = objectMapper.createObjectNode();
+         body.put(CHANNEL_NAMES_FIELD, first.channelNames);
+         body.putArray(DATA_FIELD).addAll(rowsByTimestamp.values());
+
+         final RemoteStorageCredentials credentials = new RemoteStorageCredentialsImpl(upstreamHostName, upstreamPort, usernameAndPassword[0], usernameAndPassword[1], first.deviceName);
+         numUpstreamUploads.incrementAndGet();
+         final DataSampleSetUploadResponse response = DataSampleUploadHelper.upload(credentials, createEntity(objectMapper.writeValueAsBytes(body)), httpClient);
+         handleUploadResponse(batch, authorization, rowsByTimestamp.size(), response);
+         }
+      catch (IOException e)
+         {
+         LOG.error("UploadRelay.forward(): IOException while trying to forward a batch of [" + batch.uploads.size() + "] upload(s)", e);
+         }
+      finally
+         {
+         for (final SpooledUpload upload : batch.uploads)
+            {
+            inFlightFileNames.remove(upload.file.getName());
+            }
+         }
+      }
+
+   private void handleUploadResponse(@NotNull final Batch batch,
+                                     @NotNull final String authorization,
+                                     final int numSamples,
+                                     @NotNull final DataSampleSetUploadResponse uploadResponse)
+      {
+      final SpooledUpload first = batch.getFirst();
+      final DataSampleSetUploadResponse.Payload payload = uploadResponse.getPayload();
+      final int numSuccessful = (payload == null || payload.getNumSuccessfulRecords() == null) ? 0 : payload.getNumSuccessfulRecords();
+      final int numFailures = (payload == null || payload.getNumFailedRecords() == null) ? 0 : payload.getNumFailedRecords();
+
+      // the server accepted the batch only if it didn't reject any samples, and rejected samples (some or all of them)
+      // only if it says how many.  Anything else is a failure to get a verdict, so the batch is retried as is.
+      final boolean wasRejected = numFailures > 0;
+      final boolean wasAccepted = !wasRejected && (uploadResponse.wasSuccessful() || numSuccessful > 0);
+      if (wasAccepted)
+         {
+         backoffByUploaderKey.remove(first.getUploaderKey());
+         numSamplesForwarded.addAndGet(numSamples);
+         for (final SpooledUpload upload : batch.uploads)
+            {
+            delete(upload.file);
+            }
+
+         // keep going right away, rather than waiting for the next pass, if the last pass couldn't take everything
+         if (wereUploadsLeftWaiting)
+            {
+            wereUploadsLeftWaiting = false;
+            forwardComponent.execute(forwardPass);
+            }
+         }
+      else if (wasRejected)
+         {
+         // keep the uploads, and forward them one at a time from now on, to find out which ones the server rejects.
+         // Resending the samples it accepted is harmless, since it keeps only one sample per timestamp.
+         backoffByUploaderKey.remove(first.getUploaderKey());
+         LOG.warn("UploadRelay.handleUploadResponse(): The server rejected [" + numFailures + "] of [" + numSamples + "] samples from device [" + first.deviceName + "] in [" + batch.uploads.size() + "] upload(s)");
+         for (final SpooledUpload upload : batch.uploads)
+            {
+            final String fileName = upload.file.getName();
+            final Integer numRejections = numRejectionsByFileName.get(fileName);
+            final int newNumRejections = (numRejections == null) ? 1 : numRejections + 1;
+            if (batch.uploads.size() == 1 && newNumRejections >= SKIP_AFTER_REJECTIONS)
+               {
+               if (moveToRejected(upload.file, "the server rejected its samples " + newNumRejections + " times in a row"))
+                  {
+                  numSamplesRejectedUpstream.addAndGet(upload.data.size());
+                  }
+               }
+            else
+               {
+               numRejectionsByFileName.put(fileName, newNumRejections);
+               }
+            }
+         }
+      else if (DataSampleUploadHelper.isAuthorizationFailure(uploadResponse))
+         {
+         // the credentials are no good any more (e.g. the password was changed), so forget them.  The uploads stay in
+         // the spool until the peer's credentials are validated again, and the peer's next upload is validated before
+         // it's acknowledged.
+         numUpstreamFailures.incrementAndGet();
+         forgetCredentials(first.username, authorization);
+         final String msg = "The remote server no longer accepts the credentials of user [" + first.username + "], so their spooled uploads will wait until they're validated again.";
+         LOG.error("UploadRelay.handleUploadResponse(): " + msg);
+         CONSOLE_LOG.error(msg);
+         }
+      else
+         {
+         numUpstreamFailures.incrementAndGet();
+         final Backoff previousBackoff = backoffByUploaderKey.get(first.getUploaderKey());
+         final int numConsecutiveFailures = (previousBackoff == null) ? 1 : previousBackoff.numConsecutiveFailures + 1;
+         final long delayMillis = RETRY_POLICY.getDelayMillis(numConsecutiveFailures);
+         backoffByUploaderKey.put(first.getUploaderKey(), new Backoff(numConsecutiveFailures, System.currentTimeMillis() + delayMillis));
+         LOG.error("UploadRelay.handleUploadResponse(): Forwarding [" + numSamples + "] samples from device [" + first.deviceName + "] failed [" + uploadResponse + "], will retry in " + delayMillis + " ms (consecutive failures = " + numConsecutiveFailures + ")");
+         }
+      }
+
+   /** Forgets that the remote server accepted the given authorization, for every device it was validated with. */
+   private void forgetCredentials(@NotNull final String username, @NotNull final String authorization)
+      {
+      authorizationByUsername.remove(username, authorization);
+      final String uploaderKeyPrefix = authorization + "\n";
+      for (final Iterator<String> iterator = validatedUploaderKeys.iterator(); iterator.hasNext(); )
+         {
+         if (iterator.next().startsWith(uploaderKeyPrefix))
+            {
+            iterator.remove();
+            }
+         }
+      }
+
+   @NotNull
+   private ByteArrayEntity createEntity(@NotNull final byte[] json) throws IOException
+      {
+      if (IS_UPSTREAM_COMPRESSED)
+         {
+         final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(json.length / 4);
+         final GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream);
+         gzipOutputStream.write(json);
+         gzipOutputStream.close();
+
+         final ByteArrayEntity entity = new ByteArrayEntity(byteArrayOutputStream.toByteArray(), ContentType.APPLICATION_JSON);
+         entity.setContentEncoding("gzip");
+         return entity;
+         }
+      return new ByteArrayEntity(json, ContentType.APPLICATION_JSON);
+      }
+
+   /** Returns the spooled upload in the given file, or <code>null</code> if it can't be read. */
+   @Nullable
+   private SpooledUpload readSpoolFile(@NotNull final File file)
+      {
+      InputStream inputStream = null;
+      try
+         {
+         inputStream = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)));
+         final JsonNode spooledUpload = objectMapper.readTree(inputStream);
+         final JsonNode username = spooledUpload.get(USERNAME_FIELD);
+         final JsonNode deviceName = spooledUpload.get(DEVICE_NAME_FIELD);
+         final JsonNode channelNames = spooledUpload.get(CHANNEL_NAMES_FIELD);
+         final JsonNode data = spooledUpload.get(DATA_FIELD);
+         if (username != null && deviceName != null && isValidChannelNames(channelNames) && data != null && data.isArray())
+            {
+            return new SpooledUpload(file, username.asText(), deviceName.asText(), channelNames, data);
+            }
+         LOG.error("UploadRelay.readSpoolFile(): Spool file [" + file + "] is missing required fields");
+         }
+      catch (FileNotFoundException e)
+         {
+         // it has already been forwarded and deleted, since the spool was listed
+         LOG.debug("UploadRelay.readSpoolFile(): Spool file [" + file + "] no longer exists");
+         }
+      catch (Exception e)
+         {
+         LOG.error("UploadRelay.readSpoolFile(): Exception while trying to read spool file [" + file + "]", e);
+         }
+      finally
+         {
+         IOUtils.closeQuietly(inputStream);
+         }
+      return null;
+      }
+
+   @NotNull
+   private File[] listSpoolFiles()
+      {
+      final File[] files = directory.listFiles();
+      final List<File> spoolFiles = new ArrayList<File>();
+      if (files != null)
+         {
+         for (final File file : files)
+            {
+            if (file.isFile() && file.getName().startsWith(FILE_NAME_PREFIX) && file.getName().endsWith(FILE_EXTENSION))
+               {
+               spoolFiles.add(file);
+               }
+            }
+         }
+      return spoolFiles.toArray(new File[spoolFiles.size()]);
+      }
+
+   private void delete(@NotNull final File file)
+      {
+      numRejectionsByFileName.remove(file.getName());
+      summaryByFileName.remove(file.getName());
+      if (file.delete())
+         {
+         numSpooledFiles.decrementAndGet();
+         }
+      else
+         {
+         LOG.error("UploadRelay.delete(): Failed to delete forwarded spool file [" + file + "], so its samples will be forwarded again");
+         }
+      }
+
+   /** Moves the given spool file to the rejected directory, returning <code>true</code> if it was moved. */
+   private boolean moveToRejected(@NotNull final File file, @NotNull final String reason)
+      {
+      numRejectionsByFileName.remove(file.getName());
+      summaryByFileName.remove(file.getName());
+
+      //noinspection ResultOfMethodCallIgnored
+      rejectedDirectory.mkdirs();
+      if (file.renameTo(new File(rejectedDirectory, file.getName())))
+         {
+         numSpooledFiles.decrementAndGet();
+         numFilesRejected.incrementAndGet();
+         final String msg = "Moved relayed upload [" + file.getName() + "] to [" + rejectedDirectory + "] because " + reason + ".";
+         LOG.error("UploadRelay.moveToRejected(): " + msg);
+         CONSOLE_LOG.error(msg);
+         return true;
+         }
+      if (file.exists())
+         {
+         LOG.error("UploadRelay.moveToRejected(): Failed to move spool file [" + file + "] to [" + rejectedDirectory + "]");
+         }
+      else
+         {
+         // it has already been handled, e.g. forwarded and deleted after the spool was listed
+         LOG.debug("UploadRelay.moveToRejected(): Spool file [" + file + "] no longer exists");
+         }
+      return false;
+      }
+
+   /** Reads the request body as JSON (decompressing it, if need be), returning <code>null</code> if it isn't JSON. */
+   @Nullable
+   private JsonNode readBody(@NotNull final HttpExchange exchange)
+      {
+      try
+         {
+         InputStream inputStream = exchange.getRequestBody();
+         if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+            {
+            inputStream = new GZIPInputStream(inputStream);
+            }
+         return objectMapper.readTree(inputStream);
+         }
+      catch (Exception e)
+         {
+         LOG.debug("UploadRelay.readBody(): Failed to parse request body", e);
+         return null;
+         }
+      }
+
+   /** Returns the username and password in the given basic <code>Authorization</code> header, or <code>null</code>. */
+   @Nullable
+   private static String[] decodeBasicAuthorization(@Nullable final String authorization) throws UnsupportedEncodingException
+      {
+      if (authorization != null && authorization.startsWith(BASIC_AUTHORIZATION_PREFIX))
+         {
+         final String credentials = new String(Base64.decodeBase64(authorization.substring(BASIC_AUTHORIZATION_PREFIX.length()).trim()), CHARSET);
+         final int colonPosition = credentials.indexOf(':');
+         if (colonPosition > 0)
+            {
+            return new String[]{credentials.substring(0, colonPosition), credentials.substring(colonPosition + 1)};
+            }
+         }
+      return null;
+      }
+
+   private void respond(@NotNull final HttpExchange exchange,
+                        final int statusCode,
+                        @NotNull final String result,
+                        @NotNull final String message,
+                        @Nullable final ObjectNode payload) throws IOException
+      {
+      final ObjectNode response = objectMapper.createObjectNode();
+      response.put("result", result);
+      response.put("message", message);
+      if (payload != null)
+         {
+         response.put("payload", payload);
+         }
+
+      final byte[] bytes = objectMapper.writeValueAsBytes(response);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(statusCode, bytes.length);
+      final OutputStream responseBody = exchange.getResponseBody();
+      responseBody.write(bytes);
+      responseBody.flush();
+      }
+
+   @Nullable
+   private static String getQueryParameter(@Nullable final String rawQuery, @NotNull final String name) throws UnsupportedEncodingException
+      {
+      if (rawQuery != null)
+         {
+         for (final String parameter : rawQuery.split("&"))
+            {
+            final int equalsPosition = parameter.indexOf('=');
+            if (equalsPosition > 0 && name.equals(URLDecoder.decode(parameter.substring(0, equalsPosition), CHARSET)))
+               {
+               return URLDecoder.decode(parameter.substring(equalsPosition + 1), CHARSET);
+               }
+            }
+         }
+      return null;
+      }
+   }
@@ -0,0 +1,409 @@
+package org.specksensor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>UploadSpool</code> persists batches of samples claimed for upload, already serialized, in a spool directory
+ * next to the database (e.g. <code>~/CREATELab/Speck/Speck00343135321504100f17/upload-spool</code>).  A batch is
+ * serialized once, when it's spooled, and every attempt to upload it streams the body straight from its spool file, so
+ * retrying an upload costs the database nothing.  The database is only touched again to acknowledge the batch.
+ * </p>
+ * <p>
+ * Each batch is one file, holding a header line, one line per sample (so that the batch can be rebuilt after a
+ * restart), and then the upload body.  Files are written under a temporary name and renamed once complete, so a batch
+ * is either wholly in the spool or not at all.  If {@link #COMPRESS_SYSTEM_PROPERTY compression} is enabled, the whole
+ * file is gzipped, and the body is decompressed as it's streamed.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class UploadSpool
+   {
+   private static final Logger LOG = Logger.getLogger(UploadSpool.class);
+
+   /** Whether claimed batches are spooled.  Defaults to <code>true</code>. */
+   static final String ENABLED_SYSTEM_PROPERTY = "org.specksensor.UploadSpool.enabled";
+
+   /** Whether spool files are gzipped.  Defaults to <code>false</code>. */
+   static final String COMPRESS_SYSTEM_PROPERTY = "org.specksensor.UploadSpool.compress";
+
+   static final boolean IS_ENABLED = SystemPropertyUtils.getBoolean(ENABLED_SYSTEM_PROPERTY, true);
+   private static final boolean IS_COMPRESSED = SystemPropertyUtils.getBoolean(COMPRESS_SYSTEM_PROPERTY, false);
+
+   private static final String DIRECTORY_NAME = "upload-spool";
+   private static final String FILE_NAME_PREFIX = "batch-";
+   private static final String FILE_EXTENSION = ".spool";
+   private static final String GZIP_FILE_EXTENSION = ".gz";
+   private static final String TEMP_FILE_EXTENSION = ".tmp";
+   private static final String HEADER_MAGIC = "speck-upload-spool";
+   private static final int FORMAT_VERSION = 1;
+   private static final String CHARSET = "UTF-8";
+   private static final char COMMA = ',';
+   private static final char NEWLINE = '\n';
+
+   @NotNull
+   private final File directory;
+
+   private final AtomicInteger numBatches = new AtomicInteger(0);
+
+   /** Returns the spool directory for the given {@link SpeckConfig}. */
+   @NotNull
+   static File getDirectory(@NotNull final SpeckConfig speckConfig)
+      {
+      return new File(SpeckConstants.FilePaths.getDeviceDataDirectory(speckConfig), DIRECTORY_NAME);
+      }
+
+   UploadSpool(@NotNull final File directory)
+      {
+      this.directory = directory;
+      }
+
+   /** Returns the number of batches currently in the spool. */
+   int getNumBatches()
+      {
+      return numBatches.get();
+      }
+
+   /**
+    * Serializes the given set with the given {@link ApiSupport} and writes it to the spool.  Returns the spooled
+    * {@link Batch}, or <code>null</code> if it couldn't be written (in which case nothing is left in the spool).
+    */
+   @Nullable
+   Batch write(@NotNull final DataSampleSet dataSampleSet, @NotNull final ApiSupport apiSupport)
+      {
+      //noinspection ResultOfMethodCallIgnored
+      directory.mkdirs();
+
+      final SortedSet<Speck.DataSample> dataSamples = dataSampleSet.getDataSamples();
+      final String name = FILE_NAME_PREFIX + System.currentTimeMillis() + "-" + dataSamples.first().getSampleTime() + FILE_EXTENSION + (IS_COMPRESSED ? GZIP_FILE_EXTENSION : "");
+      final File file = new File(directory, name);
+      final File tempFile = new File(directory, name + TEMP_FILE_EXTENSION);
+
+      OutputStream outputStream = null;
+      try
+         {
+         final byte[] body = dataSampleSet.toJson(apiSupport).getBytes(CHARSET);
+
+         final StringBuilder header = new StringBuilder();
+         header.append(HEADER_MAGIC).append(COMMA).append(FORMAT_VERSION).append(COMMA).append(dataSamples.size()).append(COMMA).append(body.length).append(NEWLINE);
+         for (final Speck.DataSample sample : dataSamples)
+            {
+            header.append(sample.getDatabaseId()).append(COMMA)
+                  .append(sample.getSampleTime()).append(COMMA)
+                  .append(sample.getRawParticleCount()).append(COMMA)
+                  .append(sample.getParticleCountOrConcentration()).append(COMMA)
+                  .append(sample.getTemperatureInTenthsOfADegreeF()).append(COMMA)
+                  .append(sample.getHumidity()).append(NEWLINE);
+            }
+
+         outputStream = new BufferedOutputStream(new FileOutputStream(tempFile));
+         if (IS_COMPRESSED)
+            {
+            outputStream = new GZIPOutputStream(outputStream);
+            }
+         outputStream.write(header.toString().getBytes(CHARSET));
+         outputStream.write(body);
+         outputStream.close();
+         outputStream = null;
+
+         if (!tempFile.renameTo(file))
+            {
+            throw new IOException("Failed to rename [" + tempFile + "] to [" + file + "]");
+            }
+
+         numBatches.incrementAndGet();
+         if (LOG.isDebugEnabled())
+            {
+            LOG.debug("UploadSpool.write(): Spooled [" + dataSamples.size() + "] samples to [" + file.getName() + "]");
+            }
+         return new Batch(file, dataSamples, body.length);
+         }
+      catch (IOException e)
+         {
+         LOG.error("UploadSpool.write(): IOException while trying to spool [" + dataSamples.size() + "] samples to [" + file + "]", e);
+         }
+      finally
+         {
+         closeQuietly(outputStream);
+         //noinspection ResultOfMethodCallIgnored
+         tempFile.delete();
+         }
+      return null;
+      }
+
+   /**
+    * Reads all the batches in the spool, oldest first.  Unfinished and unreadable spool files are deleted, since the
+    * samples in them will simply be claimed again.
+    */
+   @NotNull
+   List<Batch> load()
+      {
+      final List<Batch> batches = new ArrayList<Batch>();
+      final File[] files = directory.listFiles();
+      if (files != null)
+         {
+         Arrays.sort(files);
+         for (final File file : files)
+            {
+            final String name = file.getName();
+            if (name.startsWith(FILE_NAME_PREFIX) && (name.endsWith(FILE_EXTENSION) || name.endsWith(FILE_EXTENSION + GZIP_FILE_EXTENSION)))
+               {
+               try
+                  {
+                  batches.add(read(file));
+                  }
+               catch (Exception e)
+                  {
+                  LOG.error("UploadSpool.load(): Deleting unreadable spool file [" + file + "]", e);
+                  delete(file);
+                  }
+               }
+            else if (name.endsWith(TEMP_FILE_EXTENSION))
+               {
+               LOG.info("UploadSpool.load(): Deleting unfinished spool file [" + file + "]");
+               delete(file);
+               }
+            }
+         }
+      numBatches.set(batches.size());
+      return batches;
+      }
+
+   /** Removes the given batch from the spool, once it has been acknowledged (or abandoned). */
+   void remove(@NotNull final Batch batch)
+      {
+      if (delete(batch.file))
+         {
+         numBatches.decrementAndGet();
+         }
+      }
+
+   @NotNull
+   private Batch read(@NotNull final File file) throws IOException
+      {
+      final InputStream inputStream = open(file);
+      try
+         {
+         final String[] header = readLine(inputStream).split(String.valueOf(COMMA));
+         if (header.length != 4 || !HEADER_MAGIC.equals(header[0]) || Integer.parseInt(header[1]) != FORMAT_VERSION)
+            {
+            throw new IOException("Unrecognized spool file header");
+            }
+         final int numSamples = Integer.parseInt(header[2]);
+         final long bodyLength = Long.parseLong(header[3]);
+
+         final SortedSet<Speck.DataSample> dataSamples = new TreeSet<Speck.DataSample>();
+         for (int i = 0; i < numSamples; i++)
+            {
+            final String[] values = readLine(inputStream).split(String.valueOf(COMMA));
+            dataSamples.add(new DataSample(Integer.parseInt(values[0]),       // databaseId
+                                           Integer.parseInt(values[1]),       // sampleTimeUtcSeconds
+                                           Integer.parseInt(values[2]),       // rawParticleCount
+                                           Integer.parseInt(values[3]),       // particleCount
+                                           Integer.parseInt(values[4]),       // temperatureInTenthsOfDegreeF
+                                           Integer.parseInt(values[5])));     // humidity
+            }
+
+         // make sure the body is all there
+         long numBodyBytes = 0;
+         final byte[] buffer = new byte[8192];
+         int numRead;
+         while ((numRead = inputStream.read(buffer)) >= 0)
+            {
+            numBodyBytes += numRead;
+            }
+         if (dataSamples.isEmpty() || numBodyBytes != bodyLength)
+            {
+            throw new IOException("Spool file has [" + dataSamples.size() + "] samples and [" + numBodyBytes + "] body bytes, but expected [" + numSamples + "] and [" + bodyLength + "]");
+            }
+
+         return new Batch(file, dataSamples, bodyLength);
+         }
+      finally
+         {
+         closeQuietly(inputStream);
+         }
+      }
+
+   @NotNull
+   private static InputStream open(@NotNull final File file) throws IOException
+      {
+      final InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+      return file.getName().endsWith(GZIP_FILE_EXTENSION) ? new GZIPInputStream(inputStream) : inputStream;
+      }
+
+   /** Reads bytes up to (and consuming) the next newline, without reading any further. */
+   @NotNull
+   private static String readLine(@NotNull final InputStream inputStream) throws IOException
+      {
+      final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+      int b;
+      while ((b = inputStream.read()) != NEWLINE)
+         {
+         if (b < 0)
+            {
+            throw new IOException("Unexpected end of spool file");
+            }
+         line.write(b);
+         }
+      return line.toString(CHARSET);
+      }
+
+   private static boolean delete(@NotNull final File file)
+      {
+      if (file.delete())
+         {
+         return true;
+         }
+      if (file.exists())
+         {
+         LOG.error("UploadSpool.delete(): Failed to delete spool file [" + file + "]");
+         }
+      return false;
+      }
+
+   private static void closeQuietly(@Nullable final InputStream inputStream)
+      {
+      if (inputStream != null)
+         {
+         try
+            {
+            inputStream.close();
+            }
+         catch (IOException e)
+            {
+            LOG.error("UploadSpool.closeQuietly(): IOException while closing the spool file", e);
+            }
+         }
+      }
+
+   private static void closeQuietly(@Nullable final OutputStream outputStream)
+      {
+      if (outputStream != null)
+         {
+         try
+            {
+            outputStream.close();
+            }
+         catch (IOException e)
+            {
+            LOG.error("UploadSpool.closeQuietly(): IOException while closing the spool file", e);
+            }
+         }
+      }
+
+   /**
+    * A spooled batch.  The samples are kept in memory (so that the batch can be acknowledged, or split up, without the
+    * database), but the upload body is only ever read from the spool file.
+    */
+   static final class Batch implements DataSampleSet
+      {
+      @NotNull
+      private final File file;
+
+      @NotNull
+      private final DataSampleSetImpl dataSampleSet;
+
+      private final long bodyLength;
+
+      private Batch(@NotNull final File file, @NotNull final SortedSet<Speck.DataSample> dataSamples, final long bodyLength)
+         {
+         this.file = file;
+         this.dataSampleSet = new DataSampleSetImpl(dataSamples);
+         this.bodyLength = bodyLength;
+         }
+
+      /** Returns the length, in bytes, of the (uncompressed) upload body. */
+      long getBodyLength()
+         {
+         return bodyLength;
+         }
+
+      /**
+       * Returns an entity which streams the upload body from the spool file.  The entity can only be written once, and
+       * closes the file when it's done.
+       */
+      @NotNull
+      HttpEntity createEntity() throws IOException
+         {
+         final InputStream inputStream = open(file);
+         try
+            {
+            // skip the header and sample lines
+            final String[] header = readLine(inputStream).split(String.valueOf(COMMA));
+            final int numSamples = Integer.parseInt(header[2]);
+            for (int i = 0; i < numSamples; i++)
+               {
+               readLine(inputStream);
+               }
+            return new InputStreamEntity(inputStream, bodyLength, ContentType.APPLICATION_JSON);
+            }
+         catch (IOException e)
+            {
+            closeQuietly(inputStream);
+            throw e;
+            }
+         catch (RuntimeException e)
+            {
+            closeQuietly(inputStream);
+            throw new IOException("Unreadable spool file [" + file + "]", e);
+            }
+         }
+
+      @NotNull
+      @Override
+      public SortedSet<Speck.DataSample> getDataSamples()
+         {
+         return dataSampleSet.getDataSamples();
+         }
+
+      @Override
+      public boolean isEmpty()
+         {
+         return dataSampleSet.isEmpty();
+         }
+
+      @Override
+      public int size()
+         {
+         return dataSampleSet.size();
+         }
+
+      /** Serializes the samples kept in memory, so it's not normally called, since uploads use {@link #createEntity()}. */
+      @NotNull
+      @Override
+      public String toJson(@NotNull final ApiSupport apiSupport)
+         {
+         return dataSampleSet.toJson(apiSupport);
+         }
+
+      @Override
+      public String toString()
+         {
+         return "UploadSpool.Batch{file=" + file.getName() + ", size=" + size() + ", bodyLength=" + bodyLength + "}";
+         }
+      }
+   }
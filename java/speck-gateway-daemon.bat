@@ -0,0 +1 @@
+java -Xmx64m -Djava.awt.headless=true -Djna.library.path=.\code\applications\dist -Djava.library.path=.\code\applications\dist -cp ./code/applications/dist/speck-applications.jar org.specksensor.applications.SpeckGatewayDaemon %*
\ No newline at end of file
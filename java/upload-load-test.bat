@@ -0,0 +1 @@
+java -Xmx256m -Djava.awt.headless=true -cp ./code/applications/dist/speck-applications.jar org.specksensor.applications.UploadLoadTest %*
\ No newline at end of file
@@ -0,0 +1,3 @@
+#!/bin/bash
+
+java -Xmx256m -Djava.awt.headless=true -cp ./code/applications/dist/speck-applications.jar org.specksensor.applications.UploadLoadTest "$@";